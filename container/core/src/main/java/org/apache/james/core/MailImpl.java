@@ -36,13 +36,20 @@ import java.io.ObjectOutputStream;
 import java.io.OptionalDataException;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>
@@ -109,6 +116,12 @@ public class MailImpl implements Disposable, Mail {
      * Attributes added to this MailImpl instance
      */
     private Map<String, Object> attributes;
+    /**
+     * Number of MailImpl instances sharing the attributes map, null if the map
+     * is owned by this instance. A shared map is copied before it is modified
+     * or a mutable value is handed out.
+     */
+    private transient AtomicInteger attributesShares;
 
     /**
      * A constructor that creates a new, uninitialized MailImpl
@@ -159,23 +172,15 @@ public class MailImpl implements Disposable, Mail {
         setRemoteHost(mail.getRemoteHost());
         setRemoteAddr(mail.getRemoteAddr());
         setLastUpdated(mail.getLastUpdated());
-        try {
-            if (mail instanceof MailImpl) {
-                setAttributesRaw((HashMap) cloneSerializableObject(((MailImpl) mail).getAttributesRaw()));
-            } else {
-                HashMap<String, Object> attribs = new HashMap<String, Object>();
-                for (Iterator i = mail.getAttributeNames(); i.hasNext(); ) {
-                    String hashKey = (String) i.next();
-                    attribs.put(hashKey, cloneSerializableObject(mail.getAttribute(hashKey)));
-                }
-                setAttributesRaw(attribs);
+        if (mail instanceof MailImpl) {
+            ((MailImpl) mail).shareAttributes(this);
+        } else {
+            HashMap<String, Object> attribs = new HashMap<String, Object>();
+            for (Iterator i = mail.getAttributeNames(); i.hasNext(); ) {
+                String hashKey = (String) i.next();
+                attribs.put(hashKey, cloneAttribute(mail.getAttribute(hashKey)));
             }
-        } catch (IOException e) {
-            // should never happen for in memory streams
-            setAttributesRaw(new HashMap<String, Object>());
-        } catch (ClassNotFoundException e) {
-            // should never happen as we just serialized it
-            setAttributesRaw(new HashMap<String, Object>());
+            setAttributesRaw(attribs);
         }
     }
 
@@ -550,6 +555,7 @@ public class MailImpl implements Disposable, Mail {
      * @since 2.2.0
      */
     public Map<String, Object> getAttributesRaw() {
+        ownAttributes();
         return attributes;
     }
 
@@ -567,31 +573,51 @@ public class MailImpl implements Disposable, Mail {
      * @since 2.2.0
      */
     public void setAttributesRaw(HashMap<String, Object> attr) {
+        releaseAttributes();
         this.attributes = (attr == null) ? new HashMap<String, Object>() : attr;
     }
 
     @Override
     public Serializable getAttribute(String key) {
-        return (Serializable) attributes.get(key);
+        Object value = attributes.get(key);
+        if (attributesShares != null && !isImmutable(value)) {
+            // the caller may modify the value
+            ownAttributes();
+            value = attributes.get(key);
+        }
+        return (Serializable) value;
     }
 
     @Override
     public Serializable setAttribute(String key, Serializable object) {
+        ownAttributes();
         return (Serializable) attributes.put(key, object);
     }
 
     @Override
     public Serializable removeAttribute(String key) {
+        if (attributesShares != null && !attributes.containsKey(key)) {
+            return null;
+        }
+        ownAttributes();
         return (Serializable) attributes.remove(key);
     }
 
     @Override
     public void removeAllAttributes() {
-        attributes.clear();
+        if (attributesShares != null) {
+            releaseAttributes();
+            attributes = new HashMap<String, Object>();
+        } else {
+            attributes.clear();
+        }
     }
 
     @Override
     public Iterator getAttributeNames() {
+        if (attributesShares != null) {
+            return Collections.unmodifiableSet(attributes.keySet()).iterator();
+        }
         return attributes.keySet().iterator();
     }
 
@@ -600,6 +626,91 @@ public class MailImpl implements Disposable, Mail {
         return !attributes.isEmpty();
     }
 
+    /**
+     * Share the attributes of this instance with the given copy. Both
+     * instances copy the map before they modify it, so the mutable values are
+     * only cloned if one of the instances changes its attributes or hands out
+     * such a value.
+     *
+     * @param copy
+     */
+    private void shareAttributes(MailImpl copy) {
+        if (attributes.isEmpty()) {
+            copy.attributes = new HashMap<String, Object>();
+            return;
+        }
+        if (attributesShares == null) {
+            attributesShares = new AtomicInteger(1);
+        }
+        attributesShares.incrementAndGet();
+        copy.attributes = attributes;
+        copy.attributesShares = attributesShares;
+    }
+
+    /**
+     * Make sure this instance owns its attributes map. If the map is still
+     * shared with another instance, a copy is made in which the mutable
+     * values are cloned.
+     */
+    private void ownAttributes() {
+        AtomicInteger shares = attributesShares;
+        if (shares == null) {
+            return;
+        }
+        if (shares.get() > 1) {
+            Map<String, Object> copy = new HashMap<String, Object>(attributes.size() * 4 / 3 + 1);
+            for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+                copy.put(entry.getKey(), cloneAttribute(entry.getValue()));
+            }
+            attributes = copy;
+            shares.decrementAndGet();
+        }
+        attributesShares = null;
+    }
+
+    /**
+     * Stop sharing the attributes map, without copying it
+     */
+    private void releaseAttributes() {
+        if (attributesShares != null) {
+            attributesShares.decrementAndGet();
+            attributesShares = null;
+        }
+    }
+
+    /**
+     * Return a copy of the given attribute value which can be modified
+     * independently of the original. Immutable values are returned as is.
+     *
+     * @param value
+     * @return copy
+     */
+    private static Object cloneAttribute(Object value) {
+        if (isImmutable(value)) {
+            return value;
+        }
+        try {
+            return cloneSerializableObject(value);
+        } catch (IOException e) {
+            // should never happen for in memory streams, share the value
+            return value;
+        } catch (ClassNotFoundException e) {
+            // should never happen as we just serialized it
+            return value;
+        }
+    }
+
+    /**
+     * Return true if the given attribute value can not be modified, so it can
+     * be shared between copies without cloning it
+     *
+     * @param value
+     * @return immutable
+     */
+    private static boolean isImmutable(Object value) {
+        return value == null || IMMUTABLE_TYPES.contains(value.getClass()) || value instanceof Enum;
+    }
+
     /**
      * This methods provide cloning for serializable objects. Mail Attributes
      * are Serializable but not Clonable so we need a deep copy
@@ -620,6 +731,11 @@ public class MailImpl implements Disposable, Mail {
         return in.readObject();
     }
 
+    /**
+     * Attribute types whose instances are immutable
+     */
+    private static final Set<Class<?>> IMMUTABLE_TYPES = new HashSet<Class<?>>(Arrays.<Class<?>> asList(String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class, BigInteger.class, BigDecimal.class, MailAddress.class));
+
     private static final java.util.Random random = new java.util.Random(); // Used
     // to
     // generate
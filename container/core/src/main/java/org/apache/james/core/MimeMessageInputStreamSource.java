@@ -150,6 +150,24 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
         return out.getByteCount();
     }
 
+    /**
+     * Return the temporary file if the data exceeded the threshold
+     *
+     * @return the temporary file or <code>null</code> if the data is held in
+     *         memory
+     */
+    @Override
+    public synchronized File getFile() {
+        if (out == null || out.isInMemory()) {
+            return null;
+        }
+        File file = out.getFile();
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        return file;
+    }
+
     public OutputStream getWritableOutputStream() {
         return out;
     }
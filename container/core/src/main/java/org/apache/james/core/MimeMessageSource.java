@@ -19,6 +19,7 @@
 
 package org.apache.james.core;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -81,4 +82,16 @@ public abstract class MimeMessageSource {
         return size;
     }
 
+    /**
+     * Return the file which holds exactly the data of this source, so it can
+     * get copied without reading it. The file must not be modified. Default
+     * implementation returns <code>null</code>, sources which store the data
+     * in a file should override it.
+     * 
+     * @return file or <code>null</code> if the data is not stored in a file
+     */
+    public File getFile() {
+        return null;
+    }
+
 }
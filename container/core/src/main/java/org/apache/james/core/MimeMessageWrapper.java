@@ -21,6 +21,7 @@ package org.apache.james.core;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -182,6 +183,21 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
         return source != null ? source.getSourceId() : null;
     }
 
+    /**
+     * Return the file of the {@link MimeMessageSource} if the message was not
+     * modified since it was loaded from it, so the file holds exactly the
+     * content of the message.
+     * 
+     * @return file or <code>null</code> if the content is not stored in a file
+     * @see MimeMessageSource#getFile()
+     */
+    public synchronized File getSourceFile() {
+        if (source == null || isModified()) {
+            return null;
+        }
+        return source.getFile();
+    }
+
     /**
      * Load the message headers from the internal source.
      * 
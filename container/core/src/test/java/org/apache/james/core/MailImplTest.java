@@ -102,4 +102,42 @@ public class MailImplTest extends MailTestAllImplementations {
         helperTestInitialState(duplicate);
         helperTestMessageSize(duplicate, 0);
     }
+
+    @Test
+    public void testCopyAttributesAreIndependent() throws MessagingException {
+        MailImpl mail = new MailImpl();
+        mail.setName("mail");
+        ArrayList<String> list = new ArrayList<String>();
+        list.add("a");
+        mail.setAttribute("list", list);
+        mail.setAttribute("string", "value");
+
+        MailImpl copy = new MailImpl(mail);
+        assertSame("immutable value is shared", mail.getAttribute("string"), copy.getAttribute("string"));
+
+        ((ArrayList<String>) copy.getAttribute("list")).add("b");
+        assertEquals("original value unchanged", 1, ((ArrayList<String>) mail.getAttribute("list")).size());
+        assertEquals("copy value changed", 2, ((ArrayList<String>) copy.getAttribute("list")).size());
+
+        copy.setAttribute("new", "copy");
+        mail.removeAttribute("string");
+        assertNull("original does not see copy attribute", mail.getAttribute("new"));
+        assertEquals("copy keeps removed attribute", "value", copy.getAttribute("string"));
+    }
+
+    @Test
+    public void testCopyOfCopyAttributes() throws MessagingException {
+        MailImpl mail = new MailImpl();
+        mail.setName("mail");
+        mail.setAttribute("string", "value");
+
+        MailImpl copy = new MailImpl(mail);
+        MailImpl copy2 = new MailImpl(copy);
+        copy.removeAllAttributes();
+        copy2.setAttribute("string", "changed");
+
+        assertFalse("copy has no attributes", copy.hasAttributes());
+        assertEquals("original unchanged", "value", mail.getAttribute("string"));
+        assertEquals("second copy changed", "changed", copy2.getAttribute("string"));
+    }
 }
@@ -0,0 +1,207 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.dnsservice.library;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.mailet.HostAddress;
+
+/**
+ * Bounded memory of the connect failures and the connect latency of the SMTP
+ * servers, keyed by IP address and port.
+ * <p>
+ * Failures are counted with an exponential decay: the failure score halves
+ * every <code>halfLife</code> milliseconds, and an address is considered bad
+ * as long as its score is at least {@link #BAD_SCORE}. So a single failure
+ * marks an address as bad for one half life, repeated failures for longer. A
+ * successful connect clears the score.
+ * The latency is kept as moving average. Entries which were not updated for
+ * {@link #EXPIRY_HALF_LIVES} half lives are forgotten, and at most
+ * <code>maxEntries</code> addresses are kept (least recently used first out).
+ * </p>
+ * <p>
+ * The instance returned by {@link #getInstance()} is shared by all users in
+ * the JVM.
+ * </p>
+ */
+public class MXHealthCache {
+
+    /**
+     * Default number of addresses kept
+     */
+    public final static int DEFAULT_MAX_ENTRIES = 10000;
+
+    /**
+     * Default half life of a failure in milliseconds (5 minutes)
+     */
+    public final static long DEFAULT_HALF_LIFE = 300000;
+
+    /**
+     * Failure score from which on an address is bad
+     */
+    private final static double BAD_SCORE = 0.5;
+
+    /**
+     * Number of half lives after which an unused entry is forgotten
+     */
+    private final static int EXPIRY_HALF_LIVES = 12;
+
+    /**
+     * Weight of a new latency sample in the moving average
+     */
+    private final static double LATENCY_WEIGHT = 0.3;
+
+    private final static MXHealthCache INSTANCE = new MXHealthCache(DEFAULT_MAX_ENTRIES, DEFAULT_HALF_LIFE);
+
+    private final long halfLife;
+    private final Map<String, HostHealth> entries;
+
+    /**
+     * @param maxEntries
+     *            max number of addresses to keep
+     * @param halfLife
+     *            time in milliseconds after which the failure score is halved
+     */
+    public MXHealthCache(final int maxEntries, long halfLife) {
+        this.halfLife = halfLife;
+        this.entries = new LinkedHashMap<String, HostHealth>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HostHealth> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Return the cache shared by all users in the JVM
+     * 
+     * @return cache
+     */
+    public static MXHealthCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Record a failed connect to the given address
+     * 
+     * @param address
+     */
+    public synchronized void recordFailure(HostAddress address) {
+        long now = now();
+        HostHealth entry = getEntry(getKey(address), now, true);
+        entry.failureScore = entry.getFailureScore(now, halfLife) + 1;
+        entry.updated = now;
+    }
+
+    /**
+     * Record a successful connect to the given address
+     * 
+     * @param address
+     * @param latency
+     *            time in milliseconds the connect took
+     */
+    public synchronized void recordSuccess(HostAddress address, long latency) {
+        long now = now();
+        HostHealth entry = getEntry(getKey(address), now, true);
+        entry.failureScore = 0;
+        entry.latency = entry.latency < 0 ? latency : (long) (entry.latency * (1 - LATENCY_WEIGHT) + latency * LATENCY_WEIGHT);
+        entry.updated = now;
+    }
+
+    /**
+     * Return true if recent connects to the address failed
+     * 
+     * @param address
+     * @return bad
+     */
+    public synchronized boolean isBad(HostAddress address) {
+        long now = now();
+        HostHealth entry = getEntry(getKey(address), now, false);
+        return entry != null && entry.getFailureScore(now, halfLife) >= BAD_SCORE;
+    }
+
+    /**
+     * Return the average connect latency of the address in milliseconds, or -1
+     * if unknown
+     * 
+     * @param address
+     * @return latency
+     */
+    public synchronized long getLatency(HostAddress address) {
+        HostHealth entry = getEntry(getKey(address), now(), false);
+        return entry == null ? -1 : entry.latency;
+    }
+
+    /**
+     * Return the number of addresses in the cache
+     * 
+     * @return size
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Forget everything
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    private HostHealth getEntry(String key, long now, boolean create) {
+        HostHealth entry = entries.get(key);
+        if (entry != null && now - entry.updated > halfLife * EXPIRY_HALF_LIVES) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null && create) {
+            entry = new HostHealth(now);
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    private static String getKey(HostAddress address) {
+        return address.getHost() + ":" + address.getPort();
+    }
+
+    private final static class HostHealth {
+        private double failureScore;
+        private long latency = -1;
+        private long updated;
+
+        public HostHealth(long now) {
+            this.updated = now;
+        }
+
+        public double getFailureScore(long now, long halfLife) {
+            if (failureScore == 0 || halfLife <= 0) {
+                return failureScore;
+            }
+            return failureScore * Math.pow(0.5, (double) (now - updated) / halfLife);
+        }
+    }
+}
@@ -28,6 +28,8 @@ import org.slf4j.Logger;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -50,6 +52,24 @@ public class MXHostAddressIterator implements Iterator<HostAddress> {
     }
 
     public MXHostAddressIterator(Iterator<String> hosts, int defaultPort, DNSService dns, boolean useSingleIP, Logger logger) {
+        this(hosts, defaultPort, dns, useSingleIP, null, logger);
+    }
+
+    /**
+     * Create an iterator over the addresses of the given hosts. If a
+     * {@link MXHealthCache} is given the addresses of one host are ordered by
+     * their connect latency, and the addresses which are known to be bad are
+     * returned after all others.
+     *
+     * @param hosts
+     * @param defaultPort
+     * @param dns
+     * @param useSingleIP
+     * @param healthCache
+     *            may be null to keep the DNS order
+     * @param logger
+     */
+    public MXHostAddressIterator(Iterator<String> hosts, int defaultPort, DNSService dns, boolean useSingleIP, MXHealthCache healthCache, Logger logger) {
         this.hosts = checkNotNull(hosts, "Hosts is null");
         this.dns = checkNotNull(dns, "Dns is null");
         this.useSingleIP = useSingleIP;
@@ -80,7 +100,51 @@ public class MXHostAddressIterator implements Iterator<HostAddress> {
                 logger.error(logBuffer);
             }
         }
-        addresses = hAddresses.iterator();
+        if (healthCache != null) {
+            addresses = order(hAddresses, healthCache).iterator();
+        } else {
+            addresses = hAddresses.iterator();
+        }
+    }
+
+    /**
+     * Order the addresses of each host by latency and move the bad addresses
+     * to the end. The order of the hosts is kept, as it reflects the MX
+     * priorities.
+     */
+    private static List<HostAddress> order(List<HostAddress> hAddresses, final MXHealthCache healthCache) {
+        final List<HostAddress> good = Lists.newArrayList();
+        final List<HostAddress> bad = Lists.newArrayList();
+        Comparator<HostAddress> byLatency = new Comparator<HostAddress>() {
+            @Override
+            public int compare(HostAddress a, HostAddress b) {
+                // unknown addresses first, so they get measured
+                long la = Math.max(healthCache.getLatency(a), 0);
+                long lb = Math.max(healthCache.getLatency(b), 0);
+                return la < lb ? -1 : (la == lb ? 0 : 1);
+            }
+        };
+
+        int start = 0;
+        while (start < hAddresses.size()) {
+            String hostname = hAddresses.get(start).getHostName();
+            int end = start + 1;
+            while (end < hAddresses.size() && hostname.equals(hAddresses.get(end).getHostName())) {
+                end++;
+            }
+            List<HostAddress> sameHost = Lists.newArrayList(hAddresses.subList(start, end));
+            Collections.sort(sameHost, byLatency);
+            for (HostAddress address : sameHost) {
+                if (healthCache.isBad(address)) {
+                    bad.add(address);
+                } else {
+                    good.add(address);
+                }
+            }
+            start = end;
+        }
+        good.addAll(bad);
+        return good;
     }
 
     private static ImmutableMap.Entry<String, String> extractHostAndPort(String nextHostname, int defaultPort) {
@@ -0,0 +1,121 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.dnsservice.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.mailet.HostAddress;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MXHealthCacheTest {
+
+    private final static long HALF_LIFE = 1000;
+
+    private long now;
+    private MXHealthCache cache;
+
+    @Before
+    public void setUp() {
+        now = 1000000;
+        cache = new MXHealthCache(2, HALF_LIFE) {
+            @Override
+            protected long now() {
+                return now;
+            }
+        };
+    }
+
+    private static HostAddress address(String ip) {
+        return new HostAddress("mx.example.org", "smtp://" + ip + ":25");
+    }
+
+    @Test
+    public void testUnknownAddress() {
+        assertFalse(cache.isBad(address("10.0.0.1")));
+        assertEquals(-1, cache.getLatency(address("10.0.0.1")));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testFailureDecays() {
+        HostAddress a = address("10.0.0.1");
+        cache.recordFailure(a);
+        assertTrue(cache.isBad(a));
+
+        now += HALF_LIFE / 2;
+        assertTrue(cache.isBad(a));
+
+        now += HALF_LIFE;
+        assertFalse(cache.isBad(a));
+    }
+
+    @Test
+    public void testRepeatedFailuresLastLonger() {
+        HostAddress a = address("10.0.0.1");
+        cache.recordFailure(a);
+        cache.recordFailure(a);
+        cache.recordFailure(a);
+
+        now += HALF_LIFE * 2;
+        assertTrue(cache.isBad(a));
+
+        now += HALF_LIFE;
+        assertFalse(cache.isBad(a));
+    }
+
+    @Test
+    public void testSuccessClearsFailures() {
+        HostAddress a = address("10.0.0.1");
+        cache.recordFailure(a);
+        cache.recordSuccess(a, 100);
+        assertFalse(cache.isBad(a));
+        assertEquals(100, cache.getLatency(a));
+
+        cache.recordSuccess(a, 200);
+        assertEquals(130, cache.getLatency(a));
+    }
+
+    @Test
+    public void testPortIsPartOfTheKey() {
+        cache.recordFailure(address("10.0.0.1"));
+        assertFalse(cache.isBad(new HostAddress("mx.example.org", "smtp://10.0.0.1:587")));
+    }
+
+    @Test
+    public void testBounded() {
+        cache.recordFailure(address("10.0.0.1"));
+        cache.recordFailure(address("10.0.0.2"));
+        cache.recordFailure(address("10.0.0.3"));
+        assertEquals(2, cache.size());
+        assertFalse(cache.isBad(address("10.0.0.1")));
+        assertTrue(cache.isBad(address("10.0.0.3")));
+    }
+
+    @Test
+    public void testUnusedEntriesExpire() {
+        HostAddress a = address("10.0.0.1");
+        cache.recordSuccess(a, 100);
+        now += HALF_LIFE * 100;
+        assertEquals(-1, cache.getLatency(a));
+        assertEquals(0, cache.size());
+    }
+}
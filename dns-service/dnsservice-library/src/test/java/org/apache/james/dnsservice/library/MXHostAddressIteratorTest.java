@@ -24,6 +24,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import org.apache.james.dnsservice.api.DNSService;
 import org.apache.james.dnsservice.api.TemporaryResolutionException;
+import org.apache.mailet.HostAddress;
 import static org.junit.Assert.*;
 import org.junit.Test;
 import org.slf4j.LoggerFactory;
@@ -131,4 +132,67 @@ public class MXHostAddressIteratorTest {
                 LoggerFactory.getLogger(this.getClass()));
         assertFalse(it.hasNext());
     }
+
+    @Test
+    public void testIteratorOrderedByHealth() throws Exception {
+        DNSService dns = new DNSService() {
+
+            @Override
+            public InetAddress getLocalHost() throws UnknownHostException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public String getHostName(InetAddress addr) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public InetAddress getByName(String host) throws UnknownHostException {
+                throw new UnsupportedOperationException();
+            }
+
+            /**
+             * mx1 resolves to 10.0.0.1 and 10.0.0.2, mx2 to 10.0.1.1
+             */
+            @Override
+            public InetAddress[] getAllByName(String host) throws UnknownHostException {
+                if (host.equals("mx1")) {
+                    return new InetAddress[]{InetAddress.getByName("10.0.0.1"), InetAddress.getByName("10.0.0.2")};
+                }
+                return new InetAddress[]{InetAddress.getByName("10.0.1.1")};
+            }
+
+            @Override
+            public Collection<String> findTXTRecords(String hostname) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Collection<String> findMXRecords(String hostname) throws TemporaryResolutionException {
+                throw new UnsupportedOperationException();
+            }
+        };
+        MXHealthCache cache = new MXHealthCache(10, 60000);
+        cache.recordSuccess(new HostAddress("mx1", "smtp://10.0.0.1:25"), 500);
+        cache.recordSuccess(new HostAddress("mx1", "smtp://10.0.0.2:25"), 50);
+        cache.recordSuccess(new HostAddress("mx2", "smtp://10.0.1.1:25"), 10);
+
+        // the faster address of mx1 first, but mx1 before mx2
+        MXHostAddressIterator it = new MXHostAddressIterator(Arrays.asList("mx1", "mx2").iterator(), 25, dns, false, cache,
+                LoggerFactory.getLogger(this.getClass()));
+        assertEquals("10.0.0.2", it.next().getHost());
+        assertEquals("10.0.0.1", it.next().getHost());
+        assertEquals("10.0.1.1", it.next().getHost());
+        assertFalse(it.hasNext());
+
+        // a failing address is tried last
+        cache.recordFailure(new HostAddress("mx1", "smtp://10.0.0.2:25"));
+        it = new MXHostAddressIterator(Arrays.asList("mx1", "mx2").iterator(), 25, dns, false, cache,
+                LoggerFactory.getLogger(this.getClass()));
+        assertEquals("10.0.0.1", it.next().getHost());
+        assertEquals("10.0.1.1", it.next().getHost());
+        assertEquals("10.0.0.2", it.next().getHost());
+        assertFalse(it.hasNext());
+    }
 }
@@ -67,4 +67,67 @@ public interface MailProcessorManagementMBean {
      */
     long getLastProcessing();
 
+    /**
+     * Return the median processing time in nanoseconds of the last completed
+     * statistics window, -1 if no mail was processed in that window
+     * 
+     * @return p50
+     */
+    long getProcessingNanosP50();
+
+    /**
+     * Return the 90th percentile of the processing time in nanoseconds of the
+     * last completed statistics window, -1 if no mail was processed in that
+     * window
+     * 
+     * @return p90
+     */
+    long getProcessingNanosP90();
+
+    /**
+     * Return the 99th percentile of the processing time in nanoseconds of the
+     * last completed statistics window, -1 if no mail was processed in that
+     * window
+     * 
+     * @return p99
+     */
+    long getProcessingNanosP99();
+
+    /**
+     * Return the 99.9th percentile of the processing time in nanoseconds of
+     * the last completed statistics window, -1 if no mail was processed in
+     * that window
+     * 
+     * @return p999
+     */
+    long getProcessingNanosP999();
+
+    /**
+     * Return the mean processing time in nanoseconds of the last completed
+     * statistics window, -1 if no mail was processed in that window
+     * 
+     * @return mean
+     */
+    long getMeanProcessingNanos();
+
+    /**
+     * Return the length in ms of a statistics window
+     * 
+     * @return window
+     */
+    long getStatisticsWindow();
+
+    /**
+     * Return the distribution of the processing times since the start or the
+     * last reset, one entry per range of nanoseconds
+     * 
+     * @return histogram
+     */
+    String[] getProcessingHistogram();
+
+    /**
+     * Drop the recorded processing times
+     */
+    void resetStatistics();
+
 }
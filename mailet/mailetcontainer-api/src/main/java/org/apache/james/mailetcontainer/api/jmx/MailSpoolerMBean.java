@@ -24,16 +24,67 @@ package org.apache.james.mailetcontainer.api.jmx;
 public interface MailSpoolerMBean {
 
     /**
-     * Return the number of threads used for spooling
+     * Return the number of threads used for spooling, which is the highest
+     * number of concurrently processed mails
      * 
      * @return threadCount
      */
     int getThreadCount();
 
+    /**
+     * Return the lowest number of concurrently processed mails. If this is
+     * lower than the thread count the concurrency adapts itself between both
+     * 
+     * @return minThreadCount
+     */
+    int getMinThreadCount();
+
+    /**
+     * Return the number of mails which may currently be processed
+     * concurrently
+     * 
+     * @return concurrencyLimit
+     */
+    int getConcurrencyLimit();
+
+    /**
+     * Return the number of mails per second which were processed in the last
+     * adjust interval. This is only maintained if the concurrency adapts
+     * itself.
+     * 
+     * @return throughput
+     */
+    long getThroughput();
+
+    /**
+     * Return the average time in milliseconds the processing of a mail took
+     * in the last adjust interval. This is only maintained if the concurrency
+     * adapts itself.
+     * 
+     * @return averageProcessingTime
+     */
+    long getAverageProcessingTime();
+
     /**
      * 
      * @return current spool count
      */
     int getCurrentSpoolCount();
 
+    /**
+     * Return the number of mails which were dequeued but are not processed
+     * completely yet. This is never more than the thread count.
+     * 
+     * @return inFlightCount
+     */
+    int getInFlightCount();
+
+    /**
+     * Return the average time in milliseconds a dequeued mail waited until a
+     * thread started to process it
+     * 
+     * @return averageQueueWaitTime
+     */
+    long getAverageQueueWaitTime();
+
 }
@@ -0,0 +1,231 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailetcontainer.impl;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the count of mails which are processed concurrently. The limit can
+ * adapt itself between a minimum and a maximum by calling {@link #adjust()}
+ * periodically.
+ * <p/>
+ * The adjustment follows an AIMD (additive increase, multiplicative decrease)
+ * scheme which is driven by the processing latency:
+ * <ul>
+ * <li>If the average latency of the last interval is more than
+ * {@link #TOLERANCE} times higher than the baseline latency, the pipeline is
+ * overloaded and the limit gets decreased by {@link #BACKOFF}</li>
+ * <li>Otherwise, if all permits were in use during the last interval, more
+ * concurrency could raise the throughput and the limit gets increased by the
+ * square root of the current limit</li>
+ * </ul>
+ * The baseline is the lowest latency seen. Once the limit reached the minimum
+ * the baseline slowly drifts towards the observed latency, so a permanent
+ * change of the workload gets accepted and the limit can grow again.
+ */
+public class ConcurrencyLimiter {
+
+    /**
+     * Factor of the baseline latency which is tolerated before the limit gets
+     * decreased
+     */
+    public final static double TOLERANCE = 2.0;
+
+    /**
+     * Factor the limit gets multiplied with on overload
+     */
+    public final static double BACKOFF = 0.9;
+
+    /**
+     * Weight of the observed latency when the baseline is drifting
+     */
+    private final static double DRIFT = 0.05;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final ResizableSemaphore permits;
+    private volatile int limit;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private volatile boolean saturated;
+
+    private double baselineLatency = -1;
+    private volatile long lastLatency;
+    private volatile long lastCompleted;
+
+    /**
+     * @param minLimit
+     *            the lowest limit, which is also the initial one
+     * @param maxLimit
+     *            the highest limit
+     */
+    public ConcurrencyLimiter(int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limits " + minLimit + " - " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = minLimit;
+        this.permits = new ResizableSemaphore(minLimit);
+    }
+
+    /**
+     * Wait up to the given time for a free permit
+     * 
+     * @return acquired
+     * @throws InterruptedException
+     */
+    public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+        return checkSaturated(permits.tryAcquire(timeout, unit));
+    }
+
+    /**
+     * Take a permit if one is free
+     * 
+     * @return acquired
+     */
+    public boolean tryAcquire() {
+        return checkSaturated(permits.tryAcquire());
+    }
+
+    private boolean checkSaturated(boolean acquired) {
+        if (acquired && permits.availablePermits() <= 0) {
+            saturated = true;
+        }
+        return acquired;
+    }
+
+    /**
+     * Release permits which were not used, so no latency gets recorded
+     * 
+     * @param count
+     */
+    public void releaseUnused(int count) {
+        permits.release(count);
+    }
+
+    /**
+     * Release a permit and record the time the processing took
+     * 
+     * @param latencyNanos
+     */
+    public void release(long latencyNanos) {
+        completed.incrementAndGet();
+        totalLatency.addAndGet(latencyNanos);
+        permits.release();
+    }
+
+    /**
+     * Adjust the limit based on the latencies which were recorded since the
+     * last call
+     */
+    public synchronized void adjust() {
+        long count = completed.getAndSet(0);
+        long latency = totalLatency.getAndSet(0);
+        boolean wasSaturated = saturated;
+        saturated = false;
+        lastCompleted = count;
+        if (count == 0) {
+            // nothing to learn from
+            return;
+        }
+        long avg = latency / count;
+        lastLatency = avg;
+
+        if (baselineLatency < 0 || avg < baselineLatency) {
+            baselineLatency = avg;
+        } else if (limit == minLimit) {
+            baselineLatency = baselineLatency * (1 - DRIFT) + avg * DRIFT;
+        }
+
+        int newLimit = limit;
+        if (avg > Math.max(baselineLatency, 1) * TOLERANCE) {
+            newLimit = Math.max(minLimit, (int) (limit * BACKOFF));
+        } else if (wasSaturated) {
+            newLimit = Math.min(maxLimit, limit + Math.max(1, (int) Math.sqrt(limit)));
+        }
+        setLimit(newLimit);
+    }
+
+    private void setLimit(int newLimit) {
+        int diff = newLimit - limit;
+        limit = newLimit;
+        if (diff > 0) {
+            permits.release(diff);
+        } else if (diff < 0) {
+            permits.reducePermits(-diff);
+        }
+    }
+
+    /**
+     * Return the current limit
+     * 
+     * @return limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Return the count of taken permits
+     * 
+     * @return inFlight
+     */
+    public int getInFlight() {
+        return Math.max(0, limit - permits.availablePermits());
+    }
+
+    /**
+     * Return the average latency in nanoseconds of the last interval
+     * 
+     * @return latency
+     */
+    public long getLastLatency() {
+        return lastLatency;
+    }
+
+    /**
+     * Return the count of completed mails in the last interval
+     * 
+     * @return completed
+     */
+    public long getLastCompleted() {
+        return lastCompleted;
+    }
+
+    /**
+     * {@link Semaphore} whose permits can get reduced
+     */
+    private final static class ResizableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        public ResizableSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -38,17 +38,42 @@ import org.slf4j.Logger;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages the mail spool. This class is responsible for retrieving messages
  * from the spool, directing messages to the appropriate processor, and removing
  * them from the spool when processing is complete.
+ * <p/>
+ * Mails are only dequeued if a worker thread is free to process them, so
+ * mails which can't be processed yet stay in the (durable) queue instead of
+ * piling up in memory.
+ * <p/>
+ * If <code>minThreads</code> is configured lower than <code>threads</code>
+ * the count of concurrently processed mails adapts itself between both
+ * values, see {@link ConcurrencyLimiter}.
  */
 public class JamesMailSpooler implements Runnable, Disposable, Configurable, LogEnabled, MailSpoolerMBean {
 
+    /**
+     * Max time to wait for the first mail of a batch
+     */
+    private final static long DEQUEUE_TIMEOUT = 1000;
+
+    /**
+     * Interval in which the concurrency limit gets adjusted
+     */
+    private final static long ADJUST_INTERVAL = 1000;
+
     private MailQueue queue;
 
     /**
@@ -56,6 +81,11 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
      */
     private int numThreads;
 
+    /**
+     * The lowest number of concurrently processed mails
+     */
+    private int minThreads;
+
     /**
      * Number of active threads
      */
@@ -63,6 +93,21 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
 
     private final AtomicInteger processingActive = new AtomicInteger(0);
 
+    /**
+     * A permit is taken for every dequeued mail and released once its
+     * processing is complete
+     */
+    private ConcurrencyLimiter limiter;
+
+    private ScheduledExecutorService adjustService;
+
+    /**
+     * Sum of the times dequeued mails waited for a worker thread
+     */
+    private final AtomicLong totalQueueWaitTime = new AtomicLong();
+
+    private final AtomicLong processedCount = new AtomicLong();
+
     /**
      * Spool threads are active
      */
@@ -86,6 +131,11 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
 
     private int numDequeueThreads;
 
+    /**
+     * Max count of mails which are dequeued at once by a dequeue thread
+     */
+    private int batchSize;
+
     @Inject
     public void setMailQueueFactory(MailQueueFactory queueFactory) {
         this.queueFactory = queueFactory;
@@ -102,7 +152,14 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
     public void configure(HierarchicalConfiguration config) throws ConfigurationException {
         numDequeueThreads = config.getInt("dequeueThreads", 2);
 
+        batchSize = config.getInt("dequeueBatchSize", 10);
+
         numThreads = config.getInt("threads", 100);
+
+        minThreads = config.getInt("minThreads", numThreads);
+        if (minThreads < 1 || minThreads > numThreads) {
+            throw new ConfigurationException("minThreads must be between 1 and " + numThreads);
+        }
     }
 
     /**
@@ -120,6 +177,26 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
         }
 
         active.set(true);
+        limiter = new ConcurrencyLimiter(minThreads, numThreads);
+        if (minThreads < numThreads) {
+            logger.info(getClass().getName() + " adapts the concurrency between " + minThreads + " and " + numThreads);
+            adjustService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Spooler concurrency adjuster");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            adjustService.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    limiter.adjust();
+                }
+            }, ADJUST_INTERVAL, ADJUST_INTERVAL, TimeUnit.MILLISECONDS);
+        }
         workerService = JMXEnabledThreadPoolExecutor.newFixedThreadPool("org.apache.james:type=component,component=mailetcontainer,name=mailspooler,sub-type=threadpool", "spooler", numThreads);
         dequeueService = JMXEnabledThreadPoolExecutor.newFixedThreadPool("org.apache.james:type=component,component=mailetcontainer,name=mailspooler,sub-type=threadpool", "dequeuer", numDequeueThreads);
 
@@ -142,56 +219,44 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
         }
 
         while (active.get()) {
-
-            final MailQueueItem queueItem;
+            int permits = 0;
             try {
-                queueItem = queue.deQueue();
-                workerService.execute(new Runnable() {
-
-                    @Override
-                    public void run() {
-                        try {
-                            numActive.incrementAndGet();
-
-                            // increase count
-                            processingActive.incrementAndGet();
-
-                            Mail mail = queueItem.getMail();
-                            if (logger.isDebugEnabled()) {
-                                String debugBuffer = "==== Begin processing mail " + mail.getName() + "====";
-                                logger.debug(debugBuffer);
-                            }
-
+                permits = acquirePermits();
+                if (permits == 0) {
+                    continue;
+                }
+                List<MailQueueItem> items = queue.deQueue(permits, DEQUEUE_TIMEOUT);
+                for (int i = 0; i < items.size(); i++) {
+                    MailQueueItem item = items.get(i);
+                    try {
+                        workerService.execute(new ProcessingTask(item));
+                        // the permit gets released by the task
+                        permits--;
+                    } catch (RejectedExecutionException e) {
+                        // shutdown in progress, so give the mails back. Each
+                        // one on its own, a failure must not keep the others
+                        for (MailQueueItem rejected : items.subList(i, items.size())) {
                             try {
-                                mailProcessor.service(mail);
-                                queueItem.done(true);
-                            } catch (Exception e) {
-                                if (active.get() && logger.isErrorEnabled()) {
-                                    logger.error("Exception processing mail while spooling " + e.getMessage(), e);
-                                }
-                                queueItem.done(false);
-
-                            } finally {
-                                LifecycleUtil.dispose(mail);
-                                mail = null;
+                                rejected.done(false);
+                            } catch (MailQueueException e1) {
+                                logger.error("Unable to give back mail " + rejected.getMail().getName(), e1);
                             }
-                        } catch (Throwable e) {
-                            if (active.get() && logger.isErrorEnabled()) {
-                                logger.error("Exception processing mail while spooling " + e.getMessage(), e);
-
-                            }
-                        } finally {
-                            processingActive.decrementAndGet();
-                            numActive.decrementAndGet();
                         }
-
+                        break;
                     }
-                });
+                }
             } catch (MailQueueException e1) {
                 if (active.get() && logger.isErrorEnabled()) {
                     logger.error("Exception dequeue mail", e1);
 
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                if (permits > 0) {
+                    limiter.releaseUnused(permits);
+                }
             }
         }
         if (logger.isInfoEnabled()) {
@@ -199,6 +264,81 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
         }
     }
 
+    /**
+     * Wait for at least one free worker and take as many permits as workers
+     * are free, but not more than the batch size
+     *
+     * @return permits the count of taken permits, 0 if no worker got free
+     *         within the dequeue timeout
+     * @throws InterruptedException
+     */
+    private int acquirePermits() throws InterruptedException {
+        if (!limiter.tryAcquire(DEQUEUE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            return 0;
+        }
+        int permits = 1;
+        while (permits < batchSize && limiter.tryAcquire()) {
+            permits++;
+        }
+        return permits;
+    }
+
+    /**
+     * Process a dequeued {@link MailQueueItem} with the {@link MailProcessor}
+     */
+    private final class ProcessingTask implements Runnable {
+
+        private final MailQueueItem queueItem;
+        private final long dequeued;
+
+        public ProcessingTask(MailQueueItem queueItem) {
+            this.queueItem = queueItem;
+            this.dequeued = System.currentTimeMillis();
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                totalQueueWaitTime.addAndGet(System.currentTimeMillis() - dequeued);
+                processedCount.incrementAndGet();
+                numActive.incrementAndGet();
+
+                // increase count
+                processingActive.incrementAndGet();
+
+                Mail mail = queueItem.getMail();
+                if (logger.isDebugEnabled()) {
+                    String debugBuffer = "==== Begin processing mail " + mail.getName() + "====";
+                    logger.debug(debugBuffer);
+                }
+
+                try {
+                    mailProcessor.service(mail);
+                    queueItem.done(true);
+                } catch (Exception e) {
+                    if (active.get() && logger.isErrorEnabled()) {
+                        logger.error("Exception processing mail while spooling " + e.getMessage(), e);
+                    }
+                    queueItem.done(false);
+
+                } finally {
+                    LifecycleUtil.dispose(mail);
+                    mail = null;
+                }
+            } catch (Throwable e) {
+                if (active.get() && logger.isErrorEnabled()) {
+                    logger.error("Exception processing mail while spooling " + e.getMessage(), e);
+
+                }
+            } finally {
+                processingActive.decrementAndGet();
+                numActive.decrementAndGet();
+                limiter.release(System.nanoTime() - start);
+            }
+        }
+    }
+
     /**
      * The dispose operation is called at the end of a components lifecycle.
      * Instances of this class use this method to release and destroy any
@@ -214,6 +354,9 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
     public void dispose() {
         logger.info(getClass().getName() + " dispose...");
         active.set(false); // shutdown the threads
+        if (adjustService != null) {
+            adjustService.shutdownNow();
+        }
         dequeueService.shutdownNow();
         workerService.shutdown();
 
@@ -242,4 +385,50 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
     public int getCurrentSpoolCount() {
         return processingActive.get();
     }
+
+    @Override
+    public int getInFlightCount() {
+        if (limiter == null) {
+            return 0;
+        }
+        return limiter.getInFlight();
+    }
+
+    @Override
+    public int getMinThreadCount() {
+        return minThreads;
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        if (limiter == null) {
+            return numThreads;
+        }
+        return limiter.getLimit();
+    }
+
+    @Override
+    public long getThroughput() {
+        if (limiter == null) {
+            return 0;
+        }
+        return limiter.getLastCompleted() * 1000 / ADJUST_INTERVAL;
+    }
+
+    @Override
+    public long getAverageProcessingTime() {
+        if (limiter == null) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(limiter.getLastLatency());
+    }
+
+    @Override
+    public long getAverageQueueWaitTime() {
+        long count = processedCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        return totalQueueWaitTime.get() / count;
+    }
 }
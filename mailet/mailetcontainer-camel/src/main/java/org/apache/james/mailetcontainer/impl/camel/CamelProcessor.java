@@ -18,7 +18,6 @@
  ****************************************************************/
 package org.apache.james.mailetcontainer.impl.camel;
 
-import java.util.List;
 import java.util.Locale;
 
 import javax.mail.MessagingException;
@@ -27,7 +26,6 @@ import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
 import org.apache.james.mailetcontainer.impl.MailetConfigImpl;
 import org.apache.james.mailetcontainer.impl.ProcessorUtil;
-import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorListener;
 import org.apache.mailet.Mail;
 import org.apache.mailet.Mailet;
 import org.apache.mailet.MailetConfig;
@@ -59,7 +57,7 @@ public class CamelProcessor implements Processor {
     @SuppressWarnings("unchecked")
     public void process(Exchange exchange) throws Exception {
         Mail mail = exchange.getIn().getBody(Mail.class);
-        long start = System.currentTimeMillis();
+        long start = System.nanoTime();
         MessagingException ex = null;
         try {
             mailet.service(mail);
@@ -86,11 +84,8 @@ public class CamelProcessor implements Processor {
             }
 
         } finally {
-            List<MailetProcessorListener> listeners = processor.getListeners();
-            long complete = System.currentTimeMillis() - start;
-            for (MailetProcessorListener listener : listeners) {
-                listener.afterMailet(mailet, mail.getName(), mail.getState(), complete, ex);
-            }
+            long complete = System.nanoTime() - start;
+            processor.fireAfterMailet(mailet, mail.getName(), mail.getState(), complete, ex);
         }
     }
 
@@ -32,7 +32,6 @@ import org.apache.camel.InOnly;
 import org.apache.camel.Property;
 import org.apache.james.core.MailImpl;
 import org.apache.james.mailetcontainer.impl.ProcessorUtil;
-import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorListener;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
 import org.apache.mailet.Matcher;
@@ -74,7 +73,7 @@ public class MatcherSplitter {
     public List<Mail> split(@Property(MATCHER_PROPERTY) Matcher matcher, @Property(ON_MATCH_EXCEPTION_PROPERTY) String onMatchException, @Property(LOGGER_PROPERTY) Logger logger, @Property(MAILETCONTAINER_PROPERTY) CamelMailetProcessor container, @Body Mail mail) throws MessagingException {
         Collection<MailAddress> matchedRcpts = null;
         Collection<MailAddress> origRcpts = new ArrayList<MailAddress>(mail.getRecipients());
-        long start = System.currentTimeMillis();
+        long start = System.nanoTime();
         MessagingException ex = null;
 
         try {
@@ -153,15 +152,12 @@ public class MatcherSplitter {
             return mails;
         } finally {
 
-            long complete = System.currentTimeMillis() - start;
-            List<MailetProcessorListener> listeners = container.getListeners();
-            for (MailetProcessorListener listener : listeners) {
-                // need to check if its null or empty!
-                if (matchedRcpts == null || matchedRcpts.isEmpty()) {
-                    listener.afterMatcher(matcher, mail.getName(), origRcpts, null, complete, ex);
-                } else {
-                    listener.afterMatcher(matcher, mail.getName(), origRcpts, matchedRcpts, complete, ex);
-                }
+            long complete = System.nanoTime() - start;
+            // need to check if its null or empty!
+            if (matchedRcpts == null || matchedRcpts.isEmpty()) {
+                container.fireAfterMatcher(matcher, mail.getName(), origRcpts, null, complete, ex);
+            } else {
+                container.fireAfterMatcher(matcher, mail.getName(), origRcpts, matchedRcpts, complete, ex);
             }
         }
     }
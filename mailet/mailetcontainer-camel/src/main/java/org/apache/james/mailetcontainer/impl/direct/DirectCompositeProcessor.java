@@ -0,0 +1,83 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailetcontainer.impl.direct;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.james.mailetcontainer.api.MailProcessor;
+import org.apache.james.mailetcontainer.api.MailetLoader;
+import org.apache.james.mailetcontainer.api.MatcherLoader;
+import org.apache.james.mailetcontainer.lib.AbstractStateCompositeProcessor;
+import org.apache.mailet.MailetContext;
+
+/**
+ * {@link AbstractStateCompositeProcessor} implementation which uses a
+ * {@link DirectMailetProcessor} for each configured processor.
+ * 
+ * It can replace the
+ * {@link org.apache.james.mailetcontainer.impl.camel.CamelCompositeProcessor}
+ * as <code>mailprocessor</code> bean in the mailetcontainer-context.xml, the
+ * mailetcontainer.xml configuration stays the same.
+ */
+public class DirectCompositeProcessor extends AbstractStateCompositeProcessor {
+
+    private MailetContext mailetContext;
+    private MatcherLoader matcherLoader;
+    private MailetLoader mailetLoader;
+
+    @Inject
+    public void setMatcherLoader(@Named("matcherloader") MatcherLoader matcherLoader) {
+        this.matcherLoader = matcherLoader;
+    }
+
+    @Inject
+    public void setMailetLoader(@Named("mailetloader") MailetLoader mailetLoader) {
+        this.mailetLoader = mailetLoader;
+    }
+
+    @Inject
+    public void setMailetContext(MailetContext mailetContext) {
+        this.mailetContext = mailetContext;
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.lib.AbstractStateCompositeProcessor
+     * #createMailProcessor(java.lang.String, org.apache.commons.configuration.HierarchicalConfiguration)
+     */
+    protected MailProcessor createMailProcessor(String name, HierarchicalConfiguration config) throws Exception {
+        DirectMailetProcessor processor = new DirectMailetProcessor();
+        try {
+            processor.setLog(logger);
+            processor.setMailetContext(mailetContext);
+            processor.setMailetLoader(mailetLoader);
+            processor.setMatcherLoader(matcherLoader);
+            processor.configure(config);
+            processor.init();
+            return processor;
+        } catch (Exception e) {
+            processor.destroy();
+
+            throw e;
+        }
+    }
+
+}
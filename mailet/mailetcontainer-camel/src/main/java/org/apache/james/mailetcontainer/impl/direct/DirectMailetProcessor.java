@@ -0,0 +1,540 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailetcontainer.impl.direct;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+import javax.mail.MessagingException;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.james.core.MailImpl;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.mailetcontainer.impl.MailetConfigImpl;
+import org.apache.james.mailetcontainer.impl.MatcherMailetPair;
+import org.apache.james.mailetcontainer.impl.ProcessorUtil;
+import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.Mailet;
+import org.apache.mailet.MailetConfig;
+import org.apache.mailet.Matcher;
+
+/**
+ * {@link AbstractStateMailetProcessor} implementation which compiles the
+ * {@link Matcher} / {@link Mailet} pairs into an array of steps and calls them
+ * directly, without routing each {@link Mail} through Camel.
+ * <p>
+ * The processing is the same as the one of
+ * {@link org.apache.james.mailetcontainer.impl.camel.CamelMailetProcessor}:
+ * <ul>
+ * <li>if a matcher matches only some recipients, the mail is split and the
+ * matched copy is processed first, till its end, then the original continues
+ * with the remaining recipients</li>
+ * <li>a mail in state {@link Mail#GHOST} is disposed</li>
+ * <li>a mail which changed its state is handed over to the processor of the
+ * new state</li>
+ * <li>a mail which reaches the end of the processor is passed to the
+ * {@link AbstractStateMailetProcessor.TerminatingMailet}</li>
+ * </ul>
+ * If a matcher or mailet of one split copy throws an exception, the processing
+ * of that copy stops, the other copies are still processed and the first
+ * exception is thrown at the end.
+ * </p>
+ * <p>
+ * If the processor is configured with <code>matcherThreads</code> &gt; 0, the
+ * matchers of the leading mailets which are marked with
+ * <code>prefetchMatch="true"</code> are evaluated
+ * concurrently on a copy of the mail as soon as the mail enters the processor.
+ * This lowers the latency of processors which start with matchers blocking on
+ * DNS or JDBC. The mailets are still called one after the other in the
+ * configured order, and a prefetched match result is only used if the mail
+ * still has the recipients it had when entering the processor, otherwise the
+ * matcher is called again. Only mark matchers which do not modify the mail and
+ * do not depend on the attributes or the message changes of the preceding
+ * mailets.
+ * </p>
+ */
+public class DirectMailetProcessor extends AbstractStateMailetProcessor {
+
+    private Step[] steps = new Step[0];
+
+    private Step terminatingStep;
+
+    private int matcherThreads;
+
+    /** number of leading steps the matchers of which are prefetched */
+    private int prefetchSteps;
+
+    private ExecutorService prefetchService;
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor#configure
+     * (org.apache.commons.configuration.HierarchicalConfiguration)
+     */
+    public void configure(HierarchicalConfiguration config) throws ConfigurationException {
+        super.configure(config);
+        this.matcherThreads = config.getInt("[@matcherThreads]", 0);
+        if (matcherThreads < 0) {
+            throw new ConfigurationException("matcherThreads must be >= 0");
+        }
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor#destroy()
+     */
+    @PreDestroy
+    public void destroy() {
+        if (prefetchService != null) {
+            prefetchService.shutdownNow();
+        }
+        super.destroy();
+    }
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.api.MailProcessor#service(org.apache.mailet.Mail)
+     */
+    public void service(Mail mail) throws MessagingException {
+        Prefetch prefetch = prefetchSteps > 1 ? new Prefetch(mail) : null;
+        MessagingException ex;
+        try {
+            ex = process(mail, 0, null, prefetch);
+        } finally {
+            if (prefetch != null) {
+                prefetch.release();
+            }
+        }
+        if (ex != null) {
+            throw new MessagingException("Unable to process mail " + mail.getName(), ex);
+        }
+    }
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor#setupRouting
+     * (java.util.List)
+     */
+    protected void setupRouting(List<MatcherMailetPair> pairs) throws MessagingException {
+        Step[] compiled = new Step[pairs.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            MatcherMailetPair pair = pairs.get(i);
+            compiled[i] = new Step(pair.getMatcher(), pair.getMailet());
+        }
+        steps = compiled;
+        terminatingStep = new Step(null, new TerminatingMailet());
+
+        int leading = 0;
+        while (leading < compiled.length && compiled[leading].prefetch) {
+            leading++;
+        }
+        // prefetching a single matcher would only move the call to another
+        // thread
+        if (matcherThreads > 0 && leading > 1) {
+            prefetchSteps = leading;
+            prefetchService = Executors.newFixedThreadPool(matcherThreads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Matcher prefetch thread " + getState() + " (" + count.incrementAndGet() + ")");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            if (getLogger().isInfoEnabled()) {
+                getLogger().info("Prefetch the matchers of the first " + leading + " mailets of processor " + getState() + " with " + matcherThreads + " Thread(s)");
+            }
+        }
+    }
+
+    /**
+     * Process the mail starting with the given step
+     * 
+     * @param mail
+     * @param start
+     *            index of the first step
+     * @param matched
+     *            the step the matcher of which already matched the mail, so
+     *            only its mailet is called, or null
+     * @param prefetch
+     *            the prefetched match results or null
+     * @return the first exception thrown while processing the mail or one of
+     *         its split copies, null if none was thrown
+     */
+    private MessagingException process(Mail mail, int start, Step matched, Prefetch prefetch) {
+        MessagingException failure = null;
+        String state = getState();
+
+        for (int i = start; i < steps.length; i++) {
+            Step step = steps[i];
+            boolean match;
+            if (step == matched) {
+                match = true;
+            } else {
+                Collection<MailAddress> rcpts;
+                try {
+                    rcpts = step.match(mail, prefetch == null ? null : prefetch.get(i, mail));
+                } catch (MessagingException e) {
+                    return failure == null ? e : failure;
+                }
+                match = false;
+                if (rcpts != null && !rcpts.isEmpty()) {
+                    List<MailAddress> remaining = new ArrayList<MailAddress>(mail.getRecipients());
+                    for (MailAddress rcpt : rcpts) {
+                        remaining.remove(rcpt);
+                    }
+                    if (remaining.isEmpty()) {
+                        match = true;
+                    } else {
+                        Mail copy;
+                        try {
+                            mail.setRecipients(remaining);
+                            copy = new MailImpl(mail);
+                            copy.setRecipients(rcpts);
+                        } catch (MessagingException e) {
+                            return failure == null ? e : failure;
+                        }
+                        // the matched copy goes first, till its end
+                        MessagingException e = process(copy, i, step, prefetch);
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+            }
+
+            if (match) {
+                try {
+                    step.service(mail);
+                } catch (MessagingException e) {
+                    return failure == null ? e : failure;
+                }
+            }
+
+            String newState = mail.getState();
+            try {
+                if (Mail.GHOST.equals(newState)) {
+                    LifecycleUtil.dispose(mail.getMessage());
+                    LifecycleUtil.dispose(mail);
+                    return failure;
+                }
+                if (!state.equals(newState)) {
+                    toProcessor(mail);
+                    if (getLogger().isDebugEnabled()) {
+                        getLogger().debug("End of mailetprocessor for state " + state + " reached");
+                    }
+                    return failure;
+                }
+            } catch (MessagingException e) {
+                return failure == null ? e : failure;
+            }
+        }
+
+        // the mail state did not change till the end, call the
+        // TerminatingMailet to make sure we don't fall into an endless loop
+        try {
+            terminatingStep.service(mail);
+        } catch (MessagingException e) {
+            return failure == null ? e : failure;
+        }
+        return failure;
+    }
+
+    /**
+     * A {@link Matcher} / {@link Mailet} pair with its exception handling
+     * settings resolved
+     */
+    private final class Step {
+        private final Matcher matcher;
+        private final Mailet mailet;
+        private final String onMatchException;
+        private final String onMailetException;
+        private final boolean prefetch;
+
+        private Step(Matcher matcher, Mailet mailet) {
+            this.matcher = matcher;
+            this.mailet = mailet;
+
+            String onMatch = null;
+            String onMailet = null;
+            String prefetchMatch = null;
+            MailetConfig mailetConfig = mailet.getMailetConfig();
+            if (mailetConfig instanceof MailetConfigImpl) {
+                onMatch = ((MailetConfigImpl) mailetConfig).getInitAttribute("onMatchException");
+                onMailet = ((MailetConfigImpl) mailetConfig).getInitAttribute("onMailetException");
+                prefetchMatch = ((MailetConfigImpl) mailetConfig).getInitAttribute("prefetchMatch");
+            }
+            this.onMatchException = onMatch == null ? Mail.ERROR : onMatch.trim().toLowerCase(Locale.US);
+            this.onMailetException = onMailet == null ? Mail.ERROR : onMailet.trim().toLowerCase(Locale.US);
+            this.prefetch = matcher != null && prefetchMatch != null && Boolean.valueOf(prefetchMatch.trim());
+        }
+
+        /**
+         * Call the matcher, or take its prefetched result, and notify the
+         * listeners
+         * 
+         * @param mail
+         * @param prefetched
+         *            the result of the matcher for the mail or null if the
+         *            matcher must be called
+         * @return the matched recipients, null or empty if none matched
+         * @throws MessagingException
+         *             if the matcher failed and onMatchException is a state
+         */
+        private Collection<MailAddress> match(Mail mail, MatchResult prefetched) throws MessagingException {
+            List<MailetProcessorListener> listeners = getListeners();
+            Collection<MailAddress> origRcpts = listeners.isEmpty() ? null : new ArrayList<MailAddress>(mail.getRecipients());
+            Collection<MailAddress> matchedRcpts = null;
+            long start = System.nanoTime();
+            MessagingException ex = null;
+            try {
+                if (prefetched != null) {
+                    matchedRcpts = prefetched.getRecipients();
+                } else {
+                    matchedRcpts = matcher.match(mail);
+                }
+                if (matchedRcpts != null && matchedRcpts != mail.getRecipients()) {
+                    // Make sure all the objects are MailAddress objects
+                    ProcessorUtil.verifyMailAddresses(matchedRcpts);
+                }
+            } catch (MessagingException me) {
+                ex = me;
+                if (onMatchException.equals("nomatch")) {
+                    matchedRcpts = null;
+                } else if (onMatchException.equals("matchall")) {
+                    matchedRcpts = mail.getRecipients();
+                } else {
+                    ProcessorUtil.handleException(me, mail, matcher.getMatcherConfig().getMatcherName(), onMatchException, getLogger());
+                }
+            } finally {
+                if (origRcpts != null) {
+                    long complete = prefetched != null ? prefetched.nanos : System.nanoTime() - start;
+                    Collection<MailAddress> matches = matchedRcpts == null || matchedRcpts.isEmpty() ? null : matchedRcpts;
+                    fireAfterMatcher(matcher, mail.getName(), origRcpts, matches, complete, ex);
+                }
+            }
+            return matchedRcpts;
+        }
+
+        /**
+         * Call the mailet and notify the listeners
+         * 
+         * @param mail
+         * @throws MessagingException
+         *             if the mailet failed and onMailetException is a state
+         */
+        private void service(Mail mail) throws MessagingException {
+            long start = System.nanoTime();
+            MessagingException ex = null;
+            try {
+                mailet.service(mail);
+            } catch (MessagingException me) {
+                ex = me;
+                if (onMailetException.equals("ignore")) {
+                    // ignore the exception and continue
+                    // this option should not be used if the mail object can
+                    // be changed by the mailet
+                    ProcessorUtil.verifyMailAddresses(mail.getRecipients());
+                } else {
+                    ProcessorUtil.handleException(me, mail, mailet.getMailetConfig().getMailetName(), onMailetException, getLogger());
+                }
+            } finally {
+                if (!getListeners().isEmpty()) {
+                    long complete = System.nanoTime() - start;
+                    fireAfterMailet(mailet, mail.getName(), mail.getState(), complete, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * The result of a prefetched {@link Matcher} call
+     */
+    private final static class MatchResult {
+        private final Collection<MailAddress> recipients;
+        private final MessagingException exception;
+        private final long nanos;
+
+        private MatchResult(Collection<MailAddress> recipients, MessagingException exception, long nanos) {
+            this.recipients = recipients;
+            this.exception = exception;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Return the matched recipients
+         * 
+         * @return recipients
+         * @throws MessagingException
+         *             the exception thrown by the matcher
+         */
+        private Collection<MailAddress> getRecipients() throws MessagingException {
+            if (exception != null) {
+                throw exception;
+            }
+            return recipients;
+        }
+    }
+
+    /**
+     * The prefetched {@link Matcher} results of one {@link Mail}. The matchers
+     * of the leading steps, except the first one which the calling thread
+     * calls right away, are called on a copy of the mail by the prefetch
+     * threads. The copy is disposed once the processing of the mail and all
+     * matcher calls are complete.
+     */
+    private final class Prefetch {
+        private final Mail mail;
+        private final List<MailAddress> recipients;
+        private final List<FutureTask<MatchResult>> tasks;
+        private final AtomicInteger references;
+        private final Mail snapshot;
+        private volatile boolean done = false;
+
+        private Prefetch(Mail mail) {
+            this.mail = mail;
+            this.recipients = new ArrayList<MailAddress>(mail.getRecipients());
+            this.tasks = new ArrayList<FutureTask<MatchResult>>(prefetchSteps);
+
+            Mail copy = null;
+            try {
+                copy = new MailImpl(mail, mail.getName());
+            } catch (MessagingException e) {
+                getLogger().debug("Unable to copy mail " + mail.getName() + " to prefetch the matchers, call them in sequence", e);
+            }
+            this.snapshot = copy;
+
+            if (snapshot != null) {
+                for (int i = 1; i < prefetchSteps; i++) {
+                    tasks.add(new FutureTask<MatchResult>(new MatchCall(steps[i])));
+                }
+            }
+            this.references = new AtomicInteger(tasks.size() + 1);
+            for (FutureTask<MatchResult> task : tasks) {
+                try {
+                    prefetchService.execute(task);
+                } catch (RejectedExecutionException e) {
+                    // the processor is shutting down, the task is run by the
+                    // calling thread when needed
+                }
+            }
+        }
+
+        /**
+         * Return the prefetched result of the matcher of the given step, null
+         * if none is available for the mail and the matcher must be called
+         * 
+         * @param index
+         *            index of the step
+         * @param mail
+         * @return result or null
+         */
+        private MatchResult get(int index, Mail mail) {
+            if (mail != this.mail || index < 1 || index > tasks.size()) {
+                return null;
+            }
+            // a preceding mailet changed the recipients, the prefetched result
+            // may not be valid anymore
+            if (!recipients.equals(new ArrayList<MailAddress>(mail.getRecipients()))) {
+                return null;
+            }
+            FutureTask<MatchResult> task = tasks.get(index - 1);
+            // call the matcher now if no prefetch thread picked it up yet
+            task.run();
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                return null;
+            }
+        }
+
+        /**
+         * Mark the processing of the mail as complete. The tasks which were not
+         * picked up yet complete without calling their matcher
+         */
+        private void release() {
+            done = true;
+            for (FutureTask<MatchResult> task : tasks) {
+                task.run();
+            }
+            unreference();
+        }
+
+        private void unreference() {
+            if (references.decrementAndGet() == 0) {
+                LifecycleUtil.dispose(snapshot);
+            }
+        }
+
+        /**
+         * Call the {@link Matcher} of a step on the copy of the mail
+         */
+        private final class MatchCall implements Callable<MatchResult> {
+            private final Step step;
+
+            private MatchCall(Step step) {
+                this.step = step;
+            }
+
+            @SuppressWarnings("unchecked")
+            public MatchResult call() {
+                try {
+                    if (done) {
+                        return null;
+                    }
+                    long start = System.nanoTime();
+                    Collection<MailAddress> rcpts = null;
+                    MessagingException ex = null;
+                    try {
+                        rcpts = step.matcher.match(snapshot);
+                    } catch (MessagingException e) {
+                        ex = e;
+                    }
+                    return new MatchResult(rcpts, ex, System.nanoTime() - start);
+                } finally {
+                    unreference();
+                }
+            }
+        }
+    }
+}
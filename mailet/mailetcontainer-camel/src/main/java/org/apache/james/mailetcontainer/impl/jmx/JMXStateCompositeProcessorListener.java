@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.MessagingException;
 import javax.management.JMException;
@@ -34,12 +35,13 @@ import org.apache.james.lifecycle.api.Disposable;
 import org.apache.james.mailetcontainer.api.MailProcessor;
 import org.apache.james.mailetcontainer.lib.AbstractStateCompositeProcessor;
 import org.apache.james.mailetcontainer.lib.AbstractStateCompositeProcessor.CompositeProcessorListener;
+import org.apache.james.mailetcontainer.lib.AbstractStateCompositeProcessor.CompositeProcessorNanoListener;
 
 /**
  * {@link CompositeProcessorListener} implementation which register MBeans for
  * its child {@link MailProcessor} and keep track of the stats
  */
-public class JMXStateCompositeProcessorListener implements CompositeProcessorListener, Disposable {
+public class JMXStateCompositeProcessorListener implements CompositeProcessorNanoListener, Disposable {
 
     private final AbstractStateCompositeProcessor mList;
     private final MBeanServer mbeanserver;
@@ -117,9 +119,19 @@ public class JMXStateCompositeProcessorListener implements CompositeProcessorLis
      * long, javax.mail.MessagingException)
      */
     public void afterProcessor(MailProcessor processor, String mailName, long processTime, MessagingException e) {
+        afterProcessorNanos(processor, mailName, TimeUnit.MILLISECONDS.toNanos(processTime), e);
+    }
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.lib.AbstractStateCompositeProcessor.CompositeProcessorNanoListener
+     * #afterProcessorNanos(org.apache.james.mailetcontainer.api.MailProcessor, java.lang.String,
+     * long, javax.mail.MessagingException)
+     */
+    public void afterProcessorNanos(MailProcessor processor, String mailName, long processNanos, MessagingException e) {
         MailProcessorManagement m = mMap.get(processor);
         if (m != null) {
-            m.update(processTime, e == null);
+            m.update(processNanos, e == null);
         }
     }
 
@@ -25,6 +25,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.MessagingException;
 import javax.management.JMException;
@@ -36,6 +37,7 @@ import org.apache.james.lifecycle.api.Disposable;
 import org.apache.james.mailetcontainer.impl.matchers.CompositeMatcher;
 import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor;
 import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorListener;
+import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorNanoListener;
 import org.apache.mailet.MailAddress;
 import org.apache.mailet.Mailet;
 import org.apache.mailet.Matcher;
@@ -44,7 +46,7 @@ import org.apache.mailet.Matcher;
  * {@link MailetProcessorListener} implementation which register MBean's for all
  * the contained {@link Mailet} and {@link Matcher} and keep track of the stats
  */
-public class JMXStateMailetProcessorListener implements MailetProcessorListener, Disposable {
+public class JMXStateMailetProcessorListener implements MailetProcessorNanoListener, Disposable {
 
     private final AbstractStateMailetProcessor processor;
     private final MBeanServer mbeanserver;
@@ -69,9 +71,19 @@ public class JMXStateMailetProcessorListener implements MailetProcessorListener,
      * javax.mail.MessagingException)
      */
     public void afterMailet(Mailet m, String mailName, String state, long processTime, MessagingException e) {
+        afterMailetNanos(m, mailName, state, TimeUnit.MILLISECONDS.toNanos(processTime), e);
+    }
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorNanoListener
+     * #afterMailetNanos(org.apache.mailet.Mailet, java.lang.String, java.lang.String, long,
+     * javax.mail.MessagingException)
+     */
+    public void afterMailetNanos(Mailet m, String mailName, String state, long processNanos, MessagingException e) {
         MailetManagement mgmt = mailetMap.get(m);
         if (mgmt != null) {
-            mgmt.update(processTime, e == null);
+            mgmt.update(processNanos, e == null);
         }
     }
 
@@ -82,6 +94,16 @@ public class JMXStateMailetProcessorListener implements MailetProcessorListener,
      * java.util.Collection, long, javax.mail.MessagingException)
      */
     public void afterMatcher(Matcher m, String mailName, Collection<MailAddress> rcpts, Collection<MailAddress> matches, long processTime, MessagingException e) {
+        afterMatcherNanos(m, mailName, rcpts, matches, TimeUnit.MILLISECONDS.toNanos(processTime), e);
+    }
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorNanoListener
+     * #afterMatcherNanos(org.apache.mailet.Matcher, java.lang.String, java.util.Collection,
+     * java.util.Collection, long, javax.mail.MessagingException)
+     */
+    public void afterMatcherNanos(Matcher m, String mailName, Collection<MailAddress> rcpts, Collection<MailAddress> matches, long processNanos, MessagingException e) {
         MatcherManagement mgmt = matcherMap.get(m);
 
         if (mgmt != null) {
@@ -89,7 +111,7 @@ public class JMXStateMailetProcessorListener implements MailetProcessorListener,
             if (matches != null) {
                 matched = !matches.isEmpty();
             }
-            mgmt.update(processTime, e == null, matched);
+            mgmt.update(processNanos, e == null, matched);
         }
     }
 
@@ -0,0 +1,144 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailetcontainer.impl.jmx;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Latency statistics of a mail processing component. The latencies are
+ * recorded in a {@link LatencyHistogram} which covers the time since the start
+ * or the last reset, and in a histogram per time window. The percentiles are
+ * taken from the last completed window, so they show the recent behaviour and
+ * do not change while a window fills.
+ */
+public class LatencyStatistics {
+
+    /**
+     * Default length of a window in milliseconds
+     */
+    public final static long DEFAULT_WINDOW = 60000;
+
+    private final long window;
+    private volatile LatencyHistogram total = new LatencyHistogram();
+    private final AtomicReference<Window> current;
+    private volatile LatencyHistogram previous = new LatencyHistogram();
+
+    public LatencyStatistics() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window
+     *            length of a window in milliseconds
+     */
+    public LatencyStatistics(long window) {
+        this.window = window;
+        this.current = new AtomicReference<Window>(new Window(System.currentTimeMillis() + window));
+    }
+
+    /**
+     * Record the given latency
+     * 
+     * @param nanos
+     */
+    public void record(long nanos) {
+        currentWindow(System.currentTimeMillis()).histogram.record(nanos);
+        total.record(nanos);
+    }
+
+    /**
+     * Return the given percentile of the last completed window in
+     * nanoseconds, -1 if nothing was recorded in that window
+     * 
+     * @param percentile
+     *            between 0 and 100
+     * @return value
+     */
+    public long getPercentile(double percentile) {
+        currentWindow(System.currentTimeMillis());
+        return previous.getPercentile(percentile);
+    }
+
+    /**
+     * Return the mean of the last completed window in nanoseconds, -1 if
+     * nothing was recorded in that window
+     * 
+     * @return mean
+     */
+    public long getMean() {
+        currentWindow(System.currentTimeMillis());
+        return previous.getMean();
+    }
+
+    /**
+     * Return the length of a window in milliseconds
+     * 
+     * @return window
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Return the histogram since the start or the last reset
+     * 
+     * @return total
+     */
+    public LatencyHistogram getTotal() {
+        return total;
+    }
+
+    /**
+     * Drop all recorded latencies
+     */
+    public void reset() {
+        total = new LatencyHistogram();
+        previous = new LatencyHistogram();
+        current.set(new Window(System.currentTimeMillis() + window));
+    }
+
+    /**
+     * Return the window for the given time, the current one is completed if
+     * its time is over
+     */
+    private Window currentWindow(long now) {
+        Window w = current.get();
+        if (now < w.end) {
+            return w;
+        }
+        Window next = new Window(now + window);
+        if (current.compareAndSet(w, next)) {
+            // if nothing was recorded for more than a window the last
+            // completed window is empty
+            previous = now - w.end < window ? w.histogram : new LatencyHistogram();
+            return next;
+        }
+        return current.get();
+    }
+
+    private final static class Window {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final long end;
+
+        private Window(long end) {
+            this.end = end;
+        }
+    }
+}
@@ -19,6 +19,7 @@
 
 package org.apache.james.mailetcontainer.impl.jmx;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.NotCompliantMBeanException;
@@ -38,6 +39,7 @@ public class MailProcessorManagement extends StandardMBean implements MailProces
     private final AtomicLong fastestProcessing = new AtomicLong(-1);
     private final AtomicLong slowestProcessing = new AtomicLong(-1);
     private final AtomicLong lastProcessing = new AtomicLong(-1);
+    private final LatencyStatistics latency = new LatencyStatistics();
 
     public MailProcessorManagement(String processorName) throws NotCompliantMBeanException {
         super(MailProcessorManagementMBean.class);
@@ -47,10 +49,13 @@ public class MailProcessorManagement extends StandardMBean implements MailProces
     /**
      * Update the stats
      * 
-     * @param processTime
+     * @param processNanos
+     *            processing time in nanoseconds
      * @param success
      */
-    public void update(long processTime, boolean success) {
+    public void update(long processNanos, boolean success) {
+        long processTime = TimeUnit.NANOSECONDS.toMillis(processNanos);
+        latency.record(processNanos);
         long fastest = fastestProcessing.get();
 
         if (fastest > processTime || fastest == -1) {
@@ -125,4 +130,60 @@ public class MailProcessorManagement extends StandardMBean implements MailProces
         return lastProcessing.get();
     }
 
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getProcessingNanosP50()
+     */
+    public long getProcessingNanosP50() {
+        return latency.getPercentile(50);
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getProcessingNanosP90()
+     */
+    public long getProcessingNanosP90() {
+        return latency.getPercentile(90);
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getProcessingNanosP99()
+     */
+    public long getProcessingNanosP99() {
+        return latency.getPercentile(99);
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getProcessingNanosP999()
+     */
+    public long getProcessingNanosP999() {
+        return latency.getPercentile(99.9);
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getMeanProcessingNanos()
+     */
+    public long getMeanProcessingNanos() {
+        return latency.getMean();
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getStatisticsWindow()
+     */
+    public long getStatisticsWindow() {
+        return latency.getWindow();
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getProcessingHistogram()
+     */
+    public String[] getProcessingHistogram() {
+        return latency.getTotal().getBuckets();
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#resetStatistics()
+     */
+    public void resetStatistics() {
+        latency.reset();
+    }
+
 }
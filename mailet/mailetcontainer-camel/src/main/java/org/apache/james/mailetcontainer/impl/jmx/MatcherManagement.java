@@ -18,6 +18,7 @@
  ****************************************************************/
 package org.apache.james.mailetcontainer.impl.jmx;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.NotCompliantMBeanException;
@@ -35,6 +36,7 @@ public final class MatcherManagement extends StandardMBean implements MatcherMan
     private final AtomicLong matchedCount = new AtomicLong(0);
     private final AtomicLong notMatchedCount = new AtomicLong(0);
     private final AtomicLong lastProcessing = new AtomicLong(-1);
+    private final LatencyStatistics latency = new LatencyStatistics();
 
     public MatcherManagement(MatcherConfig matcherConfig) throws NotCompliantMBeanException {
         super(MatcherManagementMBean.class);
@@ -42,7 +44,17 @@ public final class MatcherManagement extends StandardMBean implements MatcherMan
 
     }
 
-    public void update(long processTime, boolean success, boolean matched) {
+    /**
+     * Update the stats
+     * 
+     * @param processNanos
+     *            processing time in nanoseconds
+     * @param success
+     * @param matched
+     */
+    public void update(long processNanos, boolean success, boolean matched) {
+        long processTime = TimeUnit.NANOSECONDS.toMillis(processNanos);
+        latency.record(processNanos);
         long fastest = fastestProcessing.get();
 
         if (fastest > processTime || fastest == -1) {
@@ -143,4 +155,60 @@ public final class MatcherManagement extends StandardMBean implements MatcherMan
     public long getLastProcessing() {
         return lastProcessing.get();
     }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getProcessingNanosP50()
+     */
+    public long getProcessingNanosP50() {
+        return latency.getPercentile(50);
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getProcessingNanosP90()
+     */
+    public long getProcessingNanosP90() {
+        return latency.getPercentile(90);
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getProcessingNanosP99()
+     */
+    public long getProcessingNanosP99() {
+        return latency.getPercentile(99);
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getProcessingNanosP999()
+     */
+    public long getProcessingNanosP999() {
+        return latency.getPercentile(99.9);
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getMeanProcessingNanos()
+     */
+    public long getMeanProcessingNanos() {
+        return latency.getMean();
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getStatisticsWindow()
+     */
+    public long getStatisticsWindow() {
+        return latency.getWindow();
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getProcessingHistogram()
+     */
+    public String[] getProcessingHistogram() {
+        return latency.getTotal().getBuckets();
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#resetStatistics()
+     */
+    public void resetStatistics() {
+        latency.reset();
+    }
 }
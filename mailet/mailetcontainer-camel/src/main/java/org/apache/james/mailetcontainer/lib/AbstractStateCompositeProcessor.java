@@ -18,11 +18,11 @@
  ****************************************************************/
 package org.apache.james.mailetcontainer.lib;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -44,7 +44,7 @@ import org.slf4j.Logger;
  */
 public abstract class AbstractStateCompositeProcessor implements MailProcessor, Configurable, LogEnabled {
 
-    private final List<CompositeProcessorListener> listeners = Collections.synchronizedList(new ArrayList<CompositeProcessorListener>());
+    private final List<CompositeProcessorListener> listeners = new CopyOnWriteArrayList<CompositeProcessorListener>();
     private final Map<String, MailProcessor> processors = new HashMap<String, MailProcessor>();
     protected Logger logger;
     protected HierarchicalConfiguration config;
@@ -88,7 +88,7 @@ public abstract class AbstractStateCompositeProcessor implements MailProcessor,
      * {@link Mail#getState()}
      */
     public void service(Mail mail) throws MessagingException {
-        long start = System.currentTimeMillis();
+        long start = System.nanoTime();
         MessagingException ex = null;
         MailProcessor processor = getProcessor(mail.getState());
 
@@ -109,9 +109,14 @@ public abstract class AbstractStateCompositeProcessor implements MailProcessor,
                 ex = e;
                 throw e;
             } finally {
-                long end = System.currentTimeMillis() - start;
+                long end = System.nanoTime() - start;
+                long endMillis = TimeUnit.NANOSECONDS.toMillis(end);
                 for (CompositeProcessorListener listener : listeners) {
-                    listener.afterProcessor(processor, mail.getName(), end, ex);
+                    if (listener instanceof CompositeProcessorNanoListener) {
+                        ((CompositeProcessorNanoListener) listener).afterProcessorNanos(processor, mail.getName(), end, ex);
+                    } else {
+                        listener.afterProcessor(processor, mail.getName(), endMillis, ex);
+                    }
                 }
             }
         } else {
@@ -231,4 +236,29 @@ public abstract class AbstractStateCompositeProcessor implements MailProcessor,
 
     }
 
+    /**
+     * A {@link CompositeProcessorListener} which wants the processing time in
+     * nanoseconds. The container calls
+     * {@link #afterProcessorNanos(MailProcessor, String, long, MessagingException)}
+     * instead of
+     * {@link #afterProcessor(MailProcessor, String, long, MessagingException)}
+     * for such listeners
+     */
+    public interface CompositeProcessorNanoListener extends CompositeProcessorListener {
+
+        /**
+         * Get called after the processing via a {@link MailProcessor} was
+         * complete
+         * 
+         * @param processor
+         * @param mailName
+         * @param processNanos
+         *            in nanoseconds
+         * @param e
+         *            or null if no exception was thrown
+         */
+        void afterProcessorNanos(MailProcessor processor, String mailName, long processNanos, MessagingException e);
+
+    }
+
 }
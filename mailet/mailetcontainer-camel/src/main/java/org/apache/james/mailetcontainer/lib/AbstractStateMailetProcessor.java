@@ -24,6 +24,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -62,7 +64,9 @@ public abstract class AbstractStateMailetProcessor implements MailProcessor, Con
 
     private MailetContext mailetContext;
     private MatcherLoader matcherLoader;
-    private final List<MailetProcessorListener> listeners = Collections.synchronizedList(new ArrayList<MailetProcessorListener>());
+    // copy-on-write so dispatching to the listeners never locks, listeners
+    // are only added / removed on init and destroy
+    private final List<MailetProcessorListener> listeners = new CopyOnWriteArrayList<MailetProcessorListener>();
     private JMXStateMailetProcessorListener jmxListener;
     private boolean enableJmx = true;
     private Logger logger;
@@ -206,6 +210,55 @@ public abstract class AbstractStateMailetProcessor implements MailProcessor, Con
         return listeners;
     }
 
+    /**
+     * Notify the registered {@link MailetProcessorListener}'s that the given
+     * {@link Mailet} was called. {@link MailetProcessorNanoListener}'s get the
+     * time in nanoseconds, all others in ms
+     * 
+     * @param m
+     * @param mailName
+     * @param state
+     * @param processNanos
+     *            in nanoseconds
+     * @param e
+     *            or null if no {@link MessagingException} was thrown
+     */
+    public void fireAfterMailet(Mailet m, String mailName, String state, long processNanos, MessagingException e) {
+        long processTime = TimeUnit.NANOSECONDS.toMillis(processNanos);
+        for (MailetProcessorListener listener : listeners) {
+            if (listener instanceof MailetProcessorNanoListener) {
+                ((MailetProcessorNanoListener) listener).afterMailetNanos(m, mailName, state, processNanos, e);
+            } else {
+                listener.afterMailet(m, mailName, state, processTime, e);
+            }
+        }
+    }
+
+    /**
+     * Notify the registered {@link MailetProcessorListener}'s that the given
+     * {@link Matcher} was called. {@link MailetProcessorNanoListener}'s get the
+     * time in nanoseconds, all others in ms
+     * 
+     * @param m
+     * @param mailName
+     * @param recipients
+     * @param matches
+     * @param processNanos
+     *            in nanoseconds
+     * @param e
+     *            or null if no {@link MessagingException} was thrown
+     */
+    public void fireAfterMatcher(Matcher m, String mailName, Collection<MailAddress> recipients, Collection<MailAddress> matches, long processNanos, MessagingException e) {
+        long processTime = TimeUnit.NANOSECONDS.toMillis(processNanos);
+        for (MailetProcessorListener listener : listeners) {
+            if (listener instanceof MailetProcessorNanoListener) {
+                ((MailetProcessorNanoListener) listener).afterMatcherNanos(m, mailName, recipients, matches, processNanos, e);
+            } else {
+                listener.afterMatcher(m, mailName, recipients, matches, processTime, e);
+            }
+        }
+    }
+
     /**
      * Create a {@link MailetConfig} for the given mailetname and configuration
      * 
@@ -482,4 +535,40 @@ public abstract class AbstractStateMailetProcessor implements MailProcessor, Con
 
     }
 
+    /**
+     * A {@link MailetProcessorListener} which wants the processing time in
+     * nanoseconds. The container calls the nanos methods instead of the ms
+     * ones for such listeners
+     */
+    public interface MailetProcessorNanoListener extends MailetProcessorListener {
+
+        /**
+         * Get called after each {@link Mailet} call was complete
+         * 
+         * @param m
+         * @param mailName
+         * @param state
+         * @param processNanos
+         *            in nanoseconds
+         * @param e
+         *            or null if no {@link MessagingException} was thrown
+         */
+        void afterMailetNanos(Mailet m, String mailName, String state, long processNanos, MessagingException e);
+
+        /**
+         * Get called after each {@link Matcher} call was complete
+         * 
+         * @param m
+         * @param mailName
+         * @param recipients
+         * @param matches
+         * @param processNanos
+         *            in nanoseconds
+         * @param e
+         *            or null if no {@link MessagingException} was thrown
+         */
+        void afterMatcherNanos(Matcher m, String mailName, Collection<MailAddress> recipients, Collection<MailAddress> matches, long processNanos, MessagingException e);
+
+    }
+
 }
@@ -0,0 +1,261 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailetcontainer.lib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+
+import org.apache.james.lifecycle.api.Disposable;
+import org.apache.james.lifecycle.api.LogEnabled;
+import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorListener;
+import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorNanoListener;
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.Mailet;
+import org.apache.mailet.Matcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link MailetProcessorListener} which hands the events over to another
+ * {@link MailetProcessorListener} in batches from a background thread, so
+ * expensive listeners (writing to a database, a remote monitoring system,
+ * ...) do not slow down the spooler threads.
+ * <p>
+ * The events are queued in a bounded queue. If the wrapped listener can not
+ * keep up and the queue is full, new events are dropped and counted in
+ * {@link #getDropped()} instead of blocking the processing of the mails.
+ * Exceptions thrown by the wrapped listener are logged.
+ * </p>
+ */
+public class BatchingMailetProcessorListener implements MailetProcessorNanoListener, Disposable, LogEnabled, Runnable {
+
+    public final static int DEFAULT_CAPACITY = 10000;
+    public final static int DEFAULT_BATCH_SIZE = 100;
+
+    private final MailetProcessorListener listener;
+    private final BlockingQueue<Event> events;
+    private final int batchSize;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread dispatcher;
+    // checked before and after an event is offered, see enqueue(Event)
+    private volatile boolean stopped = false;
+    private volatile Logger logger = LoggerFactory.getLogger(BatchingMailetProcessorListener.class);
+
+    public BatchingMailetProcessorListener(MailetProcessorListener listener) {
+        this(listener, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE);
+    }
+
+    public BatchingMailetProcessorListener(MailetProcessorListener listener, int capacity, int batchSize) {
+        if (capacity < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("capacity and batchSize must be > 0");
+        }
+        this.listener = listener;
+        this.events = new ArrayBlockingQueue<Event>(capacity);
+        this.batchSize = batchSize;
+        this.dispatcher = new Thread(this, "Mailet processor listener dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * @see org.apache.james.lifecycle.api.LogEnabled#setLog(org.slf4j.Logger)
+     */
+    public void setLog(Logger log) {
+        this.logger = log;
+    }
+
+    /**
+     * Return the number of events which were dropped because the queue was
+     * full
+     * 
+     * @return dropped
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorListener
+     * #afterMailet(org.apache.mailet.Mailet, java.lang.String, java.lang.String, long,
+     * javax.mail.MessagingException)
+     */
+    public void afterMailet(Mailet m, String mailName, String state, long processTime, MessagingException e) {
+        afterMailetNanos(m, mailName, state, TimeUnit.MILLISECONDS.toNanos(processTime), e);
+    }
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorListener
+     * #afterMatcher(org.apache.mailet.Matcher, java.lang.String, java.util.Collection,
+     * java.util.Collection, long, javax.mail.MessagingException)
+     */
+    public void afterMatcher(Matcher m, String mailName, Collection<MailAddress> recipients, Collection<MailAddress> matches, long processTime, MessagingException e) {
+        afterMatcherNanos(m, mailName, recipients, matches, TimeUnit.MILLISECONDS.toNanos(processTime), e);
+    }
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorNanoListener
+     * #afterMailetNanos(org.apache.mailet.Mailet, java.lang.String, java.lang.String, long,
+     * javax.mail.MessagingException)
+     */
+    public void afterMailetNanos(Mailet m, String mailName, String state, long processNanos, MessagingException e) {
+        enqueue(new MailetEvent(m, mailName, state, processNanos, e));
+    }
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorNanoListener
+     * #afterMatcherNanos(org.apache.mailet.Matcher, java.lang.String, java.util.Collection,
+     * java.util.Collection, long, javax.mail.MessagingException)
+     */
+    public void afterMatcherNanos(Matcher m, String mailName, Collection<MailAddress> recipients, Collection<MailAddress> matches, long processNanos, MessagingException e) {
+        // the matches may be the recipients of the mail, which get modified
+        // by the following mailets
+        Collection<MailAddress> matchesCopy = matches == null ? null : new ArrayList<MailAddress>(matches);
+        enqueue(new MatcherEvent(m, mailName, recipients, matchesCopy, processNanos, e));
+    }
+
+    private void enqueue(Event event) {
+        if (stopped || !events.offer(event)) {
+            dropped.incrementAndGet();
+        } else if (stopped && events.remove(event)) {
+            // dispose() raced in and the dispatcher may already have done its
+            // last drain. Events it still took are delivered, the others are
+            // taken back here, so none stays in the queue unaccounted for.
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Deliver the queued events to the wrapped listener until disposed
+     */
+    public void run() {
+        List<Event> batch = new ArrayList<Event>(batchSize);
+        try {
+            while (true) {
+                Event event = events.poll(100, TimeUnit.MILLISECONDS);
+                if (event == null) {
+                    if (stopped) {
+                        break;
+                    }
+                    continue;
+                }
+                batch.add(event);
+                events.drainTo(batch, batchSize - 1);
+                deliver(batch);
+            }
+            // events offered between the last poll and the stop
+            while (events.drainTo(batch, batchSize) > 0) {
+                deliver(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void deliver(List<Event> batch) {
+        for (Event e : batch) {
+            try {
+                e.deliver(listener);
+            } catch (RuntimeException ex) {
+                // a broken listener must not stop the delivery of the
+                // following events
+                logger.error("Listener " + listener + " failed to handle an event", ex);
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * Deliver the pending events and stop the background thread
+     * 
+     * @see org.apache.james.lifecycle.api.Disposable#dispose()
+     */
+    public void dispose() {
+        stopped = true;
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private abstract static class Event {
+        abstract void deliver(MailetProcessorListener listener);
+    }
+
+    private final static class MailetEvent extends Event {
+        private final Mailet mailet;
+        private final String mailName;
+        private final String state;
+        private final long processNanos;
+        private final MessagingException e;
+
+        MailetEvent(Mailet mailet, String mailName, String state, long processNanos, MessagingException e) {
+            this.mailet = mailet;
+            this.mailName = mailName;
+            this.state = state;
+            this.processNanos = processNanos;
+            this.e = e;
+        }
+
+        void deliver(MailetProcessorListener listener) {
+            if (listener instanceof MailetProcessorNanoListener) {
+                ((MailetProcessorNanoListener) listener).afterMailetNanos(mailet, mailName, state, processNanos, e);
+            } else {
+                listener.afterMailet(mailet, mailName, state, TimeUnit.NANOSECONDS.toMillis(processNanos), e);
+            }
+        }
+    }
+
+    private final static class MatcherEvent extends Event {
+        private final Matcher matcher;
+        private final String mailName;
+        private final Collection<MailAddress> recipients;
+        private final Collection<MailAddress> matches;
+        private final long processNanos;
+        private final MessagingException e;
+
+        MatcherEvent(Matcher matcher, String mailName, Collection<MailAddress> recipients, Collection<MailAddress> matches, long processNanos, MessagingException e) {
+            this.matcher = matcher;
+            this.mailName = mailName;
+            this.recipients = recipients;
+            this.matches = matches;
+            this.processNanos = processNanos;
+            this.e = e;
+        }
+
+        void deliver(MailetProcessorListener listener) {
+            if (listener instanceof MailetProcessorNanoListener) {
+                ((MailetProcessorNanoListener) listener).afterMatcherNanos(matcher, mailName, recipients, matches, processNanos, e);
+            } else {
+                listener.afterMatcher(matcher, mailName, recipients, matches, TimeUnit.NANOSECONDS.toMillis(processNanos), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailetcontainer.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ConcurrencyLimiterTest {
+
+    private final static long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private final static long SLOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Use all permits, release them with the given latency and adjust the
+     * limit
+     */
+    private void cycle(ConcurrencyLimiter limiter, long latency) {
+        int count = 0;
+        while (limiter.tryAcquire()) {
+            count++;
+        }
+        assertEquals(limiter.getLimit(), limiter.getInFlight());
+        for (int i = 0; i < count; i++) {
+            limiter.release(latency);
+        }
+        limiter.adjust();
+    }
+
+    @Test
+    public void testStartWithMinimum() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 10);
+        assertEquals(2, limiter.getLimit());
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(2, limiter.getInFlight());
+    }
+
+    @Test
+    public void testIncreaseWhenSaturated() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 10);
+        cycle(limiter, FAST);
+        assertEquals(3, limiter.getLimit());
+        cycle(limiter, FAST);
+        assertEquals(4, limiter.getLimit());
+        cycle(limiter, FAST);
+        assertEquals(6, limiter.getLimit());
+
+        // never more than the maximum
+        for (int i = 0; i < 10; i++) {
+            cycle(limiter, FAST);
+        }
+        assertEquals(10, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testKeepLimitWhenNotSaturated() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 10);
+        assertTrue(limiter.tryAcquire());
+        limiter.release(FAST);
+        limiter.adjust();
+        assertEquals(2, limiter.getLimit());
+
+        // no samples at all
+        limiter.adjust();
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void testDecreaseOnHighLatency() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 20);
+        for (int i = 0; i < 10; i++) {
+            cycle(limiter, FAST);
+        }
+        assertEquals(20, limiter.getLimit());
+
+        cycle(limiter, SLOW);
+        assertEquals(18, limiter.getLimit());
+        cycle(limiter, SLOW);
+        assertEquals(16, limiter.getLimit());
+
+        // never less than the minimum
+        for (int i = 0; i < 20; i++) {
+            cycle(limiter, SLOW);
+        }
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testAcceptSlowerWorkload() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 20);
+        for (int i = 0; i < 10; i++) {
+            cycle(limiter, FAST);
+        }
+        for (int i = 0; i < 13; i++) {
+            cycle(limiter, SLOW);
+        }
+        assertEquals(2, limiter.getLimit());
+
+        // the slow latency becomes the new baseline
+        for (int i = 0; i < 30; i++) {
+            cycle(limiter, SLOW);
+        }
+        assertTrue(limiter.getLimit() > 2);
+    }
+
+    @Test
+    public void testShrinkWhileInFlight() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 10);
+        for (int i = 0; i < 10; i++) {
+            cycle(limiter, FAST);
+        }
+        assertEquals(10, limiter.getLimit());
+
+        // take all permits, but only the first completes slow
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        limiter.release(SLOW);
+        limiter.adjust();
+        assertEquals(9, limiter.getLimit());
+
+        // the permits of the running mails are not handed out again
+        assertFalse(limiter.tryAcquire());
+        for (int i = 0; i < 9; i++) {
+            limiter.release(FAST);
+        }
+        assertEquals(0, limiter.getInFlight());
+        assertTrue(limiter.tryAcquire());
+    }
+}
@@ -0,0 +1,180 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailetcontainer.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.james.core.MailImpl;
+import org.apache.james.mailetcontainer.api.MailProcessor;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Load test which checks that the {@link JamesMailSpooler} keeps the mails
+ * in the queue while all threads are busy
+ */
+public class JamesMailSpoolerTest {
+
+    private final static int THREADS = 5;
+    private final static int BURST = 10 * THREADS * 10;
+
+    private CountingMailQueue queue;
+    private JamesMailSpooler spooler;
+
+    @Before
+    public void setUp() throws Exception {
+        queue = new CountingMailQueue();
+        spooler = new JamesMailSpooler();
+        spooler.setLog(LoggerFactory.getLogger(JamesMailSpoolerTest.class));
+        spooler.setMailQueueFactory(new MailQueueFactory() {
+
+            @Override
+            public MailQueue getQueue(String name) {
+                return queue;
+            }
+        });
+        HierarchicalConfiguration config = new HierarchicalConfiguration();
+        config.addProperty("threads", THREADS);
+        config.addProperty("dequeueThreads", 2);
+        config.addProperty("dequeueBatchSize", 10);
+        spooler.configure(config);
+    }
+
+    @After
+    public void tearDown() {
+        spooler.dispose();
+    }
+
+    @Test
+    public void testBurstStaysInQueue() throws Exception {
+        final CountDownLatch processed = new CountDownLatch(BURST);
+        final AtomicInteger maxBacklog = new AtomicInteger();
+        spooler.setMailProcessor(new MailProcessor() {
+
+            @Override
+            public void service(Mail mail) throws MessagingException {
+                int backlog = queue.dequeued.get() - queue.done.get();
+                if (backlog > maxBacklog.get()) {
+                    maxBacklog.set(backlog);
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                processed.countDown();
+            }
+        });
+
+        // enqueue 10 times more mails than the spooler can process at once
+        for (int i = 0; i < BURST; i++) {
+            queue.enQueue(new MailImpl("mail" + i, new MailAddress("sender@localhost"), Arrays.asList(new MailAddress("rcpt@localhost"))));
+        }
+        spooler.init();
+
+        assertTrue(processed.await(60, TimeUnit.SECONDS));
+
+        // never more mails were taken out of the queue than threads exist
+        assertTrue("Backlog was " + maxBacklog.get(), maxBacklog.get() <= THREADS);
+        assertTrue(spooler.getInFlightCount() <= THREADS);
+        assertTrue(spooler.getAverageQueueWaitTime() >= 0);
+    }
+
+    /**
+     * {@link MailQueue} which counts the dequeued mails and the mails which
+     * are done
+     */
+    private final static class CountingMailQueue implements MailQueue {
+
+        private final LinkedBlockingQueue<Mail> mails = new LinkedBlockingQueue<Mail>();
+        private final AtomicInteger dequeued = new AtomicInteger();
+        private final AtomicInteger done = new AtomicInteger();
+
+        @Override
+        public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+            enQueue(mail);
+        }
+
+        @Override
+        public void enQueue(Mail mail) throws MailQueueException {
+            mails.add(mail);
+        }
+
+        @Override
+        public MailQueueItem deQueue() throws MailQueueException {
+            List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+            while (items.isEmpty()) {
+                items = deQueue(1, 1000);
+            }
+            return items.get(0);
+        }
+
+        @Override
+        public List<MailQueueItem> deQueue(int max, long timeout) throws MailQueueException {
+            List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+            try {
+                Mail mail = mails.poll(timeout, TimeUnit.MILLISECONDS);
+                while (mail != null) {
+                    dequeued.incrementAndGet();
+                    final Mail m = mail;
+                    items.add(new MailQueueItem() {
+
+                        @Override
+                        public Mail getMail() {
+                            return m;
+                        }
+
+                        @Override
+                        public void done(boolean success) throws MailQueueException {
+                            done.incrementAndGet();
+                            if (!success) {
+                                mails.add(m);
+                            }
+                        }
+                    });
+                    if (items.size() >= max) {
+                        break;
+                    }
+                    mail = mails.poll();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return items;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailetcontainer.impl.direct;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+import org.apache.commons.configuration.DefaultConfigurationBuilder;
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.james.core.MailImpl;
+import org.apache.james.mailetcontainer.api.mock.MockMailet;
+import org.apache.james.mailetcontainer.api.mock.MockMailetContext;
+import org.apache.james.mailetcontainer.api.mock.MockMailetLoader;
+import org.apache.james.mailetcontainer.api.mock.MockMatcher;
+import org.apache.james.mailetcontainer.api.mock.MockMatcherLoader;
+import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor;
+import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorListener;
+import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessorTest;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.Mailet;
+import org.apache.mailet.Matcher;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class DirectMailetProcessorTest extends AbstractStateMailetProcessorTest {
+
+    /**
+     * Matcher which blocks for the configured number of ms, like a DNS lookup,
+     * and matches all recipients
+     */
+    public static class SleepingMatcher extends MockMatcher {
+
+        @Override
+        public Collection match(Mail mail) throws MessagingException {
+            try {
+                Thread.sleep(Long.parseLong(getMatcherConfig().getCondition()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return mail.getRecipients();
+        }
+    }
+
+    @Override
+    protected AbstractStateMailetProcessor createProcessor(HierarchicalConfiguration configuration) throws Exception {
+        DirectMailetProcessor processor = new DirectMailetProcessor();
+        processor.setLog(LoggerFactory.getLogger("MockLog"));
+        processor.setMailetContext(new MockMailetContext());
+        processor.setMailetLoader(new MockMailetLoader());
+        processor.setMatcherLoader(new MockMatcherLoader());
+        processor.configure(configuration);
+        processor.init();
+        return processor;
+    }
+
+    /**
+     * Create a config with prefetched matchers, the last mailet moves the mail
+     * to the test state
+     */
+    private HierarchicalConfiguration createPrefetchConfig(String... matchers) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<processor state=\"" + Mail.DEFAULT + "\" matcherThreads=\"4\">");
+        for (int i = 0; i < matchers.length; i++) {
+            String state = i == matchers.length - 1 ? "test" : Mail.DEFAULT;
+            sb.append("<mailet match=\"").append(matchers[i]).append("\" class=\"").append(MockMailet.class.getName()).append("\" prefetchMatch=\"true\">");
+            sb.append("<state>").append(state).append("</state>");
+            sb.append("</mailet>");
+        }
+        sb.append("</processor>");
+
+        DefaultConfigurationBuilder builder = new DefaultConfigurationBuilder();
+        builder.load(new ByteArrayInputStream(sb.toString().getBytes()));
+        return builder;
+    }
+
+    private MailImpl createMail() throws Exception {
+        MailImpl mail = new MailImpl();
+        mail.setName(MailImpl.getId());
+        mail.setSender(new MailAddress("test@localhost"));
+        mail.setRecipients(Arrays.asList(new MailAddress("test@localhost"), new MailAddress("test2@localhost")));
+        return mail;
+    }
+
+    @Test
+    public void testPrefetchMatchersConcurrently() throws Exception {
+        String matcher = SleepingMatcher.class.getName() + "=300";
+        AbstractStateMailetProcessor processor = createProcessor(createPrefetchConfig(matcher, matcher, matcher));
+        final List<Matcher> called = Collections.synchronizedList(new ArrayList<Matcher>());
+        processor.addListener(new MailetProcessorListener() {
+
+            @Override
+            public void afterMatcher(Matcher m, String mailName, Collection<MailAddress> recipients, Collection<MailAddress> matches, long processTime, MessagingException e) {
+                called.add(m);
+            }
+
+            @Override
+            public void afterMailet(Mailet m, String mailName, String state, long processTime, MessagingException e) {
+            }
+        });
+
+        MailImpl mail = createMail();
+        long start = System.currentTimeMillis();
+        processor.service(mail);
+        long time = System.currentTimeMillis() - start;
+
+        // the listeners get notified in the configured order
+        assertEquals(processor.getMatchers(), called);
+        assertEquals("test", mail.getState());
+        assertTrue("Matchers were not called concurrently: " + time + "ms", time < 800);
+        processor.destroy();
+    }
+
+    @Test
+    public void testPrefetchIgnoredAfterSplit() throws Exception {
+        String matcher = MockMatcher.class.getName() + "=1";
+        AbstractStateMailetProcessor processor = createProcessor(createPrefetchConfig(matcher, matcher, matcher));
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> tested = Collections.synchronizedList(new ArrayList<String>());
+        processor.addListener(new MailetProcessorListener() {
+
+            @Override
+            public void afterMatcher(Matcher m, String mailName, Collection<MailAddress> recipients, Collection<MailAddress> matches, long processTime, MessagingException e) {
+                // a stale prefetched result would match recipients the mail
+                // does not have anymore
+                if (matches != null && !recipients.containsAll(matches)) {
+                    failures.add(mailName + " " + recipients + " " + matches);
+                }
+            }
+
+            @Override
+            public void afterMailet(Mailet m, String mailName, String state, long processTime, MessagingException e) {
+                if ("test".equals(state)) {
+                    tested.add(mailName);
+                }
+            }
+        });
+
+        processor.service(createMail());
+
+        assertEquals(Collections.emptyList(), failures);
+        assertEquals(2, tested.size());
+        processor.destroy();
+    }
+
+}
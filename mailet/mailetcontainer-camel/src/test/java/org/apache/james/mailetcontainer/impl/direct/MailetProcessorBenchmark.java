@@ -0,0 +1,114 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailetcontainer.impl.direct;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.commons.configuration.DefaultConfigurationBuilder;
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.james.core.MailImpl;
+import org.apache.james.mailetcontainer.api.mock.MockMailet;
+import org.apache.james.mailetcontainer.api.mock.MockMailetContext;
+import org.apache.james.mailetcontainer.api.mock.MockMailetLoader;
+import org.apache.james.mailetcontainer.api.mock.MockMatcher;
+import org.apache.james.mailetcontainer.api.mock.MockMatcherLoader;
+import org.apache.james.mailetcontainer.impl.camel.CamelMailetProcessor;
+import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the routing overhead of the {@link CamelMailetProcessor} and the
+ * {@link DirectMailetProcessor}. The processor consists of
+ * <code>pairs</code> matcher / mailet pairs which do nothing, so the measured
+ * time is spent in the container.
+ * 
+ * Run with
+ * <code>java org.apache.james.mailetcontainer.impl.direct.MailetProcessorBenchmark [pairs] [mails]</code>
+ */
+public class MailetProcessorBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pairs = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        int mails = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        CamelMailetProcessor camel = new CamelMailetProcessor();
+        camel.setCamelContext(new DefaultCamelContext());
+        init(camel, pairs);
+        DirectMailetProcessor direct = new DirectMailetProcessor();
+        init(direct, pairs);
+
+        // warm up both before measuring
+        run(camel, mails / 10);
+        run(direct, mails / 10);
+
+        for (int i = 0; i < 3; i++) {
+            System.out.println("camel:  " + run(camel, mails) + " ns/mail");
+            System.out.println("direct: " + run(direct, mails) + " ns/mail");
+        }
+        camel.destroy();
+        direct.destroy();
+    }
+
+    private static void init(AbstractStateMailetProcessor processor, int pairs) throws Exception {
+        processor.setLog(LoggerFactory.getLogger("MockLog"));
+        processor.setMailetContext(new MockMailetContext());
+        processor.setMailetLoader(new MockMailetLoader());
+        processor.setMatcherLoader(new MockMatcherLoader());
+        processor.configure(createConfig(pairs));
+        processor.init();
+    }
+
+    private static HierarchicalConfiguration createConfig(int pairs) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<processor state=\"").append(Mail.DEFAULT).append("\" enableJmx=\"false\">");
+        for (int i = 0; i < pairs; i++) {
+            // the last mailet ends the processing
+            String state = i == pairs - 1 ? Mail.GHOST : Mail.DEFAULT;
+            sb.append("<mailet match=\"").append(MockMatcher.class.getName()).append("=2\" class=\"").append(MockMailet.class.getName()).append("\">");
+            sb.append("<state>").append(state).append("</state>");
+            sb.append("</mailet>");
+        }
+        sb.append("</processor>");
+
+        DefaultConfigurationBuilder builder = new DefaultConfigurationBuilder();
+        builder.load(new ByteArrayInputStream(sb.toString().getBytes()));
+        return builder;
+    }
+
+    /**
+     * Process the given number of mails and return the average time per
+     * mail
+     */
+    private static long run(AbstractStateMailetProcessor processor, int mails) throws Exception {
+        MailAddress sender = new MailAddress("sender@localhost");
+        MailAddress rcpt1 = new MailAddress("rcpt1@localhost");
+        MailAddress rcpt2 = new MailAddress("rcpt2@localhost");
+        long start = System.nanoTime();
+        for (int i = 0; i < mails; i++) {
+            MailImpl mail = new MailImpl("mail" + i, sender, Arrays.asList(rcpt1, rcpt2));
+            processor.service(mail);
+        }
+        return (System.nanoTime() - start) / mails;
+    }
+}
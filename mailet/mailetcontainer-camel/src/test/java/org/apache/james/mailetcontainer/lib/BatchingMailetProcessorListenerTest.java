@@ -0,0 +1,167 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailetcontainer.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.mail.MessagingException;
+
+import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorListener;
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.Mailet;
+import org.apache.mailet.Matcher;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+public class BatchingMailetProcessorListenerTest {
+
+    private final static class RecordingListener implements MailetProcessorListener {
+        private final List<String> events = new ArrayList<String>();
+        private final CountDownLatch blocked;
+
+        RecordingListener(CountDownLatch blocked) {
+            this.blocked = blocked;
+        }
+
+        private void await() {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void afterMailet(Mailet m, String mailName, String state, long processTime, MessagingException e) {
+            await();
+            events.add("mailet " + mailName + " " + state + " " + processTime);
+        }
+
+        public void afterMatcher(Matcher m, String mailName, Collection<MailAddress> recipients, Collection<MailAddress> matches, long processTime, MessagingException e) {
+            await();
+            events.add("matcher " + mailName + " " + matches + " " + processTime);
+        }
+    }
+
+    @Test
+    public void testDeliverInOrder() throws Exception {
+        RecordingListener recording = new RecordingListener(new CountDownLatch(0));
+        BatchingMailetProcessorListener listener = new BatchingMailetProcessorListener(recording);
+        List<MailAddress> matches = new ArrayList<MailAddress>();
+        matches.add(new MailAddress("rcpt@localhost"));
+
+        listener.afterMatcherNanos(null, "mail1", matches, matches, 2000000, null);
+        // the matches must be copied as they may be modified later
+        matches.clear();
+        listener.afterMailetNanos(null, "mail1", "ghost", 3000000, null);
+        listener.afterMailet(null, "mail2", "root", 4, null);
+        listener.dispose();
+
+        assertEquals(3, recording.events.size());
+        assertEquals("matcher mail1 [rcpt@localhost] 2", recording.events.get(0));
+        assertEquals("mailet mail1 ghost 3", recording.events.get(1));
+        assertEquals("mailet mail2 root 4", recording.events.get(2));
+        assertEquals(0, listener.getDropped());
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        RecordingListener recording = new RecordingListener(blocked);
+        BatchingMailetProcessorListener listener = new BatchingMailetProcessorListener(recording, 2, 1);
+
+        for (int i = 0; i < 10; i++) {
+            listener.afterMailetNanos(null, "mail" + i, "root", 0, null);
+        }
+        blocked.countDown();
+        listener.dispose();
+
+        // one event may be held by the blocked dispatcher in addition to the
+        // two queued ones
+        assertTrue(listener.getDropped() >= 7);
+        assertEquals(10, recording.events.size() + listener.getDropped());
+    }
+
+    @Test
+    public void testListenerExceptionIsLogged() throws Exception {
+        final IllegalStateException failure = new IllegalStateException("broken listener");
+        final RecordingListener recording = new RecordingListener(new CountDownLatch(0));
+        BatchingMailetProcessorListener listener = new BatchingMailetProcessorListener(new MailetProcessorListener() {
+            public void afterMailet(Mailet m, String mailName, String state, long processTime, MessagingException e) {
+                if (mailName.equals("mail1")) {
+                    throw failure;
+                }
+                recording.afterMailet(m, mailName, state, processTime, e);
+            }
+
+            public void afterMatcher(Matcher m, String mailName, Collection<MailAddress> recipients, Collection<MailAddress> matches, long processTime, MessagingException e) {
+            }
+        });
+        Logger logger = mock(Logger.class);
+        listener.setLog(logger);
+
+        listener.afterMailet(null, "mail1", "root", 1, null);
+        listener.afterMailet(null, "mail2", "root", 2, null);
+        listener.dispose();
+
+        verify(logger).error(anyString(), same(failure));
+        // the following events are delivered anyway
+        assertEquals(1, recording.events.size());
+        assertEquals("mailet mail2 root 2", recording.events.get(0));
+    }
+
+    @Test
+    public void testNoEventLostOnDispose() throws Exception {
+        RecordingListener recording = new RecordingListener(new CountDownLatch(0));
+        final BatchingMailetProcessorListener listener = new BatchingMailetProcessorListener(recording);
+        final int threads = 4;
+        final int events = 20000;
+        final CountDownLatch started = new CountDownLatch(threads);
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread producer = new Thread() {
+                public void run() {
+                    started.countDown();
+                    for (int j = 0; j < events; j++) {
+                        listener.afterMailetNanos(null, "mail" + j, "root", 0, null);
+                    }
+                }
+            };
+            producer.start();
+            producers.add(producer);
+        }
+        started.await();
+        listener.dispose();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        // every event was either delivered or counted as dropped
+        assertEquals(threads * events, recording.events.size() + listener.getDropped());
+    }
+}
@@ -0,0 +1,140 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailetcontainer.lib;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.mail.MessagingException;
+
+import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorListener;
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.Mailet;
+import org.apache.mailet.Matcher;
+
+/**
+ * Measures how the hand over of the events to a
+ * {@link BatchingMailetProcessorListener} scales with the number of spooler
+ * threads. For every thread count the hand over of the listener, which only
+ * checks a volatile flag around the offer, is compared with the same hand
+ * over done under the read lock of a shared {@link ReadWriteLock}, as it was
+ * guarded against a concurrent dispose before.
+ * 
+ * Run with
+ * <code>java org.apache.james.mailetcontainer.lib.ListenerDispatchBenchmark [maxThreads] [events]</code>
+ */
+public class ListenerDispatchBenchmark {
+
+    /**
+     * Listener which does nothing but count, so the dispatcher keeps up and
+     * the measured time is spent in the hand over
+     */
+    private final static class CountingListener implements MailetProcessorListener {
+        private final AtomicLong count = new AtomicLong();
+
+        public void afterMailet(Mailet m, String mailName, String state, long processTime, MessagingException e) {
+            count.incrementAndGet();
+        }
+
+        public void afterMatcher(Matcher m, String mailName, Collection<MailAddress> recipients, Collection<MailAddress> matches, long processTime, MessagingException e) {
+            count.incrementAndGet();
+        }
+    }
+
+    private interface Dispatcher {
+        void dispatch(BatchingMailetProcessorListener listener, String mailName);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int events = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        Dispatcher volatileFlag = new Dispatcher() {
+            public void dispatch(BatchingMailetProcessorListener listener, String mailName) {
+                listener.afterMailetNanos(null, mailName, "root", 1000, null);
+            }
+        };
+        final ReadWriteLock stopLock = new ReentrantReadWriteLock();
+        Dispatcher readLock = new Dispatcher() {
+            public void dispatch(BatchingMailetProcessorListener listener, String mailName) {
+                stopLock.readLock().lock();
+                try {
+                    listener.afterMailetNanos(null, mailName, "root", 1000, null);
+                } finally {
+                    stopLock.readLock().unlock();
+                }
+            }
+        };
+
+        // warm up both before measuring
+        run(volatileFlag, 4, events);
+        run(readLock, 4, events);
+
+        System.out.println("threads  volatile flag  read lock (ns/event)");
+        int threads = 1;
+        while (true) {
+            long flag = run(volatileFlag, threads, events);
+            long lock = run(readLock, threads, events);
+            System.out.println(String.format("%7d  %13d  %9d", threads, flag, lock));
+            if (threads >= maxThreads) {
+                break;
+            }
+            threads = Math.min(maxThreads, threads < 8 ? threads * 2 : threads * 5 / 2);
+        }
+    }
+
+    /**
+     * Hand over the given number of events per thread from the given number
+     * of threads to a new listener and return the average wall clock time
+     * per event. The queue holds all events, so none is dropped, which
+     * would make the hand over cheaper.
+     */
+    private static long run(final Dispatcher dispatcher, int threads, final int events) throws Exception {
+        final BatchingMailetProcessorListener listener = new BatchingMailetProcessorListener(new CountingListener(), events * threads, BatchingMailetProcessorListener.DEFAULT_BATCH_SIZE);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final String mailName = "mail" + i;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < events; j++) {
+                            dispatcher.dispatch(listener, mailName);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            t.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        listener.dispose();
+        return elapsed / ((long) events * threads);
+    }
+}
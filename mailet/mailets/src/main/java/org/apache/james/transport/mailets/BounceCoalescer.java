@@ -0,0 +1,455 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+
+/**
+ * Generates the bounces of {@link RemoteDelivery} off the delivery threads.
+ * <p>
+ * The failed mails are stored in a {@link MailQueue}, so no bounce is lost if
+ * the server stops before it was generated. A single thread takes them from
+ * the queue and keeps them for <code>coalesceWindow</code> milliseconds. The
+ * failures of the per domain copies of the same original mail which arrive
+ * within that window are merged, so the sender gets a single bounce listing
+ * all failed recipients. At most <code>maxRate</code> bounces per second are
+ * generated, the others wait for the next run. The failed mails are only
+ * marked as done in the queue once their bounce was generated.
+ * </p>
+ * <p>
+ * At most <code>maxPending</code> bounces are kept by the thread. Once that
+ * many are pending it stops taking failed mails from the queue, so a mass
+ * bounce waits in the queue instead of being generated faster than
+ * <code>maxRate</code>.
+ * </p>
+ */
+public abstract class BounceCoalescer implements BounceCoalescerMBean {
+
+    /**
+     * Name of the attribute which holds the name of the original mail of a
+     * queued failure
+     */
+    public final static String KEY_ATTRIBUTE = "org.apache.james.transport.mailets.BounceCoalescer.key";
+
+    /**
+     * Name of the attribute which holds the cause of a queued failure
+     */
+    public final static String CAUSE_ATTRIBUTE = "org.apache.james.transport.mailets.BounceCoalescer.cause";
+
+    /**
+     * Interval in milliseconds between two runs of the bounce generation
+     */
+    private final static long FLUSH_INTERVAL = 1000;
+
+    /**
+     * Max number of failed mails taken from the queue at once
+     */
+    private final static int DEQUEUE_BATCH_SIZE = 100;
+
+    private final MailQueue queue;
+    private final long coalesceWindow;
+    private final double maxRate;
+    private final int maxPending;
+
+    /**
+     * The pending bounces by name of the original mail, oldest first
+     */
+    private final Map<String, PendingBounce> pending = new LinkedHashMap<String, PendingBounce>();
+    private final ExecutorService worker;
+
+    private final AtomicLong bounced = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong heldBack = new AtomicLong();
+    private double tokens;
+    private long lastRefill;
+    private volatile boolean closed = false;
+
+    /**
+     * @param queue
+     *            the queue which stores the failed mails
+     * @param coalesceWindow
+     *            time in milliseconds a failure waits for the failures of
+     *            the other copies of the same mail
+     * @param maxRate
+     *            max number of bounces per second, 0 for no limit
+     * @param maxPending
+     *            max number of pending bounces
+     */
+    public BounceCoalescer(MailQueue queue, long coalesceWindow, double maxRate, int maxPending) {
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("maxPending must be > 0");
+        }
+        this.queue = queue;
+        this.coalesceWindow = coalesceWindow;
+        this.maxRate = maxRate;
+        this.maxPending = maxPending;
+        this.tokens = Math.max(1, maxRate);
+        this.lastRefill = now();
+
+        worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "RemoteDelivery bouncer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Start the thread which takes the failed mails from the queue and
+     * generates their bounces
+     */
+    public void start() {
+        worker.execute(new Runnable() {
+            public void run() {
+                while (!closed) {
+                    try {
+                        poll(FLUSH_INTERVAL);
+                        flush(false);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        // must not stop the worker
+                        if (!closed) {
+                            log("Unable to take the failed mails from the queue", e);
+                            try {
+                                Thread.sleep(FLUSH_INTERVAL);
+                            } catch (InterruptedException e1) {
+                                return;
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Store the failure of the given mail in the queue. The mail is copied,
+     * so the caller keeps the ownership of it. Once this returned the bounce
+     * survives a restart, so the caller may mark the mail as done.
+     * 
+     * @param key
+     *            the name of the original mail, the same for all its copies
+     * @param mail
+     *            the failed mail
+     * @param ex
+     *            the cause of the failure
+     * @throws MessagingException
+     *             if the failure could not get stored
+     */
+    public void add(String key, Mail mail, Exception ex) throws MessagingException {
+        Mail copy = new MailImpl(mail, mail.getName());
+        try {
+            copy.setAttribute(KEY_ATTRIBUTE, key);
+            copy.setAttribute(CAUSE_ATTRIBUTE, ex);
+            queue.enQueue(copy);
+        } finally {
+            LifecycleUtil.dispose(copy);
+        }
+    }
+
+    /**
+     * Generate the bounce for the given mail
+     * 
+     * @param mail
+     *            the failed mail, its recipients are all failed recipients
+     * @param failures
+     *            the failures, one for each merged copy
+     */
+    protected abstract void bounce(Mail mail, List<Failure> failures);
+
+    /**
+     * Log a failure of the bounce generation
+     * 
+     * @param message
+     * @param t
+     */
+    protected abstract void log(String message, Throwable t);
+
+    /**
+     * Take as many failed mails from the queue as bounces may still be
+     * pending. If <code>maxPending</code> bounces are pending already nothing
+     * is taken and the given timeout is waited instead.
+     * 
+     * @param timeout
+     *            time in milliseconds to wait for a failed mail
+     * @throws MailQueueException
+     * @throws InterruptedException
+     */
+    void poll(long timeout) throws MailQueueException, InterruptedException {
+        int free;
+        synchronized (this) {
+            free = maxPending - pending.size();
+        }
+        if (free <= 0) {
+            // leave the failures in the queue until bounces were generated
+            heldBack.incrementAndGet();
+            Thread.sleep(timeout);
+            return;
+        }
+        for (MailQueueItem item : queue.deQueue(Math.min(free, DEQUEUE_BATCH_SIZE), timeout)) {
+            add(item);
+        }
+    }
+
+    /**
+     * Add a failed mail taken from the queue to the pending bounces
+     * 
+     * @param item
+     */
+    private synchronized void add(MailQueueItem item) {
+        Mail mail = item.getMail();
+        Object key = mail.getAttribute(KEY_ATTRIBUTE);
+        Object cause = mail.getAttribute(CAUSE_ATTRIBUTE);
+        mail.removeAttribute(KEY_ATTRIBUTE);
+        mail.removeAttribute(CAUSE_ATTRIBUTE);
+        Exception ex = cause instanceof Exception ? (Exception) cause : new MessagingException("Unknown failure");
+        String name = key instanceof String ? (String) key : mail.getName();
+
+        PendingBounce bounce = pending.get(name);
+        if (bounce == null) {
+            pending.put(name, new PendingBounce(item, ex, now() + coalesceWindow));
+        } else {
+            bounce.add(item, ex);
+            coalesced.incrementAndGet();
+        }
+    }
+
+    /**
+     * Generate the due bounces as far as the rate allows and mark their mails
+     * as done in the queue
+     * 
+     * @param all
+     *            true to generate all pending bounces, regardless of their
+     *            due time and the rate
+     */
+    void flush(boolean all) {
+        while (true) {
+            PendingBounce next;
+            synchronized (this) {
+                Iterator<PendingBounce> it = pending.values().iterator();
+                if (!it.hasNext()) {
+                    return;
+                }
+                next = it.next();
+                long now = now();
+                if (!all) {
+                    if (next.due > now) {
+                        return;
+                    }
+                    if (maxRate > 0) {
+                        tokens = Math.min(Math.max(1, maxRate), tokens + (now - lastRefill) * maxRate / 1000);
+                        lastRefill = now;
+                        if (tokens < 1) {
+                            return;
+                        }
+                        tokens--;
+                    }
+                }
+                it.remove();
+            }
+            Mail mail = next.items.get(0).getMail();
+            try {
+                mail.setRecipients(next.recipients);
+                bounce(mail, next.failures);
+                bounced.incrementAndGet();
+            } catch (RuntimeException e) {
+                // must not stop the worker, and taking the mail again would
+                // most likely fail the same way
+                log("Unable to generate the bounce for " + mail.getName(), e);
+            }
+            complete(next, true);
+        }
+    }
+
+    /**
+     * Mark the mails of the given bounce as done in the queue and dispose
+     * them
+     * 
+     * @param bounce
+     * @param success
+     *            false to hand the mails back to the queue
+     */
+    private void complete(PendingBounce bounce, boolean success) {
+        for (MailQueueItem item : bounce.items) {
+            try {
+                item.done(success);
+            } catch (MailQueueException e) {
+                log("Unable to mark the failed mail " + item.getMail().getName() + " as done", e);
+            } finally {
+                LifecycleUtil.dispose(item.getMail());
+            }
+        }
+    }
+
+    /**
+     * Stop the background generation. The pending bounces are handed back to
+     * the queue and generated after the next start.
+     */
+    public void close() {
+        closed = true;
+        worker.shutdown();
+        try {
+            if (!worker.awaitTermination(2 * FLUSH_INTERVAL, TimeUnit.MILLISECONDS)) {
+                worker.shutdownNow();
+                worker.awaitTermination(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<PendingBounce> released;
+        synchronized (this) {
+            released = new ArrayList<PendingBounce>(pending.values());
+            pending.clear();
+        }
+        for (PendingBounce bounce : released) {
+            complete(bounce, false);
+        }
+    }
+
+    /**
+     * Return the current time in milliseconds
+     * 
+     * @return now
+     */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.BounceCoalescerMBean#getCoalesceWindow()
+     */
+    public long getCoalesceWindow() {
+        return coalesceWindow;
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.BounceCoalescerMBean#getMaxBounceRate()
+     */
+    public double getMaxBounceRate() {
+        return maxRate;
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.BounceCoalescerMBean#getPendingCount()
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.BounceCoalescerMBean#getBouncedCount()
+     */
+    public long getBouncedCount() {
+        return bounced.get();
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.BounceCoalescerMBean#getCoalescedCount()
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.BounceCoalescerMBean#getHeldBackCount()
+     */
+    public long getHeldBackCount() {
+        return heldBack.get();
+    }
+
+    /**
+     * The recipients of one failed copy and the cause of the failure
+     */
+    public final static class Failure {
+        private final Collection<MailAddress> recipients;
+        private final Exception cause;
+
+        /**
+         * @param recipients
+         * @param cause
+         */
+        public Failure(Collection<MailAddress> recipients, Exception cause) {
+            this.recipients = recipients;
+            this.cause = cause;
+        }
+
+        /**
+         * Return the recipients which failed
+         * 
+         * @return recipients
+         */
+        public Collection<MailAddress> getRecipients() {
+            return recipients;
+        }
+
+        /**
+         * Return the cause of the failure
+         * 
+         * @return cause
+         */
+        public Exception getCause() {
+            return cause;
+        }
+    }
+
+    /**
+     * A bounce which waits for its coalesce window to end. The bounce is
+     * generated from the mail of the first item.
+     */
+    private final static class PendingBounce {
+        private final List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+        private final List<MailAddress> recipients = new ArrayList<MailAddress>();
+        private final List<Failure> failures = new ArrayList<Failure>();
+        private final long due;
+
+        private PendingBounce(MailQueueItem item, Exception ex, long due) {
+            this.due = due;
+            add(item, ex);
+        }
+
+        private void add(MailQueueItem item, Exception ex) {
+            Collection<MailAddress> failed = new ArrayList<MailAddress>(item.getMail().getRecipients());
+            items.add(item);
+            recipients.addAll(failed);
+            failures.add(new Failure(failed, ex));
+        }
+    }
+}
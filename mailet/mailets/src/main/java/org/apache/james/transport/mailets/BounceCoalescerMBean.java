@@ -0,0 +1,71 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.transport.mailets;
+
+/**
+ * JMX view on the {@link BounceCoalescer} used by {@link RemoteDelivery}
+ */
+public interface BounceCoalescerMBean {
+
+    /**
+     * Return the time in milliseconds a failure waits for the failures of the
+     * other copies of the same mail
+     * 
+     * @return coalesceWindow
+     */
+    long getCoalesceWindow();
+
+    /**
+     * Return the max number of bounces per second, 0 means no limit
+     * 
+     * @return maxRate
+     */
+    double getMaxBounceRate();
+
+    /**
+     * Return the number of bounces which wait to be generated
+     * 
+     * @return pending
+     */
+    int getPendingCount();
+
+    /**
+     * Return the number of bounces generated since the start
+     * 
+     * @return bounced
+     */
+    long getBouncedCount();
+
+    /**
+     * Return the number of failures which were merged into the bounce of an
+     * other copy of the same mail
+     * 
+     * @return coalesced
+     */
+    long getCoalescedCount();
+
+    /**
+     * Return the number of times no failed mails were taken from the queue
+     * because too many bounces were pending
+     * 
+     * @return heldBack
+     */
+    long getHeldBackCount();
+}
@@ -0,0 +1,511 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.mailet.MailAddress;
+
+/**
+ * Schedules the mails taken from the outgoing queue of {@link RemoteDelivery}
+ * over per domain queues, so a slow or failing destination can not occupy all
+ * delivery threads.
+ * <p>
+ * The delivery threads take {@link Run}'s of mails for one domain, the domains
+ * are served round-robin. A domain is only served if it has less than
+ * <code>maxConcurrent</code> runs in progress and, if a rate is configured,
+ * enough tokens in its bucket. After <code>failureThreshold</code> failed
+ * deliveries in a row the circuit of the domain is opened: its mails are
+ * deferred without a delivery attempt until the circuit timeout elapsed. Then
+ * a single mail is tried, on success the circuit is closed again, otherwise it
+ * stays open for twice the time (at most {@link #MAX_BACKOFF_FACTOR} times the
+ * configured timeout).
+ * </p>
+ * <p>
+ * Mails which can not be buffered because the queue of their domain is full or
+ * the circuit is open are handed back to the caller, which sends them to the
+ * outgoing queue again with the returned delay.
+ * </p>
+ */
+public class DeliveryScheduler implements DeliverySchedulerMBean {
+
+    /**
+     * Delay in milliseconds for mails which were refused because the queue of
+     * their domain is full
+     */
+    public final static long DEFER_DELAY = 5000;
+
+    private final static int MAX_BACKOFF_FACTOR = 16;
+
+    /**
+     * Time in milliseconds after which an unused domain is forgotten
+     */
+    private final static long DOMAIN_EXPIRY = 600000;
+
+    private final int maxConcurrent;
+    private final double maxRate;
+    private final int failureThreshold;
+    private final long circuitTimeout;
+    private final int runSize;
+    private final int maxBuffered;
+
+    private final Map<String, DomainLimit> limits = new HashMap<String, DomainLimit>();
+    private final Map<String, DomainQueue> domains = new HashMap<String, DomainQueue>();
+    private final LinkedList<DomainQueue> ring = new LinkedList<DomainQueue>();
+
+    private int buffered;
+    private long deferred;
+    private long lastExpiry;
+
+    /**
+     * @param maxConcurrent
+     *            max number of runs in progress per domain
+     * @param maxRate
+     *            max number of mails per second and domain, 0 for no limit
+     * @param failureThreshold
+     *            number of failed deliveries in a row which open the circuit
+     * @param circuitTimeout
+     *            time in milliseconds the circuit stays open
+     * @param runSize
+     *            max number of mails in one run
+     * @param maxBuffered
+     *            max number of mails buffered over all domains
+     */
+    public DeliveryScheduler(int maxConcurrent, double maxRate, int failureThreshold, long circuitTimeout, int runSize, int maxBuffered) {
+        if (maxConcurrent < 1 || runSize < 1 || maxBuffered < 1) {
+            throw new IllegalArgumentException("maxConcurrent, runSize and maxBuffered must be > 0");
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.maxRate = maxRate;
+        this.failureThreshold = failureThreshold;
+        this.circuitTimeout = circuitTimeout;
+        this.runSize = runSize;
+        this.maxBuffered = maxBuffered;
+    }
+
+    /**
+     * Use other limits for the given domain
+     * 
+     * @param domain
+     * @param maxConcurrent
+     * @param maxRate
+     *            max number of mails per second, 0 for no limit
+     */
+    public synchronized void setDomainLimit(String domain, int maxConcurrent, double maxRate) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be > 0");
+        }
+        String key = domain.toLowerCase(Locale.US);
+        limits.put(key, new DomainLimit(maxConcurrent, maxRate));
+        DomainQueue queue = domains.get(key);
+        if (queue != null) {
+            queue.setLimit(maxConcurrent, maxRate);
+        }
+    }
+
+    /**
+     * Return true if there is room for more mails
+     * 
+     * @return needsMore
+     */
+    public synchronized boolean needsMore() {
+        return buffered < maxBuffered;
+    }
+
+    /**
+     * Add the item to the queue of its domain.
+     * 
+     * @param item
+     * @return 0 if the item was added, otherwise the delay in milliseconds
+     *         after which the item should be tried again
+     */
+    public synchronized long add(MailQueueItem item) {
+        long now = now();
+        expireDomains(now);
+
+        DomainQueue queue = getQueue(getDomain(item));
+        queue.lastUsed = now;
+        if (queue.isOpen(now)) {
+            deferred++;
+            return Math.max(queue.openUntil - now, DEFER_DELAY);
+        }
+        if (queue.pending.size() >= queue.maxConcurrent * runSize) {
+            deferred++;
+            return DEFER_DELAY;
+        }
+        queue.pending.add(item);
+        buffered++;
+        notifyAll();
+        return 0;
+    }
+
+    /**
+     * Return the next {@link Run} which may be processed, or null if no domain
+     * can be served now. If {@link Run#getDeferDelay()} is bigger than 0 the
+     * mails of the run must not be delivered but deferred, and the run must
+     * not be completed.
+     * 
+     * @return run
+     */
+    public synchronized Run take() {
+        long now = now();
+        for (int i = 0; i < ring.size(); i++) {
+            DomainQueue queue = ring.removeFirst();
+            ring.addLast(queue);
+
+            if (queue.pending.isEmpty()) {
+                continue;
+            }
+            if (queue.isOpen(now)) {
+                // the circuit was opened after the mails were added
+                List<MailQueueItem> items = new ArrayList<MailQueueItem>(queue.pending);
+                queue.pending.clear();
+                buffered -= items.size();
+                deferred += items.size();
+                return new Run(queue, items, Math.max(queue.openUntil - now, DEFER_DELAY));
+            }
+            boolean probe = queue.openUntil > 0;
+            if (queue.active >= (probe ? 1 : queue.maxConcurrent)) {
+                continue;
+            }
+
+            int count = Math.min(queue.pending.size(), probe ? 1 : runSize);
+            if (queue.maxRate > 0) {
+                queue.refill(now);
+                count = Math.min(count, (int) queue.tokens);
+                if (count < 1) {
+                    continue;
+                }
+                queue.tokens -= count;
+            }
+
+            List<MailQueueItem> items = new ArrayList<MailQueueItem>(count);
+            for (int j = 0; j < count; j++) {
+                items.add(queue.pending.removeFirst());
+            }
+            buffered -= count;
+            queue.active++;
+            queue.lastUsed = now;
+            return new Run(queue, items, 0);
+        }
+        return null;
+    }
+
+    /**
+     * Report the outcome of a {@link Run} returned by {@link #take()}
+     * 
+     * @param run
+     * @param succeeded
+     *            number of mails delivered or permanently failed
+     * @param failed
+     *            number of mails which need to be retried
+     * @param elapsed
+     *            time in milliseconds the run took
+     */
+    public synchronized void complete(Run run, int succeeded, int failed, long elapsed) {
+        DomainQueue queue = run.queue;
+        long now = now();
+        queue.active--;
+        queue.lastUsed = now;
+        queue.delivered += succeeded;
+        queue.failed += failed;
+        int count = succeeded + failed;
+        if (count > 0) {
+            long latency = elapsed / count;
+            queue.avgLatency = queue.avgLatency == 0 ? latency : (queue.avgLatency * 7 + latency) / 8;
+        }
+
+        if (succeeded > 0) {
+            queue.consecutiveFailures = 0;
+            queue.backoff = 1;
+            queue.openUntil = 0;
+        } else if (failed > 0) {
+            boolean probe = queue.openUntil > 0;
+            queue.consecutiveFailures += failed;
+            if (probe) {
+                queue.backoff = Math.min(queue.backoff * 2, MAX_BACKOFF_FACTOR);
+                queue.openUntil = now + circuitTimeout * queue.backoff;
+            } else if (failureThreshold > 0 && queue.consecutiveFailures >= failureThreshold) {
+                queue.openUntil = now + circuitTimeout * queue.backoff;
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Wait until mails were added or a run completed
+     * 
+     * @param timeout
+     *            max time to wait in milliseconds
+     * @throws InterruptedException
+     */
+    public synchronized void await(long timeout) throws InterruptedException {
+        wait(timeout);
+    }
+
+    /**
+     * Remove and return all buffered mails
+     * 
+     * @return items
+     */
+    public synchronized List<MailQueueItem> drain() {
+        List<MailQueueItem> items = new ArrayList<MailQueueItem>(buffered);
+        for (DomainQueue queue : ring) {
+            items.addAll(queue.pending);
+            queue.pending.clear();
+        }
+        buffered = 0;
+        return items;
+    }
+
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    private DomainQueue getQueue(String domain) {
+        DomainQueue queue = domains.get(domain);
+        if (queue == null) {
+            DomainLimit limit = limits.get(domain);
+            queue = new DomainQueue(domain);
+            if (limit != null) {
+                queue.setLimit(limit.maxConcurrent, limit.maxRate);
+            } else {
+                queue.setLimit(maxConcurrent, maxRate);
+            }
+            domains.put(domain, queue);
+            ring.add(queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Forget the domains which were not used for {@link #DOMAIN_EXPIRY}
+     * milliseconds, so the number of tracked domains stays bounded
+     * 
+     * @param now
+     */
+    private void expireDomains(long now) {
+        if (now - lastExpiry < DOMAIN_EXPIRY / 10) {
+            return;
+        }
+        lastExpiry = now;
+        Iterator<DomainQueue> queues = ring.iterator();
+        while (queues.hasNext()) {
+            DomainQueue queue = queues.next();
+            if (queue.pending.isEmpty() && queue.active == 0 && !queue.isOpen(now) && now - queue.lastUsed > DOMAIN_EXPIRY) {
+                queues.remove();
+                domains.remove(queue.domain);
+            }
+        }
+    }
+
+    private static String getDomain(MailQueueItem item) {
+        Collection<MailAddress> recipients = item.getMail().getRecipients();
+        if (recipients == null || recipients.isEmpty()) {
+            return "";
+        }
+        // RemoteDelivery splits the mails so all recipients share one domain
+        return recipients.iterator().next().getDomain().toLowerCase(Locale.US);
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DeliverySchedulerMBean#getMaxConcurrentPerDomain()
+     */
+    public int getMaxConcurrentPerDomain() {
+        return maxConcurrent;
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DeliverySchedulerMBean#getMaxRatePerDomain()
+     */
+    public double getMaxRatePerDomain() {
+        return maxRate;
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DeliverySchedulerMBean#getBufferedCount()
+     */
+    public synchronized int getBufferedCount() {
+        return buffered;
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DeliverySchedulerMBean#getDomainCount()
+     */
+    public synchronized int getDomainCount() {
+        return domains.size();
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DeliverySchedulerMBean#getOpenCircuitCount()
+     */
+    public synchronized int getOpenCircuitCount() {
+        int count = 0;
+        for (DomainQueue queue : ring) {
+            if (queue.openUntil > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DeliverySchedulerMBean#getDeferredCount()
+     */
+    public synchronized long getDeferredCount() {
+        return deferred;
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DeliverySchedulerMBean#getDomainStatistics()
+     */
+    public synchronized String[] getDomainStatistics() {
+        long now = now();
+        String[] stats = new String[ring.size()];
+        int i = 0;
+        for (DomainQueue queue : ring) {
+            String circuit;
+            if (queue.openUntil == 0) {
+                circuit = "closed";
+            } else if (queue.isOpen(now)) {
+                circuit = "open for " + (queue.openUntil - now) + "ms";
+            } else {
+                circuit = "half-open";
+            }
+            stats[i++] = queue.domain + " queued=" + queue.pending.size() + " active=" + queue.active + " delivered=" + queue.delivered + " failed=" + queue.failed + " latency=" + queue.avgLatency + "ms circuit=" + circuit;
+        }
+        return stats;
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DeliverySchedulerMBean#resetCircuit(java.lang.String)
+     */
+    public synchronized void resetCircuit(String domain) {
+        DomainQueue queue = domains.get(domain.toLowerCase(Locale.US));
+        if (queue != null) {
+            queue.openUntil = 0;
+            queue.backoff = 1;
+            queue.consecutiveFailures = 0;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Mails of one domain which are delivered by one thread in a row
+     */
+    public final static class Run {
+        private final DomainQueue queue;
+        private final List<MailQueueItem> items;
+        private final long deferDelay;
+
+        private Run(DomainQueue queue, List<MailQueueItem> items, long deferDelay) {
+            this.queue = queue;
+            this.items = items;
+            this.deferDelay = deferDelay;
+        }
+
+        public String getDomain() {
+            return queue.domain;
+        }
+
+        public List<MailQueueItem> getItems() {
+            return items;
+        }
+
+        /**
+         * Return the delay in milliseconds after which the mails should be
+         * tried again, or 0 if they should be delivered now
+         * 
+         * @return deferDelay
+         */
+        public long getDeferDelay() {
+            return deferDelay;
+        }
+    }
+
+    private final static class DomainLimit {
+        private final int maxConcurrent;
+        private final double maxRate;
+
+        public DomainLimit(int maxConcurrent, double maxRate) {
+            this.maxConcurrent = maxConcurrent;
+            this.maxRate = maxRate;
+        }
+    }
+
+    /**
+     * State of one domain, guarded by the scheduler
+     */
+    private final static class DomainQueue {
+        private final String domain;
+        private final LinkedList<MailQueueItem> pending = new LinkedList<MailQueueItem>();
+        private int maxConcurrent;
+        private double maxRate;
+        private double tokens;
+        private long lastRefill;
+        private int active;
+        private long lastUsed;
+        private long delivered;
+        private long failed;
+        private long avgLatency;
+        private int consecutiveFailures;
+        private int backoff = 1;
+
+        /**
+         * 0 if the circuit is closed, otherwise the time until it is open.
+         * Once that time has passed the circuit is half-open.
+         */
+        private long openUntil;
+
+        public DomainQueue(String domain) {
+            this.domain = domain;
+        }
+
+        public void setLimit(int maxConcurrent, double maxRate) {
+            this.maxConcurrent = maxConcurrent;
+            this.maxRate = maxRate;
+            this.tokens = Math.max(1, maxRate);
+        }
+
+        public boolean isOpen(long now) {
+            return openUntil > now;
+        }
+
+        /**
+         * Add the tokens for the time passed since the last refill. The bucket
+         * holds at most one second worth of tokens.
+         * 
+         * @param now
+         */
+        public void refill(long now) {
+            if (lastRefill > 0) {
+                tokens = Math.min(Math.max(1, maxRate), tokens + (now - lastRefill) * maxRate / 1000);
+            }
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+/**
+ * JMX view on the {@link DeliveryScheduler} used by {@link RemoteDelivery}
+ */
+public interface DeliverySchedulerMBean {
+
+    /**
+     * Return the default max number of concurrent deliveries per domain
+     * 
+     * @return maxConcurrent
+     */
+    int getMaxConcurrentPerDomain();
+
+    /**
+     * Return the default max number of mails per second and domain, 0 if not
+     * limited
+     * 
+     * @return maxRate
+     */
+    double getMaxRatePerDomain();
+
+    /**
+     * Return the number of mails which wait in the per domain queues
+     * 
+     * @return buffered
+     */
+    int getBufferedCount();
+
+    /**
+     * Return the number of domains the scheduler keeps track of
+     * 
+     * @return domains
+     */
+    int getDomainCount();
+
+    /**
+     * Return the number of domains which are currently blocked because of
+     * repeated delivery failures
+     * 
+     * @return openCircuits
+     */
+    int getOpenCircuitCount();
+
+    /**
+     * Return the number of mails which were sent back to the outgoing queue
+     * without a delivery attempt
+     * 
+     * @return deferred
+     */
+    long getDeferredCount();
+
+    /**
+     * Return queue depth, active deliveries, delivery counts, latency and
+     * circuit state, one entry per domain
+     * 
+     * @return domainStats
+     */
+    String[] getDomainStatistics();
+
+    /**
+     * Close the circuit of the given domain so deliveries are attempted again
+     * 
+     * @param domain
+     */
+    void resetCircuit(String domain);
+}
@@ -0,0 +1,151 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+import org.apache.geronimo.javamail.transport.smtp.SMTPConnection;
+import org.apache.geronimo.javamail.util.ProtocolProperties;
+
+/**
+ * {@link SMTPConnection} which pipelines the MAIL FROM command with the RCPT
+ * TO commands of the transaction if the server announces the PIPELINING
+ * extension (RFC 2920).
+ * <p>
+ * The RCPT TO lines of the next transaction are registered with
+ * {@link #expectRecipients(List)} and written right after the MAIL FROM line.
+ * When the transport issues these commands later on they are not written
+ * again, the replies are simply read in order. If the transport aborts the
+ * transaction with RSET or QUIT, the replies of the lines which were sent
+ * ahead are consumed and the command is written as usual. Any other command
+ * means the transaction differs from the pipelined one, so it fails and the
+ * connection must not be reused.
+ * </p>
+ */
+public class PipeliningSMTPConnection extends SMTPConnection {
+
+    private final static String MAIL_FROM = "MAIL FROM:";
+    private final static String RSET = "RSET";
+    private final static String QUIT = "QUIT";
+
+    /**
+     * RCPT TO lines which will be issued by the next transaction
+     */
+    private final List<String> expected = new LinkedList<String>();
+
+    /**
+     * Lines which were written ahead but not issued by the transport yet
+     */
+    private final LinkedList<String> sentAhead = new LinkedList<String>();
+
+    private boolean inSync = true;
+
+    public PipeliningSMTPConnection(ProtocolProperties props) {
+        super(props);
+    }
+
+    /**
+     * Register the RCPT TO lines of the next transaction
+     * 
+     * @param rcptLines
+     */
+    public void expectRecipients(List<String> rcptLines) {
+        expected.clear();
+        expected.addAll(rcptLines);
+    }
+
+    /**
+     * Forget the registered lines. Return false if some lines were written
+     * ahead and their replies were never read, in which case the connection
+     * must not be used for another transaction.
+     * 
+     * @return inSync
+     */
+    public boolean endTransaction() {
+        expected.clear();
+        if (!sentAhead.isEmpty()) {
+            sentAhead.clear();
+            inSync = false;
+        }
+        return inSync;
+    }
+
+    /**
+     * Return the RCPT TO line the transport will issue for the given address
+     * 
+     * @param address
+     * @param notify
+     *            the DSN NOTIFY parameter, may be null
+     * @return line
+     */
+    public String getRcptLine(String address, String notify) {
+        StringBuilder line = new StringBuilder("RCPT TO: ").append(fixEmailAddress(address));
+        if (notify != null) {
+            line.append(" NOTIFY=").append(notify);
+        }
+        return line.toString();
+    }
+
+    @Override
+    protected void sendLine(String line) throws MessagingException {
+        if (!sentAhead.isEmpty()) {
+            if (sentAhead.getFirst().equals(line)) {
+                // already written together with the MAIL FROM command
+                sentAhead.removeFirst();
+                return;
+            }
+            skipPendingReplies();
+            if (!RSET.equals(line) && !QUIT.equals(line)) {
+                // the server already got recipients the transport does not
+                // know about, never send the data to them
+                inSync = false;
+                throw new MessagingException("Command " + line + " does not match the pipelined commands");
+            }
+        }
+
+        super.sendLine(line);
+
+        if (line.startsWith(MAIL_FROM) && !expected.isEmpty() && supportsExtension("PIPELINING")) {
+            for (String rcpt : expected) {
+                super.sendLine(rcpt);
+                sentAhead.add(rcpt);
+            }
+            expected.clear();
+        }
+    }
+
+    /**
+     * Consume the replies of the lines which were written ahead but will not
+     * be issued by the transport
+     * 
+     * @throws MessagingException
+     */
+    private void skipPendingReplies() throws MessagingException {
+        while (!sentAhead.isEmpty()) {
+            sentAhead.removeFirst();
+            String reply;
+            do {
+                reply = receiveLine();
+            } while (reply != null && reply.length() > 3 && reply.charAt(3) == '-');
+        }
+    }
+}
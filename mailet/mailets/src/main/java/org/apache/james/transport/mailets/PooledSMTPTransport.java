@@ -0,0 +1,167 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+
+import org.apache.geronimo.javamail.transport.smtp.SMTPTransport;
+
+/**
+ * {@link SMTPTransport} which can be kept open and reused for several mail
+ * transactions by the {@link SMTPTransportPool}.
+ * <p>
+ * Each instance must be created with its own {@link Session}, as the envelope
+ * sender is read from the session properties when the MAIL FROM command is
+ * issued.
+ * </p>
+ * <p>
+ * The MAIL FROM and RCPT TO commands of a transaction are pipelined if the
+ * server supports it, see {@link PipeliningSMTPConnection}.
+ * </p>
+ */
+public class PooledSMTPTransport extends SMTPTransport {
+
+    private final String key;
+    private final PipeliningSMTPConnection pipeliningConnection;
+    private boolean inSync = true;
+    private final long created;
+    private long lastUsed;
+    private int messageCount;
+
+    public PooledSMTPTransport(Session session, URLName url, String key) {
+        super(session, url, url.getProtocol(), "smtps".equals(url.getProtocol()) ? DEFAULT_MAIL_SMTPS_PORT : DEFAULT_MAIL_SMTP_PORT, "smtps".equals(url.getProtocol()));
+        this.pipeliningConnection = new PipeliningSMTPConnection(props);
+        this.connection = pipeliningConnection;
+        this.key = key;
+        this.created = System.currentTimeMillis();
+        this.lastUsed = created;
+    }
+
+    /**
+     * Set the envelope sender used by the next transaction. Use <code>&lt;&gt;</code> for the null sender.
+     * 
+     * @param from
+     */
+    public void setEnvelopeFrom(String from) {
+        session.getProperties().setProperty("mail.smtp.from", from);
+    }
+
+    /**
+     * @see org.apache.geronimo.javamail.transport.smtp.SMTPTransport#sendMessage(javax.mail.Message, javax.mail.Address[])
+     */
+    @Override
+    public void sendMessage(Message message, Address[] addresses) throws MessagingException {
+        List<String> rcptLines = new ArrayList<String>();
+        if (addresses != null) {
+            String notify = getDeliveryStatusNotification(message);
+            for (Address address : addresses) {
+                if (!(address instanceof InternetAddress) || ((InternetAddress) address).isGroup()) {
+                    // let the transport expand it, don't pipeline
+                    rcptLines.clear();
+                    break;
+                }
+                rcptLines.add(pipeliningConnection.getRcptLine(((InternetAddress) address).getAddress(), notify));
+            }
+        }
+        pipeliningConnection.expectRecipients(rcptLines);
+        try {
+            super.sendMessage(message, addresses);
+        } finally {
+            inSync = pipeliningConnection.endTransaction();
+        }
+    }
+
+    /**
+     * Return true if the server announced the given extension in its EHLO
+     * reply. The extensions are kept for the lifetime of the connection.
+     * 
+     * @param extension
+     * @return supported
+     */
+    public boolean supportsExtension(String extension) {
+        return pipeliningConnection.supportsExtension(extension);
+    }
+
+    /**
+     * Return true if the connection is open and no pipelined reply is left
+     * unread, so it can carry another transaction
+     * 
+     * @return reusable
+     */
+    public boolean isReusable() {
+        return inSync && isConnected();
+    }
+
+    /**
+     * Issue a RSET so the connection is ready for a new transaction. This also
+     * checks that the server is still answering.
+     * 
+     * @throws MessagingException
+     */
+    public void reset() throws MessagingException {
+        if (connection == null || !isConnected()) {
+            throw new MessagingException("Transport to " + key + " is not connected");
+        }
+        connection.resetConnection();
+    }
+
+    /**
+     * Mark the transport as used for one more message
+     */
+    void used() {
+        messageCount++;
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Return the key of the destination this transport is connected to
+     * 
+     * @return key
+     */
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * Return the number of messages sent over this connection
+     * 
+     * @return count
+     */
+    int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * Return the time at which the transport was last handed back to the pool
+     * 
+     * @return lastUsed
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+}
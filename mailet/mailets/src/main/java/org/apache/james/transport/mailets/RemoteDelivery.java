@@ -22,6 +22,7 @@ package org.apache.james.transport.mailets;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.ConnectException;
@@ -30,22 +31,32 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
 import java.util.StringTokenizer;
-import java.util.Vector;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.annotation.Resource;
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
 import javax.mail.MessagingException;
 import javax.mail.SendFailedException;
 import javax.mail.Session;
@@ -57,8 +68,10 @@ import javax.mail.internet.MimePart;
 import javax.mail.internet.ParseException;
 
 import org.apache.geronimo.javamail.transport.smtp.SMTPTransport;
+import org.apache.james.core.MailImpl;
 import org.apache.james.dnsservice.api.DNSService;
 import org.apache.james.dnsservice.api.TemporaryResolutionException;
+import org.apache.james.dnsservice.library.MXHealthCache;
 import org.apache.james.dnsservice.library.MXHostAddressIterator;
 import org.apache.james.domainlist.api.DomainList;
 import org.apache.james.domainlist.api.DomainListException;
@@ -93,7 +106,15 @@ import org.apache.mailet.base.GenericMailet;
  * <p>These are the parameters that control the operation of the RemoteDelivery mailet:
  * <p/>
  * <ul>
- * <li><b>deliveryThreads</b> (required) - an Integer for the number of threads this mailet will use to deliver mail.</li>
+ * <li><b>deliveryThreads</b> (required) - an Integer for the number of threads this mailet will use to deliver mail. Statistics
+ * of the delivery attempts are exposed via JMX.</li>
+ * <li><b>shutdownTimeout</b> (optional) - a Long for the max time in milliseconds the active deliveries get to complete when
+ * the mailet is destroyed. Default is 60000.</li>
+ * <li><b>dequeueBatchSize</b> (optional) - an Integer for the max number of mails a delivery thread takes from the queue at
+ * once. The mails of a batch which go to the same domain are delivered back-to-back. Default is 10.</li>
+ * <li><b>pipelining</b> (optional) - a Boolean (true/false) indicating whether the mails of a batch which go to the same server are
+ * sent over one SMTP connection, with the MAIL and RCPT commands pipelined if the server supports the PIPELINING extension.
+ * The connections are always reused and pipelined if <code>&lt;connectionPooling/&gt;</code> is enabled. Default is false.</li>
  * <li><b>outgoing</b> (required) - a String containing the name of the queue that will hold messages being processed by this mailet.</li>
  * <li><b>bind</b> (optional) - a String describing the local IP address to which the mailet should be bound while delivering
  * emails. This tag is useful for multihomed machines. Default is to bind to the default local address of the machine.<br>
@@ -108,12 +129,36 @@ import org.apache.mailet.base.GenericMailet;
  * Default is one attempt after 6 hours, which if explicitly declared would be written as <code>&lt;delayTime&gt;1 * 6 hour&lt;/delayTime&gt;</code></li>
  * <li><b>maxRetries</b> (optional) an Integer for the number of times an attempt is made to deliver a particular mail.
  * Default is the greater of five and the sum of the attempts for each <code>&lt;delayTime/&gt;</code> specified.
+ * <li><b>retryJitter</b> (optional) - a Double between 0 and 1 for the fraction by which each retry delay is randomly
+ * shortened or extended, so the retries of mails which failed at the same time do not all become due at once.
+ * Default is 0.1.</li>
+ * <li><b>retryQueue</b> (optional) - a String containing the name of the queue that will hold the mails waiting for a
+ * retry. The retries are dequeued by their own threads and so do not compete with fresh mail. Default is to put the
+ * retries back into the <code>&lt;outgoing/&gt;</code> queue.</li>
+ * <li><b>retryThreads</b> (optional) - an Integer for the number of threads delivering the mails of the
+ * <code>&lt;retryQueue/&gt;</code>. Default is 1.</li>
+ * <li><b>retryBatchSize</b> (optional) - an Integer for the max number of due retries a retry thread takes from the
+ * <code>&lt;retryQueue/&gt;</code> at once. At most <code>retryThreads * retryBatchSize</code> retries are in delivery
+ * at the same time, so a destination which comes back is not hit by its whole backlog at once. With
+ * <code>&lt;domainScheduling/&gt;</code> the retries are handed to the same scheduler as the fresh mail, so the per domain
+ * limits and the circuit breaker apply to them as well. Default is 10.</li>
  * <li><b>maxDnsProblemRetries</b> (optional) - an Integer for the number of times to retry if DNS problems for a domain occur.
  * Default is 0.
  * <li><b>timeout</b> (optional) - an Integer for the Socket I/O timeout in milliseconds. Default is 180000</li>
  * <li><b>connectionTimeout</b> (optional) - an Integer for the Socket connection timeout in milliseconds. Default is 60000</li>
  * <li><b>bounceProcessor</b> (optional) - a String containing the name of the mailet processor to pass messages that cannot
  * be delivered to for DSN bounce processing. Default is to send a traditional message containing the bounce details.</li>
+ * <li><b>asyncBounce</b> (optional) - a Boolean (true/false) indicating whether the bounces are generated by a background
+ * thread instead of the delivery threads. The failed mails are stored in the <code>&lt;bounceQueue/&gt;</code> before
+ * they are removed from the outgoing queue, so no bounce is lost on a restart. The failures of the per domain copies of
+ * one mail are merged into a single bounce. The bouncer is exposed via JMX. Default is false.</li>
+ * <li><b>bounceQueue</b> (optional) - a String containing the name of the queue that will hold the failed mails until
+ * their bounce was generated, if <code>&lt;asyncBounce/&gt;</code> is enabled. Default is the name of the
+ * <code>&lt;outgoing/&gt;</code> queue with the suffix <code>-bounces</code>.</li>
+ * <li><b>bounceCoalesceWindow</b> (optional) - a Long for the time in milliseconds a failure waits for the failures of the
+ * other copies of the same mail. Default is 60000.</li>
+ * <li><b>maxBounceRate</b> (optional) - a Double for the max number of bounces per second generated by the background
+ * thread. 0 means no limit. If more mails fail, they wait in the <code>&lt;bounceQueue/&gt;</code>. Default is 10.</li>
  * <li><b>startTLS</b> (optional) - a Boolean (true/false) indicating whether the STARTTLS command (if supported by the server)
  * to switch the connection to a TLS-protected connection before issuing any login commands. Default is false.</li>
  * <li><b>sslEnable</b> (optional) - a Boolean (true/false) indicating whether to use SSL to connect and use the SSL port unless
@@ -136,6 +181,31 @@ import org.apache.mailet.base.GenericMailet;
  * to authenticate the user using the AUTH command.
  * <li><b>heloName</b> (optional) - a String containing the name used in the SMTP HELO and EHLO commands. Default is the default domain,
  * which is typically <code>localhost</code>.</li>
+ * <li><b>connectionPooling</b> (optional) - a Boolean (true/false) indicating whether connections to a destination server are kept
+ * open and reused for further mails, also across batches. The pool is exposed via JMX. Default is false.</li>
+ * <li><b>maxConnectionsPerHost</b> (optional) - an Integer for the max number of pooled connections to one destination server.
+ * Default is 5.</li>
+ * <li><b>maxMessagesPerConnection</b> (optional) - an Integer for the max number of mails sent over one connection
+ * before it is closed. Default is 100.</li>
+ * <li><b>connectionIdleTimeout</b> (optional) - a Long for the time in milliseconds after which an idle pooled connection is
+ * closed. Default is 30000.</li>
+ * <li><b>mxHealthCache</b> (optional) - a Boolean (true/false) indicating whether connect failures and latencies are remembered
+ * per server address. Servers which failed recently are tried after all other servers of the destination, and the
+ * addresses of one MX host are tried in the order of their latency. The memory is shared by all RemoteDelivery
+ * instances. Default is true.</li>
+ * <li><b>domainScheduling</b> (optional) - a Boolean (true/false) indicating whether the dequeued mails are scheduled over per
+ * domain queues which are served round-robin, so a slow or failing domain can not occupy all delivery threads. The scheduler
+ * is exposed via JMX. Default is false.</li>
+ * <li><b>maxConcurrentPerDomain</b> (optional) - an Integer for the max number of threads delivering to one domain at the same
+ * time. Default is 5.</li>
+ * <li><b>maxRatePerDomain</b> (optional) - a Double for the max number of mails per second delivered to one domain.
+ * Default is 0, which means no limit.</li>
+ * <li><b>domainLimits</b> (optional) - a String containing a comma separated list of per domain overrides of the two limits
+ * above. The pattern is <code>domain:maxConcurrent[:maxRate]</code>.</li>
+ * <li><b>circuitBreakerThreshold</b> (optional) - an Integer for the number of failed deliveries in a row after which the
+ * mails of a domain are deferred without a delivery attempt. 0 disables the circuit breaker. Default is 5.</li>
+ * <li><b>circuitBreakerTimeout</b> (optional) - a Long for the time in milliseconds a domain is blocked once the threshold is
+ * reached. The time doubles each time a trial delivery fails afterwards. Default is 60000.</li>
  * <li><b>mail.*</b> (optional) - Any property beginning with <code>mail.</code> described in the Javadoc for package
  * <a href="http://java.sun.com/products/javamail/javadocs/com/sun/mail/smtp/package-summary.html"><code>com.sun.mail.smtp</code></a>
  * can be set with a parameter of the corresponding name. For example the parameter
@@ -161,9 +231,16 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
 
     private static final Pattern PATTERN = Patterns.compilePatternUncheckedException(PATTERN_STRING);
 
-    @Inject
-    @Named("dnsservice")
-    @Resource
+    /**
+     * Max time in milliseconds to wait for the first mail of a batch.
+     */
+    private static final long DEQUEUE_TIMEOUT = 1000;
+
+    /**
+     * Default fraction by which the retry delays are randomized.
+     */
+    private static final double DEFAULT_RETRY_JITTER = 0.1;
+
     private DNSService dnsServer;
 
     /**
@@ -202,6 +279,11 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
      */
     private int workersThreadCount = 1;
 
+    /**
+     * Max no. of mails which are dequeued at once by a worker thread.
+     */
+    private int dequeueBatchSize = 10;
+
     /**
      * The server(s) to send all email to
      */
@@ -224,9 +306,19 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
     private boolean isBindUsed = false;
 
     /**
-     * Collection that stores all worker threads.
+     * Executor which runs the worker threads.
      */
-    private final Collection<Thread> workersThreads = new Vector<Thread>();
+    private ThreadPoolExecutor workers;
+
+    /**
+     * Statistics of the delivery attempts, exposed via JMX.
+     */
+    private RemoteDeliveryManagement statistics;
+
+    /**
+     * Max time in milliseconds to wait for active deliveries on shutdown.
+     */
+    private long shutdownTimeout = 60000;
 
     /**
      * Flag used by 'run' method to end itself.
@@ -252,6 +344,22 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
 
     private MailQueue queue;
 
+    /**
+     * Queue of the mails waiting for a retry, the outgoing queue if no
+     * retryQueue is configured
+     */
+    private MailQueue retryQueue;
+
+    private ThreadPoolExecutor retryWorkers;
+
+    private int retryThreadCount = 1;
+
+    private int retryBatchSize = 10;
+
+    private double retryJitter = DEFAULT_RETRY_JITTER;
+
+    private final Random random = new Random();
+
     private String heloName;
 
     private MailetContextLog logAdapter;
@@ -264,6 +372,49 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
 
     private boolean isSSLEnable = false;
 
+    /**
+     * Pool of open connections, null if connection pooling is disabled
+     */
+    private SMTPTransportPool transportPool;
+
+    /**
+     * True if the connections are kept open for the mails of one batch when
+     * connection pooling is disabled
+     */
+    private boolean pipelining = false;
+
+    /**
+     * Memory of failing and slow servers, null if disabled
+     */
+    private MXHealthCache healthCache;
+
+    /**
+     * Scheduler of the dequeued mails, null if domain scheduling is disabled
+     */
+    private DeliveryScheduler scheduler;
+
+    /**
+     * Generates the bounces in the background, null to bounce on the delivery
+     * threads
+     */
+    private BounceCoalescer bouncer;
+
+    /**
+     * Names of the MBeans registered by this mailet
+     */
+    private final List<ObjectName> mbeanNames = new ArrayList<ObjectName>();
+
+    private int maxConnectionsPerHost = 5;
+
+    private int maxMessagesPerConnection = 100;
+
+    private long connectionIdleTimeout = 30000;
+
+    @Inject
+    public void setDNSService(@Named("dnsservice") DNSService dnsServer) {
+        this.dnsServer = dnsServer;
+    }
+
     @Inject
     public void setDomainList(@Named("domainlist") DomainList domainList) {
         this.domainList = domainList;
@@ -354,6 +505,25 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         }
         queue = queueFactory.getQueue(outgoing);
 
+        String retry = getInitParameter("retryQueue");
+        retryQueue = retry == null ? queue : queueFactory.getQueue(retry);
+        try {
+            if (getInitParameter("retryThreads") != null) {
+                retryThreadCount = Integer.parseInt(getInitParameter("retryThreads"));
+            }
+            if (getInitParameter("retryBatchSize") != null) {
+                retryBatchSize = Integer.parseInt(getInitParameter("retryBatchSize"));
+            }
+            if (getInitParameter("retryJitter") != null) {
+                retryJitter = Double.parseDouble(getInitParameter("retryJitter"));
+            }
+        } catch (NumberFormatException e) {
+            throw new MessagingException("Invalid retry setting", e);
+        }
+        if (retryJitter < 0 || retryJitter > 1) {
+            throw new MessagingException("Invalid retryJitter setting: " + retryJitter);
+        }
+
         try {
             if (getInitParameter("timeout") != null) {
                 smtpTimeout = Integer.parseInt(getInitParameter("timeout"));
@@ -442,17 +612,123 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
             usePriority = Boolean.valueOf(prio);
         }
 
+        try {
+            if (getInitParameter("dequeueBatchSize") != null) {
+                dequeueBatchSize = Integer.parseInt(getInitParameter("dequeueBatchSize"));
+            }
+        } catch (Exception e) {
+            log("Invalid dequeueBatchSize setting: " + getInitParameter("dequeueBatchSize"));
+        }
+
+        pipelining = Boolean.valueOf(getInitParameter("pipelining"));
+
+        try {
+            if (getInitParameter("maxConnectionsPerHost") != null) {
+                maxConnectionsPerHost = Integer.parseInt(getInitParameter("maxConnectionsPerHost"));
+            }
+            if (getInitParameter("maxMessagesPerConnection") != null) {
+                maxMessagesPerConnection = Integer.parseInt(getInitParameter("maxMessagesPerConnection"));
+            }
+            if (getInitParameter("connectionIdleTimeout") != null) {
+                connectionIdleTimeout = Long.parseLong(getInitParameter("connectionIdleTimeout"));
+            }
+        } catch (NumberFormatException e) {
+            throw new MessagingException("Invalid connection pooling setting", e);
+        }
+        if (Boolean.valueOf(getInitParameter("connectionPooling"))) {
+            initTransportPool(outgoing);
+        }
+
+        String mxHealth = getInitParameter("mxHealthCache");
+        if (mxHealth == null || Boolean.valueOf(mxHealth)) {
+            healthCache = MXHealthCache.getInstance();
+        }
+
         // Start Workers Threads.
         workersThreadCount = Integer.parseInt(getInitParameter("deliveryThreads"));
-        initDeliveryThreads();
+        if (Boolean.valueOf(getInitParameter("domainScheduling"))) {
+            initScheduler(outgoing);
+        }
+        try {
+            if (getInitParameter("shutdownTimeout") != null) {
+                shutdownTimeout = Long.parseLong(getInitParameter("shutdownTimeout"));
+            }
+        } catch (NumberFormatException e) {
+            log("Invalid shutdownTimeout setting: " + getInitParameter("shutdownTimeout"));
+        }
+        if (Boolean.valueOf(getInitParameter("asyncBounce"))) {
+            initBouncer(outgoing);
+        }
+        initDeliveryThreads(outgoing);
+    }
+
+    /**
+     * Create the {@link BounceCoalescer} and register it in JMX
+     * 
+     * @param outgoing
+     *            the name of the outgoing queue, used to build the JMX name
+     */
+    private void initBouncer(String outgoing) throws MessagingException {
+        long window = 60000;
+        double maxRate = 10;
+        try {
+            if (getInitParameter("bounceCoalesceWindow") != null) {
+                window = Long.parseLong(getInitParameter("bounceCoalesceWindow"));
+            }
+            if (getInitParameter("maxBounceRate") != null) {
+                maxRate = Double.parseDouble(getInitParameter("maxBounceRate"));
+            }
+        } catch (NumberFormatException e) {
+            throw new MessagingException("Invalid bounce setting", e);
+        }
+        String bounces = getInitParameter("bounceQueue");
+        MailQueue bounceQueue = queueFactory.getQueue(bounces == null ? outgoing + "-bounces" : bounces);
+        // once that many bounces are pending the failed mails wait in the
+        // queue
+        bouncer = new BounceCoalescer(bounceQueue, window, maxRate, Math.max(1000, workersThreadCount * dequeueBatchSize)) {
+            @Override
+            protected void bounce(Mail mail, List<Failure> failures) {
+                RemoteDelivery.this.bounce(mail, failures);
+            }
+
+            @Override
+            protected void log(String message, Throwable t) {
+                RemoteDelivery.this.log(message, t);
+            }
+        };
+        registerMBean(bouncer, "remotedeliverybouncer", outgoing);
+        bouncer.start();
     }
 
-    private void initDeliveryThreads() {
+    private void initDeliveryThreads(String outgoing) {
+        workers = new ThreadPoolExecutor(workersThreadCount, workersThreadCount, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "Remote delivery thread (" + count.getAndIncrement() + ")");
+            }
+        });
+        statistics = new RemoteDeliveryManagement(workers);
+        registerMBean(statistics, "remotedeliveryworkers", outgoing);
         for (int a = 0; a < workersThreadCount; a++) {
-            String threadName = "Remote delivery thread (" + a + ")";
-            Thread t = new Thread(this, threadName);
-            t.start();
-            workersThreads.add(t);
+            workers.execute(this);
+        }
+
+        if (retryQueue != queue) {
+            retryWorkers = new ThreadPoolExecutor(retryThreadCount, retryThreadCount, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "Remote delivery retry thread (" + count.getAndIncrement() + ")");
+                }
+            });
+            for (int a = 0; a < retryThreadCount; a++) {
+                retryWorkers.execute(new Runnable() {
+                    public void run() {
+                        runWorker(retryQueue, retryBatchSize, scheduler != null);
+                    }
+                });
+            }
         }
     }
 
@@ -508,11 +784,18 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
      * @param retry_count the current retry_count.
      * @return the next delay time to use, given the retry count
      */
-    private long getNextDelay(int retry_count) {
+    protected long getNextDelay(int retry_count) {
+        long delay;
         if (retry_count > delayTimes.length) {
-            return DEFAULT_DELAY_TIME;
+            delay = DEFAULT_DELAY_TIME;
+        } else {
+            delay = delayTimes[retry_count - 1];
         }
-        return delayTimes[retry_count - 1];
+        if (retryJitter > 0) {
+            // spread the retries of mails which failed together
+            delay += (long) (delay * retryJitter * (2 * random.nextDouble() - 1));
+        }
+        return delay;
     }
 
     /**
@@ -697,20 +980,147 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
     }
 
     /**
-     * Stops all the worker threads that are waiting for messages. This method
-     * is called by the Mailet container before taking this Mailet out of
-     * service.
+     * Stops all the worker threads. This method is called by the Mailet
+     * container before taking this Mailet out of service.
+     * <p/>
+     * The threads stop to dequeue mails, the active deliveries get up to
+     * <code>shutdownTimeout</code> milliseconds to complete. Mails which were
+     * dequeued but not started yet are handed back to the queue. Deliveries
+     * which are still active after the timeout are interrupted, their mails
+     * were not marked as done and so stay in the queue.
      */
     @Override
     public synchronized void destroy() {
         // Mark flag so threads from this Mailet stop themselves
         destroyed = true;
 
-        // Wake up all threads from waiting for an accept
-        for (Thread t : workersThreads) {
-            t.interrupt();
+        if (workers != null) {
+            workers.shutdown();
+            if (retryWorkers != null) {
+                retryWorkers.shutdown();
+            }
+            try {
+                long deadline = System.currentTimeMillis() + shutdownTimeout;
+                boolean terminated = workers.awaitTermination(shutdownTimeout, TimeUnit.MILLISECONDS);
+                if (retryWorkers != null) {
+                    terminated &= retryWorkers.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+                if (!terminated) {
+                    log("Interrupting " + statistics.getActiveDeliveryCount() + " deliveries which did not complete within " + shutdownTimeout + " ms");
+                    shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : mbeanNames) {
+            try {
+                mbeanServer.unregisterMBean(name);
+            } catch (JMException e) {
+                log("Unable to unregister " + name, e);
+            }
+        }
+        mbeanNames.clear();
+
+        if (transportPool != null) {
+            transportPool.close();
+        }
+        if (bouncer != null) {
+            bouncer.close();
+        }
+    }
+
+    /**
+     * Interrupt the delivery threads
+     */
+    private void shutdownNow() {
+        workers.shutdownNow();
+        if (retryWorkers != null) {
+            retryWorkers.shutdownNow();
+        }
+    }
+
+    /**
+     * Register the given object as MBean for this mailet
+     * 
+     * @param mbean
+     * @param name
+     *            the value of the name key of the ObjectName
+     * @param outgoing
+     *            the name of the outgoing queue
+     */
+    private void registerMBean(Object mbean, String name, String outgoing) {
+        try {
+            ObjectName objectName = new ObjectName("org.apache.james:type=component,component=mailetcontainer,name=" + name + ",queue=" + ObjectName.quote(outgoing));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+            mbeanNames.add(objectName);
+        } catch (JMException e) {
+            log("Unable to register " + name + " in JMX", e);
+        }
+    }
+
+    /**
+     * Create the {@link DeliveryScheduler} and register it in JMX
+     * 
+     * @param outgoing
+     *            the name of the outgoing queue, used to build the JMX name
+     */
+    private void initScheduler(String outgoing) throws MessagingException {
+        int maxConcurrent = 5;
+        double maxRate = 0;
+        int threshold = 5;
+        long circuitTimeout = 60000;
+        try {
+            if (getInitParameter("maxConcurrentPerDomain") != null) {
+                maxConcurrent = Integer.parseInt(getInitParameter("maxConcurrentPerDomain"));
+            }
+            if (getInitParameter("maxRatePerDomain") != null) {
+                maxRate = Double.parseDouble(getInitParameter("maxRatePerDomain"));
+            }
+            if (getInitParameter("circuitBreakerThreshold") != null) {
+                threshold = Integer.parseInt(getInitParameter("circuitBreakerThreshold"));
+            }
+            if (getInitParameter("circuitBreakerTimeout") != null) {
+                circuitTimeout = Long.parseLong(getInitParameter("circuitBreakerTimeout"));
+            }
+        } catch (NumberFormatException e) {
+            throw new MessagingException("Invalid domain scheduling setting", e);
+        }
+        scheduler = new DeliveryScheduler(maxConcurrent, maxRate, threshold, circuitTimeout, dequeueBatchSize, workersThreadCount * dequeueBatchSize);
+
+        String domainLimits = getInitParameter("domainLimits");
+        if (domainLimits != null) {
+            StringTokenizer st = new StringTokenizer(domainLimits, ",");
+            while (st.hasMoreTokens()) {
+                String limit = st.nextToken().trim();
+                String[] parts = limit.split(":");
+                try {
+                    if (parts.length < 2 || parts.length > 3) {
+                        throw new NumberFormatException(limit);
+                    }
+                    scheduler.setDomainLimit(parts[0].trim(), Integer.parseInt(parts[1].trim()), parts.length == 3 ? Double.parseDouble(parts[2].trim()) : maxRate);
+                } catch (RuntimeException e) {
+                    throw new MessagingException("Invalid domainLimits entry: " + limit, e);
+                }
+            }
         }
-        notifyAll();
+        registerMBean(scheduler, "remotedeliveryscheduler", outgoing);
+    }
+
+    /**
+     * Create the {@link SMTPTransportPool} and register it in JMX
+     * 
+     * @param outgoing
+     *            the name of the outgoing queue, used to build the JMX name
+     */
+    private void initTransportPool(String outgoing) {
+        // wait at most as long as a connect would take before trying the
+        // next server
+        transportPool = new SMTPTransportPool(maxConnectionsPerHost, maxMessagesPerConnection, connectionIdleTimeout, connectionTimeout);
+        registerMBean(transportPool, "remotedelivery", outgoing);
     }
 
     /**
@@ -719,6 +1129,20 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
      */
     @Override
     public void run() {
+        runWorker(queue, dequeueBatchSize, scheduler != null);
+    }
+
+    /**
+     * Deliver the mails of the given queue until the mailet is destroyed
+     *
+     * @param source
+     *            the queue to dequeue the mails from
+     * @param batchSize
+     *            max number of mails to dequeue at once
+     * @param scheduled
+     *            true if the mails are handed to the {@link DeliveryScheduler}
+     */
+    private void runWorker(MailQueue source, int batchSize, boolean scheduled) {
 
         // Checks the pool and delivers a mail message
         Properties props = new Properties();
@@ -766,97 +1190,341 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         props.putAll(defprops);
 
         final Session session = obtainSession(props);
+
+        // Without a shared pool the connections are only kept open for the
+        // mails of one batch, if at all
+        SMTPTransportPool batchPool = null;
+        if (transportPool == null && pipelining) {
+            batchPool = new SMTPTransportPool(1, maxMessagesPerConnection, 0, connectionTimeout);
+        }
         try {
+            if (scheduled) {
+                runScheduled(source, batchSize, session, batchPool == null ? transportPool : batchPool, batchPool != null);
+                return;
+            }
             while (!Thread.interrupted() && !destroyed) {
                 try {
-                    // Get the 'mail' object that is ready for deliverying. If
-                    // no
-                    // message is
-                    // ready, the 'accept' will block until message is ready.
-                    // The amount
-                    // of time to block is determined by the 'getWaitTime'
-                    // method of the
-                    // MultipleDelayFilter.
-                    MailQueueItem queueItem = queue.deQueue();
-                    Mail mail = queueItem.getMail();
-
-                    String key = mail.getName();
-
+                    // Get the 'mail' objects that are ready for deliverying.
+                    // If no message is ready, the dequeue will block until
+                    // a message is ready or the timeout is reached. All mails
+                    // of the batch are delivered by this thread, the mails for
+                    // the same domain back-to-back so they share the SMTP
+                    // session.
+                    List<MailQueueItem> items = groupByDomain(source.deQueue(batchSize, DEQUEUE_TIMEOUT));
                     try {
-                        if (isDebug) {
-                            String message = Thread.currentThread().getName() + " will process mail " + key;
-                            log(message);
+                        for (MailQueueItem queueItem : items) {
+                            if (destroyed) {
+                                release(queueItem);
+                                continue;
+                            }
+                            try {
+                                deliver(queueItem, session, batchPool == null ? transportPool : batchPool);
+                            } catch (Throwable e) {
+                                if (!destroyed) {
+                                    log("Exception caught in RemoteDelivery.run()", e);
+                                }
+                            }
+                        }
+                    } finally {
+                        if (batchPool != null) {
+                            batchPool.closeIdleConnections();
                         }
+                    }
+                } catch (Throwable e) {
+                    if (!destroyed) {
+                        log("Exception caught in RemoteDelivery.run()", e);
+                    }
+                }
+            }
+        } finally {
+            if (batchPool != null) {
+                batchPool.close();
+            }
+            // Restore the thread state to non-interrupted.
+            Thread.interrupted();
+        }
+    }
 
-                        // Deliver message
-                        if (deliver(mail, session)) {
-                            // Message was successfully delivered/fully
-                            // failed...
-                            // delete it
-                            LifecycleUtil.dispose(mail);
-                            // workRepository.remove(key);
+    /**
+     * Delivery loop used when domain scheduling is enabled. The dequeued mails
+     * are handed to the {@link DeliveryScheduler} and the thread delivers the
+     * runs it gets back.
+     *
+     * @param source
+     *            the queue to dequeue the mails from
+     * @param batchSize
+     *            max number of mails to dequeue at once
+     * @param session
+     * @param pool
+     *            the pool to get the connections from
+     * @param closeIdle
+     *            true if the connections must be closed after each run
+     */
+    private void runScheduled(MailQueue source, int batchSize, Session session, SMTPTransportPool pool, boolean closeIdle) {
+        try {
+            while (!Thread.interrupted() && !destroyed) {
+                try {
+                    DeliveryScheduler.Run run = scheduler.take();
+                    if (run != null) {
+                        if (run.getDeferDelay() > 0) {
+                            // defer never throws, so every mail of the run is
+                            // handed off
+                            for (MailQueueItem item : run.getItems()) {
+                                defer(item, run.getDeferDelay());
+                            }
                         } else {
-                            // Something happened that will delay delivery.
-                            // Store it back in the retry repository.
-                            // workRepository.store(mail);
-                            int retries = 0;
+                            deliver(run, session, pool);
+                            if (closeIdle) {
+                                pool.closeIdleConnections();
+                            }
+                        }
+                    } else if (scheduler.needsMore()) {
+                        for (MailQueueItem item : source.deQueue(batchSize, DEQUEUE_TIMEOUT)) {
+                            long delay;
                             try {
-                                retries = Integer.parseInt(mail.getErrorMessage());
-                            } catch (NumberFormatException e) {
-                                // Something strange was happen with the
-                                // errorMessage..
+                                delay = scheduler.add(item);
+                            } catch (RuntimeException e) {
+                                // hand the mail back, the rest of the batch
+                                // still needs to get scheduled
+                                log("Unable to schedule mail " + item.getMail().getName(), e);
+                                release(item);
+                                continue;
                             }
-
-                            long delay = getNextDelay(retries);
-
-                            if (usePriority) {
-                                // Use lowest priority for retries. See JAMES-1311
-                                mail.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.LOW_PRIORITY);
+                            if (delay > 0) {
+                                defer(item, delay);
                             }
-                            queue.enQueue(mail, delay, TimeUnit.MILLISECONDS);
-                            LifecycleUtil.dispose(mail);
-
-                            // This is an update, so we have to unlock and
-                            // notify or this mail is kept locked by this
-                            // thread.
-                            // workRepository.unlock(key);
-
-                            // Note: We do not notify because we updated an
-                            // already existing mail and we are now free to
-                            // handle
-                            // more mails.
-                            // Furthermore this mail should not be processed now
-                            // because we have a retry time scheduling.
                         }
-
-                        // Clear the object handle to make sure it recycles
-                        // this object.
-                        mail = null;
-                        queueItem.done(true);
-                    } catch (Exception e) {
-                        // Prevent unexpected exceptions from causing looping by
-                        // removing message from outgoing.
-                        // DO NOT CHANGE THIS to catch Error! For example, if
-                        // there were an OutOfMemory condition caused because
-                        // something else in the server was abusing memory, we
-                        // would
-                        // not want to start purging the retrying spool!
+                    } else {
+                        // all buffered mails wait for a busy domain
+                        scheduler.await(DEQUEUE_TIMEOUT);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Throwable e) {
+                    if (!destroyed) {
                         log("Exception caught in RemoteDelivery.run()", e);
-                        LifecycleUtil.dispose(mail);
-                        // workRepository.remove(key);
-                        queueItem.done(false);
-                        throw new MailQueueException("Unable to perform dequeue", e);
                     }
+                }
+            }
+        } finally {
+            // hand the buffered mails back to the queue
+            for (MailQueueItem item : scheduler.drain()) {
+                release(item);
+            }
+        }
+    }
 
+    /**
+     * Hand a mail which was dequeued but not delivered back to the queue
+     *
+     * @param item
+     */
+    private void release(MailQueueItem item) {
+        try {
+            item.done(false);
+        } catch (MailQueueException e) {
+            log("Unable to release mail " + item.getMail().getName(), e);
+        }
+    }
+
+    /**
+     * Deliver the mails of the given run and report the outcome to the
+     * scheduler
+     *
+     * @param run
+     * @param session
+     * @param pool
+     */
+    private void deliver(DeliveryScheduler.Run run, Session session, SMTPTransportPool pool) {
+        int succeeded = 0;
+        int failed = 0;
+        long start = System.currentTimeMillis();
+        try {
+            for (MailQueueItem item : run.getItems()) {
+                if (destroyed) {
+                    release(item);
+                    continue;
+                }
+                try {
+                    if (deliver(item, session, pool)) {
+                        succeeded++;
+                    } else {
+                        failed++;
+                    }
                 } catch (Throwable e) {
+                    failed++;
                     if (!destroyed) {
                         log("Exception caught in RemoteDelivery.run()", e);
                     }
                 }
             }
         } finally {
-            // Restore the thread state to non-interrupted.
-            Thread.interrupted();
+            scheduler.complete(run, succeeded, failed, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Send the mail of the given item back to the outgoing queue, or to the
+     * retry queue if it was tried before, without a delivery attempt. The
+     * retry count of the mail is not changed. If the mail can not be enqueued
+     * the item is released instead, so this never throws and the other mails
+     * of a batch are still handed off.
+     *
+     * @param item
+     * @param delay
+     *            delay in milliseconds
+     */
+    private void defer(MailQueueItem item, long delay) {
+        Mail mail = item.getMail();
+        // keep the retries apart from the fresh mail
+        MailQueue target = getRetries(mail) > 0 ? retryQueue : queue;
+        try {
+            target.enQueue(mail, delay, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log("Unable to defer mail " + mail.getName(), e);
+            release(item);
+            return;
+        }
+        LifecycleUtil.dispose(mail);
+        try {
+            item.done(true);
+        } catch (MailQueueException e) {
+            log("Unable to complete deferred mail " + mail.getName(), e);
+        }
+    }
+
+    /**
+     * Return the number of failed delivery attempts of the mail, which is
+     * kept in its error message
+     *
+     * @param mail
+     * @return retries
+     */
+    private int getRetries(Mail mail) {
+        try {
+            return Integer.parseInt(mail.getErrorMessage());
+        } catch (NumberFormatException e) {
+            // Something strange was happen with the errorMessage..
+            return 0;
+        }
+    }
+
+    /**
+     * Reorder the given items so the mails for the same recipient domain
+     * follow each other. The order of the first mail of each domain and the
+     * order within a domain is kept.
+     *
+     * @param items
+     * @return grouped items
+     */
+    private List<MailQueueItem> groupByDomain(List<MailQueueItem> items) {
+        if (items.size() < 2) {
+            return items;
+        }
+        Map<String, List<MailQueueItem>> domains = new LinkedHashMap<String, List<MailQueueItem>>();
+        for (MailQueueItem item : items) {
+            String domain = null;
+            Collection<MailAddress> recipients = item.getMail().getRecipients();
+            if (recipients != null && !recipients.isEmpty()) {
+                domain = recipients.iterator().next().getDomain().toLowerCase(Locale.US);
+            }
+            List<MailQueueItem> group = domains.get(domain);
+            if (group == null) {
+                group = new ArrayList<MailQueueItem>();
+                domains.put(domain, group);
+            }
+            group.add(item);
+        }
+        List<MailQueueItem> grouped = new ArrayList<MailQueueItem>(items.size());
+        for (List<MailQueueItem> group : domains.values()) {
+            grouped.addAll(group);
+        }
+        return grouped;
+    }
+
+    /**
+     * Deliver the {@link Mail} of the given {@link MailQueueItem} and mark the
+     * item as done. Mails which could not get delivered yet are enqueued again
+     * with the next retry delay.
+     *
+     * @param queueItem
+     * @param session
+     * @param pool
+     *            the pool to get the connection from
+     * @return true if the mail was delivered or failed permanently, false if
+     *         it was scheduled for a retry
+     * @throws MailQueueException
+     */
+    private boolean deliver(MailQueueItem queueItem, Session session, SMTPTransportPool pool) throws MailQueueException {
+        Mail mail = queueItem.getMail();
+
+        String key = mail.getName();
+
+        try {
+            if (isDebug) {
+                String message = Thread.currentThread().getName() + " will process mail " + key;
+                log(message);
+            }
+
+            // Deliver message
+            boolean delivered;
+            long start = System.currentTimeMillis();
+            statistics.attemptStarted();
+            try {
+                delivered = deliver(mail, session, pool);
+            } finally {
+                statistics.attemptCompleted(System.currentTimeMillis() - start);
+            }
+            if (delivered) {
+                // Message was successfully delivered/fully
+                // failed...
+                // delete it
+                LifecycleUtil.dispose(mail);
+                // workRepository.remove(key);
+            } else {
+                // Something happened that will delay delivery.
+                // Store it back in the retry repository.
+                // workRepository.store(mail);
+                long delay = getNextDelay(getRetries(mail));
+
+                if (usePriority) {
+                    // Use lowest priority for retries. See JAMES-1311
+                    mail.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.LOW_PRIORITY);
+                }
+                retryQueue.enQueue(mail, delay, TimeUnit.MILLISECONDS);
+                LifecycleUtil.dispose(mail);
+
+                // This is an update, so we have to unlock and
+                // notify or this mail is kept locked by this
+                // thread.
+                // workRepository.unlock(key);
+
+                // Note: We do not notify because we updated an
+                // already existing mail and we are now free to
+                // handle
+                // more mails.
+                // Furthermore this mail should not be processed now
+                // because we have a retry time scheduling.
+            }
+
+            // Clear the object handle to make sure it recycles
+            // this object.
+            mail = null;
+            queueItem.done(true);
+            return delivered;
+        } catch (Exception e) {
+            // Prevent unexpected exceptions from causing looping by
+            // removing message from outgoing.
+            // DO NOT CHANGE THIS to catch Error! For example, if
+            // there were an OutOfMemory condition caused because
+            // something else in the server was abusing memory, we
+            // would
+            // not want to start purging the retrying spool!
+            log("Exception caught in RemoteDelivery.run()", e);
+            LifecycleUtil.dispose(mail);
+            // workRepository.remove(key);
+            queueItem.done(false);
+            throw new MailQueueException("Unable to perform dequeue", e);
         }
     }
 
@@ -868,10 +1536,11 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
      *
      * @param mail    org.apache.james.core.MailImpl
      * @param session javax.mail.Session
+     * @param pool    the pool to get the connection from, null to use a new connection
      * @return boolean Whether the delivery was successful and the message can
      *         be deleted
      */
-    private boolean deliver(Mail mail, Session session) {
+    private boolean deliver(Mail mail, Session session, SMTPTransportPool pool) {
         try {
             if (isDebug) {
                 log("Attempting to deliver " + mail.getName());
@@ -901,7 +1570,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
 
                 // Lookup the possible targets
                 try {
-                    targetServers = new MXHostAddressIterator(dnsServer.findMXRecords(host).iterator(), dnsServer, false, logAdapter);
+                    targetServers = new MXHostAddressIterator(dnsServer.findMXRecords(host).iterator(), 25, dnsServer, false, healthCache, logAdapter);
                 } catch (TemporaryResolutionException e) {
                     log("Temporary problem looking up mail server for host: " + host);
                     String exceptionBuffer = "Temporary problem looking up mail server for host: " + host + ".  I cannot determine where to send this message.";
@@ -933,6 +1602,9 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
 
             MessagingException lastError = null;
 
+            // converted once for all servers tried by this attempt
+            MimeMessage sevenBitMessage = null;
+
             while (targetServers.hasNext()) {
                 try {
 
@@ -959,16 +1631,37 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                     // NOTIFY= after RCPT TO line.
 
                     SMTPTransport transport = null;
+                    boolean reusable = false;
                     try {
-                        transport =  (SMTPTransport) session.getTransport(outgoingMailServer);
-                        transport.setLocalHost( props.getProperty("mail.smtp.localhost", heloName) );
+                        if (pool == null) {
+                            transport =  (SMTPTransport) session.getTransport(outgoingMailServer);
+                            transport.setLocalHost( props.getProperty("mail.smtp.localhost", heloName) );
+                        }
+                        long connectStart = System.currentTimeMillis();
                         try {
-                            if (authUser != null) {
+                            boolean created = true;
+                            if (pool != null) {
+                                PooledSMTPTransport pooled = pool.borrow(outgoingMailServer, session, authUser, authPass, props.getProperty("mail.smtp.localhost", heloName));
+                                pooled.setEnvelopeFrom(props.getProperty("mail.smtp.from"));
+                                transport = pooled;
+                                // a reused connection only took a RSET
+                                created = pooled.getMessageCount() == 0;
+                            } else if (authUser != null) {
                                 transport.connect(outgoingMailServer.getHostName(), authUser, authPass);
                             } else {
                                 transport.connect();
                             }
+                            if (healthCache != null && created) {
+                                healthCache.recordSuccess(outgoingMailServer, System.currentTimeMillis() - connectStart);
+                            }
                         } catch (MessagingException me) {
+                            // the server is not to blame if our credentials
+                            // are refused or the pool has no free connection
+                            if (healthCache != null && !(me instanceof SMTPTransportPool.PoolExhaustedException) && !(me instanceof AuthenticationFailedException)) {
+                                // try this server last for the next mails
+                                healthCache.recordFailure(outgoingMailServer);
+                            }
+
                             // Any error on connect should cause the mailet to
                             // attempt
                             // to connect to the next SMTP server associated
@@ -985,56 +1678,32 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                             }
                             continue;
                         }
-                        // if the transport is a SMTPTransport (from sun) some
-                        // performance enhancement can be done.
-                        if (transport.getClass().getName().endsWith(".SMTPTransport")) {
-                            boolean supports8bitmime = false;
-                            try {
-                                Method supportsExtension = transport.getClass().getMethod("supportsExtension", new Class[]{String.class});
-                                supports8bitmime = (Boolean) supportsExtension.invoke(transport, "8BITMIME");
-                            } catch (NoSuchMethodException nsme) {
-                                // An SMTPAddressFailedException with no
-                                // getAddress method.
-                            } catch (IllegalAccessException iae) {
-                            } catch (IllegalArgumentException iae) {
-                            } catch (InvocationTargetException ite) {
-                                // Other issues with getAddress invokation.
-                            }
-
-                            // if the message is alredy 8bit or binary and the
-                            // server doesn't support the 8bit extension it has
-                            // to be converted to 7bit. Javamail api doesn't
-                            // perform
-                            // that conversion, but it is required to be a
-                            // rfc-compliant smtp server.
-
-                            // Temporarily disabled. See JAMES-638
-                            if (!supports8bitmime) {
-                                try {
-                                    convertTo7Bit(message);
-                                } catch (IOException e) {
-                                    // An error has occured during the 7bit
-                                    // conversion.
-                                    // The error is logged and the message is
-                                    // sent anyway.
-
-                                    log("Error during the conversion to 7 bit.", e);
-                                }
-                            }
+                        // if the message is alredy 8bit or binary and the
+                        // server doesn't support the 8bit extension it has
+                        // to be converted to 7bit. Javamail api doesn't
+                        // perform that conversion, but it is required to be a
+                        // rfc-compliant smtp server.
+                        // The pooled transports know the extensions announced
+                        // by the server, for any other transport we are not
+                        // sure of how it handles the 8 bit mime stuff, so the
+                        // message is converted.
+                        boolean supports8bitmime = transport instanceof PooledSMTPTransport && ((PooledSMTPTransport) transport).supportsExtension("8BITMIME");
+                        if (supports8bitmime) {
+                            transport.sendMessage(message, addr);
                         } else {
-                            // If the transport is not the one
-                            // developed by Sun we are not sure of how it
-                            // handles the 8 bit mime stuff,
-                            // so I convert the message to 7bit.
-                            try {
-                                convertTo7Bit(message);
-                            } catch (IOException e) {
-                                log("Error during the conversion to 7 bit.", e);
+                            if (sevenBitMessage == null) {
+                                sevenBitMessage = get7BitRendition(message);
                             }
+                            transport.sendMessage(sevenBitMessage, addr);
                         }
-                        transport.sendMessage(message, addr);
+                        reusable = true;
                     } finally {
-                        if (transport != null) {
+                        if (transport instanceof PooledSMTPTransport) {
+                            // keep the connection open for the next mail to
+                            // this server if the transaction completed
+                            pool.release((PooledSMTPTransport) transport, reusable);
+                            transport = null;
+                        } else if (transport != null) {
                             try {
                                 // James-899: transport.close() sends QUIT to
                                 // the server; if that fails
@@ -1054,6 +1723,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                     logMessageBuffer = new StringBuilder(256).append("Mail (").append(mail.getName()).append(") sent successfully to ").append(outgoingMailServer.getHostName()).append(" at ").append(outgoingMailServer.getHost()).append(" from ").append(props.get("mail.smtp.from")).append(" for ")
                             .append(mail.getRecipients());
                     log(logMessageBuffer.toString());
+                    statistics.delivered();
                     return true;
                 } catch (SendFailedException sfe) {
                     logSendFailedException(sfe);
@@ -1402,6 +2072,59 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         }
     }
 
+    /**
+     * Return the given message with all 8bit parts converted to 7bit. The
+     * message itself is not modified, a converted copy is only created if
+     * there is something to convert.
+     * <p>
+     * The copy is reused for the other servers tried by the same delivery
+     * attempt, it is not kept across retries as those are usually hours apart
+     * and the mail is read from the queue again anyway.
+     * </p>
+     *
+     * @param message
+     * @return message
+     * @throws MessagingException
+     */
+    protected MimeMessage get7BitRendition(MimeMessage message) throws MessagingException {
+        try {
+            if (!contains8Bit(message)) {
+                return message;
+            }
+            MimeMessage rendition = new MimeMessage(message);
+            convertTo7Bit(rendition);
+            return rendition;
+        } catch (IOException e) {
+            // An error has occured during the 7bit conversion. The error is
+            // logged and the message is sent anyway.
+            log("Error during the conversion to 7 bit.", e);
+            return message;
+        }
+    }
+
+    /**
+     * Return true if the given part or one of its children uses the 8bit
+     * transfer encoding
+     *
+     * @param part
+     * @return contains8Bit
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private boolean contains8Bit(MimePart part) throws MessagingException, IOException {
+        if (part.isMimeType("multipart/*")) {
+            MimeMultipart parts = (MimeMultipart) part.getContent();
+            int count = parts.getCount();
+            for (int i = 0; i < count; i++) {
+                if (contains8Bit((MimePart) parts.getBodyPart(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return "8bit".equals(part.getEncoding());
+    }
+
     /**
      * Converts a message to 7 bit.
      *
@@ -1484,6 +2207,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                 ++retries;
                 mail.setErrorMessage(retries + "");
                 mail.setLastUpdated(new Date());
+                statistics.failedTemporarily();
                 return false;
             } else {
                 logBuffer = new StringBuilder(128).append("Bouncing message ").append(mail.getName()).append(" after ").append(retries).append(" retries");
@@ -1491,21 +2215,70 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
             }
         }
 
+        statistics.failedPermanently();
+
         if (mail.getSender() == null) {
             log("Null Sender: no bounce will be generated for " + mail.getName());
             return true;
         }
 
+        if (bouncer != null) {
+            // the failure is stored before the mail is removed from the
+            // outgoing queue
+            try {
+                bouncer.add(getOriginalName(mail), mail, ex);
+                return true;
+            } catch (MessagingException e) {
+                log("Unable to queue the bounce for " + mail.getName() + ", bouncing it now", e);
+            }
+        }
+        bounce(mail, Collections.singletonList(new BounceCoalescer.Failure(mail.getRecipients(), ex)));
+        return true;
+    }
+
+    /**
+     * Return the name of the mail the given per domain copy was created from
+     * 
+     * @param mail
+     * @return name
+     */
+    private String getOriginalName(Mail mail) {
+        String name = mail.getName();
+        int index = name.lastIndexOf("-to-");
+        return index > 0 ? name.substring(0, index) : name;
+    }
+
+    /**
+     * Bounce the given mail, either by passing it to the bounceProcessor or
+     * with an old style bounce
+     * 
+     * @param mail
+     * @param failures
+     *            the failed recipients and the causes
+     */
+    private void bounce(Mail mail, List<BounceCoalescer.Failure> failures) {
         if (bounceProcessor != null) {
             // do the new DSN bounce
             // setting attributes for DSN mailet
-            String cause;
-            if (ex instanceof MessagingException) {
-                cause = getErrorMsg((MessagingException) ex);
-            } else {
-                cause = ex.getMessage();
+            StringBuilder cause = new StringBuilder();
+            List<String> causes = new ArrayList<String>();
+            for (BounceCoalescer.Failure failure : failures) {
+                Exception ex = failure.getCause();
+                String msg;
+                if (ex instanceof MessagingException) {
+                    msg = getErrorMsg((MessagingException) ex);
+                } else {
+                    msg = ex.getMessage();
+                }
+                if (!causes.contains(msg)) {
+                    if (!causes.isEmpty()) {
+                        cause.append("; ");
+                    }
+                    causes.add(msg);
+                    cause.append(msg);
+                }
             }
-            mail.setAttribute("delivery-error", cause);
+            mail.setAttribute("delivery-error", cause.toString());
             mail.setState(bounceProcessor);
             // re-insert the mail into the spool for getting it passed to the
             // dsn-processor
@@ -1519,9 +2292,8 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
             }
         } else {
             // do an old style bounce
-            bounce(mail, ex);
+            sendFailureMessage(mail, failures);
         }
-        return true;
     }
 
     /**
@@ -1539,7 +2311,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         }
     }
 
-    private void bounce(Mail mail, Exception ex) {
+    private void sendFailureMessage(Mail mail, List<BounceCoalescer.Failure> failures) {
         StringWriter sout = new StringWriter();
         PrintWriter out = new PrintWriter(sout, true);
         String machine;
@@ -1555,10 +2327,32 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         out.println("This is a permanent error; I've given up. Sorry it didn't work out.  Below");
         out.println("I include the list of recipients and the reason why I was unable to deliver");
         out.println("your message.");
+        for (BounceCoalescer.Failure failure : failures) {
+            out.println();
+            for (MailAddress mailAddress : failure.getRecipients()) {
+                out.println(mailAddress);
+            }
+            printCause(out, failure.getCause());
+        }
         out.println();
-        for (MailAddress mailAddress : mail.getRecipients()) {
-            out.println(mailAddress);
+
+        log("Sending failure message " + mail.getName());
+        try {
+            getMailetContext().bounce(mail, sout.toString());
+        } catch (MessagingException me) {
+            log("Encountered unexpected messaging exception while bouncing message: " + me.getMessage());
+        } catch (Exception e) {
+            log("Encountered unexpected exception while bouncing message: " + e.getMessage());
         }
+    }
+
+    /**
+     * Print the reason of the given failure for a failure message
+     * 
+     * @param out
+     * @param ex
+     */
+    private void printCause(PrintWriter out, Exception ex) {
         if (ex instanceof MessagingException) {
             if (((MessagingException) ex).getNextException() == null) {
                 out.println(ex.getMessage().trim());
@@ -1579,16 +2373,6 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                 }
             }
         }
-        out.println();
-
-        log("Sending failure message " + mail.getName());
-        try {
-            getMailetContext().bounce(mail, sout.toString());
-        } catch (MessagingException me) {
-            log("Encountered unexpected messaging exception while bouncing message: " + me.getMessage());
-        } catch (Exception e) {
-            log("Encountered unexpected exception while bouncing message: " + e.getMessage());
-        }
     }
 
     /**
@@ -1617,7 +2401,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
     private Iterator<HostAddress> getGatewaySMTPHostAddresses(final Collection<String> gatewayServers) {
         Iterator<String> gateways = gatewayServers.iterator();
 
-        return new MXHostAddressIterator(gateways, dnsServer, false, logAdapter);
+        return new MXHostAddressIterator(gateways, 25, dnsServer, false, healthCache, logAdapter);
     }
 
     protected String getHeloName() {
@@ -0,0 +1,155 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the delivery attempts of {@link RemoteDelivery}
+ */
+public class RemoteDeliveryManagement implements RemoteDeliveryManagementMBean {
+
+    private final ThreadPoolExecutor workers;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong attemptTime = new AtomicLong();
+    private final AtomicLong slowest = new AtomicLong();
+    private final AtomicLong last = new AtomicLong();
+    private final AtomicLong success = new AtomicLong();
+    private final AtomicLong temporaryFailures = new AtomicLong();
+    private final AtomicLong permanentFailures = new AtomicLong();
+
+    public RemoteDeliveryManagement(ThreadPoolExecutor workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Mark the start of a delivery attempt
+     */
+    public void attemptStarted() {
+        active.incrementAndGet();
+    }
+
+    /**
+     * Mark the end of a delivery attempt
+     * 
+     * @param time
+     *            time in ms the attempt took
+     */
+    public void attemptCompleted(long time) {
+        active.decrementAndGet();
+        attempts.incrementAndGet();
+        attemptTime.addAndGet(time);
+        last.set(time);
+        long max;
+        while (time > (max = slowest.get())) {
+            if (slowest.compareAndSet(max, time)) {
+                break;
+            }
+        }
+    }
+
+    public void delivered() {
+        success.incrementAndGet();
+    }
+
+    public void failedTemporarily() {
+        temporaryFailures.incrementAndGet();
+    }
+
+    public void failedPermanently() {
+        permanentFailures.incrementAndGet();
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.RemoteDeliveryManagementMBean#getDeliveryThreadCount()
+     */
+    public int getDeliveryThreadCount() {
+        return workers.getPoolSize();
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.RemoteDeliveryManagementMBean#getActiveDeliveryCount()
+     */
+    public int getActiveDeliveryCount() {
+        return active.get();
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.RemoteDeliveryManagementMBean#getAttemptCount()
+     */
+    public long getAttemptCount() {
+        return attempts.get();
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.RemoteDeliveryManagementMBean#getSuccessCount()
+     */
+    public long getSuccessCount() {
+        return success.get();
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.RemoteDeliveryManagementMBean#getTemporaryFailureCount()
+     */
+    public long getTemporaryFailureCount() {
+        return temporaryFailures.get();
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.RemoteDeliveryManagementMBean#getPermanentFailureCount()
+     */
+    public long getPermanentFailureCount() {
+        return permanentFailures.get();
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.RemoteDeliveryManagementMBean#getAverageAttemptTime()
+     */
+    public long getAverageAttemptTime() {
+        long count = attempts.get();
+        if (count == 0) {
+            return 0;
+        }
+        return attemptTime.get() / count;
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.RemoteDeliveryManagementMBean#getSlowestAttempt()
+     */
+    public long getSlowestAttempt() {
+        return slowest.get();
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.RemoteDeliveryManagementMBean#getLastAttempt()
+     */
+    public long getLastAttempt() {
+        return last.get();
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.RemoteDeliveryManagementMBean#isDraining()
+     */
+    public boolean isDraining() {
+        return workers.isShutdown();
+    }
+}
@@ -0,0 +1,96 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+/**
+ * MBean for the delivery threads of {@link RemoteDelivery}
+ */
+public interface RemoteDeliveryManagementMBean {
+
+    /**
+     * Return the number of delivery threads
+     * 
+     * @return threads
+     */
+    int getDeliveryThreadCount();
+
+    /**
+     * Return the number of mails which are delivered right now
+     * 
+     * @return active
+     */
+    int getActiveDeliveryCount();
+
+    /**
+     * Return the count of delivery attempts
+     * 
+     * @return attempts
+     */
+    long getAttemptCount();
+
+    /**
+     * Return the count of mails which were delivered
+     * 
+     * @return successCount
+     */
+    long getSuccessCount();
+
+    /**
+     * Return the count of attempts which failed temporarily, so the mail was
+     * scheduled for a retry
+     * 
+     * @return temporaryFailureCount
+     */
+    long getTemporaryFailureCount();
+
+    /**
+     * Return the count of mails which failed permanently and were bounced
+     * 
+     * @return permanentFailureCount
+     */
+    long getPermanentFailureCount();
+
+    /**
+     * Return the average time in ms of a delivery attempt
+     * 
+     * @return average
+     */
+    long getAverageAttemptTime();
+
+    /**
+     * Return the time in ms of the slowest delivery attempt
+     * 
+     * @return slowest
+     */
+    long getSlowestAttempt();
+
+    /**
+     * Return the time in ms of the last delivery attempt
+     * 
+     * @return last
+     */
+    long getLastAttempt();
+
+    /**
+     * Return true if the delivery threads are shutting down
+     * 
+     * @return draining
+     */
+    boolean isDraining();
+}
@@ -0,0 +1,448 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+
+/**
+ * Pool of connected {@link PooledSMTPTransport}'s, keyed by destination
+ * (protocol, host and port).
+ * <p>
+ * The number of connections per destination is limited, a connection is used
+ * for at most <code>maxMessagesPerConnection</code> mails and is closed once it
+ * was idle longer than <code>idleTimeout</code> milliseconds. Idle connections
+ * are checked with a RSET before they are handed out again, so a connection
+ * closed by the remote server is transparently replaced by a new one.
+ * </p>
+ */
+public class SMTPTransportPool implements SMTPTransportPoolMBean {
+
+    /**
+     * Interval in milliseconds between two runs of the idle connection evictor
+     */
+    private final static long EVICTION_INTERVAL = 5000;
+
+    private final int maxPerHost;
+    private final int maxMessagesPerConnection;
+    private final long idleTimeout;
+    private final long borrowTimeout;
+
+    private final Map<String, HostEntry> hosts = new HashMap<String, HostEntry>();
+    private final ScheduledExecutorService evictor;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong borrowTimeouts = new AtomicLong();
+    private volatile boolean closed = false;
+
+    /**
+     * @param maxPerHost
+     *            max number of connections per destination
+     * @param maxMessagesPerConnection
+     *            max number of mails sent over one connection
+     * @param idleTimeout
+     *            time in milliseconds after which an idle connection is
+     *            closed. If 0 idle connections are only closed by
+     *            {@link #closeIdleConnections()} and no evictor is started.
+     * @param borrowTimeout
+     *            max time in milliseconds to wait for a connection once the
+     *            limit of a destination is reached
+     */
+    public SMTPTransportPool(int maxPerHost, int maxMessagesPerConnection, long idleTimeout, long borrowTimeout) {
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("maxPerHost must be > 0");
+        }
+        if (maxMessagesPerConnection < 1) {
+            throw new IllegalArgumentException("maxMessagesPerConnection must be > 0");
+        }
+        this.maxPerHost = maxPerHost;
+        this.maxMessagesPerConnection = maxMessagesPerConnection;
+        this.idleTimeout = idleTimeout;
+        this.borrowTimeout = borrowTimeout;
+
+        if (idleTimeout > 0) {
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SMTPTransportPool evictor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            evictor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    evictIdle(false);
+                }
+            }, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+        } else {
+            evictor = null;
+        }
+    }
+
+    /**
+     * Return a connected transport for the given server. The returned transport
+     * MUST be handed back with {@link #release(PooledSMTPTransport, boolean)}.
+     * 
+     * @param server
+     *            the server to connect to
+     * @param session
+     *            the session which holds the properties for the connection
+     * @param user
+     *            the user used for authentication, may be null
+     * @param password
+     *            the password used for authentication
+     * @param localHost
+     *            the name used in HELO / EHLO
+     * @return transport
+     * @throws MessagingException
+     *             if no connection could be established or the per host limit
+     *             was reached and no connection was released in time
+     */
+    public PooledSMTPTransport borrow(URLName server, Session session, String user, String password, String localHost) throws MessagingException {
+        if (closed) {
+            throw new MessagingException("SMTPTransportPool is closed");
+        }
+        String key = getKey(server);
+        HostEntry entry = getEntry(key, true);
+
+        try {
+            if (!entry.permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                borrowTimeouts.incrementAndGet();
+                entry.users.decrementAndGet();
+                throw new PoolExhaustedException("Limit of " + maxPerHost + " connections reached for " + key);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            entry.users.decrementAndGet();
+            throw new MessagingException("Interrupted while waiting for a connection to " + key, e);
+        }
+
+        boolean success = false;
+        try {
+            PooledSMTPTransport transport;
+            while ((transport = entry.pollIdle()) != null) {
+                if (isExpired(transport, System.currentTimeMillis())) {
+                    closeQuietly(transport);
+                    continue;
+                }
+                try {
+                    transport.reset();
+                    reused.incrementAndGet();
+                    success = true;
+                    return transport;
+                } catch (MessagingException e) {
+                    // the server closed the connection in the meantime
+                    closeQuietly(transport);
+                }
+            }
+
+            transport = createTransport(server, session, key, localHost);
+            if (user != null) {
+                transport.connect(server.getHost(), user, password);
+            } else {
+                transport.connect();
+            }
+            created.incrementAndGet();
+            success = true;
+            return transport;
+        } finally {
+            if (success) {
+                entry.active.incrementAndGet();
+            } else {
+                entry.permits.release();
+                entry.users.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Hand back a transport obtained from
+     * {@link #borrow(URLName, Session, String, String, String)}
+     * 
+     * @param transport
+     * @param reusable
+     *            true if the last transaction completed and the connection can
+     *            be used for further mails
+     */
+    public void release(PooledSMTPTransport transport, boolean reusable) {
+        HostEntry entry = getEntry(transport.getKey(), false);
+        try {
+            if (reusable) {
+                transport.used();
+            }
+            if (!reusable || closed || transport.getMessageCount() >= maxMessagesPerConnection || !transport.isReusable()) {
+                closeQuietly(transport);
+            } else {
+                entry.offerIdle(transport);
+            }
+        } finally {
+            entry.active.decrementAndGet();
+            entry.permits.release();
+            entry.users.decrementAndGet();
+        }
+    }
+
+    /**
+     * Close all connections and stop the evictor. Borrowed transports get
+     * closed once they are released.
+     */
+    public void close() {
+        closed = true;
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        evictIdle(true);
+    }
+
+    protected PooledSMTPTransport createTransport(URLName server, Session session, String key, String localHost) {
+        // every transport needs its own session as the envelope sender is
+        // stored in the session properties
+        Properties props = new Properties();
+        props.putAll(session.getProperties());
+        PooledSMTPTransport transport = new PooledSMTPTransport(Session.getInstance(props), server, key);
+        transport.setLocalHost(localHost);
+        return transport;
+    }
+
+    private String getKey(URLName server) {
+        return server.getProtocol() + "://" + server.getHost() + ":" + server.getPort();
+    }
+
+    /**
+     * Return the entry of a destination. The entry is not removed by the
+     * evictor as long as it has users, so a borrower must register itself
+     * before it waits for a permit and unregister once the transport is
+     * released.
+     * 
+     * @param key
+     * @param register
+     * @return entry
+     */
+    private HostEntry getEntry(String key, boolean register) {
+        synchronized (hosts) {
+            HostEntry entry = hosts.get(key);
+            if (entry == null) {
+                entry = new HostEntry(maxPerHost);
+                hosts.put(key, entry);
+            }
+            if (register) {
+                entry.users.incrementAndGet();
+            }
+            return entry;
+        }
+    }
+
+    private List<HostEntry> getEntries() {
+        synchronized (hosts) {
+            return new ArrayList<HostEntry>(hosts.values());
+        }
+    }
+
+    private boolean isExpired(PooledSMTPTransport transport, long now) {
+        return idleTimeout > 0 && now - transport.getLastUsed() > idleTimeout;
+    }
+
+    /**
+     * Close the idle connections which timed out, or all of them if
+     * <code>all</code> is true. Destinations without connections are
+     * forgotten.
+     * 
+     * @param all
+     */
+    private void evictIdle(boolean all) {
+        long now = System.currentTimeMillis();
+        List<PooledSMTPTransport> toClose = new ArrayList<PooledSMTPTransport>();
+        synchronized (hosts) {
+            Iterator<HostEntry> entries = hosts.values().iterator();
+            while (entries.hasNext()) {
+                HostEntry entry = entries.next();
+                synchronized (entry) {
+                    Iterator<PooledSMTPTransport> idle = entry.idle.iterator();
+                    while (idle.hasNext()) {
+                        PooledSMTPTransport transport = idle.next();
+                        if (all || isExpired(transport, now)) {
+                            idle.remove();
+                            toClose.add(transport);
+                        }
+                    }
+                    if (entry.idle.isEmpty() && entry.users.get() == 0) {
+                        entries.remove();
+                    }
+                }
+            }
+        }
+        // QUIT outside the locks as it needs a server roundtrip
+        for (PooledSMTPTransport transport : toClose) {
+            closeQuietly(transport);
+        }
+    }
+
+    private void closeQuietly(PooledSMTPTransport transport) {
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            // the server has probably already closed the connection
+        }
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.SMTPTransportPoolMBean#getMaxConnectionsPerHost()
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxPerHost;
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.SMTPTransportPoolMBean#getMaxMessagesPerConnection()
+     */
+    public int getMaxMessagesPerConnection() {
+        return maxMessagesPerConnection;
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.SMTPTransportPoolMBean#getConnectionIdleTimeout()
+     */
+    public long getConnectionIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.SMTPTransportPoolMBean#getActiveCount()
+     */
+    public int getActiveCount() {
+        int count = 0;
+        for (HostEntry entry : getEntries()) {
+            count += entry.active.get();
+        }
+        return count;
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.SMTPTransportPoolMBean#getIdleCount()
+     */
+    public int getIdleCount() {
+        int count = 0;
+        for (HostEntry entry : getEntries()) {
+            count += entry.idleCount();
+        }
+        return count;
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.SMTPTransportPoolMBean#getCreatedCount()
+     */
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.SMTPTransportPoolMBean#getReusedCount()
+     */
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.SMTPTransportPoolMBean#getBorrowTimeoutCount()
+     */
+    public long getBorrowTimeoutCount() {
+        return borrowTimeouts.get();
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.SMTPTransportPoolMBean#getHostStatistics()
+     */
+    public String[] getHostStatistics() {
+        List<String> stats = new ArrayList<String>();
+        synchronized (hosts) {
+            for (Map.Entry<String, HostEntry> e : hosts.entrySet()) {
+                HostEntry entry = e.getValue();
+                stats.add(e.getKey() + " active=" + entry.active.get() + " idle=" + entry.idleCount());
+            }
+        }
+        return stats.toArray(new String[stats.size()]);
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.SMTPTransportPoolMBean#closeIdleConnections()
+     */
+    public void closeIdleConnections() {
+        evictIdle(true);
+    }
+
+    /**
+     * Thrown if no connection was released in time once the per host limit
+     * was reached. This is no sign of a problem with the destination.
+     */
+    public final static class PoolExhaustedException extends MessagingException {
+        private static final long serialVersionUID = 1L;
+
+        public PoolExhaustedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Connections of one destination
+     */
+    private final static class HostEntry {
+        private final Semaphore permits;
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger users = new AtomicInteger();
+        private final LinkedList<PooledSMTPTransport> idle = new LinkedList<PooledSMTPTransport>();
+
+        public HostEntry(int maxPerHost) {
+            permits = new Semaphore(maxPerHost, true);
+        }
+
+        /**
+         * Return the most recently used idle connection, as it is the least
+         * likely to be closed by the server
+         * 
+         * @return transport or null
+         */
+        public synchronized PooledSMTPTransport pollIdle() {
+            return idle.pollFirst();
+        }
+
+        public synchronized void offerIdle(PooledSMTPTransport transport) {
+            idle.addFirst(transport);
+        }
+
+        public synchronized int idleCount() {
+            return idle.size();
+        }
+    }
+}
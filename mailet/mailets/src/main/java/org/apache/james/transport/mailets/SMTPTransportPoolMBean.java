@@ -0,0 +1,95 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+/**
+ * JMX view on the {@link SMTPTransportPool} used by {@link RemoteDelivery}
+ */
+public interface SMTPTransportPoolMBean {
+
+    /**
+     * Return the max number of connections per destination
+     * 
+     * @return maxPerHost
+     */
+    int getMaxConnectionsPerHost();
+
+    /**
+     * Return the max number of messages sent over one connection
+     * 
+     * @return maxMessages
+     */
+    int getMaxMessagesPerConnection();
+
+    /**
+     * Return the time in milliseconds after which an idle connection is closed
+     * 
+     * @return idleTimeout
+     */
+    long getConnectionIdleTimeout();
+
+    /**
+     * Return the number of connections which are currently used for delivery
+     * 
+     * @return active
+     */
+    int getActiveCount();
+
+    /**
+     * Return the number of open connections which wait in the pool
+     * 
+     * @return idle
+     */
+    int getIdleCount();
+
+    /**
+     * Return the number of connections opened since the pool was started
+     * 
+     * @return created
+     */
+    long getCreatedCount();
+
+    /**
+     * Return how many times an idle connection was reused
+     * 
+     * @return reused
+     */
+    long getReusedCount();
+
+    /**
+     * Return the number of times a delivery could not get a connection because
+     * the per host limit was reached
+     * 
+     * @return timeouts
+     */
+    long getBorrowTimeoutCount();
+
+    /**
+     * Return the active and idle connections for each destination, one entry
+     * per destination
+     * 
+     * @return hostStats
+     */
+    String[] getHostStatistics();
+
+    /**
+     * Close all idle connections
+     */
+    void closeIdleConnections();
+}
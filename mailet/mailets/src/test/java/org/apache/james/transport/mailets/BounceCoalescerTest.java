@@ -0,0 +1,319 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.core.MailImpl;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BounceCoalescerTest {
+
+    private final static long START = 1000000;
+
+    private MemoryMailQueue queue;
+    private RecordingCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+        queue = new MemoryMailQueue();
+    }
+
+    @After
+    public void tearDown() {
+        if (coalescer != null) {
+            coalescer.close();
+        }
+    }
+
+    @Test
+    public void testCopiesOfOneMailAreMerged() throws Exception {
+        coalescer = new RecordingCoalescer(queue, 1000, 0, 10);
+        MessagingException a = new MessagingException("a failed");
+        MessagingException b = new MessagingException("b failed");
+        coalescer.add("mail", mail("mail-to-a.com", "x@a.com", "y@a.com"), a);
+        coalescer.add("mail", mail("mail-to-b.com", "z@b.com"), b);
+        coalescer.add("other", mail("other-to-c.com", "x@c.com"), a);
+        coalescer.poll(0);
+        assertEquals(2, coalescer.getPendingCount());
+        assertEquals(1, coalescer.getCoalescedCount());
+
+        coalescer.advance(1000);
+        coalescer.flush(false);
+
+        assertEquals(2, coalescer.getBounces().size());
+        Mail bounce = coalescer.getBounces().get(0);
+        assertEquals("mail-to-a.com", bounce.getName());
+        assertEquals(Arrays.asList(new MailAddress("x@a.com"), new MailAddress("y@a.com"), new MailAddress("z@b.com")), new ArrayList<MailAddress>(bounce.getRecipients()));
+        assertNull(bounce.getAttribute(BounceCoalescer.KEY_ATTRIBUTE));
+        assertNull(bounce.getAttribute(BounceCoalescer.CAUSE_ATTRIBUTE));
+        List<BounceCoalescer.Failure> failures = coalescer.getFailures().get(0);
+        assertEquals(2, failures.size());
+        assertEquals(a.getMessage(), failures.get(0).getCause().getMessage());
+        assertEquals(Arrays.asList(new MailAddress("z@b.com")), new ArrayList<MailAddress>(failures.get(1).getRecipients()));
+        assertEquals(b.getMessage(), failures.get(1).getCause().getMessage());
+        assertEquals(2, coalescer.getBouncedCount());
+        // all failed mails are done once their bounce was generated
+        assertEquals(Arrays.asList(true, true, true), queue.getOutcomes());
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testBounceWaitsForCoalesceWindow() throws Exception {
+        coalescer = new RecordingCoalescer(queue, 1000, 0, 10);
+        coalescer.add("mail", mail("mail-to-a.com", "x@a.com"), new MessagingException());
+        coalescer.poll(0);
+
+        coalescer.advance(999);
+        coalescer.flush(false);
+        assertTrue(coalescer.getBounces().isEmpty());
+        assertEquals(1, coalescer.getPendingCount());
+        assertTrue(queue.getOutcomes().isEmpty());
+
+        coalescer.advance(1);
+        coalescer.flush(false);
+        assertEquals(1, coalescer.getBounces().size());
+        assertEquals(0, coalescer.getPendingCount());
+        assertEquals(Collections.singletonList(true), queue.getOutcomes());
+    }
+
+    @Test
+    public void testMaxRate() throws Exception {
+        coalescer = new RecordingCoalescer(queue, 0, 2, 10);
+        for (int i = 0; i < 6; i++) {
+            coalescer.add("mail" + i, mail("mail" + i, "x@a.com"), new MessagingException());
+        }
+        coalescer.poll(0);
+
+        // the bucket starts full
+        coalescer.flush(false);
+        assertEquals(2, coalescer.getBounces().size());
+        coalescer.flush(false);
+        assertEquals(2, coalescer.getBounces().size());
+
+        // refilled at 2 per second
+        coalescer.advance(500);
+        coalescer.flush(false);
+        assertEquals(3, coalescer.getBounces().size());
+
+        // the bucket holds no more than one second worth of tokens
+        coalescer.advance(10000);
+        coalescer.flush(false);
+        assertEquals(5, coalescer.getBounces().size());
+        assertEquals(1, coalescer.getPendingCount());
+
+        // the oldest bounces are generated first
+        assertEquals("mail0", coalescer.getBounces().get(0).getName());
+        assertEquals("mail4", coalescer.getBounces().get(4).getName());
+    }
+
+    @Test
+    public void testMoreFailuresThanMaxPending() throws Exception {
+        coalescer = new RecordingCoalescer(queue, 1000, 0, 2);
+        coalescer.add("mail0", mail("mail0-to-a.com", "x@a.com"), new MessagingException());
+        coalescer.add("mail0", mail("mail0-to-b.com", "x@b.com"), new MessagingException());
+        for (int i = 1; i < 5; i++) {
+            coalescer.add("mail" + i, mail("mail" + i, "x@a.com"), new MessagingException());
+        }
+
+        // copies of a pending mail are still merged
+        coalescer.poll(0);
+        assertEquals(1, coalescer.getPendingCount());
+        assertEquals(1, coalescer.getCoalescedCount());
+        coalescer.poll(0);
+        assertEquals(2, coalescer.getPendingCount());
+
+        // the other failures wait in the queue instead of being bounced
+        coalescer.poll(0);
+        assertEquals(1, coalescer.getHeldBackCount());
+        assertEquals(2, coalescer.getPendingCount());
+        assertEquals(3, queue.getSize());
+        assertTrue(coalescer.getBounces().isEmpty());
+
+        // taken once bounces were generated
+        for (int i = 0; i < 3; i++) {
+            coalescer.advance(1000);
+            coalescer.flush(false);
+            coalescer.poll(0);
+        }
+        assertEquals(0, queue.getSize());
+        coalescer.advance(1000);
+        coalescer.flush(false);
+
+        assertEquals(5, coalescer.getBounces().size());
+        assertEquals(Arrays.asList(new MailAddress("x@a.com"), new MailAddress("x@b.com")), new ArrayList<MailAddress>(coalescer.getBounces().get(0).getRecipients()));
+        assertEquals(6, queue.getOutcomes().size());
+        assertTrue(!queue.getOutcomes().contains(false));
+    }
+
+    @Test
+    public void testCloseHandsPendingBouncesBack() throws Exception {
+        coalescer = new RecordingCoalescer(queue, 60000, 1, 10);
+        for (int i = 0; i < 3; i++) {
+            coalescer.add("mail" + i, mail("mail" + i, "x@a.com"), new MessagingException());
+        }
+        coalescer.poll(0);
+        assertEquals(3, coalescer.getPendingCount());
+
+        coalescer.close();
+
+        // the bounces are generated after the next start
+        assertTrue(coalescer.getBounces().isEmpty());
+        assertEquals(0, coalescer.getPendingCount());
+        assertEquals(Arrays.asList(false, false, false), queue.getOutcomes());
+        assertEquals(3, queue.getSize());
+
+        coalescer = new RecordingCoalescer(queue, 0, 0, 10);
+        coalescer.poll(0);
+        coalescer.flush(false);
+        assertEquals(3, coalescer.getBounces().size());
+        assertEquals("mail0", coalescer.getBounces().get(0).getName());
+        assertEquals(Arrays.asList(new MailAddress("x@a.com")), new ArrayList<MailAddress>(coalescer.getBounces().get(0).getRecipients()));
+    }
+
+    @Test
+    public void testWorkerGeneratesBounces() throws Exception {
+        coalescer = new RecordingCoalescer(queue, 0, 0, 10);
+        coalescer.start();
+        coalescer.add("mail0", mail("mail0", "x@a.com"), new MessagingException());
+        coalescer.add("mail1", mail("mail1", "x@a.com"), new MessagingException());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (coalescer.getBounces().size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(2, coalescer.getBounces().size());
+        assertEquals(Arrays.asList(true, true), queue.getOutcomes());
+    }
+
+    @Test
+    public void testFailedBounceIsLogged() throws Exception {
+        coalescer = new RecordingCoalescer(queue, 0, 0, 10);
+        coalescer.failOn("mail0");
+        coalescer.add("mail0", mail("mail0", "x@a.com"), new MessagingException());
+        coalescer.add("mail1", mail("mail1", "x@a.com"), new MessagingException());
+        coalescer.poll(0);
+
+        coalescer.flush(false);
+
+        assertEquals(Collections.singletonList("Unable to generate the bounce for mail0"), coalescer.getLogs());
+        // the other bounces are generated anyway
+        assertEquals(1, coalescer.getBounces().size());
+        assertEquals("mail1", coalescer.getBounces().get(0).getName());
+        // the failed mail is done and disposed, so it does not fail again
+        assertEquals(Arrays.asList(true, true), queue.getOutcomes());
+        assertNull(coalescer.getFailed().getMessage());
+    }
+
+    private static Mail mail(String name, String... recipients) throws MessagingException {
+        List<MailAddress> addresses = new ArrayList<MailAddress>();
+        for (String recipient : recipients) {
+            addresses.add(new MailAddress(recipient));
+        }
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText("test");
+        message.saveChanges();
+        return new MailImpl(name, new MailAddress("sender@example.com"), addresses, message);
+    }
+
+    /**
+     * Coalescer which records the generated bounces and runs on a clock which
+     * only moves when advanced. The tests take the failed mails from the
+     * queue and generate the bounces themselves, unless they start the
+     * worker.
+     */
+    private final static class RecordingCoalescer extends BounceCoalescer {
+        private final List<Mail> bounces = new ArrayList<Mail>();
+        private final List<List<Failure>> failures = new ArrayList<List<Failure>>();
+        private final List<String> logs = new ArrayList<String>();
+        private volatile long now = START;
+        private String failOn;
+        private Mail failed;
+
+        public RecordingCoalescer(MemoryMailQueue queue, long coalesceWindow, double maxRate, int maxPending) {
+            super(queue, coalesceWindow, maxRate, maxPending);
+        }
+
+        @Override
+        protected synchronized void bounce(Mail mail, List<Failure> failures) {
+            if (mail.getName().equals(failOn)) {
+                failed = mail;
+                throw new IllegalStateException("bounce failed");
+            }
+            // the mail is disposed after the bounce, so keep a copy
+            try {
+                bounces.add(new MailImpl(mail, mail.getName()));
+            } catch (MessagingException e) {
+                throw new RuntimeException(e);
+            }
+            this.failures.add(new ArrayList<Failure>(failures));
+        }
+
+        @Override
+        protected synchronized void log(String message, Throwable t) {
+            logs.add(message);
+        }
+
+        @Override
+        protected long now() {
+            // called by the super constructor before now is initialized
+            return now == 0 ? START : now;
+        }
+
+        public void advance(long millis) {
+            now += millis;
+        }
+
+        public synchronized void failOn(String name) {
+            failOn = name;
+        }
+
+        public synchronized Mail getFailed() {
+            return failed;
+        }
+
+        public synchronized List<Mail> getBounces() {
+            return new ArrayList<Mail>(bounces);
+        }
+
+        public synchronized List<List<Failure>> getFailures() {
+            return new ArrayList<List<Failure>>(failures);
+        }
+
+        public synchronized List<String> getLogs() {
+            return new ArrayList<String>(logs);
+        }
+    }
+}
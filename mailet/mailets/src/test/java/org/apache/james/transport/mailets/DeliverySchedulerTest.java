@@ -0,0 +1,321 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.transport.mailets.DeliveryScheduler.Run;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.junit.Test;
+
+public class DeliverySchedulerTest {
+
+    private final static long START = 1000000;
+
+    @Test
+    public void testDomainsAreServedRoundRobin() throws Exception {
+        FakeClockScheduler scheduler = new FakeClockScheduler(1, 0, 0, 1000, 2, 100);
+        MailQueueItem a1 = item("a1", "a.com");
+        MailQueueItem a2 = item("a2", "a.com");
+        MailQueueItem b1 = item("b1", "b.com");
+        MailQueueItem c1 = item("c1", "c.com");
+        for (MailQueueItem item : Arrays.asList(a1, a2, b1, c1)) {
+            assertEquals(0, scheduler.add(item));
+        }
+
+        Run a = scheduler.take();
+        assertEquals("a.com", a.getDomain());
+        assertEquals(Arrays.asList(a1, a2), a.getItems());
+        Run b = scheduler.take();
+        assertEquals(Arrays.asList(b1), b.getItems());
+        Run c = scheduler.take();
+        assertEquals(Arrays.asList(c1), c.getItems());
+        assertNull(scheduler.take());
+        assertEquals(0, scheduler.getBufferedCount());
+
+        // the next round starts after the last domain served
+        MailQueueItem a3 = item("a3", "a.com");
+        MailQueueItem b2 = item("b2", "b.com");
+        scheduler.add(a3);
+        scheduler.add(b2);
+        scheduler.complete(a, 2, 0, 10);
+        scheduler.complete(b, 1, 0, 10);
+        assertEquals(Arrays.asList(a3), scheduler.take().getItems());
+        assertEquals(Arrays.asList(b2), scheduler.take().getItems());
+    }
+
+    @Test
+    public void testMaxConcurrentPerDomain() throws Exception {
+        FakeClockScheduler scheduler = new FakeClockScheduler(2, 0, 0, 1000, 1, 100);
+        scheduler.setDomainLimit("B.com", 1, 0);
+        scheduler.add(item("a0", "a.com"));
+        scheduler.add(item("a1", "a.com"));
+        scheduler.add(item("b0", "b.com"));
+        // at most maxConcurrent runs are buffered per domain
+        assertEquals(DeliveryScheduler.DEFER_DELAY, scheduler.add(item("a2", "a.com")));
+        assertEquals(DeliveryScheduler.DEFER_DELAY, scheduler.add(item("b1", "b.com")));
+
+        Run a1 = scheduler.take();
+        Run b1 = scheduler.take();
+        Run a2 = scheduler.take();
+        assertEquals("a.com", a1.getDomain());
+        assertEquals("b.com", b1.getDomain());
+        assertEquals("a.com", a2.getDomain());
+        // a.com has two runs in progress and b.com one
+        assertNull(scheduler.take());
+
+        scheduler.add(item("b2", "b.com"));
+        assertNull(scheduler.take());
+        scheduler.complete(b1, 1, 0, 10);
+        assertEquals("b.com", scheduler.take().getDomain());
+        assertNull(scheduler.take());
+    }
+
+    @Test
+    public void testFullDomainQueueDefersMails() throws Exception {
+        FakeClockScheduler scheduler = new FakeClockScheduler(1, 0, 0, 1000, 2, 3);
+        assertEquals(0, scheduler.add(item("a1", "a.com")));
+        assertEquals(0, scheduler.add(item("a2", "a.com")));
+        assertEquals(DeliveryScheduler.DEFER_DELAY, scheduler.add(item("a3", "a.com")));
+        assertEquals(1, scheduler.getDeferredCount());
+
+        assertTrue(scheduler.needsMore());
+        assertEquals(0, scheduler.add(item("b1", "b.com")));
+        assertFalse(scheduler.needsMore());
+
+        List<MailQueueItem> drained = scheduler.drain();
+        assertEquals(3, drained.size());
+        assertEquals(0, scheduler.getBufferedCount());
+        assertTrue(scheduler.needsMore());
+    }
+
+    @Test
+    public void testRateIsLimitedByTokenBucket() throws Exception {
+        FakeClockScheduler scheduler = new FakeClockScheduler(5, 2, 0, 1000, 10, 100);
+        for (int i = 0; i < 10; i++) {
+            scheduler.add(item("a" + i, "a.com"));
+        }
+
+        // the bucket starts full
+        Run run = scheduler.take();
+        assertEquals(2, run.getItems().size());
+        scheduler.complete(run, 2, 0, 10);
+        assertNull(scheduler.take());
+
+        scheduler.advance(499);
+        assertNull(scheduler.take());
+        scheduler.advance(1);
+        run = scheduler.take();
+        assertEquals(1, run.getItems().size());
+        scheduler.complete(run, 1, 0, 10);
+
+        // the bucket holds at most one second worth of tokens
+        scheduler.advance(60000);
+        run = scheduler.take();
+        assertEquals(2, run.getItems().size());
+        assertNull(scheduler.take());
+    }
+
+    @Test
+    public void testCircuitOpensAfterFailureThreshold() throws Exception {
+        FakeClockScheduler scheduler = new FakeClockScheduler(5, 0, 2, 10000, 1, 100);
+        fail(scheduler, "a.com");
+        assertEquals(0, scheduler.getOpenCircuitCount());
+        fail(scheduler, "a.com");
+        assertEquals(1, scheduler.getOpenCircuitCount());
+
+        // mails are deferred until the circuit timeout elapsed
+        assertEquals(10000, scheduler.add(item("a3", "a.com")));
+        scheduler.advance(8000);
+        assertEquals(DeliveryScheduler.DEFER_DELAY, scheduler.add(item("a4", "a.com")));
+        assertEquals(2, scheduler.getDeferredCount());
+
+        // other domains are not affected
+        assertEquals(0, scheduler.add(item("b1", "b.com")));
+        assertEquals("b.com", scheduler.take().getDomain());
+    }
+
+    @Test
+    public void testHalfOpenCircuitProbesOneMail() throws Exception {
+        FakeClockScheduler scheduler = new FakeClockScheduler(5, 0, 1, 10000, 5, 100);
+        fail(scheduler, "a.com");
+
+        scheduler.advance(10001);
+        MailQueueItem a1 = item("a1", "a.com");
+        assertEquals(0, scheduler.add(a1));
+        assertEquals(0, scheduler.add(item("a2", "a.com")));
+        assertTrue(scheduler.getDomainStatistics()[0].endsWith("circuit=half-open"));
+
+        Run probe = scheduler.take();
+        assertEquals(Arrays.asList(a1), probe.getItems());
+        assertEquals(0, probe.getDeferDelay());
+        // only one probe at a time
+        assertNull(scheduler.take());
+
+        scheduler.complete(probe, 1, 0, 10);
+        assertEquals(0, scheduler.getOpenCircuitCount());
+        assertTrue(scheduler.getDomainStatistics()[0].endsWith("circuit=closed"));
+        assertEquals(1, scheduler.take().getItems().size());
+    }
+
+    @Test
+    public void testFailedProbeDoublesBackoff() throws Exception {
+        FakeClockScheduler scheduler = new FakeClockScheduler(5, 0, 1, 10000, 5, 100);
+        fail(scheduler, "a.com");
+
+        long[] expected = new long[] { 20000, 40000, 80000, 160000, 160000 };
+        long timeout = 10000;
+        for (long delay : expected) {
+            scheduler.advance(timeout + 1);
+            fail(scheduler, "a.com");
+            assertEquals(delay, scheduler.add(item("deferred", "a.com")));
+            timeout = delay;
+        }
+
+        // a successful probe resets the backoff
+        scheduler.advance(timeout + 1);
+        scheduler.add(item("probe", "a.com"));
+        scheduler.complete(scheduler.take(), 1, 0, 10);
+        fail(scheduler, "a.com");
+        assertEquals(10000, scheduler.add(item("deferred", "a.com")));
+    }
+
+    @Test
+    public void testTakeReturnsDeferredRunIfCircuitOpenedAfterAdd() throws Exception {
+        FakeClockScheduler scheduler = new FakeClockScheduler(3, 0, 1, 10000, 1, 100);
+        MailQueueItem a1 = item("a1", "a.com");
+        MailQueueItem a2 = item("a2", "a.com");
+        MailQueueItem a3 = item("a3", "a.com");
+        scheduler.add(a1);
+        scheduler.add(a2);
+        scheduler.add(a3);
+
+        Run run = scheduler.take();
+        assertEquals(Arrays.asList(a1), run.getItems());
+        scheduler.complete(run, 0, 1, 10);
+
+        Run deferred = scheduler.take();
+        assertEquals(10000, deferred.getDeferDelay());
+        assertEquals(Arrays.asList(a2, a3), deferred.getItems());
+        assertEquals(0, scheduler.getBufferedCount());
+        assertEquals(2, scheduler.getDeferredCount());
+        assertNull(scheduler.take());
+    }
+
+    @Test
+    public void testResetCircuit() throws Exception {
+        FakeClockScheduler scheduler = new FakeClockScheduler(1, 0, 1, 10000, 1, 100);
+        fail(scheduler, "a.com");
+        assertEquals(1, scheduler.getOpenCircuitCount());
+
+        scheduler.resetCircuit("A.COM");
+        assertEquals(0, scheduler.getOpenCircuitCount());
+        assertEquals(0, scheduler.add(item("a2", "a.com")));
+    }
+
+    @Test
+    public void testUnusedDomainsExpire() throws Exception {
+        FakeClockScheduler scheduler = new FakeClockScheduler(1, 0, 1, 10000000, 1, 100);
+        deliver(scheduler, "a.com");
+        fail(scheduler, "b.com");
+        assertEquals(2, scheduler.getDomainCount());
+
+        scheduler.advance(300000);
+        deliver(scheduler, "c.com");
+        assertEquals(3, scheduler.getDomainCount());
+
+        // a.com was unused for too long, b.com has an open circuit
+        scheduler.advance(400000);
+        deliver(scheduler, "c.com");
+        assertEquals(2, scheduler.getDomainCount());
+        for (String stats : scheduler.getDomainStatistics()) {
+            assertFalse(stats, stats.startsWith("a.com"));
+        }
+
+        // the expiry only runs once in a while
+        scheduler.advance(590000);
+        scheduler.add(item("d1", "d.com"));
+        assertEquals(3, scheduler.getDomainCount());
+        scheduler.advance(20000);
+        scheduler.add(item("d2", "d.com"));
+        assertEquals(3, scheduler.getDomainCount());
+        scheduler.advance(40000);
+        scheduler.add(item("d3", "d.com"));
+        assertEquals(2, scheduler.getDomainCount());
+    }
+
+    private static void deliver(DeliveryScheduler scheduler, String domain) throws MessagingException {
+        assertEquals(0, scheduler.add(item("mail", domain)));
+        Run run = scheduler.take();
+        assertEquals(domain, run.getDomain());
+        scheduler.complete(run, 1, 0, 10);
+    }
+
+    private static void fail(DeliveryScheduler scheduler, String domain) throws MessagingException {
+        assertEquals(0, scheduler.add(item("mail", domain)));
+        Run run = scheduler.take();
+        assertEquals(domain, run.getDomain());
+        scheduler.complete(run, 0, 1, 10);
+    }
+
+    private static MailQueueItem item(String name, String domain) throws MessagingException {
+        final Mail mail = new MailImpl(name, new MailAddress("sender@example.com"), Arrays.asList(new MailAddress("rcpt@" + domain)));
+        return new MailQueueItem() {
+            public Mail getMail() {
+                return mail;
+            }
+
+            public void done(boolean success) {
+            }
+
+            @Override
+            public String toString() {
+                return mail.getName();
+            }
+        };
+    }
+
+    private final static class FakeClockScheduler extends DeliveryScheduler {
+        private long now = START;
+
+        public FakeClockScheduler(int maxConcurrent, double maxRate, int failureThreshold, long circuitTimeout, int runSize, int maxBuffered) {
+            super(maxConcurrent, maxRate, failureThreshold, circuitTimeout, runSize, maxBuffered);
+        }
+
+        public void advance(long millis) {
+            now += millis;
+        }
+
+        @Override
+        protected long now() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.mailet.Mail;
+
+/**
+ * {@link MailQueue} which keeps copies of the mails in memory, including
+ * their names and attributes, and records the outcome of the dequeued mails.
+ * The dequeued mails are copies as well, so a mail which is not done
+ * successfully is put back as it was enqueued.
+ */
+public class MemoryMailQueue implements MailQueue {
+
+    private final LinkedList<Mail> mails = new LinkedList<Mail>();
+    private final List<Boolean> outcomes = new ArrayList<Boolean>();
+
+    public synchronized void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+        enQueue(mail);
+    }
+
+    public synchronized void enQueue(Mail mail) throws MailQueueException {
+        try {
+            // the caller may dispose the mail once it was enqueued
+            mails.add(new MailImpl(mail, mail.getName()));
+        } catch (MessagingException e) {
+            throw new MailQueueException("Unable to copy mail " + mail.getName(), e);
+        }
+        notifyAll();
+    }
+
+    public MailQueueItem deQueue() throws MailQueueException {
+        List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+        while (items.isEmpty()) {
+            items = deQueue(1, 1000);
+        }
+        return items.get(0);
+    }
+
+    public synchronized List<MailQueueItem> deQueue(int max, long timeout) throws MailQueueException {
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while (mails.isEmpty() && System.currentTimeMillis() < deadline) {
+                wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+        while (!mails.isEmpty() && items.size() < max) {
+            final Mail stored = mails.removeFirst();
+            final Mail mail;
+            try {
+                mail = new MailImpl(stored, stored.getName());
+            } catch (MessagingException e) {
+                throw new MailQueueException("Unable to copy mail " + stored.getName(), e);
+            }
+            items.add(new MailQueueItem() {
+                public Mail getMail() {
+                    return mail;
+                }
+
+                public void done(boolean success) throws MailQueueException {
+                    synchronized (MemoryMailQueue.this) {
+                        outcomes.add(success);
+                        if (!success) {
+                            mails.add(stored);
+                        }
+                        MemoryMailQueue.this.notifyAll();
+                    }
+                }
+            });
+        }
+        return items;
+    }
+
+    /**
+     * Return the number of mails in the queue, not counting the dequeued ones
+     * 
+     * @return size
+     */
+    public synchronized int getSize() {
+        return mails.size();
+    }
+
+    /**
+     * Return the outcomes of the dequeued mails in the order they were done
+     * 
+     * @return outcomes
+     */
+    public synchronized List<Boolean> getOutcomes() {
+        return new ArrayList<Boolean>(outcomes);
+    }
+}
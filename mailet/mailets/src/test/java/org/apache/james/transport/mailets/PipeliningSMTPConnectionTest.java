@@ -0,0 +1,224 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.geronimo.javamail.transport.smtp.SMTPTransport;
+import org.apache.geronimo.javamail.util.ProtocolProperties;
+import org.junit.After;
+import org.junit.Test;
+
+public class PipeliningSMTPConnectionTest {
+
+    private ScriptedSMTPServer server;
+    private SMTPTransport transport;
+
+    @After
+    public void tearDown() throws Exception {
+        if (transport != null && transport.isConnected()) {
+            transport.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testCommandsArePipelinedIfAdvertised() throws Exception {
+        server = new ScriptedSMTPServer(true);
+        PooledSMTPTransport pooled = connect();
+
+        pooled.sendMessage(createMessage(), addresses("a@example.com", "b@example.com"));
+
+        assertEquals(Arrays.asList("C: MAIL FROM: <sender@example.com>", "C: RCPT TO: <a@example.com>", "C: RCPT TO: <b@example.com>", "S: 250", "S: 250", "S: 250", "C: DATA", "S: 354", "S: 250"), server.transaction());
+        assertTrue(pooled.isReusable());
+
+        // the connection is usable for the next transaction
+        pooled.reset();
+        pooled.sendMessage(createMessage(), addresses("c@example.com"));
+        assertEquals(Arrays.asList("C: RSET", "S: 250", "C: MAIL FROM: <sender@example.com>", "C: RCPT TO: <c@example.com>", "S: 250", "S: 250", "C: DATA", "S: 354", "S: 250"), server.transaction());
+        assertTrue(pooled.isReusable());
+    }
+
+    @Test
+    public void testCommandsAreNotPipelinedIfNotAdvertised() throws Exception {
+        server = new ScriptedSMTPServer(false);
+        PooledSMTPTransport pooled = connect();
+
+        pooled.sendMessage(createMessage(), addresses("a@example.com", "b@example.com"));
+
+        assertEquals(Arrays.asList("C: MAIL FROM: <sender@example.com>", "S: 250", "C: RCPT TO: <a@example.com>", "S: 250", "C: RCPT TO: <b@example.com>", "S: 250", "C: DATA", "S: 354", "S: 250"), server.transaction());
+        assertTrue(pooled.isReusable());
+    }
+
+    @Test
+    public void testRejectedMailFromMakesConnectionUnusable() throws Exception {
+        server = new ScriptedSMTPServer(true);
+        server.reject("sender@example.com");
+        PooledSMTPTransport pooled = connect();
+
+        try {
+            pooled.sendMessage(createMessage(), addresses("a@example.com", "b@example.com"));
+            fail("MAIL FROM should be rejected");
+        } catch (MessagingException e) {
+            // expected
+        }
+
+        assertEquals(Arrays.asList("C: MAIL FROM: <sender@example.com>", "C: RCPT TO: <a@example.com>", "C: RCPT TO: <b@example.com>", "S: 550", "S: 503", "S: 503"), server.transaction());
+        // the replies to the RCPT commands were never read
+        assertFalse(pooled.isReusable());
+    }
+
+    @Test
+    public void testRejectedRcptKeepsConnectionInSync() throws Exception {
+        server = new ScriptedSMTPServer(true);
+        server.reject("b@example.com");
+        PooledSMTPTransport pooled = connect();
+
+        try {
+            pooled.sendMessage(createMessage(), addresses("a@example.com", "b@example.com"));
+            fail("RCPT TO should be rejected");
+        } catch (SendFailedException e) {
+            assertEquals(1, e.getInvalidAddresses().length);
+        }
+
+        assertEquals(Arrays.asList("C: MAIL FROM: <sender@example.com>", "C: RCPT TO: <a@example.com>", "C: RCPT TO: <b@example.com>", "S: 250", "S: 250", "S: 550", "C: RSET", "S: 250"), server.transaction());
+        assertTrue(pooled.isReusable());
+
+        pooled.reset();
+        pooled.sendMessage(createMessage(), addresses("a@example.com"));
+        assertEquals(Arrays.asList("C: RSET", "S: 250", "C: MAIL FROM: <sender@example.com>", "C: RCPT TO: <a@example.com>", "S: 250", "S: 250", "C: DATA", "S: 354", "S: 250"), server.transaction());
+    }
+
+    @Test
+    public void testMismatchingRcptAbortsTransaction() throws Exception {
+        server = new ScriptedSMTPServer(true);
+        PlainTransport plain = new PlainTransport(server.getURLName());
+        transport = plain;
+        plain.connect();
+        plain.getPipeliningConnection().expectRecipients(Collections.singletonList("RCPT TO: <other@example.com>"));
+        server.transaction();
+
+        try {
+            plain.sendMessage(createMessage(), addresses("a@example.com"));
+            fail("Transaction should be aborted");
+        } catch (MessagingException e) {
+            // expected
+        }
+
+        // the reply of the pipelined line was consumed, but neither the
+        // other recipient nor the data were sent
+        assertEquals(Arrays.asList("C: MAIL FROM: <sender@example.com>", "C: RCPT TO: <other@example.com>", "S: 250", "S: 250"), server.transaction());
+        assertFalse(plain.getPipeliningConnection().endTransaction());
+    }
+
+    @Test
+    public void testAbortCommandSkipsPendingReplies() throws Exception {
+        server = new ScriptedSMTPServer(true);
+        PlainTransport plain = new PlainTransport(server.getURLName());
+        transport = plain;
+        plain.connect();
+        TestConnection connection = plain.getPipeliningConnection();
+        connection.expectRecipients(Arrays.asList("RCPT TO: <a@example.com>", "RCPT TO: <b@example.com>"));
+        server.transaction();
+
+        // the transport gives up after MAIL FROM and resets
+        connection.sendLine("MAIL FROM: <sender@example.com>");
+        connection.readLine();
+        connection.resetConnection();
+
+        assertEquals(Arrays.asList("C: MAIL FROM: <sender@example.com>", "C: RCPT TO: <a@example.com>", "C: RCPT TO: <b@example.com>", "S: 250", "S: 250", "S: 250", "C: RSET", "S: 250"), server.transaction());
+        assertTrue(connection.endTransaction());
+    }
+
+    private PooledSMTPTransport connect() throws Exception {
+        PooledSMTPTransport pooled = new PooledSMTPTransport(createSession(), server.getURLName(), "test");
+        transport = pooled;
+        pooled.connect();
+        pooled.setEnvelopeFrom("sender@example.com");
+        server.transaction();
+        return pooled;
+    }
+
+    private static Session createSession() {
+        Properties props = new Properties();
+        props.setProperty("mail.smtp.timeout", "5000");
+        props.setProperty("mail.smtp.from", "sender@example.com");
+        props.setProperty("mail.smtp.localhost", "localhost");
+        return Session.getInstance(props);
+    }
+
+    private static MimeMessage createMessage() throws MessagingException {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText("test");
+        message.saveChanges();
+        return message;
+    }
+
+    private static Address[] addresses(String... addresses) throws MessagingException {
+        Address[] result = new Address[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            result[i] = new InternetAddress(addresses[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Plain transport over a {@link PipeliningSMTPConnection}, which leaves
+     * the expected recipients to the test
+     */
+    private final static class PlainTransport extends SMTPTransport {
+
+        public PlainTransport(URLName url) {
+            super(createSession(), url, "smtp", DEFAULT_MAIL_SMTP_PORT, false);
+            connection = new TestConnection(props);
+        }
+
+        public TestConnection getPipeliningConnection() {
+            return (TestConnection) connection;
+        }
+    }
+
+    private final static class TestConnection extends PipeliningSMTPConnection {
+
+        public TestConnection(ProtocolProperties props) {
+            super(props);
+        }
+
+        public String readLine() throws MessagingException {
+            return receiveLine();
+        }
+    }
+}
@@ -0,0 +1,525 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.dnsservice.api.mock.MockDNSService;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.james.queue.api.mock.MockMailQueue;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.base.test.FakeMailetConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RemoteDeliveryTest {
+
+    private RecordingMailQueue queue;
+    private RecordingMailQueue retries;
+    private MemoryMailQueue bounces;
+    private BlockingDNSService dns;
+    private RecordingMailContext context;
+    private RemoteDelivery mailet;
+
+    @Before
+    public void setUp() {
+        queue = new RecordingMailQueue();
+        retries = new RecordingMailQueue();
+        bounces = new MemoryMailQueue();
+        dns = new BlockingDNSService();
+        context = new RecordingMailContext();
+    }
+
+    @After
+    public void tearDown() {
+        dns.release();
+        if (mailet != null) {
+            mailet.destroy();
+        }
+    }
+
+    @Test
+    public void testDestroyWaitsForStartedDelivery() throws Exception {
+        enqueue("a.com", "b.com", "c.com");
+        mailet = createMailet(10000, false);
+
+        assertTrue(dns.awaitLookup());
+        long start = System.currentTimeMillis();
+        releaseLater(200);
+        mailet.destroy();
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("destroy took " + elapsed + "ms", elapsed >= 150 && elapsed < 10000);
+        assertEquals(Collections.singletonList("a.com"), dns.getLookups());
+        // the started delivery completed, the rest of the batch was handed
+        // back without an attempt
+        assertEquals(Boolean.TRUE, queue.getDone("a.com"));
+        assertEquals(Boolean.FALSE, queue.getDone("b.com"));
+        assertEquals(Boolean.FALSE, queue.getDone("c.com"));
+    }
+
+    @Test
+    public void testDestroyReleasesScheduledMails() throws Exception {
+        enqueue("a.com", "b.com", "c.com");
+        mailet = createMailet(10000, true);
+
+        assertTrue(dns.awaitLookup());
+        releaseLater(200);
+        mailet.destroy();
+
+        assertEquals(Collections.singletonList("a.com"), dns.getLookups());
+        assertEquals(Boolean.TRUE, queue.getDone("a.com"));
+        // the mails of the other domains were buffered by the scheduler
+        assertEquals(Boolean.FALSE, queue.getDone("b.com"));
+        assertEquals(Boolean.FALSE, queue.getDone("c.com"));
+    }
+
+    @Test
+    public void testDestroyInterruptsDeliveryAfterTimeout() throws Exception {
+        enqueue("a.com", "b.com");
+        mailet = createMailet(300, false);
+
+        assertTrue(dns.awaitLookup());
+        long start = System.currentTimeMillis();
+        mailet.destroy();
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("destroy took " + elapsed + "ms", elapsed >= 250 && elapsed < 5000);
+        assertTrue(dns.awaitInterrupt());
+        // the interrupted thread hands back the rest of its batch
+        assertEquals(Boolean.FALSE, queue.awaitDone("b.com"));
+    }
+
+    @Test
+    public void test7BitRenditionIsSharedByAllServersOfOneAttempt() throws Exception {
+        ScriptedSMTPServer first = new ScriptedSMTPServer(false);
+        ScriptedSMTPServer second = new ScriptedSMTPServer(false);
+        try {
+            first.setDataReply("451 Try again later");
+            first.setEightBitMime(false);
+            second.setEightBitMime(false);
+            MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+            message.setText("gr\u00fc\u00dfe", "UTF-8");
+            message.saveChanges();
+            message.setHeader("Content-Transfer-Encoding", "8bit");
+            queue.enQueue(new MailImpl("mail", new MailAddress("sender@example.com"), Arrays.asList(new MailAddress("rcpt@a.com")), message));
+
+            final AtomicInteger conversions = new AtomicInteger();
+            Properties config = new Properties();
+            config.setProperty("gateway", "127.0.0.1:" + first.getPort() + ",127.0.0.1:" + second.getPort());
+            mailet = createMailet(new RemoteDelivery() {
+                @Override
+                protected MimeMessage get7BitRendition(MimeMessage message) throws MessagingException {
+                    conversions.incrementAndGet();
+                    return super.get7BitRendition(message);
+                }
+            }, 10000, false, config);
+
+            assertEquals(Boolean.TRUE, queue.awaitDone("a.com"));
+            assertEquals(1, conversions.get());
+            assertEquals(Collections.singletonList("quoted-printable"), first.getEncodings());
+            assertEquals(Collections.singletonList("quoted-printable"), second.getEncodings());
+            // the message of the mail is left untouched
+            assertEquals("8bit", message.getEncoding());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void testRetryDelayJitterBounds() throws Exception {
+        Properties config = new Properties();
+        config.setProperty("delayTime", "1000");
+        config.setProperty("retryJitter", "0.1");
+        mailet = createMailet(new RemoteDelivery(), 10000, false, config);
+
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            long delay = mailet.getNextDelay(1);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue("min delay " + min, min >= 900);
+        assertTrue("max delay " + max, max <= 1100);
+        // the delays are spread
+        assertTrue(min < max);
+    }
+
+    @Test
+    public void testNoJitter() throws Exception {
+        Properties config = new Properties();
+        config.setProperty("delayTime", "1000");
+        config.setProperty("retryJitter", "0");
+        mailet = createMailet(new RemoteDelivery(), 10000, false, config);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1000, mailet.getNextDelay(1));
+        }
+    }
+
+    @Test
+    public void testRetriesAreScheduled() throws Exception {
+        retries.hold();
+        Properties config = new Properties();
+        config.setProperty("retryQueue", "remotedeliverytest-retry");
+        config.setProperty("retryBatchSize", "3");
+        config.setProperty("dequeueBatchSize", "1");
+        config.setProperty("maxConcurrentPerDomain", "1");
+        mailet = createMailet(new RemoteDelivery(), 10000, true, config);
+        for (String local : new String[] { "x", "y", "z" }) {
+            MailImpl mail = createMail(local + "@a.com");
+            mail.setErrorMessage("1");
+            retries.enQueue(mail);
+        }
+        // the three retries are taken at once
+        retries.open();
+
+        assertTrue(dns.awaitLookup());
+        // one retry is in delivery, the scheduler allows no more for the
+        // domain and defers the others to the retry queue
+        assertTrue(retries.awaitDeferred(2));
+        assertEquals(Arrays.asList("1", "1"), retries.getDeferred());
+        assertEquals(Collections.emptyList(), queue.getDeferred());
+        dns.release();
+        assertEquals(Boolean.TRUE, retries.awaitDone("a.com"));
+        assertEquals(Collections.singletonList("a.com"), dns.getLookups());
+    }
+
+    @Test
+    public void testFailedDeferralDoesNotStrandTheBatch() throws Exception {
+        retries.hold();
+        retries.failDeferrals(1);
+        Properties config = new Properties();
+        config.setProperty("retryQueue", "remotedeliverytest-retry");
+        config.setProperty("retryBatchSize", "3");
+        config.setProperty("dequeueBatchSize", "1");
+        config.setProperty("maxConcurrentPerDomain", "1");
+        mailet = createMailet(new RemoteDelivery(), 10000, true, config);
+        for (String local : new String[] { "x", "y", "z" }) {
+            MailImpl mail = createMail(local + "@a.com");
+            mail.setErrorMessage("1");
+            retries.enQueue(mail);
+        }
+        retries.open();
+
+        assertTrue(dns.awaitLookup());
+        // the first deferral fails and its mail is released, the other one
+        // is still deferred
+        assertTrue(retries.awaitOutcomes(2));
+        assertEquals(Arrays.asList(Boolean.FALSE, Boolean.TRUE), retries.getOutcomes());
+        assertEquals(Collections.singletonList("1"), retries.getDeferred());
+    }
+
+    @Test
+    public void testBouncesOfTheCopiesOfOneMailAreMerged() throws Exception {
+        dns.release();
+        queue.enQueue(createMail("mail-to-a.com", "x@a.com"));
+        queue.enQueue(createMail("mail-to-b.com", "y@b.com"));
+        Properties config = new Properties();
+        config.setProperty("asyncBounce", "true");
+        config.setProperty("bounceCoalesceWindow", "500");
+        config.setProperty("bounceProcessor", "bounces");
+        mailet = createMailet(new RemoteDelivery(), 10000, false, config);
+
+        assertEquals(Boolean.TRUE, queue.awaitDone("a.com"));
+        assertEquals(Boolean.TRUE, queue.awaitDone("b.com"));
+        // the failed mails wait in the bounce queue for the coalesce window
+        long deadline = System.currentTimeMillis() + 5000;
+        while (context.getSendmails().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(1, context.getSendmails().size());
+        assertEquals(Arrays.asList(true, true), bounces.getOutcomes());
+        assertEquals(0, bounces.getSize());
+        Mail bounce = context.getSendmails().get(0).getMail();
+        assertEquals("bounces", bounce.getState());
+        assertEquals(Arrays.asList(new MailAddress("x@a.com"), new MailAddress("y@b.com")), new ArrayList<MailAddress>(bounce.getRecipients()));
+    }
+
+    private RemoteDelivery createMailet(long shutdownTimeout, boolean domainScheduling) throws MessagingException {
+        return createMailet(new RemoteDelivery(), shutdownTimeout, domainScheduling, new Properties());
+    }
+
+    private RemoteDelivery createMailet(RemoteDelivery remoteDelivery, long shutdownTimeout, boolean domainScheduling, Properties properties) throws MessagingException {
+        remoteDelivery.setDNSService(dns);
+        remoteDelivery.setMailQueueFactory(new MailQueueFactory() {
+            public MailQueue getQueue(String name) {
+                if (name.equals("remotedeliverytest-retry")) {
+                    return retries;
+                }
+                return name.equals("remotedeliverytest-bounces") ? bounces : queue;
+            }
+        });
+        FakeMailetConfig config = new FakeMailetConfig("RemoteDelivery", context);
+        config.setProperty("outgoing", "remotedeliverytest");
+        config.setProperty("deliveryThreads", "1");
+        config.setProperty("dequeueBatchSize", "3");
+        config.setProperty("shutdownTimeout", String.valueOf(shutdownTimeout));
+        config.setProperty("heloName", "localhost");
+        config.setProperty("mxHealthCache", "false");
+        config.setProperty("domainScheduling", String.valueOf(domainScheduling));
+        config.putAll(properties);
+        remoteDelivery.init(config);
+        return remoteDelivery;
+    }
+
+    private void enqueue(String... domains) throws MessagingException {
+        for (String domain : domains) {
+            queue.enQueue(createMail("rcpt@" + domain));
+        }
+    }
+
+    private MailImpl createMail(String recipient) throws MessagingException {
+        return createMail("mail-to-" + recipient, recipient);
+    }
+
+    private MailImpl createMail(String name, String recipient) throws MessagingException {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText("test");
+        message.saveChanges();
+        return new MailImpl(name, new MailAddress("sender@example.com"), Arrays.asList(new MailAddress(recipient)), message);
+    }
+
+    private void releaseLater(final long delay) {
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    // release now
+                }
+                dns.release();
+            }
+        }.start();
+    }
+
+    /**
+     * Queue which records the outcome of the dequeued mails by recipient
+     * domain. The name and the error message, which the mock queue drops,
+     * are kept by recipient. Deferred mails are only
+     * recorded, or fail if told so. Dequeuing can be held back
+     * to fill the queue first.
+     */
+    private final static class RecordingMailQueue extends MockMailQueue {
+        private final Map<String, Boolean> done = new LinkedHashMap<String, Boolean>();
+        private final Map<String, String> names = Collections.synchronizedMap(new HashMap<String, String>());
+        private final Map<String, String> errorMessages = Collections.synchronizedMap(new HashMap<String, String>());
+        private final List<String> deferred = new ArrayList<String>();
+        private final List<Boolean> outcomes = new ArrayList<Boolean>();
+        private volatile boolean held;
+        private int failDeferrals;
+
+        @Override
+        public void enQueue(Mail mail) throws MailQueueException {
+            names.put(getRecipient(mail), mail.getName());
+            errorMessages.put(getRecipient(mail), mail.getErrorMessage());
+            super.enQueue(mail);
+        }
+
+        @Override
+        public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+            synchronized (done) {
+                if (failDeferrals > 0) {
+                    failDeferrals--;
+                    throw new MailQueueException("Deferral failed");
+                }
+                deferred.add(mail.getErrorMessage());
+                done.notifyAll();
+            }
+            // the tests are done before the delay is over, so the mail is
+            // not queued again
+        }
+
+        @Override
+        public List<MailQueueItem> deQueue(int max, long timeout) throws MailQueueException {
+            List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+            if (held) {
+                try {
+                    Thread.sleep(Math.min(timeout, 50));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return items;
+            }
+            for (final MailQueueItem item : super.deQueue(max, timeout)) {
+                Mail mail = item.getMail();
+                mail.setName(names.get(getRecipient(mail)));
+                mail.setErrorMessage(errorMessages.get(getRecipient(mail)));
+                items.add(new MailQueueItem() {
+                    public Mail getMail() {
+                        return item.getMail();
+                    }
+
+                    public void done(boolean success) throws MailQueueException {
+                        synchronized (RecordingMailQueue.this.done) {
+                            RecordingMailQueue.this.done.put(getDomain(item.getMail()), success);
+                            outcomes.add(success);
+                            RecordingMailQueue.this.done.notifyAll();
+                        }
+                        item.done(success);
+                    }
+                });
+            }
+            return items;
+        }
+
+        public Boolean getDone(String domain) {
+            synchronized (done) {
+                return done.get(domain);
+            }
+        }
+
+        public List<String> getDeferred() {
+            synchronized (done) {
+                return new ArrayList<String>(deferred);
+            }
+        }
+
+        public boolean awaitDeferred(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            synchronized (done) {
+                while (deferred.size() < count && System.currentTimeMillis() < deadline) {
+                    done.wait(100);
+                }
+                return deferred.size() >= count;
+            }
+        }
+
+        public List<Boolean> getOutcomes() {
+            synchronized (done) {
+                return new ArrayList<Boolean>(outcomes);
+            }
+        }
+
+        public boolean awaitOutcomes(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            synchronized (done) {
+                while (outcomes.size() < count && System.currentTimeMillis() < deadline) {
+                    done.wait(100);
+                }
+                return outcomes.size() >= count;
+            }
+        }
+
+        public void failDeferrals(int count) {
+            synchronized (done) {
+                failDeferrals = count;
+            }
+        }
+
+        public void hold() {
+            held = true;
+        }
+
+        public void open() {
+            held = false;
+        }
+
+        public Boolean awaitDone(String domain) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            synchronized (done) {
+                while (!done.containsKey(domain) && System.currentTimeMillis() < deadline) {
+                    done.wait(100);
+                }
+                return done.get(domain);
+            }
+        }
+
+        private static String getDomain(Mail mail) {
+            return mail.getRecipients().iterator().next().getDomain();
+        }
+
+        private static String getRecipient(Mail mail) {
+            return mail.getRecipients().iterator().next().toString();
+        }
+    }
+
+    /**
+     * DNS which blocks the MX lookups until released, and then finds no MX
+     * record so the delivery fails permanently. Host names are resolved as
+     * usual.
+     */
+    private final static class BlockingDNSService extends MockDNSService {
+        private final List<String> lookups = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch looking = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final CountDownLatch interrupted = new CountDownLatch(1);
+
+        @Override
+        public Collection<String> findMXRecords(String hostname) {
+            lookups.add(hostname);
+            looking.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                Thread.currentThread().interrupt();
+            }
+            return Collections.emptyList();
+        }
+
+        @Override
+        public InetAddress[] getAllByName(String host) throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+
+        public boolean awaitLookup() throws InterruptedException {
+            return looking.await(5, TimeUnit.SECONDS);
+        }
+
+        public boolean awaitInterrupt() throws InterruptedException {
+            return interrupted.await(5, TimeUnit.SECONDS);
+        }
+
+        public void release() {
+            released.countDown();
+        }
+
+        public List<String> getLookups() {
+            return new ArrayList<String>(lookups);
+        }
+    }
+}
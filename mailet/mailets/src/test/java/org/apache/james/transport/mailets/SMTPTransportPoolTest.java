@@ -0,0 +1,361 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+
+import org.apache.james.transport.mailets.SMTPTransportPool.PoolExhaustedException;
+import org.junit.After;
+import org.junit.Test;
+
+public class SMTPTransportPoolTest {
+
+    private final static URLName SERVER = new URLName("smtp://mx.example.com:25");
+    private final static URLName OTHER_SERVER = new URLName("smtp://mx.example.org:25");
+
+    private final Session session = Session.getInstance(new Properties());
+    private StubPool pool;
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testPerHostLimit() throws Exception {
+        pool = new StubPool(2, 10, 0, 50);
+        PooledSMTPTransport first = pool.borrow(SERVER, session, null, null, "localhost");
+        PooledSMTPTransport second = pool.borrow(SERVER, session, null, null, "localhost");
+        assertNotSame(first, second);
+        assertEquals(2, pool.getActiveCount());
+
+        try {
+            pool.borrow(SERVER, session, null, null, "localhost");
+            fail("Limit of the host should be reached");
+        } catch (PoolExhaustedException e) {
+            // expected
+        }
+        assertEquals(1, pool.getBorrowTimeoutCount());
+        assertEquals(2, pool.getActiveCount());
+
+        // the limit is per destination
+        PooledSMTPTransport other = pool.borrow(OTHER_SERVER, session, null, null, "localhost");
+        assertEquals(3, pool.getActiveCount());
+
+        pool.release(first, true);
+        assertSame(first, pool.borrow(SERVER, session, null, null, "localhost"));
+        assertEquals(3, pool.getCreatedCount());
+        assertEquals(1, pool.getReusedCount());
+
+        pool.release(first, true);
+        pool.release(second, true);
+        pool.release(other, true);
+        assertEquals(0, pool.getActiveCount());
+        assertEquals(3, pool.getIdleCount());
+    }
+
+    @Test
+    public void testAuthenticatedConnect() throws Exception {
+        pool = new StubPool(1, 10, 0, 50);
+        StubTransport transport = (StubTransport) pool.borrow(SERVER, session, "user", "secret", "localhost");
+        assertEquals("user", transport.user);
+        pool.release(transport, true);
+    }
+
+    @Test
+    public void testFailedConnectReleasesPermit() throws Exception {
+        pool = new StubPool(1, 10, 0, 50);
+        pool.failConnect = true;
+        try {
+            pool.borrow(SERVER, session, null, null, "localhost");
+            fail("Connect should fail");
+        } catch (MessagingException e) {
+            // expected
+        }
+        assertEquals(0, pool.getActiveCount());
+
+        pool.failConnect = false;
+        PooledSMTPTransport transport = pool.borrow(SERVER, session, null, null, "localhost");
+        assertEquals(0, pool.getBorrowTimeoutCount());
+        pool.release(transport, true);
+    }
+
+    @Test
+    public void testConnectionIsRecycledAfterMaxMessages() throws Exception {
+        pool = new StubPool(1, 3, 0, 50);
+        StubTransport first = (StubTransport) pool.borrow(SERVER, session, null, null, "localhost");
+        for (int i = 0; i < 2; i++) {
+            pool.release(first, true);
+            assertFalse(first.closed);
+            assertSame(first, pool.borrow(SERVER, session, null, null, "localhost"));
+        }
+        pool.release(first, true);
+        assertEquals(3, first.getMessageCount());
+        assertTrue(first.closed);
+        assertEquals(0, pool.getIdleCount());
+
+        PooledSMTPTransport second = pool.borrow(SERVER, session, null, null, "localhost");
+        assertNotSame(first, second);
+        assertEquals(2, pool.getCreatedCount());
+        assertEquals(2, pool.getReusedCount());
+        pool.release(second, true);
+    }
+
+    @Test
+    public void testNonReusableReleaseClosesTransport() throws Exception {
+        pool = new StubPool(1, 10, 0, 50);
+        StubTransport first = (StubTransport) pool.borrow(SERVER, session, null, null, "localhost");
+        pool.release(first, false);
+        assertTrue(first.closed);
+        assertEquals(0, first.getMessageCount());
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getActiveCount());
+
+        // the permit was handed back
+        PooledSMTPTransport second = pool.borrow(SERVER, session, null, null, "localhost");
+        assertNotSame(first, second);
+        pool.release(second, true);
+    }
+
+    @Test
+    public void testOutOfSyncTransportIsNotPooled() throws Exception {
+        pool = new StubPool(1, 10, 0, 50);
+        StubTransport first = (StubTransport) pool.borrow(SERVER, session, null, null, "localhost");
+        first.reusable = false;
+        pool.release(first, true);
+        assertTrue(first.closed);
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void testBrokenIdleTransportIsReplaced() throws Exception {
+        pool = new StubPool(1, 10, 0, 50);
+        StubTransport first = (StubTransport) pool.borrow(SERVER, session, null, null, "localhost");
+        pool.release(first, true);
+        first.failReset = true;
+
+        PooledSMTPTransport second = pool.borrow(SERVER, session, null, null, "localhost");
+        assertNotSame(first, second);
+        assertTrue(first.closed);
+        assertEquals(0, pool.getReusedCount());
+        pool.release(second, true);
+    }
+
+    @Test
+    public void testExpiredIdleTransportIsReplaced() throws Exception {
+        pool = new StubPool(1, 10, 20, 50);
+        StubTransport first = (StubTransport) pool.borrow(SERVER, session, null, null, "localhost");
+        pool.release(first, true);
+        Thread.sleep(100);
+
+        PooledSMTPTransport second = pool.borrow(SERVER, session, null, null, "localhost");
+        assertNotSame(first, second);
+        assertTrue(first.closed);
+        pool.release(second, true);
+    }
+
+    @Test
+    public void testEvictionKeepsEntryOfWaitingBorrower() throws Exception {
+        pool = new StubPool(1, 10, 0, 1000);
+        final PooledSMTPTransport first = pool.borrow(SERVER, session, null, null, "localhost");
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        Thread waiter = new Thread() {
+            public void run() {
+                started.countDown();
+                try {
+                    result.set(pool.borrow(SERVER, session, null, null, "localhost"));
+                } catch (MessagingException e) {
+                    result.set(e);
+                }
+            }
+        };
+        waiter.start();
+        started.await();
+        // give the waiter the time to block on the permit
+        Thread.sleep(100);
+
+        // the entry has no idle connection but must survive as it is in use
+        pool.closeIdleConnections();
+        assertEquals(1, pool.getHostStatistics().length);
+
+        pool.release(first, true);
+        waiter.join(5000);
+        assertSame(first, result.get());
+
+        // the waiter holds the only permit of the entry
+        pool.closeIdleConnections();
+        try {
+            pool.borrow(SERVER, session, null, null, "localhost");
+            fail("Limit of the host should be reached");
+        } catch (PoolExhaustedException e) {
+            // expected
+        }
+
+        pool.release(first, true);
+        pool.closeIdleConnections();
+        assertTrue(((StubTransport) first).closed);
+        assertEquals(0, pool.getHostStatistics().length);
+    }
+
+    @Test
+    public void testConcurrentBorrowAndEviction() throws Exception {
+        pool = new StubPool(2, 1000, 0, 5000);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        for (int i = 0; i < 4; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 200; j++) {
+                            PooledSMTPTransport transport = pool.borrow(SERVER, session, null, null, "localhost");
+                            if (pool.getActiveCount() > 2) {
+                                throw new AssertionError("More than 2 connections active");
+                            }
+                            pool.release(transport, true);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        while (!done.await(1, TimeUnit.MILLISECONDS)) {
+            pool.closeIdleConnections();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(0, pool.getActiveCount());
+
+        pool.closeIdleConnections();
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getHostStatistics().length);
+    }
+
+    @Test
+    public void testCloseClosesReleasedTransports() throws Exception {
+        pool = new StubPool(2, 10, 0, 50);
+        StubTransport idle = (StubTransport) pool.borrow(SERVER, session, null, null, "localhost");
+        StubTransport active = (StubTransport) pool.borrow(SERVER, session, null, null, "localhost");
+        pool.release(idle, true);
+
+        pool.close();
+        assertTrue(idle.closed);
+        assertFalse(active.closed);
+
+        pool.release(active, true);
+        assertTrue(active.closed);
+        try {
+            pool.borrow(SERVER, session, null, null, "localhost");
+            fail("Pool is closed");
+        } catch (MessagingException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Pool which hands out transports that never open a socket
+     */
+    private final static class StubPool extends SMTPTransportPool {
+        private volatile boolean failConnect;
+
+        public StubPool(int maxPerHost, int maxMessagesPerConnection, long idleTimeout, long borrowTimeout) {
+            super(maxPerHost, maxMessagesPerConnection, idleTimeout, borrowTimeout);
+        }
+
+        @Override
+        protected PooledSMTPTransport createTransport(URLName server, Session session, String key, String localHost) {
+            StubTransport transport = new StubTransport(Session.getInstance(new Properties()), server, key);
+            transport.failConnect = failConnect;
+            return transport;
+        }
+    }
+
+    private final static class StubTransport extends PooledSMTPTransport {
+        private volatile boolean connected;
+        private volatile boolean closed;
+        private volatile boolean failConnect;
+        private volatile boolean failReset;
+        private volatile boolean reusable = true;
+        private String user;
+
+        public StubTransport(Session session, URLName url, String key) {
+            super(session, url, key);
+        }
+
+        @Override
+        public void connect() throws MessagingException {
+            connect(null, null, null);
+        }
+
+        @Override
+        public void connect(String host, String user, String password) throws MessagingException {
+            if (failConnect) {
+                throw new MessagingException("Connection refused");
+            }
+            this.user = user;
+            connected = true;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public void close() throws MessagingException {
+            connected = false;
+            closed = true;
+        }
+
+        @Override
+        public void reset() throws MessagingException {
+            if (failReset || !connected) {
+                throw new MessagingException("Connection lost");
+            }
+        }
+
+        @Override
+        public boolean isReusable() {
+            return reusable && connected;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.mail.URLName;
+
+/**
+ * SMTP server which records the commands and replies of one connection.
+ * If it announces PIPELINING the replies are only flushed once no more
+ * commands are coming in, so the transcript shows which commands were sent
+ * ahead.
+ */
+public class ScriptedSMTPServer extends Thread {
+    private final static long PIPELINE_WAIT = 200;
+
+    private final ServerSocket serverSocket;
+    private final boolean pipelining;
+    private final List<String> rejected = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> transcript = new ArrayList<String>();
+    private final List<String> encodings = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> pending = new LinkedList<String>();
+    private volatile String dataReply = "250 Queued";
+    private volatile boolean eightBitMime = true;
+    private Socket socket;
+
+    public ScriptedSMTPServer(boolean pipelining) throws IOException {
+        this.pipelining = pipelining;
+        serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        setDaemon(true);
+        start();
+    }
+
+    public URLName getURLName() {
+        return new URLName("smtp://127.0.0.1:" + serverSocket.getLocalPort());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Reject the MAIL FROM or RCPT TO commands for the given address
+     * 
+     * @param address
+     */
+    public void reject(String address) {
+        rejected.add("<" + address + ">");
+    }
+
+    /**
+     * Set whether the 8BITMIME extension is announced
+     * 
+     * @param eightBitMime
+     */
+    public void setEightBitMime(boolean eightBitMime) {
+        this.eightBitMime = eightBitMime;
+    }
+
+    /**
+     * Set the reply sent once the message data was received
+     * 
+     * @param dataReply
+     */
+    public void setDataReply(String dataReply) {
+        this.dataReply = dataReply;
+    }
+
+    /**
+     * Return the Content-Transfer-Encoding headers of the received messages
+     * 
+     * @return encodings
+     */
+    public List<String> getEncodings() {
+        return new ArrayList<String>(encodings);
+    }
+
+    /**
+     * Return the transcript since the last call, once the server waits for the
+     * next command
+     * 
+     * @return transcript
+     */
+    public List<String> transaction() throws InterruptedException {
+        synchronized (transcript) {
+            // the client got its last reply before the server recorded it
+            transcript.wait(100);
+            List<String> result = new ArrayList<String>(transcript);
+            transcript.clear();
+            return result;
+        }
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            socket = serverSocket.accept();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            OutputStream out = socket.getOutputStream();
+            reply("220 test ESMTP");
+            flush(out);
+
+            boolean mailRejected = false;
+            int recipients = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.toUpperCase();
+                record("C: " + line);
+                if (command.startsWith("EHLO")) {
+                    reply("250-test");
+                    if (pipelining) {
+                        reply("250-PIPELINING");
+                    }
+                    reply(eightBitMime ? "250 8BITMIME" : "250 HELP");
+                } else if (command.startsWith("HELO") || command.startsWith("NOOP")) {
+                    reply("250 Ok");
+                } else if (command.startsWith("MAIL FROM:")) {
+                    mailRejected = isRejected(line);
+                    reply(mailRejected ? "550 Sender rejected" : "250 Ok");
+                } else if (command.startsWith("RCPT TO:")) {
+                    if (mailRejected) {
+                        reply("503 Need MAIL command");
+                    } else if (isRejected(line)) {
+                        reply("550 Unknown user");
+                    } else {
+                        recipients++;
+                        reply("250 Ok");
+                    }
+                } else if (command.equals("DATA")) {
+                    if (recipients == 0) {
+                        reply("503 Need RCPT command");
+                    } else {
+                        reply("354 Go ahead");
+                        flush(out);
+                        while ((line = in.readLine()) != null && !line.equals(".")) {
+                            if (line.toLowerCase().startsWith("content-transfer-encoding:")) {
+                                encodings.add(line.substring(line.indexOf(':') + 1).trim());
+                            }
+                        }
+                        reply(dataReply);
+                        recipients = 0;
+                    }
+                } else if (command.equals("RSET")) {
+                    mailRejected = false;
+                    recipients = 0;
+                    reply("250 Ok");
+                } else if (command.equals("QUIT")) {
+                    reply("221 Bye");
+                    flush(out);
+                    break;
+                } else {
+                    reply("500 Unknown command");
+                }
+
+                if (pipelining && (command.startsWith("MAIL FROM:") || command.startsWith("RCPT TO:"))) {
+                    long end = System.currentTimeMillis() + PIPELINE_WAIT;
+                    while (!in.ready() && System.currentTimeMillis() < end) {
+                        Thread.sleep(10);
+                    }
+                    if (in.ready()) {
+                        continue;
+                    }
+                }
+                flush(out);
+            }
+        } catch (Exception e) {
+            // closed by the test
+        }
+    }
+
+    private boolean isRejected(String line) {
+        synchronized (rejected) {
+            for (String address : rejected) {
+                if (line.contains(address)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void record(String entry) {
+        synchronized (transcript) {
+            transcript.add(entry);
+        }
+    }
+
+    private void reply(String reply) {
+        pending.add(reply);
+    }
+
+    private void flush(OutputStream out) throws IOException {
+        for (String reply : pending) {
+            // multiline replies are recorded once
+            if (reply.charAt(3) != '-') {
+                record("S: " + reply.substring(0, 3));
+            }
+            out.write((reply + "\r\n").getBytes("ISO-8859-1"));
+        }
+        pending.clear();
+        out.flush();
+    }
+}
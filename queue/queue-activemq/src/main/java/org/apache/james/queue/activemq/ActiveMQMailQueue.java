@@ -18,12 +18,13 @@
  ****************************************************************/
 package org.apache.james.queue.activemq;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.List;
 import java.util.Map;
 
-import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
 import javax.jms.MapMessage;
@@ -35,16 +36,20 @@ import javax.jms.Queue;
 import javax.jms.Session;
 import javax.jms.TemporaryQueue;
 import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
 
 import org.apache.activemq.ActiveMQSession;
 import org.apache.activemq.BlobMessage;
+import org.apache.activemq.blob.BlobUploadStrategy;
 import org.apache.activemq.command.ActiveMQBlobMessage;
 import org.apache.activemq.util.JMSExceptionSupport;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
 import org.apache.james.core.MimeMessageInputStream;
 import org.apache.james.core.MimeMessageSource;
+import org.apache.james.core.MimeMessageWrapper;
 import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.jms.JMSMailQueue;
+import org.apache.james.queue.jms.JMSSessionPool;
 import org.apache.mailet.Mail;
 import org.slf4j.Logger;
 import org.springframework.jms.connection.SessionProxy;
@@ -104,7 +109,52 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
      * @param logger
      */
     public ActiveMQMailQueue(final ConnectionFactory connectionFactory, final String queuename, boolean useBlob, final Logger logger) {
-        super(connectionFactory, queuename, logger);
+        this(connectionFactory, queuename, useBlob, false, logger);
+    }
+
+    /**
+     * Construct a new ActiveMQ based {@link MailQueue}.
+     * 
+     * @param connectionFactory
+     * @param queuename
+     * @param useBlob
+     * @param useDelayQueue
+     *            if <code>true</code> delayed mails are kept in separate,
+     *            time bucketed queues until they are due
+     * @param logger
+     */
+    public ActiveMQMailQueue(final ConnectionFactory connectionFactory, final String queuename, boolean useBlob, boolean useDelayQueue, final Logger logger) {
+        super(connectionFactory, null, useDelayQueue, queuename, logger);
+        this.useBlob = useBlob;
+    }
+
+    /**
+     * Construct a new ActiveMQ based {@link MailQueue} which borrows its
+     * sessions from the given {@link JMSSessionPool}.
+     * 
+     * @param sessionPool
+     * @param queuename
+     * @param useBlob
+     * @param logger
+     */
+    public ActiveMQMailQueue(final JMSSessionPool sessionPool, final String queuename, boolean useBlob, final Logger logger) {
+        this(sessionPool, queuename, useBlob, false, logger);
+    }
+
+    /**
+     * Construct a new ActiveMQ based {@link MailQueue} which borrows its
+     * sessions from the given {@link JMSSessionPool}.
+     * 
+     * @param sessionPool
+     * @param queuename
+     * @param useBlob
+     * @param useDelayQueue
+     *            if <code>true</code> delayed mails are kept in separate,
+     *            time bucketed queues until they are due
+     * @param logger
+     */
+    public ActiveMQMailQueue(final JMSSessionPool sessionPool, final String queuename, boolean useBlob, boolean useDelayQueue, final Logger logger) {
+        super(sessionPool, null, useDelayQueue, queuename, logger);
         this.useBlob = useBlob;
     }
 
@@ -140,56 +190,39 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
      * Produce the mail to the JMS Queue
      */
     protected void produceMail(Session session, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
-        MessageProducer producer = null;
         BlobMessage blobMessage = null;
-        boolean reuse = false;
 
         try {
 
             // check if we should use a blob message here
             if (useBlob) {
                 ActiveMQSession amqSession = getAMQSession(session);
-                
-                /*
-                 * Remove this optimization as it could lead to problems when the same blob content
-                 * is shared across different messages. 
-                 * 
-                 * I still think it would be a good idea to somehow do this but at the moment it's just 
-                 * safer to disable it.
-                 * 
-                 * TODO: Re-Enable it again once it works!
-                 * 
-                 * See JAMES-1240
-                if (wrapper instanceof MimeMessageCopyOnWriteProxy) {
-                    wrapper = ((MimeMessageCopyOnWriteProxy) mm).getWrappedMessage();
-                }
-
-                if (wrapper instanceof MimeMessageWrapper) {
-                    URL blobUrl = (URL) mail.getAttribute(JAMES_BLOB_URL);
-                    String fromQueue = (String) mail.getAttribute(JAMES_QUEUE_NAME);
-                    MimeMessageWrapper mwrapper = (MimeMessageWrapper) wrapper;
 
-                    if (blobUrl != null && fromQueue != null && mwrapper.isModified() == false) {
-                        // the message content was not changed so don't need to
-                        // upload it again and can just point to the url
-                        blobMessage = amqSession.createBlobMessage(blobUrl);
-                        reuse = true;
-                    }
+                URL blobUrl = getReusableBlobUrl(amqSession, mail);
+                if (blobUrl != null) {
+                    // the message content was not changed so don't need to
+                    // upload it again and can just point to the url
+                    blobMessage = amqSession.createBlobMessage(blobUrl);
+                }
 
-                }*/
                 if (blobMessage == null) {
-                    // just use the MimeMessageInputStream which can read every
-                    // MimeMessage implementation
-                    blobMessage = amqSession.createBlobMessage(new MimeMessageInputStream(mail.getMessage()));
+                    File file = getUnmodifiedMessageFile(mail);
+                    if (file != null) {
+                        // the unmodified message is stored in a file, so let
+                        // the upload strategy transfer the file itself
+                        blobMessage = amqSession.createBlobMessage(file);
+                    } else {
+                        // just use the MimeMessageInputStream which can read
+                        // every MimeMessage implementation
+                        blobMessage = amqSession.createBlobMessage(new MimeMessageInputStream(mail.getMessage()));
+                    }
                 }
                  
                     
                 // store the queue name in the props
                 props.put(JAMES_QUEUE_NAME, queueName);
 
-                Queue queue = session.createQueue(queueName);
-
-                producer = session.createProducer(queue);
+                MessageProducer producer = getProducer(session, props);
                 for (Map.Entry<String, Object> entry : props.entrySet()) {
                     blobMessage.setObjectProperty(entry.getKey(), entry.getValue());
                 }
@@ -201,20 +234,76 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
                 super.produceMail(session, props, msgPrio, mail);
             }
         } catch (JMSException e) {
-            if (!reuse && blobMessage != null && blobMessage instanceof ActiveMQBlobMessage) {
+            if (blobMessage != null && blobMessage instanceof ActiveMQBlobMessage) {
+                // this releases the reference which was added for a reused
+                // blob as well
                 ((ActiveMQBlobMessage) blobMessage).deleteFile();
             }
             throw e;
-        } finally {
+        }
 
-            try {
-                if (producer != null)
-                    producer.close();
-            } catch (JMSException e) {
-                // ignore here
-            }
+    }
+
+    /**
+     * Return the file which holds the unmodified message of the given
+     * {@link Mail}, if it was loaded from a file backed
+     * {@link MimeMessageSource}
+     * 
+     * @param mail
+     * @return file or <code>null</code> if the message needs to get streamed
+     * @throws MessagingException
+     */
+    private File getUnmodifiedMessageFile(Mail mail) throws MessagingException {
+        MimeMessage message = mail.getMessage();
+        if (message instanceof MimeMessageCopyOnWriteProxy) {
+            message = ((MimeMessageCopyOnWriteProxy) message).getWrappedMessage();
+        }
+        if (message instanceof MimeMessageWrapper) {
+            return ((MimeMessageWrapper) message).getSourceFile();
+        }
+        return null;
+    }
+
+    /**
+     * Return the {@link URL} of the blob which holds the unmodified message of
+     * the given {@link Mail} and add a reference to it. This is only possible
+     * if the blobs are reference counted by a {@link FileSystemBlobStrategy}
+     * 
+     * @param amqSession
+     * @param mail
+     * @return url or <code>null</code> if the message needs to get uploaded
+     * @throws MessagingException
+     */
+    private URL getReusableBlobUrl(ActiveMQSession amqSession, Mail mail) throws MessagingException {
+        BlobUploadStrategy strategy = amqSession.getBlobTransferPolicy().getUploadStrategy();
+        Object url = mail.getAttribute(JAMES_BLOB_URL);
+        if (!(strategy instanceof FileSystemBlobStrategy) || url == null || mail.getAttribute(JAMES_QUEUE_NAME) == null) {
+            return null;
+        }
+
+        MimeMessage message = mail.getMessage();
+        if (message instanceof MimeMessageCopyOnWriteProxy) {
+            message = ((MimeMessageCopyOnWriteProxy) message).getWrappedMessage();
+        }
+        if (!(message instanceof MimeMessageWrapper)) {
+            return null;
+        }
+        MimeMessageWrapper wrapper = (MimeMessageWrapper) message;
+
+        // make sure the message was loaded from the blob and not changed since
+        // then
+        if (wrapper.isModified() || !url.toString().equals(wrapper.getSourceId())) {
+            return null;
         }
 
+        try {
+            URL blobUrl = new URL(url.toString());
+            ((FileSystemBlobStrategy) strategy).addReference(blobUrl);
+            return blobUrl;
+        } catch (IOException e) {
+            logger.debug("Unable to reuse blob " + url + " for mail " + mail.getName(), e);
+            return null;
+        }
     }
 
     /**
@@ -238,9 +327,33 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
     }
 
     @Override
-    protected MailQueueItem createMailQueueItem(Connection connection, Session session, MessageConsumer consumer, Message message) throws JMSException, MessagingException {
+    protected MailQueueItem createMailQueueItem(Session session, Message message) throws JMSException, MessagingException {
         Mail mail = createMail(message);
-        return new ActiveMQMailQueueItem(mail, connection, session, consumer, message, logger);
+        return new ActiveMQMailQueueItem(mail, sessionPool, session, message, logger);
+    }
+
+    /**
+     * Delete the blob file of a successfully processed {@link BlobMessage}
+     * 
+     * @see ActiveMQMailQueueItem#done(boolean)
+     */
+    @Override
+    protected void batchItemDone(Message message, Mail mail, boolean success) {
+        if (success) {
+            if (message instanceof ActiveMQBlobMessage && mail.getAttribute(JAMES_REUSE_BLOB_URL) == null) {
+
+                // This should get removed once this jira issue was fixed
+                // https://issues.apache.org/activemq/browse/AMQ-1529
+                try {
+                    ((ActiveMQBlobMessage) message).deleteFile();
+                } catch (IOException e) {
+                    logger.info("Unable to delete blob message file for mail " + mail.getName());
+                } catch (JMSException e) {
+                    logger.info("Unable to delete blob message file for mail " + mail.getName());
+                }
+            }
+            mail.removeAttribute(JAMES_REUSE_BLOB_URL);
+        }
     }
 
     @Override
@@ -280,28 +393,38 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
 
     /**
      * Try to use ActiveMQ StatisticsPlugin to get size and if that fails
-     * fallback to {@link JMSMailQueue#getSize()}
+     * fallback to {@link JMSMailQueue#getQueueSize(String)}
      */
     @Override
-    public long getSize() throws MailQueueException {
+    protected long getQueueSize(String name) throws MailQueueException {
+        long size = getBrokerQueueSize(name);
+        if (size >= 0) {
+            return size;
+        }
+        // if we came to this point we should just fallback to super method
+        return super.getQueueSize(name);
+    }
+
+    /**
+     * Use the ActiveMQ StatisticsPlugin to get the size
+     *
+     * @return size or -1 if the plugin is not enabled
+     */
+    @Override
+    protected long getBrokerQueueSize(String name) throws MailQueueException {
 
-        Connection connection = null;
         Session session = null;
         MessageConsumer consumer = null;
-        MessageProducer producer = null;
         TemporaryQueue replyTo = null;
         long size;
 
         try {
-            connection = connectionFactory.createConnection();
-            connection.start();
-
-            session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            session = sessionPool.borrowSession(false);
             replyTo = session.createTemporaryQueue();
             consumer = session.createConsumer(replyTo);
 
-            Queue myQueue = session.createQueue(queueName);
-            producer = session.createProducer(null);
+            Queue myQueue = session.createQueue(name);
+            MessageProducer producer = sessionPool.getProducer(session, null);
 
             String queueName = "ActiveMQ.Statistics.Destination." + myQueue.getQueueName();
             Queue query = session.createQueue(queueName);
@@ -321,7 +444,11 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
             }
 
         } catch (Exception e) {
-            throw new MailQueueException("Unable to remove mails", e);
+            if (session != null) {
+                sessionPool.invalidateSession(session);
+            }
+            session = null;
+            throw new MailQueueException("Unable to get size of queue " + name, e);
 
         } finally {
 
@@ -335,15 +462,6 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
                 }
             }
 
-            if (producer != null) {
-
-                try {
-                    producer.close();
-                } catch (JMSException e1) {
-                    // ignore on rollback
-                }
-            }
-
             if (replyTo != null) {
                 try {
 
@@ -355,23 +473,12 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
                 } catch (JMSException e) {
                 }
             }
-            try {
-                if (session != null)
-                    session.close();
-            } catch (JMSException e1) {
-                // ignore here
-            }
-
-            try {
-                if (connection != null)
-                    connection.close();
-            } catch (JMSException e1) {
-                // ignore here
+            if (session != null) {
+                sessionPool.returnSession(session);
             }
         }
 
-        // if we came to this point we should just fallback to super method
-        return super.getSize();
+        return -1;
     }
 
 }
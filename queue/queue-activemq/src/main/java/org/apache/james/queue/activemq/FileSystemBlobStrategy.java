@@ -25,8 +25,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
 
 import javax.jms.JMSException;
+import javax.mail.util.SharedFileInputStream;
 
 import org.apache.activemq.BlobMessage;
 import org.apache.activemq.blob.BlobDownloadStrategy;
@@ -40,9 +46,20 @@ import org.apache.james.filesystem.api.FileSystem;
  * {@link BlobUploadStrategy} and {@link BlobDownloadStrategy} implementation
  * which use the {@link FileSystem} to lookup the {@link File} for the
  * {@link BlobMessage}
+ * <p/>
+ * The files are content-addressed, so the same content is only stored once.
+ * Every file has a reference count which is kept in a <code>.ref</code> file
+ * next to it. A file is only deleted once the last {@link BlobMessage} which
+ * references it was deleted. Use {@link #addReference(URL)} when a new
+ * {@link BlobMessage} is created for the URL of an already stored file.
  */
 public class FileSystemBlobStrategy implements BlobUploadStrategy, BlobDownloadStrategy, ActiveMQSupport {
 
+    private final static String DIGEST_ALGORITHM = "SHA-256";
+    private final static String REF_SUFFIX = ".ref";
+    private final static String TMP_SUFFIX = ".tmp";
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
     private final FileSystem fileSystem;
     private final BlobTransferPolicy policy;
     private final int splitCount;
@@ -56,23 +73,54 @@ public class FileSystemBlobStrategy implements BlobUploadStrategy, BlobDownloadS
 
     @Override
     public URL uploadFile(ActiveMQBlobMessage message, File file) throws JMSException, IOException {
-        return uploadStream(message, new FileInputStream(file));
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return uploadChannel(in.getChannel());
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore on close
+            }
+        }
     }
 
     @Override
     public URL uploadStream(ActiveMQBlobMessage message, InputStream in) throws JMSException, IOException {
+        if (in instanceof FileInputStream) {
+            // the content is already stored in a file so let the channel
+            // transfer it
+            try {
+                return uploadChannel(((FileInputStream) in).getChannel());
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+
         FileOutputStream out = null;
+        File tmp = null;
         try {
-            File f = getFile(message);
-            out = new FileOutputStream(f);
+            MessageDigest digest = createDigest();
+
+            // stream the content to a temporary file first as we don't know
+            // the hash of it yet
+            tmp = getTemporaryFile();
+            out = new FileOutputStream(tmp);
             byte[] buffer = new byte[policy.getBufferSize()];
             for (int c = in.read(buffer); c != -1; c = in.read(buffer)) {
                 out.write(buffer, 0, c);
-                out.flush();
+                digest.update(buffer, 0, c);
             }
-            out.flush();
-            // File.toURL() is deprecated
-            return f.toURI().toURL();
+            out.close();
+            out = null;
+
+            URL url = store(tmp, toHex(digest.digest()));
+            tmp = null;
+            return url;
         } finally {
             if (in != null) {
                 try {
@@ -88,24 +136,144 @@ public class FileSystemBlobStrategy implements BlobUploadStrategy, BlobDownloadS
                     // ignore on close
                 }
             }
+            if (tmp != null) {
+                FileUtils.deleteQuietly(tmp);
+            }
+        }
+
+    }
+
+    /**
+     * Upload the remaining content of the given {@link FileChannel}. The hash
+     * is calculated first, so nothing needs to get written if the content is
+     * already stored. Otherwise the content is copied via
+     * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+     * which lets the operating system copy the data without passing it through
+     * the heap.
+     */
+    private URL uploadChannel(FileChannel source) throws IOException {
+        long start = source.position();
+        long size = source.size() - start;
+
+        MessageDigest digest = createDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(policy.getBufferSize());
+        long pos = start;
+        for (int c = source.read(buffer, pos); c != -1; c = source.read(buffer, pos)) {
+            pos += c;
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+        String hash = toHex(digest.digest());
+
+        File f = getContentFile(hash);
+        synchronized (lock) {
+            if (f.exists()) {
+                writeReferences(f, readReferences(f) + 1);
+                return f.toURI().toURL();
+            }
+        }
+
+        File tmp = getTemporaryFile();
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            FileChannel target = out.getChannel();
+            long transferred = 0;
+            while (transferred < size) {
+                transferred += source.transferTo(start + transferred, size - transferred, target);
+            }
+            out.close();
+            out = null;
+
+            URL url = store(tmp, hash);
+            tmp = null;
+            return url;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+            if (tmp != null) {
+                FileUtils.deleteQuietly(tmp);
+            }
+        }
+    }
+
+    /**
+     * Move the uploaded temporary file to the {@link File} for the content
+     * with the given hash, or just add a reference if the content is already
+     * stored
+     *
+     * @return url
+     */
+    private URL store(File tmp, String hash) throws IOException {
+        File f = getContentFile(hash);
+        synchronized (lock) {
+            if (f.exists()) {
+                // same content is already stored so just reference it
+                FileUtils.forceDelete(tmp);
+                writeReferences(f, readReferences(f) + 1);
+            } else {
+                if (!tmp.renameTo(f)) {
+                    throw new IOException("Unable to move " + tmp + " to " + f);
+                }
+                writeReferences(f, 1);
+            }
         }
 
+        // File.toURL() is deprecated
+        return f.toURI().toURL();
     }
 
+    /**
+     * Add a reference to the already stored file with the given {@link URL}.
+     * This must be called before a new {@link BlobMessage} is created for the
+     * {@link URL}, so the file is not deleted before this {@link BlobMessage}
+     * was deleted too.
+     *
+     * @param url
+     * @throws IOException
+     *             if no file is stored for the {@link URL}
+     */
+    public void addReference(URL url) throws IOException {
+        File f = fileSystem.getFile(url.toString());
+        synchronized (lock) {
+            if (!f.exists()) {
+                throw new FileNotFoundException("No blob stored for " + url);
+            }
+            writeReferences(f, readReferences(f) + 1);
+        }
+    }
+
+    /**
+     * Remove one reference to the file of the {@link BlobMessage} and delete
+     * the file if it was the last one
+     */
     @Override
     public void deleteFile(ActiveMQBlobMessage message) throws IOException, JMSException {
         File f = getFile(message);
         synchronized (lock) {
-            FileUtils.forceDelete(f);
+            int references = readReferences(f) - 1;
+            if (references > 0) {
+                writeReferences(f, references);
+            } else {
+                FileUtils.forceDelete(f);
+                FileUtils.deleteQuietly(getReferenceFile(f));
+            }
         }
     }
 
     /**
-     * Returns a {@link FileInputStream} for the give {@link BlobMessage}
+     * Returns a {@link SharedFileInputStream} for the give {@link BlobMessage}.
+     * This allows the parser of the message to keep references to the parts
+     * of the file instead of copying their content
      */
     @Override
     public InputStream getInputStream(ActiveMQBlobMessage message) throws IOException, JMSException {
-        return new FileInputStream(getFile(message));
+        return new SharedFileInputStream(getFile(message), policy.getBufferSize());
     }
 
     /**
@@ -127,7 +295,33 @@ public class FileSystemBlobStrategy implements BlobUploadStrategy, BlobDownloadS
         // we try to stream from and to the same mail
         String filename = message.getJMSMessageID().replaceAll("[:\\\\/*?|<>]", "_");
         int i = (int) (Math.random() * splitCount + 1);
+        return fileSystem.getFile(getFolder(i) + "/" + filename);
+    }
 
+    /**
+     * Return a new {@link File} to which content is uploaded before its hash
+     * is known
+     */
+    private File getTemporaryFile() throws IOException {
+        int i = (int) (Math.random() * splitCount + 1);
+        return fileSystem.getFile(getFolder(i) + "/" + UUID.randomUUID() + TMP_SUFFIX);
+    }
+
+    /**
+     * Return the {@link File} for the content with the given hash. The folder
+     * is derived from the hash, so the same content always maps to the same
+     * {@link File}
+     */
+    private File getContentFile(String hash) throws IOException {
+        int i = Integer.parseInt(hash.substring(0, 4), 16) % splitCount + 1;
+        return fileSystem.getFile(getFolder(i) + "/" + hash);
+    }
+
+    /**
+     * Return the url of the folder with the given index and create it if
+     * needed
+     */
+    private String getFolder(int i) throws IOException {
         String queueUrl = policy.getUploadUrl() + "/" + i;
 
         File queueF = fileSystem.getFile(queueUrl);
@@ -136,7 +330,47 @@ public class FileSystemBlobStrategy implements BlobUploadStrategy, BlobDownloadS
             // check if we need to create the queue folder
             FileUtils.forceMkdir(queueF);
         }
+        return queueUrl;
+    }
+
+    private File getReferenceFile(File f) {
+        return new File(f.getParentFile(), f.getName() + REF_SUFFIX);
+    }
+
+    /**
+     * Read the reference count of the given file. Files which were stored
+     * without one have exactly one reference
+     */
+    private int readReferences(File f) throws IOException {
+        File refFile = getReferenceFile(f);
+        if (!refFile.exists()) {
+            return 1;
+        }
+        try {
+            return Integer.parseInt(FileUtils.readFileToString(refFile, "US-ASCII").trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid reference count in " + refFile, e);
+        }
+    }
+
+    private void writeReferences(File f, int references) throws IOException {
+        FileUtils.writeStringToFile(getReferenceFile(f), Integer.toString(references), "US-ASCII");
+    }
 
-        return fileSystem.getFile(queueUrl + "/" + filename);
+    private MessageDigest createDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to create digest " + DIGEST_ALGORITHM, e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return new String(chars);
     }
 }
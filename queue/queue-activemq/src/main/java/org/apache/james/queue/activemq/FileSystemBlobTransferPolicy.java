@@ -52,10 +52,15 @@ public class FileSystemBlobTransferPolicy extends BlobTransferPolicy {
     public BlobTransferPolicy copy() {
         FileSystemBlobTransferPolicy that = new FileSystemBlobTransferPolicy();
         that.setFileSystem(fileSystem);
+        that.setSplitCount(splitCount);
         that.setDefaultUploadUrl(getDefaultUploadUrl());
         that.setBrokerUploadUrl(getBrokerUploadUrl());
         that.setUploadUrl(getUploadUrl());
         that.setUploadStrategy(getUploadStrategy());
+
+        // share the strategy so the reference counts of the blobs are
+        // guarded by the same lock
+        that.strategy = getStrategy();
         return that;
     }
 
@@ -20,6 +20,8 @@ package org.apache.james.queue.activemq;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
 
 import javax.jms.JMSException;
 
@@ -36,7 +38,20 @@ public class MimeMessageBlobMessageSource extends MimeMessageSource implements A
 
     public MimeMessageBlobMessageSource(BlobMessage message) throws JMSException {
         this.message = message;
-        this.sourceId = message.getJMSMessageID();
+
+        // use the URL of the blob if possible as it identifies the content,
+        // which may be shared by different messages
+        URL url = null;
+        try {
+            url = message.getURL();
+        } catch (MalformedURLException e) {
+            // fallback to the message id
+        }
+        if (url != null) {
+            this.sourceId = url.toString();
+        } else {
+            this.sourceId = message.getJMSMessageID();
+        }
     }
 
     /**
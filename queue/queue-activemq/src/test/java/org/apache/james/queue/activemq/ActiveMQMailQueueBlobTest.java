@@ -18,15 +18,29 @@
  ****************************************************************/
 package org.apache.james.queue.activemq;
 
+import static org.junit.Assert.assertEquals;
+
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.UUID;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.command.ActiveMQBlobMessage;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.james.core.MailImpl;
+import org.apache.james.core.MimeMessageInputStream;
+import org.apache.james.core.MimeMessageSource;
+import org.apache.james.core.MimeMessageWrapper;
 import org.apache.james.filesystem.api.FileSystem;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
 import org.apache.james.queue.jms.JMSMailQueue;
+import org.apache.mailet.Mail;
+import org.junit.Test;
 
 import com.google.common.base.Throwables;
 
@@ -76,6 +90,168 @@ public class ActiveMQMailQueueBlobTest extends ActiveMQMailQueueTest {
         return true;
     }
 
+    @Test
+    public void testBlobReuse() throws Exception {
+        JMSMailQueue queue2 = createQueue(createConnectionFactory(), QUEUE_NAME + "-reuse");
+        try {
+            int blobs = countBlobs();
+            Mail mail = createMail();
+            queue.enQueue(mail);
+            assertEquals(blobs + 1, countBlobs());
+
+            // move the unmodified mail to the other queue
+            MailQueueItem item = queue.deQueue();
+            queue2.enQueue(item.getMail());
+            item.done(true);
+
+            // the blob is still referenced by the second queue
+            assertEquals(blobs + 1, countBlobs());
+
+            MailQueueItem item2 = queue2.deQueue();
+            checkMail(mail, item2.getMail());
+            item2.done(true);
+            assertEquals(blobs, countBlobs());
+        } finally {
+            LifecycleUtil.dispose(queue2);
+        }
+    }
+
+    @Test
+    public void testBlobDeduplication() throws Exception {
+        int blobs = countBlobs();
+        MailImpl mail = createMail();
+        MailImpl mail2 = createMail();
+        mail2.setMessage(mail.getMessage());
+
+        queue.enQueue(mail);
+        queue.enQueue(mail2);
+
+        // the same content is only stored once
+        assertEquals(blobs + 1, countBlobs());
+
+        MailQueueItem item = queue.deQueue();
+        item.done(true);
+        assertEquals(blobs + 1, countBlobs());
+
+        MailQueueItem item2 = queue.deQueue();
+        checkMail(mail2, item2.getMail());
+        item2.done(true);
+        assertEquals(blobs, countBlobs());
+    }
+
+    @Test
+    public void testFileUpload() throws Exception {
+        FileSystemBlobTransferPolicy policy = new FileSystemBlobTransferPolicy();
+        policy.setFileSystem(fs);
+        policy.setDefaultUploadUrl(BASE_DIR);
+        FileSystemBlobStrategy strategy = (FileSystemBlobStrategy) policy.getUploadStrategy();
+
+        File file = File.createTempFile("blob", ".eml");
+        try {
+            FileUtils.writeStringToFile(file, "Subject: test\r\n\r\n" + UUID.randomUUID(), "US-ASCII");
+            int blobs = countBlobs();
+
+            ActiveMQBlobMessage message = new ActiveMQBlobMessage();
+            message.setJMSMessageID("ID:test-file-1");
+            message.setURL(strategy.uploadFile(message, file));
+
+            ActiveMQBlobMessage message2 = new ActiveMQBlobMessage();
+            message2.setJMSMessageID("ID:test-file-2");
+            message2.setURL(strategy.uploadStream(message2, new FileInputStream(file)));
+
+            assertEquals(message.getURL(), message2.getURL());
+            assertEquals(blobs + 1, countBlobs());
+
+            InputStream in = strategy.getInputStream(message2);
+            try {
+                assertEquals(FileUtils.readFileToString(file, "US-ASCII"), IOUtils.toString(in, "US-ASCII"));
+            } finally {
+                in.close();
+            }
+
+            strategy.deleteFile(message);
+            assertEquals(blobs + 1, countBlobs());
+            strategy.deleteFile(message2);
+            assertEquals(blobs, countBlobs());
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    @Test
+    public void testEnQueueFileBackedMessage() throws Exception {
+        File file = File.createTempFile("blob", ".eml");
+        try {
+            String content = "Subject: test\r\n\r\n" + UUID.randomUUID();
+            FileUtils.writeStringToFile(file, content, "US-ASCII");
+            FileSource source = new FileSource(file);
+            MailImpl mail = createMail();
+            mail.setMessage(new MimeMessageWrapper(source));
+            int blobs = countBlobs();
+
+            queue.enQueue(mail);
+
+            // the file was uploaded without streaming the message
+            assertEquals(0, source.opened);
+            assertEquals(blobs + 1, countBlobs());
+
+            MailQueueItem item = queue.deQueue();
+            assertEquals(content, IOUtils.toString(new MimeMessageInputStream(item.getMail().getMessage()), "US-ASCII"));
+            item.done(true);
+            assertEquals(blobs, countBlobs());
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    private int countBlobs() throws IOException {
+        File dir = fs.getFile(BASE_DIR);
+        if (!dir.exists()) {
+            return 0;
+        }
+        int count = 0;
+        for (File file : FileUtils.listFiles(dir, null, true)) {
+            if (!file.getName().endsWith(".ref")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * {@link MimeMessageSource} which counts how often its file was opened
+     */
+    private final static class FileSource extends MimeMessageSource {
+
+        private final File file;
+        private int opened;
+
+        public FileSource(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public String getSourceId() {
+            return file.getAbsolutePath();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            opened++;
+            return new FileInputStream(file);
+        }
+
+        @Override
+        public long getMessageSize() throws IOException {
+            return file.length();
+        }
+
+        @Override
+        public File getFile() {
+            return file;
+        }
+    }
+
     private final class MyFileSystem implements FileSystem {
 
         @Override
@@ -19,6 +19,7 @@
 
 package org.apache.james.queue.api;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import javax.mail.MessagingException;
@@ -91,6 +92,26 @@ public interface MailQueue {
      */
     MailQueueItem deQueue() throws MailQueueException;
 
+    /**
+     * Dequeue up to <code>max</code> ready-to-process Mails of the queue. This
+     * method will block until at least one Mail is ready or the timeout
+     * elapsed, and then return all Mails which are ready at this time without
+     * waiting any further.
+     * <p>
+     * {@link MailQueueItem#done(boolean)} MUST get called for every returned
+     * item. Implementations are free to acknowledge the whole batch at once
+     * after the last item was done.
+     * </p>
+     * 
+     * @param max
+     *            the maximal count of Mails to dequeue
+     * @param timeout
+     *            the maximal time in milliseconds to wait for the first Mail
+     * @return items the dequeued items, which is empty if the timeout elapsed
+     * @throws MailQueueException
+     */
+    List<MailQueueItem> deQueue(int max, long timeout) throws MailQueueException;
+
     /**
      * Exception which will get thrown if any problems occur while working the
      * {@link MailQueue}
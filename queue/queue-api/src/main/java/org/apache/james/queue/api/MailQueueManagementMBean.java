@@ -31,6 +31,40 @@ public interface MailQueueManagementMBean {
      */
     long getSize() throws Exception;
 
+    /**
+     * Return the count of mails which are ready for dequeue or -1 if the
+     * count is not maintained by the queue. This does not scan the queue.
+     * 
+     * @return readyCount
+     */
+    long getReadyCount() throws Exception;
+
+    /**
+     * Return the count of mails which are delayed or -1 if the count is not
+     * maintained by the queue. This does not scan the queue.
+     * 
+     * @return delayedCount
+     */
+    long getDelayedCount() throws Exception;
+
+    /**
+     * Return the count of mails which were dequeued but are not done yet or -1
+     * if the count is not maintained by the queue. This does not scan the
+     * queue.
+     * 
+     * @return inFlightCount
+     */
+    long getInFlightCount() throws Exception;
+
+    /**
+     * Return the age in milliseconds of the oldest mail in the queue, 0 if
+     * the queue is empty or -1 if the age is not maintained by the queue.
+     * This does not scan the queue.
+     * 
+     * @return oldestAge
+     */
+    long getOldestAge() throws Exception;
+
     /**
      * Flush queue to make every Mail ready to consume.
      * 
@@ -79,4 +113,24 @@ public interface MailQueueManagementMBean {
      */
     List<CompositeData> browse() throws Exception;
 
+    /**
+     * Browse a page of the mails which match the given type and value. If the
+     * queue implements {@link PagedBrowseSupport} only the mails of the page
+     * get loaded, otherwise the whole queue is browsed.
+     * 
+     * @param type
+     *            one of <code>name</code>, <code>sender</code> or
+     *            <code>recipient</code>, or an empty value to browse all mails
+     * @param value
+     *            the value to filter by. A recipient without an @ matches all
+     *            recipients of the domain
+     * @param offset
+     *            the number of matching mails to skip
+     * @param limit
+     *            the maximal number of mails to return
+     * @return data
+     * @throws Exception
+     */
+    List<CompositeData> browsePage(String type, String value, int offset, int limit) throws Exception;
+
 }
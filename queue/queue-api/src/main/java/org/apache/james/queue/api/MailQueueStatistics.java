@@ -0,0 +1,56 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+/**
+ * Statistics of a {@link MailQueue} which are maintained while mails are
+ * enqueued and dequeued, so they can be read without scanning the queue
+ */
+public interface MailQueueStatistics {
+
+    /**
+     * Return the count of mails which are ready for dequeue
+     * 
+     * @return readyCount
+     */
+    long getReadyCount();
+
+    /**
+     * Return the count of mails which are delayed and so not ready for
+     * dequeue yet
+     * 
+     * @return delayedCount
+     */
+    long getDelayedCount();
+
+    /**
+     * Return the count of mails which were dequeued but not marked as done yet
+     * 
+     * @return inFlightCount
+     */
+    long getInFlightCount();
+
+    /**
+     * Return the age in milliseconds of the oldest mail in the queue, or 0 if
+     * the queue is empty
+     * 
+     * @return oldestAge
+     */
+    long getOldestAge();
+}
@@ -0,0 +1,49 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueIterator;
+import org.apache.james.queue.api.ManageableMailQueue.Type;
+
+/**
+ * {@link ManageableMailQueue} which can select the mails to browse by itself,
+ * so only the mails of the requested page need to get loaded
+ */
+public interface PagedBrowseSupport {
+
+    /**
+     * Browse a page of the mails which match the given {@link Type} and value.
+     * A {@link Type#Recipient} value without an @ matches all mails which have
+     * at least one recipient in the given domain.
+     * 
+     * @param type
+     *            the type to filter by, or <code>null</code> to browse all
+     *            mails
+     * @param value
+     *            the value to filter by
+     * @param offset
+     *            the number of matching mails to skip
+     * @param limit
+     *            the maximal number of mails to return
+     * @return iterator
+     * @throws MailQueueException
+     */
+    MailQueueIterator browse(Type type, String value, int offset, int limit) throws MailQueueException;
+}
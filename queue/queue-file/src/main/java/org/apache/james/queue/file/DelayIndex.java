@@ -0,0 +1,291 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+
+import com.google.common.io.Closeables;
+
+/**
+ * On-disk index of delayed {@link org.apache.mailet.Mail}'s which is used by
+ * {@link FileMailQueue}.
+ * <p/>
+ * The index is a two level timing wheel. Delayed keys are appended to one
+ * bucket file per {@link #BUCKET_MILLIS}, so only the list of non-empty buckets
+ * is kept in memory. Once a bucket is due its content is loaded into an in
+ * memory wheel with one slot per {@link #SLOT_MILLIS}, from which the keys get
+ * promoted in batches on every {@link #tick()}.
+ */
+public class DelayIndex {
+
+    /**
+     * Callback which gets the due keys handed over
+     */
+    public interface Promoter {
+
+        /**
+         * Make the given key ready for dequeue
+         *
+         * @param key
+         * @return promoted <code>false</code> if the key is not part of the
+         *         queue anymore
+         */
+        boolean promote(String key);
+    }
+
+    private final static String BUCKET_EXTENSION = ".delay";
+    private final static long BUCKET_MILLIS = 60 * 1000;
+    private final static long SLOT_MILLIS = 1000;
+
+    private final File dir;
+    private final boolean sync;
+    private final Logger log;
+    private final Promoter promoter;
+
+    private final TreeSet<Long> buckets = new TreeSet<Long>();
+    private final TreeSet<Long> loadedBuckets = new TreeSet<Long>();
+    private final TreeMap<Long, List<String>> slots = new TreeMap<Long, List<String>>();
+    private long loadedUntil;
+
+    public DelayIndex(File dir, boolean sync, Promoter promoter, Logger log) {
+        this.dir = dir;
+        this.sync = sync;
+        this.promoter = promoter;
+        this.log = log;
+    }
+
+    /**
+     * Return <code>true</code> if the index was created before. If not, the
+     * delayed mails of the queue need to get added by reading their meta-data
+     */
+    public boolean exists() {
+        return dir.isDirectory();
+    }
+
+    /**
+     * Load the list of buckets and return the next delivery of all keys which
+     * are currently stored in the index.
+     *
+     * @return nextDeliveries
+     * @throws IOException
+     */
+    public synchronized Map<String, Long> init() throws IOException {
+        FileUtils.forceMkdir(dir);
+        Map<String, Long> keys = new HashMap<String, Long>();
+        String[] names = dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(BUCKET_EXTENSION);
+            }
+        });
+        for (String name : names) {
+            long bucket;
+            try {
+                bucket = Long.parseLong(name.substring(0, name.length() - BUCKET_EXTENSION.length()));
+            } catch (NumberFormatException e) {
+                log.info("Ignoring unknown file " + name + " in delay index " + dir);
+                continue;
+            }
+            buckets.add(bucket);
+            for (Entry entry : read(bucket)) {
+                keys.put(entry.key, entry.nextDelivery);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Add the key to the index. It will get promoted once the given
+     * nextDelivery timestamp is reached
+     *
+     * @param key
+     * @param nextDelivery
+     * @throws IOException
+     */
+    public synchronized void add(String key, long nextDelivery) throws IOException {
+        long bucket = nextDelivery - nextDelivery % BUCKET_MILLIS;
+
+        // the key is always written to its bucket file, so the delay is not
+        // lost on restart even if the bucket was already loaded
+        DataOutputStream out = null;
+        FileOutputStream fout = null;
+        try {
+            fout = new FileOutputStream(bucketFile(bucket), true);
+            out = new DataOutputStream(fout);
+            out.writeUTF(key);
+            out.writeLong(nextDelivery);
+            out.flush();
+            if (sync) fout.getFD().sync();
+        } finally {
+            Closeables.closeQuietly(out);
+            Closeables.closeQuietly(fout);
+        }
+        if (bucket < loadedUntil) {
+            // the bucket was already loaded, so add it to the wheel directly
+            // and delete the file together with the other loaded buckets
+            addToSlot(key, nextDelivery);
+            loadedBuckets.add(bucket);
+        } else {
+            buckets.add(bucket);
+        }
+    }
+
+    /**
+     * Promote all keys which are due
+     *
+     * @return count of promoted keys
+     */
+    public synchronized long tick() {
+        long now = System.currentTimeMillis();
+        while (!buckets.isEmpty() && buckets.first() <= now) {
+            long bucket = buckets.pollFirst();
+            for (Entry entry : read(bucket)) {
+                addToSlot(entry.key, entry.nextDelivery);
+            }
+            loadedBuckets.add(bucket);
+            loadedUntil = Math.max(loadedUntil, bucket + BUCKET_MILLIS);
+        }
+        long count = promote(slots.headMap(now, true));
+
+        // the files are kept until all of their keys were promoted, so a
+        // restart in between does not loose the delay
+        while (!loadedBuckets.isEmpty() && loadedBuckets.first() + BUCKET_MILLIS <= now) {
+            delete(loadedBuckets.pollFirst());
+        }
+        return count;
+    }
+
+    /**
+     * Promote all keys of the index regardless of their delay
+     *
+     * @return count of promoted keys
+     */
+    public synchronized long promoteAll() {
+        while (!buckets.isEmpty()) {
+            long bucket = buckets.pollFirst();
+            for (Entry entry : read(bucket)) {
+                addToSlot(entry.key, entry.nextDelivery);
+            }
+            loadedBuckets.add(bucket);
+        }
+        long count = promote(slots);
+        while (!loadedBuckets.isEmpty()) {
+            delete(loadedBuckets.pollFirst());
+        }
+        return count;
+    }
+
+    private long promote(SortedMap<Long, List<String>> due) {
+        long count = 0;
+        Iterator<Map.Entry<Long, List<String>>> it = due.entrySet().iterator();
+        while (it.hasNext()) {
+            for (String key : it.next().getValue()) {
+                if (promoter.promote(key)) {
+                    count++;
+                }
+            }
+            it.remove();
+        }
+        return count;
+    }
+
+    private void addToSlot(String key, long nextDelivery) {
+        long slot = nextDelivery - nextDelivery % SLOT_MILLIS;
+        List<String> keys = slots.get(slot);
+        if (keys == null) {
+            keys = new ArrayList<String>();
+            slots.put(slot, keys);
+        }
+        keys.add(key);
+    }
+
+    /**
+     * Read the entries of the bucket file
+     */
+    private List<Entry> read(long bucket) {
+        List<Entry> entries = new ArrayList<Entry>();
+        File file = bucketFile(bucket);
+        if (!file.exists()) {
+            return entries;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                String key;
+                try {
+                    key = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    entries.add(new Entry(key, in.readLong()));
+                } catch (EOFException e) {
+                    // torn write, the key gets treated as ready on the next start
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            log.error("Unable to read delay bucket " + file, e);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+        return entries;
+    }
+
+    private void delete(long bucket) {
+        File file = bucketFile(bucket);
+        if (file.exists() && !file.delete()) {
+            log.info("Unable to delete delay bucket " + file);
+        }
+    }
+
+    private File bucketFile(long bucket) {
+        return new File(dir, bucket + BUCKET_EXTENSION);
+    }
+
+    private final static class Entry {
+        private final String key;
+        private final long nextDelivery;
+
+        public Entry(String key, long nextDelivery) {
+            this.key = key;
+            this.nextDelivery = nextDelivery;
+        }
+    }
+}
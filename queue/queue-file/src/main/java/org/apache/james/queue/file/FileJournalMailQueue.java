@@ -0,0 +1,526 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+
+import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.core.MimeMessageSource;
+import org.apache.james.lifecycle.api.Disposable;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.slf4j.Logger;
+
+/**
+ * {@link ManageableMailQueue} implementation which stores the {@link Mail}'s in
+ * a {@link SegmentedJournal}.
+ * <p/>
+ * In contrast to {@link FileMailQueue} no files get created per {@link Mail}.
+ * Envelope and message are appended to the current segment, the
+ * <code>fsync</code> is shared between concurrent enqueuers and sparse
+ * segments get compacted in the background.
+ * <p/>
+ * Delayed mails are kept in memory ordered by their next delivery and
+ * promoted in batches once per second. Their delay is stored in the journal,
+ * so it survives a restart.
+ * <p/>
+ * {@link #getSize()} is answered from the journal index in memory. The queue
+ * does not implement {@link org.apache.james.queue.api.MailQueueStatistics},
+ * so it has no ready, delayed or in-flight counters.
+ */
+public class FileJournalMailQueue implements ManageableMailQueue, Disposable {
+
+    private final static AtomicLong COUNTER = new AtomicLong();
+    private final static String JOURNAL_DIR = "journal";
+    private final static long COMPACTION_INTERVAL = 30;
+    private final static long PROMOTE_INTERVAL = 1000;
+
+    private final BlockingQueue<String> inmemoryQueue = new LinkedBlockingQueue<String>();
+    // guarded by itself
+    private final PriorityQueue<DelayedKey> delayed = new PriorityQueue<DelayedKey>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final SegmentedJournal journal;
+    private final Logger log;
+
+    public FileJournalMailQueue(File parentDir, String queuename, boolean sync, long maxSegmentSize, Logger log) throws IOException {
+        this.log = log;
+        this.journal = new SegmentedJournal(new File(new File(parentDir, queuename), JOURNAL_DIR), maxSegmentSize, sync, log);
+        init();
+    }
+
+    private void init() throws IOException {
+        Map<String, Long> entries = journal.recover();
+        long now = System.currentTimeMillis();
+        for (Entry<String, Long> entry : entries.entrySet()) {
+            long next = entry.getValue();
+            if (next <= now) {
+                inmemoryQueue.add(entry.getKey());
+            } else {
+                delay(entry.getKey(), next);
+            }
+        }
+
+        // Promote the delayed mails which are due in batches
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                promote(System.currentTimeMillis());
+            }
+        }, PROMOTE_INTERVAL, PROMOTE_INTERVAL, TimeUnit.MILLISECONDS);
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    journal.compact();
+                } catch (IOException e) {
+                    log.error("Unable to compact journal", e);
+                }
+            }
+        }, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    private void delay(String key, long nextDelivery) {
+        synchronized (delayed) {
+            delayed.add(new DelayedKey(key, nextDelivery));
+        }
+    }
+
+    /**
+     * Make all delayed mails which are due at the given time ready for
+     * dequeue
+     *
+     * @return count of promoted mails
+     */
+    private long promote(long now) {
+        List<String> due = new ArrayList<String>();
+        synchronized (delayed) {
+            while (!delayed.isEmpty() && delayed.peek().nextDelivery <= now) {
+                due.add(delayed.poll().key);
+            }
+        }
+        long count = 0;
+        for (String key : due) {
+            // skip mails which were removed in the meantime
+            if (journal.getLocation(key) != null) {
+                inmemoryQueue.add(key);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+        final String key = mail.getName() + "-" + COUNTER.incrementAndGet();
+        long nextDelivery = 0;
+        if (delay > 0) {
+            nextDelivery = System.currentTimeMillis() + unit.toMillis(delay);
+        }
+        try {
+            long seq = journal.append(key, serialize(mail), mail.getMessage(), nextDelivery);
+            journal.commit(seq);
+        } catch (IOException e) {
+            throw new MailQueueException("Unable to enqueue mail", e);
+        } catch (MessagingException e) {
+            throw new MailQueueException("Unable to enqueue mail", e);
+        }
+
+        if (delay > 0) {
+            delay(key, nextDelivery);
+        } else {
+            inmemoryQueue.add(key);
+        }
+    }
+
+    @Override
+    public void enQueue(Mail mail) throws MailQueueException {
+        enQueue(mail, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public MailQueueItem deQueue() throws MailQueueException {
+        try {
+            while (true) {
+                String key = inmemoryQueue.take();
+                MailQueueItem item;
+                try {
+                    item = createMailQueueItem(key);
+                } catch (MailQueueException e) {
+                    // put the key back, otherwise the mail is not delivered
+                    // before the next restart
+                    inmemoryQueue.add(key);
+                    throw e;
+                }
+                if (item != null) {
+                    return item;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MailQueueException("Unable to dequeue", e);
+        }
+    }
+
+    @Override
+    public List<MailQueueItem> deQueue(int max, long timeout) throws MailQueueException {
+        List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+        try {
+            String key = inmemoryQueue.poll(timeout, TimeUnit.MILLISECONDS);
+            while (key != null) {
+                MailQueueItem item;
+                try {
+                    item = createMailQueueItem(key);
+                } catch (MailQueueException e) {
+                    inmemoryQueue.add(key);
+                    throw e;
+                }
+                if (item != null) {
+                    items.add(item);
+                    if (items.size() >= max) {
+                        break;
+                    }
+                }
+                key = inmemoryQueue.poll();
+            }
+            return items;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rollback(items);
+            throw new MailQueueException("Unable to dequeue", e);
+        } catch (MailQueueException e) {
+            rollback(items);
+            throw e;
+        }
+    }
+
+    /**
+     * Put the already dequeued items of a failed batch back
+     */
+    private void rollback(List<MailQueueItem> items) {
+        for (MailQueueItem item : items) {
+            try {
+                item.done(false);
+            } catch (MailQueueException e) {
+                log.error("Unable to rollback mail " + item.getMail().getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Create the {@link MailQueueItem} for the given key
+     *
+     * @return item or <code>null</code> if the mail was removed in the meantime
+     */
+    private MailQueueItem createMailQueueItem(final String key) throws MailQueueException {
+        try {
+            final Mail mail = loadMail(key);
+            if (mail == null) {
+                return null;
+            }
+            MimeMessageSource source = journal.openMessage(key);
+            if (source == null) {
+                return null;
+            }
+            mail.setMessage(new MimeMessageCopyOnWriteProxy(source));
+            return new MailQueueItem() {
+
+                @Override
+                public Mail getMail() {
+                    return mail;
+                }
+
+                @Override
+                public void done(boolean success) throws MailQueueException {
+                    if (!success) {
+                        inmemoryQueue.add(key);
+                    } else {
+                        try {
+                            // the removal must be durable, otherwise the mail
+                            // gets delivered again after a crash
+                            long seq = journal.delete(key);
+                            if (seq > 0) {
+                                journal.commit(seq);
+                            }
+                        } catch (IOException e) {
+                            throw new MailQueueException("Unable to delete mail", e);
+                        }
+                    }
+
+                    LifecycleUtil.dispose(mail);
+                }
+            };
+        } catch (IOException e) {
+            throw new MailQueueException("Unable to dequeue", e);
+        } catch (MessagingException e) {
+            throw new MailQueueException("Unable to dequeue", e);
+        }
+    }
+
+    private byte[] serialize(Mail mail) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(mail);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Load the {@link Mail} without its message from the journal
+     *
+     * @return mail or <code>null</code> if the mail is not stored anymore
+     */
+    private Mail loadMail(String key) throws IOException {
+        byte[] envelope = journal.readEnvelope(key);
+        if (envelope == null) {
+            return null;
+        }
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(envelope));
+        try {
+            return (Mail) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to load mail " + key, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public long getSize() throws MailQueueException {
+        return journal.size();
+    }
+
+    /**
+     * Make all delayed mails ready for dequeue. Mails which are ready or
+     * currently processed are not touched.
+     */
+    @Override
+    public long flush() throws MailQueueException {
+        return promote(Long.MAX_VALUE);
+    }
+
+    @Override
+    public long clear() throws MailQueueException {
+        return delete(journal.keys());
+    }
+
+    /**
+     * Remove the mails which match the given {@link Type} and value. Selecting
+     * by {@link Type#Sender} or {@link Type#Recipient} reads the envelope of
+     * every stored mail, but not its message. A {@link Type#Recipient} value
+     * without an @ matches all mails which have at least one recipient in the
+     * given domain.
+     *
+     * @see ManageableMailQueue#remove(org.apache.james.queue.api.ManageableMailQueue.Type, String)
+     */
+    @Override
+    public long remove(Type type, String value) throws MailQueueException {
+        if (type == Type.Name) {
+            return delete(Collections.singletonList(value));
+        }
+        List<String> keys = new ArrayList<String>();
+        for (String key : journal.keys()) {
+            Mail mail;
+            try {
+                mail = loadMail(key);
+            } catch (IOException e) {
+                log.info("Unable to load mail " + key, e);
+                continue;
+            }
+            if (mail != null && matches(mail, type, value)) {
+                keys.add(key);
+            }
+        }
+        return delete(keys);
+    }
+
+    /**
+     * Remove the given keys from the journal and wait until the removal is
+     * durable
+     *
+     * @return count of removed mails
+     */
+    private long delete(Collection<String> keys) throws MailQueueException {
+        long count = 0;
+        long seq = -1;
+        try {
+            for (String key : keys) {
+                long s = journal.delete(key);
+                if (s > 0) {
+                    seq = s;
+                    count++;
+                }
+            }
+            if (seq > 0) {
+                journal.commit(seq);
+            }
+        } catch (IOException e) {
+            throw new MailQueueException("Unable to remove mails", e);
+        }
+        return count;
+    }
+
+    private static boolean matches(Mail mail, Type type, String value) {
+        switch (type) {
+            case Sender:
+                MailAddress sender = mail.getSender();
+                return sender != null && normalize(sender.toString()).equals(normalize(value));
+            case Recipient:
+                boolean wholeDomain = value.indexOf('@') == -1;
+                String recipient = normalize(value);
+                Collection<MailAddress> rcpts = mail.getRecipients();
+                if (rcpts != null) {
+                    for (MailAddress rcpt : rcpts) {
+                        String address = normalize(rcpt.toString());
+                        if (wholeDomain ? getDomain(address).equals(recipient) : address.equals(recipient)) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Return the lower-cased domain of the given address. If the value does
+     * not contain an @ it is treated as a domain itself.
+     */
+    private static String getDomain(String address) {
+        return address.substring(address.lastIndexOf('@') + 1).toLowerCase(Locale.US);
+    }
+
+    /**
+     * Return the given address with a lower-cased domain part
+     */
+    private static String normalize(String address) {
+        int index = address.lastIndexOf('@');
+        return address.substring(0, index + 1) + address.substring(index + 1).toLowerCase(Locale.US);
+    }
+
+    @Override
+    public MailQueueIterator browse() throws MailQueueException {
+        final Iterator<String> keys = journal.keys().iterator();
+        return new MailQueueIterator() {
+            private MailQueueItemView item = null;
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Read-only");
+            }
+
+            @Override
+            public MailQueueItemView next() {
+                if (hasNext()) {
+                    MailQueueItemView vitem = item;
+                    item = null;
+                    return vitem;
+                } else {
+                    throw new NoSuchElementException();
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (item == null && keys.hasNext()) {
+                    String key = keys.next();
+                    SegmentedJournal.Location loc = journal.getLocation(key);
+                    try {
+                        final Mail mail = loadMail(key);
+                        if (mail != null && loc != null) {
+                            final long nextDelivery = loc.getNextDelivery();
+                            item = new MailQueueItemView() {
+
+                                @Override
+                                public long getNextDelivery() {
+                                    return nextDelivery;
+                                }
+
+                                @Override
+                                public Mail getMail() {
+                                    return mail;
+                                }
+                            };
+                        }
+                    } catch (IOException e) {
+                        log.info("Unable to load mail", e);
+                    }
+                }
+                return item != null;
+            }
+
+            @Override
+            public void close() {
+                // do nothing
+            }
+        };
+    }
+
+    @Override
+    public void dispose() {
+        scheduler.shutdownNow();
+        journal.close();
+    }
+
+    /**
+     * Key of a delayed mail ordered by its next delivery
+     */
+    private final static class DelayedKey implements Comparable<DelayedKey> {
+        private final String key;
+        private final long nextDelivery;
+
+        public DelayedKey(String key, long nextDelivery) {
+            this.key = key;
+            this.nextDelivery = nextDelivery;
+        }
+
+        @Override
+        public int compareTo(DelayedKey o) {
+            return nextDelivery < o.nextDelivery ? -1 : (nextDelivery == o.nextDelivery ? 0 : 1);
+        }
+    }
+}
@@ -27,9 +27,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
@@ -47,7 +56,9 @@ import org.apache.james.core.MimeMessageSource;
 import org.apache.james.lifecycle.api.Disposable;
 import org.apache.james.lifecycle.api.LifecycleUtil;
 import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.api.PagedBrowseSupport;
 import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
 import org.slf4j.Logger;
 
 import com.google.common.io.Closeables;
@@ -57,8 +68,12 @@ import com.google.common.io.Closeables;
  * <p/>
  * On create of the {@link FileMailQueue} the {@link #init()} will get called. This takes care of
  * loading the needed meta-data into memory for fast access.
+ * <p/>
+ * {@link #getSize()} is answered from memory. The queue does not implement
+ * {@link org.apache.james.queue.api.MailQueueStatistics}, so it has no ready,
+ * delayed or in-flight counters.
  */
-public class FileMailQueue implements ManageableMailQueue {
+public class FileMailQueue implements ManageableMailQueue, PagedBrowseSupport, Disposable {
 
     private final ConcurrentHashMap<String, FileItem> keyMappings = new ConcurrentHashMap<String, FileMailQueue.FileItem>();
     private final BlockingQueue<String> inmemoryQueue = new LinkedBlockingQueue<String>();
@@ -67,11 +82,22 @@ public class FileMailQueue implements ManageableMailQueue {
     private final String queueDirName;
     private final File queueDir;
     private final Logger log;
+    private final DelayIndex delayIndex;
+
+    // Secondary indexes which allow to select mails by sender or recipient
+    // domain without loading them from disk. Both are guarded by indexLock.
+    // The mails which were stored before a restart get added on the first
+    // query which needs the indexes
+    private final Map<String, Set<String>> senderIndex = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> domainIndex = new HashMap<String, Set<String>>();
+    private final Object indexLock = new Object();
+    private boolean indexComplete;
 
     private final boolean sync;
     private final static String MSG_EXTENSION = ".msg";
     private final static String OBJECT_EXTENSION = ".obj";
     private final static String NEXT_DELIVERY = "FileQueueNextDelivery";
+    private final static String DELAY_DIR = "delay";
     private final static int SPLITCOUNT = 10;
 
     public FileMailQueue(File parentDir, String queuename, boolean sync, Logger log) throws IOException {
@@ -79,10 +105,31 @@ public class FileMailQueue implements ManageableMailQueue {
         this.sync = sync;
         this.queueDir = new File(parentDir, queuename);
         this.queueDirName = queueDir.getAbsolutePath();
+        this.delayIndex = new DelayIndex(new File(queueDir, DELAY_DIR), sync, new DelayIndex.Promoter() {
+
+            @Override
+            public boolean promote(String key) {
+                if (keyMappings.containsKey(key)) {
+                    inmemoryQueue.add(key);
+                    return true;
+                }
+                // removed in the meantime
+                return false;
+            }
+        }, log);
         init();
     }
 
+    /**
+     * Load the meta-data of all stored mails. The object files are only read
+     * if the delay index does not exist yet, the sender and recipient domain
+     * indexes are built on first use by {@link #ensureIndexed()}.
+     */
     private void init() throws IOException {
+        // without an existing delay index the delay needs to get read out of
+        // the stored mails once
+        boolean rebuildIndex = !delayIndex.exists();
+        Map<String, Long> delayed = delayIndex.init();
 
         for (int i = 1; i <= SPLITCOUNT; i++) {
 
@@ -98,65 +145,53 @@ public class FileMailQueue implements ManageableMailQueue {
 
             for (final String name : files) {
 
-                ObjectInputStream oin = null;
-
-                try {
-
-                    final String msgFileName = name.substring(0, name.length() - OBJECT_EXTENSION.length()) + MSG_EXTENSION;
+                final String key = name.substring(0, name.length() - OBJECT_EXTENSION.length());
+                String objectFile = qDir.getAbsolutePath() + File.separator + name;
+                String messageFile = qDir.getAbsolutePath() + File.separator + key + MSG_EXTENSION;
+                FileItem item;
 
-                    FileItem item = new FileItem(qDir.getAbsolutePath() + File.separator + name, qDir.getAbsolutePath() + File.separator + msgFileName);
-
-                    oin = new ObjectInputStream(new FileInputStream(item.getObjectFile()));
-                    Mail mail = (Mail) oin.readObject();
+                if (rebuildIndex) {
+                    Mail mail = loadMail(objectFile);
+                    if (mail == null) {
+                        continue;
+                    }
                     Long next = (Long) mail.getAttribute(NEXT_DELIVERY);
-                    if (next == null) {
-                        next = 0L;
+                    if (next != null && next > System.currentTimeMillis()) {
+                        delayIndex.add(key, next);
+                        delayed.put(key, next);
                     }
-
-                    final String key = mail.getName();
+                    item = new FileItem(objectFile, messageFile, next == null ? -1 : next);
+                    item.setEnvelope(mail);
+                    LifecycleUtil.dispose(mail);
+                    keyMappings.put(key, item);
+                    index(key, item);
+                } else {
+                    Long next = delayed.get(key);
+                    item = new FileItem(objectFile, messageFile, next == null ? -1 : next);
                     keyMappings.put(key, item);
-                    if (next <= System.currentTimeMillis()) {
+                }
 
-                        try {
-                            inmemoryQueue.put(key);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            throw new RuntimeException("Unable to init", e);
-                        }
-                    } else {
+                if (!delayed.containsKey(key)) {
+                    inmemoryQueue.add(key);
+                }
+            }
+        }
+        synchronized (indexLock) {
+            indexComplete = rebuildIndex;
+        }
 
-                        // Schedule a task which will put the mail in the queue
-                        // for processing after a given delay
-                        scheduler.schedule(new Runnable() {
-
-                            @Override
-                            public void run() {
-                                try {
-                                    inmemoryQueue.put(key);
-                                } catch (InterruptedException e) {
-                                    Thread.currentThread().interrupt();
-                                    throw new RuntimeException("Unable to init", e);
-                                }
-                            }
-                        }, next - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
-                    }
+        // Promote the delayed mails which are due in batches
+        scheduler.scheduleWithFixedDelay(new Runnable() {
 
-                } catch (ClassNotFoundException e1) {
-                    log.error("Unable to load Mail", e1);
-                } catch (IOException e) {
-                    log.error("Unable to load Mail", e);
-                } finally {
-                    if (oin != null) {
-                        try {
-                            oin.close();
-                        } catch (Exception e) {
-                            // ignore on close
-                        }
-                    }
+            @Override
+            public void run() {
+                try {
+                    delayIndex.tick();
+                } catch (RuntimeException e) {
+                    log.error("Unable to promote delayed mails", e);
                 }
-
             }
-        }
+        }, 1, 1, TimeUnit.SECONDS);
     }
 
     @Override
@@ -171,10 +206,12 @@ public class FileMailQueue implements ManageableMailQueue {
 
             String name = queueDirName + "/" + i + "/" + key;
 
-            final FileItem item = new FileItem(name + OBJECT_EXTENSION, name + MSG_EXTENSION);
+            long nextDelivery = System.currentTimeMillis() + unit.toMillis(delay);
             if (delay > 0) {
-                mail.setAttribute(NEXT_DELIVERY, System.currentTimeMillis() + unit.toMillis(delay));
+                mail.setAttribute(NEXT_DELIVERY, nextDelivery);
             }
+            final FileItem item = new FileItem(name + OBJECT_EXTENSION, name + MSG_EXTENSION, delay > 0 ? nextDelivery : -1);
+            item.setEnvelope(mail);
             foout = new FileOutputStream(item.getObjectFile());
             oout = new ObjectOutputStream(foout);
             oout.writeObject(mail);
@@ -187,23 +224,11 @@ public class FileMailQueue implements ManageableMailQueue {
             if (sync) out.getFD().sync();
 
             keyMappings.put(key, item);
+            index(key, item);
 
             if (delay > 0) {
-                // The message should get delayed so schedule it for later
-                scheduler.schedule(new Runnable() {
-
-                    @Override
-                    public void run() {
-                        try {
-                            inmemoryQueue.put(key);
-
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            throw new RuntimeException("Unable to init", e);
-                        }
-                    }
-                }, delay, unit);
-
+                // The message should get delayed so add it to the index
+                delayIndex.add(key, nextDelivery);
             } else {
                 inmemoryQueue.put(key);
             }
@@ -261,66 +286,148 @@ public class FileMailQueue implements ManageableMailQueue {
                 item = keyMappings.get(k);
 
             }
-            final String key = k;
-            final FileItem fitem = item;
-            ObjectInputStream oin = null;
             try {
-                final File objectFile = new File(fitem.getObjectFile());
-                final File msgFile = new File(fitem.getMessageFile());
-                oin = new ObjectInputStream(new FileInputStream(objectFile));
-                final Mail mail = (Mail) oin.readObject();
-                mail.setMessage(new MimeMessageCopyOnWriteProxy(new FileMimeMessageSource(msgFile)));
-                return new MailQueueItem() {
-
-                    @Override
-                    public Mail getMail() {
-                        return mail;
-                    }
-
-                    @Override
-                    public void done(boolean success) throws MailQueueException {
-                        if (!success) {
-                            try {
-                                inmemoryQueue.put(key);
-                            } catch (InterruptedException e) {
-                                Thread.currentThread().interrupt();
-                                throw new MailQueueException("Unable to rollback", e);
-                            }
-                        } else {
-                            fitem.delete();
-                            keyMappings.remove(key);
-                        }
-
-                        LifecycleUtil.dispose(mail);
-                    }
-                };
+                return createMailQueueItem(k, item);
+            } catch (MailQueueException e) {
+                // put the key back, otherwise the mail is not delivered
+                // before the next restart
+                inmemoryQueue.add(k);
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MailQueueException("Unable to dequeue", e);
+        }
+    }
 
-                // TODO: Think about exception handling in detail
-            } catch (FileNotFoundException e) {
-                throw new MailQueueException("Unable to dequeue", e);
-            } catch (IOException e) {
-                throw new MailQueueException("Unable to dequeue", e);
-            } catch (ClassNotFoundException e) {
-                throw new MailQueueException("Unable to dequeue", e);
-            } catch (MessagingException e) {
-                throw new MailQueueException("Unable to dequeue", e);
-
-            } finally {
-                if (oin != null) {
+    @Override
+    public List<MailQueueItem> deQueue(int max, long timeout) throws MailQueueException {
+        List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+        try {
+            String key = inmemoryQueue.poll(timeout, TimeUnit.MILLISECONDS);
+            while (key != null) {
+                FileItem item = keyMappings.get(key);
+                if (item != null) {
                     try {
-                        oin.close();
-                    } catch (IOException e) {
-                        // ignore on close
+                        items.add(createMailQueueItem(key, item));
+                    } catch (MailQueueException e) {
+                        inmemoryQueue.add(key);
+                        throw e;
+                    }
+                    if (items.size() >= max) {
+                        break;
                     }
                 }
+                key = inmemoryQueue.poll();
             }
-
+            return items;
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+            rollback(items);
             throw new MailQueueException("Unable to dequeue", e);
+        } catch (MailQueueException e) {
+            rollback(items);
+            throw e;
+        }
+    }
+
+    /**
+     * Put the already dequeued items of a failed batch back
+     */
+    private void rollback(List<MailQueueItem> items) {
+        for (MailQueueItem item : items) {
+            try {
+                item.done(false);
+            } catch (MailQueueException e) {
+                log.error("Unable to rollback mail " + item.getMail().getName(), e);
+            }
         }
     }
 
+    private MailQueueItem createMailQueueItem(final String key, final FileItem fitem) throws MailQueueException {
+        ObjectInputStream oin = null;
+        try {
+            final File objectFile = new File(fitem.getObjectFile());
+            final File msgFile = new File(fitem.getMessageFile());
+            oin = new ObjectInputStream(new FileInputStream(objectFile));
+            final Mail mail = (Mail) oin.readObject();
+            mail.setMessage(new MimeMessageCopyOnWriteProxy(new FileMimeMessageSource(msgFile)));
+            return new MailQueueItem() {
+
+                @Override
+                public Mail getMail() {
+                    return mail;
+                }
+
+                @Override
+                public void done(boolean success) throws MailQueueException {
+                    if (!success) {
+                        try {
+                            inmemoryQueue.put(key);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new MailQueueException("Unable to rollback", e);
+                        }
+                    } else {
+                        fitem.delete();
+                        if (keyMappings.remove(key) != null) {
+                            unindex(key, fitem);
+                        }
+                    }
+
+                    LifecycleUtil.dispose(mail);
+                }
+            };
+
+            // TODO: Think about exception handling in detail
+        } catch (FileNotFoundException e) {
+            throw new MailQueueException("Unable to dequeue", e);
+        } catch (IOException e) {
+            throw new MailQueueException("Unable to dequeue", e);
+        } catch (ClassNotFoundException e) {
+            throw new MailQueueException("Unable to dequeue", e);
+        } catch (MessagingException e) {
+            throw new MailQueueException("Unable to dequeue", e);
+
+        } finally {
+            if (oin != null) {
+                try {
+                    oin.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the {@link Mail} without its message from the object file
+     *
+     * @return mail or <code>null</code> if it could not get loaded
+     */
+    private Mail loadMail(String objectFile) {
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new FileInputStream(objectFile));
+            return (Mail) in.readObject();
+        } catch (FileNotFoundException e) {
+            log.info("Unable to load mail", e);
+        } catch (IOException e) {
+            log.info("Unable to load mail", e);
+        } catch (ClassNotFoundException e) {
+            log.info("Unable to load mail", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+        return null;
+    }
+
     private final class FileMimeMessageSource extends MimeMessageSource implements Disposable {
 
         private File file;
@@ -351,6 +458,11 @@ public class FileMailQueue implements ManageableMailQueue {
             return file.length();
         }
 
+        @Override
+        public File getFile() {
+            return file;
+        }
+
         @Override
         public void dispose() {
             Closeables.closeQuietly(in);
@@ -360,15 +472,64 @@ public class FileMailQueue implements ManageableMailQueue {
     }
 
     /**
-     * Helper class which is used to reference the path to the object and msg file
+     * Helper class which is used to reference the path to the object and msg
+     * file. It also holds the next delivery of the mail and, once indexed, the
+     * normalized sender and recipients, so these can be matched without
+     * loading the object file.
      */
     private final class FileItem {
         private final String objectfile;
         private final String messagefile;
+        private final long nextDelivery;
+
+        // guarded by indexLock
+        private String sender;
+        private List<String> recipients = Collections.emptyList();
+        private boolean indexed;
 
-        public FileItem(String objectfile, String messagefile) {
+        public FileItem(String objectfile, String messagefile, long nextDelivery) {
             this.objectfile = objectfile;
             this.messagefile = messagefile;
+            this.nextDelivery = nextDelivery;
+        }
+
+        /**
+         * Take the sender and recipients of the given mail for the indexes
+         */
+        public void setEnvelope(Mail mail) {
+            MailAddress senderAddress = mail.getSender();
+            List<String> recipients = new ArrayList<String>();
+            Collection<MailAddress> rcpts = mail.getRecipients();
+            if (rcpts != null) {
+                for (MailAddress rcpt : rcpts) {
+                    recipients.add(normalize(rcpt.toString()));
+                }
+            }
+            synchronized (indexLock) {
+                this.sender = senderAddress == null ? null : normalize(senderAddress.toString());
+                this.recipients = recipients;
+                this.indexed = true;
+            }
+        }
+
+        public boolean isIndexed() {
+            return indexed;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        public List<String> getRecipients() {
+            return recipients;
+        }
+
+        /**
+         * Return the time at which the delayed mail gets ready for delivery,
+         * as stored in the {@link DelayIndex}, or -1 if it was not delayed
+         */
+        public long getNextDelivery() {
+            return nextDelivery;
         }
 
         public String getObjectFile() {
@@ -394,23 +555,174 @@ public class FileMailQueue implements ManageableMailQueue {
         }
     }
 
+    /**
+     * Add the mails which were loaded on start to the sender and recipient
+     * domain indexes. Their object files are read once, outside of the index
+     * lock, when the indexes are needed for the first time.
+     */
+    private void ensureIndexed() {
+        synchronized (indexLock) {
+            if (indexComplete) {
+                return;
+            }
+        }
+        for (Entry<String, FileItem> entry : keyMappings.entrySet()) {
+            FileItem item = entry.getValue();
+            synchronized (indexLock) {
+                if (item.isIndexed()) {
+                    continue;
+                }
+            }
+            Mail mail = loadMail(item.getObjectFile());
+            if (mail == null) {
+                continue;
+            }
+            item.setEnvelope(mail);
+            LifecycleUtil.dispose(mail);
+            synchronized (indexLock) {
+                // skip mails which were removed in the meantime
+                if (keyMappings.get(entry.getKey()) == item) {
+                    index(entry.getKey(), item);
+                }
+            }
+        }
+        synchronized (indexLock) {
+            indexComplete = true;
+        }
+    }
+
+    /**
+     * Add the given mail to the sender and recipient domain indexes
+     */
+    private void index(String key, FileItem item) {
+        synchronized (indexLock) {
+            if (item.getSender() != null) {
+                addToIndex(senderIndex, item.getSender(), key);
+            }
+            for (String rcpt : item.getRecipients()) {
+                addToIndex(domainIndex, getDomain(rcpt), key);
+            }
+        }
+    }
+
+    /**
+     * Remove the given mail from the sender and recipient domain indexes
+     */
+    private void unindex(String key, FileItem item) {
+        synchronized (indexLock) {
+            if (item.getSender() != null) {
+                removeFromIndex(senderIndex, item.getSender(), key);
+            }
+            for (String rcpt : item.getRecipients()) {
+                removeFromIndex(domainIndex, getDomain(rcpt), key);
+            }
+        }
+    }
+
+    private static void addToIndex(Map<String, Set<String>> index, String value, String key) {
+        Set<String> keys = index.get(value);
+        if (keys == null) {
+            keys = new HashSet<String>();
+            index.put(value, keys);
+        }
+        keys.add(key);
+    }
+
+    private static void removeFromIndex(Map<String, Set<String>> index, String value, String key) {
+        Set<String> keys = index.get(value);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                index.remove(value);
+            }
+        }
+    }
+
+    /**
+     * Return the lower-cased domain of the given address. If the value does
+     * not contain an @ it is treated as a domain itself.
+     */
+    private static String getDomain(String address) {
+        int index = address.lastIndexOf('@');
+        return address.substring(index + 1).toLowerCase(Locale.US);
+    }
+
+    /**
+     * Return the given address with a lower-cased domain part
+     */
+    private static String normalize(String address) {
+        int index = address.lastIndexOf('@');
+        return address.substring(0, index + 1) + address.substring(index + 1).toLowerCase(Locale.US);
+    }
+
+    private boolean containsRecipient(FileItem item, String recipient) {
+        synchronized (indexLock) {
+            return item.getRecipients().contains(recipient);
+        }
+    }
+
+    /**
+     * Return the keys of the mails which match the given {@link Type} and
+     * value, using the in-memory indexes only.
+     * <p/>
+     * Addresses are compared with a lower-cased domain part. A
+     * {@link Type#Recipient} value without an @ matches all mails which have
+     * at least one recipient in the given domain.
+     */
+    private List<String> findKeys(Type type, String value) {
+        List<String> keys = new ArrayList<String>();
+        if (type != Type.Name) {
+            ensureIndexed();
+        }
+        switch (type) {
+            case Name:
+                if (keyMappings.containsKey(value)) {
+                    keys.add(value);
+                }
+                break;
+            case Sender:
+                synchronized (indexLock) {
+                    Set<String> senderKeys = senderIndex.get(normalize(value));
+                    if (senderKeys != null) {
+                        keys.addAll(senderKeys);
+                    }
+                }
+                break;
+            case Recipient:
+                List<String> candidates = new ArrayList<String>();
+                synchronized (indexLock) {
+                    Set<String> domainKeys = domainIndex.get(getDomain(value));
+                    if (domainKeys != null) {
+                        candidates.addAll(domainKeys);
+                    }
+                }
+                String recipient = normalize(value);
+                boolean wholeDomain = value.indexOf('@') == -1;
+                for (String key : candidates) {
+                    FileItem item = keyMappings.get(key);
+                    if (item != null && (wholeDomain || containsRecipient(item, recipient))) {
+                        keys.add(key);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+        return keys;
+    }
+
     @Override
     public long getSize() throws MailQueueException {
         return keyMappings.size();
     }
 
+    /**
+     * Make all delayed mails ready for dequeue. Mails which are ready or
+     * currently processed are not touched.
+     */
     @Override
     public long flush() throws MailQueueException {
-        Iterator<String> keys = keyMappings.keySet().iterator();
-        long i = 0;
-        while (keys.hasNext()) {
-            String key = keys.next();
-            if (!inmemoryQueue.contains(key)) {
-                inmemoryQueue.add(key);
-                i++;
-            }
-        }
-        return i;
+        return delayIndex.promoteAll();
     }
 
     @Override
@@ -423,7 +735,9 @@ public class FileMailQueue implements ManageableMailQueue {
             String key = entry.getKey();
 
             item.delete();
-            keyMappings.remove(key);
+            if (keyMappings.remove(key) != null) {
+                unindex(key, item);
+            }
             count++;
 
         }
@@ -431,32 +745,73 @@ public class FileMailQueue implements ManageableMailQueue {
     }
 
     /**
-     * TODO: implement me
+     * Remove the mails which match the given {@link Type} and value. The
+     * mails are selected by the in-memory indexes, so no mail needs to get
+     * loaded from disk.
      *
      * @see ManageableMailQueue#remove(org.apache.james.queue.api.ManageableMailQueue.Type, String)
      */
     @Override
     public long remove(Type type, String value) throws MailQueueException {
-        switch (type) {
-            case Name:
-                FileItem item = keyMappings.remove(value);
-                if (item != null) {
-                    item.delete();
-                    return 1;
-                } else {
-                    return 0;
-                }
-
-            default:
-                break;
+        long count = 0;
+        for (String key : findKeys(type, value)) {
+            FileItem item = keyMappings.remove(key);
+            if (item != null) {
+                unindex(key, item);
+                item.delete();
+                count++;
+            }
         }
-        throw new MailQueueException("Not supported yet");
-
+        return count;
     }
 
     @Override
     public MailQueueIterator browse() throws MailQueueException {
-        final Iterator<FileItem> items = keyMappings.values().iterator();
+        return createIterator(keyMappings.values().iterator());
+    }
+
+    /**
+     * The mails are selected by the in-memory indexes and only the mails of
+     * the requested page are loaded from disk.
+     *
+     * @see PagedBrowseSupport#browse(org.apache.james.queue.api.ManageableMailQueue.Type, String, int, int)
+     */
+    @Override
+    public MailQueueIterator browse(Type type, String value, int offset, int limit) throws MailQueueException {
+        if (offset < 0 || limit < 0) {
+            throw new MailQueueException("Offset and limit must not be negative");
+        }
+        Collection<String> keys;
+        if (type == null) {
+            keys = keyMappings.keySet();
+        } else {
+            keys = findKeys(type, value);
+        }
+        List<FileItem> page = new ArrayList<FileItem>(Math.min(limit, keys.size()));
+        Iterator<String> it = keys.iterator();
+        int skipped = 0;
+        while (it.hasNext() && page.size() < limit) {
+            FileItem item = keyMappings.get(it.next());
+            if (item == null) {
+                // removed in the meantime
+                continue;
+            }
+            if (skipped < offset) {
+                skipped++;
+            } else {
+                page.add(item);
+            }
+        }
+        return createIterator(Collections.unmodifiableList(page).iterator());
+    }
+
+    /**
+     * Return a {@link MailQueueIterator} over the given {@link FileItem}'s. The
+     * next delivery is answered from the delay index, so a mail is only loaded
+     * from disk once {@link MailQueueItemView#getMail()} gets called. If the
+     * mail was removed in the meantime <code>null</code> is returned.
+     */
+    private MailQueueIterator createIterator(final Iterator<FileItem> items) {
         return new MailQueueIterator() {
             private MailQueueItemView item = null;
 
@@ -480,45 +835,28 @@ public class FileMailQueue implements ManageableMailQueue {
             @Override
             public boolean hasNext() {
                 if (item == null) {
-                    while (items.hasNext()) {
-                        ObjectInputStream in = null;
-                        try {
-                            in = new ObjectInputStream(new FileInputStream(items.next().getObjectFile()));
-                            final Mail mail = (Mail) in.readObject();
-                            item = new MailQueueItemView() {
-
-                                @Override
-                                public long getNextDelivery() {
-                                    return (Long) mail.getAttribute(NEXT_DELIVERY);
-                                }
-
-                                @Override
-                                public Mail getMail() {
-                                    return mail;
-                                }
-                            };
-                            return true;
-                        } catch (FileNotFoundException e) {
-                            log.info("Unable to load mail", e);
-                        } catch (IOException e) {
-                            log.info("Unable to load mail", e);
-
-                        } catch (ClassNotFoundException e) {
-                            log.info("Unable to load mail", e);
-                        } finally {
-                            if (in != null) {
-                                try {
-                                    in.close();
-                                } catch (IOException e) {
-                                    // ignore on close
-                                }
+                    if (!items.hasNext()) {
+                        return false;
+                    }
+                    final FileItem fitem = items.next();
+                    item = new MailQueueItemView() {
+                        private Mail mail;
+
+                        @Override
+                        public long getNextDelivery() {
+                            return fitem.getNextDelivery();
+                        }
+
+                        @Override
+                        public Mail getMail() {
+                            if (mail == null) {
+                                mail = loadMail(fitem.getObjectFile());
                             }
+                            return mail;
                         }
-                    }
-                    return false;
-                } else {
-                    return true;
+                    };
                 }
+                return true;
             }
 
             @Override
@@ -528,4 +866,9 @@ public class FileMailQueue implements ManageableMailQueue {
         };
     }
 
+    @Override
+    public void dispose() {
+        scheduler.shutdownNow();
+    }
+
 }
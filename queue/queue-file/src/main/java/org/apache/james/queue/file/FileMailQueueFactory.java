@@ -27,6 +27,7 @@ import org.slf4j.Logger;
 import javax.annotation.Resource;
 import javax.inject.Inject;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
@@ -40,6 +41,8 @@ public class FileMailQueueFactory implements MailQueueFactory, LogEnabled {
     private FileSystem fs;
     private Logger log;
     private boolean sync = true;
+    private boolean journal = false;
+    private long maxSegmentSize = 64 * 1024 * 1024;
 
     @Inject
     @Resource
@@ -59,13 +62,41 @@ public class FileMailQueueFactory implements MailQueueFactory, LogEnabled {
         this.sync = sync;
     }
 
+    /**
+     * If <code>true</code> the later created queues will be {@link FileJournalMailQueue} instances which append all
+     * {@link org.apache.mailet.Mail}'s to rolling segment files instead of writing two files per message.
+     * <p/>
+     * The default is <code>false</code>
+     *
+     * @param journal
+     */
+    public void setJournal(boolean journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Set the size in bytes after which a segment of a {@link FileJournalMailQueue} gets sealed and a new one is started.
+     * <p/>
+     * The default is 64MB
+     *
+     * @param maxSegmentSize
+     */
+    public void setMaxSegmentSize(long maxSegmentSize) {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
     @Override
     public MailQueue getQueue(String name) {
         MailQueue queue = queues.get(name);
         if (queue == null) {
             synchronized (queues) {
                 try {
-                    queue = new FileMailQueue(fs.getFile("file://var/store/queue"), name, sync, log);
+                    File parentDir = fs.getFile("file://var/store/queue");
+                    if (journal) {
+                        queue = new FileJournalMailQueue(parentDir, name, sync, maxSegmentSize, log);
+                    } else {
+                        queue = new FileMailQueue(parentDir, name, sync, log);
+                    }
                     queues.put(name, queue);
                 } catch (IOException e) {
                     throw new RuntimeException("Unable to access queue " + name, e);
@@ -0,0 +1,728 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.james.core.MimeMessageSource;
+import org.apache.james.lifecycle.api.Disposable;
+import org.slf4j.Logger;
+
+import com.google.common.io.Closeables;
+import com.google.common.io.CountingInputStream;
+
+/**
+ * Append-only storage which is used by {@link FileJournalMailQueue}.
+ * <p/>
+ * Envelopes and message bodies are appended to rolling segment files. The
+ * location of every stored entry is recorded in a compact index log, so a
+ * restart only needs to replay the index instead of opening one file per
+ * mail. Concurrent writers share their <code>fsync</code> calls via
+ * {@link #commit(long)}, and sealed segments which hold mostly removed
+ * entries are rewritten by {@link #compact()}.
+ */
+public class SegmentedJournal {
+
+    private final static String SEGMENT_EXTENSION = ".seg";
+    private final static String INDEX_FILE = "journal.idx";
+    private final static String INDEX_TMP_FILE = "journal.idx.tmp";
+    private final static String INDEX_OLD_FILE = "journal.idx.old";
+    private final static byte PUT = 1;
+    private final static byte DELETE = 2;
+
+    /**
+     * Sealed segments with less then this ratio of live entries get their
+     * live entries relocated by {@link #compact()}
+     */
+    private final static double COMPACTION_RATIO = 0.5;
+
+    private final File dir;
+    private final long maxSegmentSize;
+    private final boolean sync;
+    private final Logger log;
+
+    private final ConcurrentHashMap<String, Location> locations = new ConcurrentHashMap<String, Location>();
+    private final ConcurrentHashMap<Long, Segment> segments = new ConcurrentHashMap<Long, Segment>();
+
+    private final Object writeLock = new Object();
+    private FileChannel segmentChannel;
+    private Segment activeSegment;
+    private FileChannel indexChannel;
+    private long indexRecords;
+    private long writtenSeq;
+
+    private final Object syncLock = new Object();
+    private long syncedSeq;
+    private boolean syncing;
+
+    public SegmentedJournal(File dir, long maxSegmentSize, boolean sync, Logger log) {
+        this.dir = dir;
+        this.maxSegmentSize = maxSegmentSize;
+        this.sync = sync;
+        this.log = log;
+    }
+
+    /**
+     * Replay the index and open a fresh segment for writing. Returns the next
+     * delivery time of all stored entries, keyed by their name
+     *
+     * @return nextDeliveries
+     * @throws IOException
+     */
+    public Map<String, Long> recover() throws IOException {
+        FileUtils.forceMkdir(dir);
+
+        File index = new File(dir, INDEX_FILE);
+        File old = new File(dir, INDEX_OLD_FILE);
+        if (!index.exists() && old.exists()) {
+            // crash in the middle of an index rewrite
+            if (!old.renameTo(index)) {
+                throw new IOException("Unable to restore index " + old);
+            }
+        }
+        FileUtils.deleteQuietly(new File(dir, INDEX_TMP_FILE));
+        FileUtils.deleteQuietly(old);
+
+        long records = 0;
+        long valid = 0;
+        if (index.exists()) {
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(index)));
+            DataInputStream in = new DataInputStream(counter);
+            try {
+                while (true) {
+                    byte type;
+                    try {
+                        type = in.readByte();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    try {
+                        String key = in.readUTF();
+                        if (type == PUT) {
+                            locations.put(key, new Location(in.readLong(), in.readLong(), in.readInt(), in.readLong(), in.readLong()));
+                        } else if (type == DELETE) {
+                            locations.remove(key);
+                        } else {
+                            log.warn("Corrupt record in journal index " + index + ", ignoring the rest of it");
+                            break;
+                        }
+                        records++;
+                        valid = counter.getCount();
+                    } catch (EOFException e) {
+                        // torn write at the tail of the index
+                        break;
+                    }
+                }
+            } finally {
+                Closeables.closeQuietly(in);
+            }
+        }
+
+        long maxId = 0;
+        for (Long id : listSegmentIds()) {
+            maxId = Math.max(maxId, id);
+            segments.put(id, new Segment(id));
+        }
+
+        Map<String, Long> nextDeliveries = new HashMap<String, Long>();
+        for (Entry<String, Location> entry : locations.entrySet()) {
+            Location loc = entry.getValue();
+            Segment segment = segments.get(loc.segment);
+            if (segment == null || segment.getFile().length() < loc.offset + loc.envelopeLength + loc.bodyLength) {
+                log.warn("Dropping incomplete journal entry " + entry.getKey());
+                locations.remove(entry.getKey());
+                continue;
+            }
+            segment.live.incrementAndGet();
+            segment.total.incrementAndGet();
+            nextDeliveries.put(entry.getKey(), loc.nextDelivery);
+        }
+
+        synchronized (writeLock) {
+            indexChannel = new RandomAccessFile(index, "rw").getChannel();
+            // cut off a torn tail so new records are not appended to garbage
+            indexChannel.truncate(valid);
+            indexChannel.position(valid);
+            indexRecords = records;
+            openSegment(maxId + 1);
+        }
+        return nextDeliveries;
+    }
+
+    /**
+     * Append the given envelope and message to the journal. The returned
+     * sequence must get passed to {@link #commit(long)} before the entry is
+     * considered to be durable
+     *
+     * @return sequence
+     */
+    public long append(String key, byte[] envelope, MimeMessage message, long nextDelivery) throws IOException, MessagingException {
+        synchronized (writeLock) {
+            if (activeSegment.position >= maxSegmentSize) {
+                roll();
+            }
+            long start = activeSegment.position;
+            try {
+                segmentChannel.write(ByteBuffer.wrap(envelope));
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(segmentChannel));
+                message.writeTo(out);
+                out.flush();
+            } catch (IOException e) {
+                segmentChannel.truncate(start);
+                segmentChannel.position(start);
+                throw e;
+            } catch (MessagingException e) {
+                segmentChannel.truncate(start);
+                segmentChannel.position(start);
+                throw e;
+            }
+            long end = segmentChannel.position();
+            activeSegment.position = end;
+
+            Location loc = new Location(activeSegment.id, start, envelope.length, end - start - envelope.length, nextDelivery);
+            writeIndex(PUT, key, loc);
+            Location previous = locations.put(key, loc);
+            if (previous != null) {
+                release(previous);
+            }
+            activeSegment.live.incrementAndGet();
+            activeSegment.total.incrementAndGet();
+            return ++writtenSeq;
+        }
+    }
+
+    /**
+     * Mark the entry with the given key as removed
+     *
+     * @return sequence or -1 if no entry was stored for the key
+     */
+    public long delete(String key) throws IOException {
+        synchronized (writeLock) {
+            Location loc = locations.remove(key);
+            if (loc == null) {
+                return -1;
+            }
+            writeIndex(DELETE, key, null);
+            release(loc);
+            return ++writtenSeq;
+        }
+    }
+
+    /**
+     * Block until everything up to the given sequence was written to disk.
+     * Only one caller issues the <code>fsync</code> at a time, all writes
+     * which were done in the meantime get flushed by the next one.
+     */
+    public void commit(long seq) throws IOException {
+        if (!sync) {
+            return;
+        }
+        synchronized (syncLock) {
+            while (syncing && syncedSeq < seq) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for journal commit");
+                }
+            }
+            if (syncedSeq >= seq) {
+                return;
+            }
+            syncing = true;
+        }
+
+        long target = 0;
+        boolean success = false;
+        try {
+            FileChannel seg;
+            FileChannel idx;
+            synchronized (writeLock) {
+                target = writtenSeq;
+                seg = segmentChannel;
+                idx = indexChannel;
+            }
+            // force outside of the write lock so other writers can proceed
+            force(seg);
+            force(idx);
+            success = true;
+        } finally {
+            synchronized (syncLock) {
+                if (success) {
+                    syncedSeq = Math.max(syncedSeq, target);
+                }
+                syncing = false;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    private void force(FileChannel channel) throws IOException {
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            // the channel was rolled over, which forces it before closing
+        }
+    }
+
+    /**
+     * Return the {@link Location} of the entry with the given key or
+     * <code>null</code>
+     */
+    public Location getLocation(String key) {
+        return locations.get(key);
+    }
+
+    /**
+     * Read the envelope bytes of the entry with the given key
+     *
+     * @return envelope or <code>null</code> if no entry was stored for the key
+     */
+    public byte[] readEnvelope(String key) throws IOException {
+        Pin pin = pin(key);
+        if (pin == null) {
+            return null;
+        }
+        try {
+            byte[] data = new byte[pin.location.envelopeLength];
+            RandomAccessFile file = new RandomAccessFile(pin.segment.getFile(), "r");
+            try {
+                file.seek(pin.location.offset);
+                file.readFully(data);
+            } finally {
+                Closeables.closeQuietly(file);
+            }
+            return data;
+        } finally {
+            pin.segment.pins.decrementAndGet();
+        }
+    }
+
+    /**
+     * Open a {@link MimeMessageSource} over the message body of the entry with
+     * the given key. The segment which holds the data will not get removed
+     * until the returned source was disposed
+     *
+     * @return source or <code>null</code> if no entry was stored for the key
+     */
+    public MimeMessageSource openMessage(String key) throws IOException {
+        Pin pin = pin(key);
+        if (pin == null) {
+            return null;
+        }
+        try {
+            return new SegmentMimeMessageSource(pin.segment, pin.location.offset + pin.location.envelopeLength, pin.location.bodyLength);
+        } catch (IOException e) {
+            pin.segment.pins.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Pin the segment which holds the entry with the given key, so
+     * {@link #compact()} does not remove it. The pin must get released by
+     * decrementing {@link Segment#pins}
+     *
+     * @return pin or <code>null</code> if no entry was stored for the key
+     */
+    private Pin pin(String key) {
+        while (true) {
+            Location loc = locations.get(key);
+            if (loc == null) {
+                return null;
+            }
+            Segment segment = segments.get(loc.segment);
+            if (segment != null) {
+                // compact() removes segments while holding the same lock
+                synchronized (segment) {
+                    if (!segment.removed) {
+                        segment.pins.incrementAndGet();
+                        return new Pin(segment, loc);
+                    }
+                }
+            }
+            if (locations.get(key) == loc) {
+                return null;
+            }
+            // the entry was relocated in the meantime, so try again
+        }
+    }
+
+    /**
+     * Return the keys of all stored entries
+     */
+    public List<String> keys() {
+        return new ArrayList<String>(locations.keySet());
+    }
+
+    public int size() {
+        return locations.size();
+    }
+
+    /**
+     * Relocate the live entries of sparse sealed segments, remove segments
+     * which hold no live entries anymore and rewrite the index if it grew too
+     * much compared to the live entries.
+     */
+    public void compact() throws IOException {
+        long seq = -1;
+        for (Segment segment : new ArrayList<Segment>(segments.values())) {
+            if (segment == activeSegment) {
+                continue;
+            }
+            int live = segment.live.get();
+            if (live > 0 && live < segment.total.get() * COMPACTION_RATIO) {
+                for (Entry<String, Location> entry : locations.entrySet()) {
+                    if (entry.getValue().segment == segment.id) {
+                        long s = relocate(entry.getKey(), entry.getValue(), segment);
+                        if (s > 0) {
+                            seq = s;
+                        }
+                    }
+                }
+            }
+        }
+        if (seq > 0) {
+            // make sure the relocated entries are durable before the old
+            // segments are removed
+            if (sync) {
+                commit(seq);
+            } else {
+                synchronized (writeLock) {
+                    force(segmentChannel);
+                    force(indexChannel);
+                }
+            }
+        }
+
+        for (Segment segment : new ArrayList<Segment>(segments.values())) {
+            if (segment == activeSegment) {
+                continue;
+            }
+            synchronized (segment) {
+                if (segment.live.get() == 0 && segment.pins.get() == 0) {
+                    segment.removed = true;
+                    segments.remove(segment.id);
+                    if (!segment.getFile().delete()) {
+                        log.info("Unable to delete journal segment " + segment.getFile());
+                    }
+                }
+            }
+        }
+
+        synchronized (writeLock) {
+            if (indexRecords > 2L * locations.size() + 1024) {
+                rewriteIndex();
+            }
+        }
+    }
+
+    private long relocate(String key, Location loc, Segment from) throws IOException {
+        synchronized (writeLock) {
+            // the entry may have been removed in the meantime
+            if (locations.get(key) != loc) {
+                return -1;
+            }
+            if (activeSegment.position >= maxSegmentSize) {
+                roll();
+            }
+            long length = loc.envelopeLength + loc.bodyLength;
+            long start = activeSegment.position;
+            FileChannel in = new RandomAccessFile(from.getFile(), "r").getChannel();
+            try {
+                long transferred = 0;
+                while (transferred < length) {
+                    long t = in.transferTo(loc.offset + transferred, length - transferred, segmentChannel);
+                    if (t <= 0) {
+                        throw new IOException("Unable to relocate journal entry " + key);
+                    }
+                    transferred += t;
+                }
+            } catch (IOException e) {
+                segmentChannel.truncate(start);
+                segmentChannel.position(start);
+                throw e;
+            } finally {
+                Closeables.closeQuietly(in);
+            }
+            activeSegment.position = start + length;
+            Location moved = new Location(activeSegment.id, start, loc.envelopeLength, loc.bodyLength, loc.nextDelivery);
+            writeIndex(PUT, key, moved);
+            locations.put(key, moved);
+            release(loc);
+            activeSegment.live.incrementAndGet();
+            activeSegment.total.incrementAndGet();
+            return ++writtenSeq;
+        }
+    }
+
+    /**
+     * Write a snapshot of all live locations as new index. Must get called
+     * while holding the write lock
+     */
+    private void rewriteIndex() throws IOException {
+        File tmp = new File(dir, INDEX_TMP_FILE);
+        File index = new File(dir, INDEX_FILE);
+        File old = new File(dir, INDEX_OLD_FILE);
+
+        FileChannel channel = new RandomAccessFile(tmp, "rw").getChannel();
+        long records = 0;
+        try {
+            channel.truncate(0);
+            for (Entry<String, Location> entry : locations.entrySet()) {
+                channel.write(ByteBuffer.wrap(indexRecord(PUT, entry.getKey(), entry.getValue())));
+                records++;
+            }
+            channel.force(false);
+        } finally {
+            Closeables.closeQuietly(channel);
+        }
+
+        force(indexChannel);
+        Closeables.closeQuietly(indexChannel);
+        if (!index.renameTo(old) || !tmp.renameTo(index)) {
+            throw new IOException("Unable to replace journal index " + index);
+        }
+        FileUtils.deleteQuietly(old);
+
+        indexChannel = new RandomAccessFile(index, "rw").getChannel();
+        indexChannel.position(indexChannel.size());
+        indexRecords = records;
+    }
+
+    private void writeIndex(byte type, String key, Location loc) throws IOException {
+        indexChannel.write(ByteBuffer.wrap(indexRecord(type, key, loc)));
+        indexRecords++;
+    }
+
+    private byte[] indexRecord(byte type, String key, Location loc) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeUTF(key);
+        if (type == PUT) {
+            out.writeLong(loc.segment);
+            out.writeLong(loc.offset);
+            out.writeInt(loc.envelopeLength);
+            out.writeLong(loc.bodyLength);
+            out.writeLong(loc.nextDelivery);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void release(Location loc) {
+        Segment segment = segments.get(loc.segment);
+        if (segment != null) {
+            segment.live.decrementAndGet();
+        }
+    }
+
+    /**
+     * Seal the active segment and start a new one. Must get called while
+     * holding the write lock
+     */
+    private void roll() throws IOException {
+        segmentChannel.force(false);
+        indexChannel.force(false);
+        Closeables.closeQuietly(segmentChannel);
+        openSegment(activeSegment.id + 1);
+    }
+
+    private void openSegment(long id) throws IOException {
+        Segment segment = new Segment(id);
+        segmentChannel = new RandomAccessFile(segment.getFile(), "rw").getChannel();
+        segment.position = segmentChannel.size();
+        segmentChannel.position(segment.position);
+        segments.put(id, segment);
+        activeSegment = segment;
+    }
+
+    private List<Long> listSegmentIds() {
+        List<Long> ids = new ArrayList<Long>();
+        String[] names = dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_EXTENSION);
+            }
+        });
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    ids.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length())));
+                } catch (NumberFormatException e) {
+                    log.info("Ignoring unknown file " + name + " in journal " + dir);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Close the journal. Everything which was written before gets forced to
+     * disk
+     */
+    public void close() {
+        synchronized (writeLock) {
+            try {
+                if (segmentChannel != null) {
+                    segmentChannel.force(false);
+                }
+                if (indexChannel != null) {
+                    indexChannel.force(false);
+                }
+            } catch (IOException e) {
+                log.error("Unable to sync journal " + dir, e);
+            }
+            Closeables.closeQuietly(segmentChannel);
+            Closeables.closeQuietly(indexChannel);
+        }
+    }
+
+    /**
+     * Position of an entry inside a segment
+     */
+    public final static class Location {
+        private final long segment;
+        private final long offset;
+        private final int envelopeLength;
+        private final long bodyLength;
+        private final long nextDelivery;
+
+        public Location(long segment, long offset, int envelopeLength, long bodyLength, long nextDelivery) {
+            this.segment = segment;
+            this.offset = offset;
+            this.envelopeLength = envelopeLength;
+            this.bodyLength = bodyLength;
+            this.nextDelivery = nextDelivery;
+        }
+
+        public long getNextDelivery() {
+            return nextDelivery;
+        }
+
+        public long getBodyLength() {
+            return bodyLength;
+        }
+    }
+
+    private final class Segment {
+        private final long id;
+        private final AtomicInteger live = new AtomicInteger();
+        private final AtomicInteger total = new AtomicInteger();
+        private final AtomicInteger pins = new AtomicInteger();
+        private long position;
+        // guarded by the segment itself
+        private boolean removed;
+
+        public Segment(long id) {
+            this.id = id;
+        }
+
+        public File getFile() {
+            return new File(dir, id + SEGMENT_EXTENSION);
+        }
+    }
+
+    /**
+     * A pinned {@link Segment} together with the {@link Location} which was
+     * read while pinning it
+     */
+    private final static class Pin {
+        private final Segment segment;
+        private final Location location;
+
+        private Pin(Segment segment, Location location) {
+            this.segment = segment;
+            this.location = location;
+        }
+    }
+
+    /**
+     * {@link MimeMessageSource} which reads the message body out of a segment.
+     * The segment must already be pinned, the pin is released on
+     * {@link #dispose()}
+     */
+    private final class SegmentMimeMessageSource extends MimeMessageSource implements Disposable {
+
+        private final Segment segment;
+        private final long offset;
+        private final long length;
+        private SharedFileInputStream in;
+
+        public SegmentMimeMessageSource(Segment segment, long offset, long length) throws IOException {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.in = new SharedFileInputStream(segment.getFile());
+        }
+
+        @Override
+        public String getSourceId() {
+            return segment.getFile().getAbsolutePath() + "#" + offset;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return in.newStream(offset, offset + length);
+        }
+
+        @Override
+        public long getMessageSize() throws IOException {
+            return length;
+        }
+
+        @Override
+        public synchronized void dispose() {
+            if (in != null) {
+                Closeables.closeQuietly(in);
+                in = null;
+                segment.pins.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class DelayIndexTest {
+
+    private final static Logger LOG = LoggerFactory.getLogger(DelayIndexTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private final List<String> promoted = new ArrayList<String>();
+
+    @Before
+    public void setUp() {
+        dir = new File(folder.getRoot(), "delay");
+    }
+
+    private DelayIndex open() {
+        return new DelayIndex(dir, false, new DelayIndex.Promoter() {
+
+            @Override
+            public boolean promote(String key) {
+                promoted.add(key);
+                return true;
+            }
+        }, LOG);
+    }
+
+    @Test
+    public void testKeysSurviveRestart() throws Exception {
+        long next = System.currentTimeMillis() + 60 * 60 * 1000;
+        DelayIndex index = open();
+        index.init();
+        index.add("a", next);
+        index.add("b", next + 5 * 60 * 1000);
+
+        Map<String, Long> keys = open().init();
+        assertEquals(2, keys.size());
+        assertEquals(Long.valueOf(next), keys.get("a"));
+        assertEquals(Long.valueOf(next + 5 * 60 * 1000), keys.get("b"));
+    }
+
+    @Test
+    public void testKeyOfLoadedBucketIsPersisted() throws Exception {
+        long now = System.currentTimeMillis();
+        DelayIndex index = open();
+        index.init();
+        index.add("a", now);
+        assertEquals(1, index.tick());
+
+        // the bucket of "b" was loaded by the tick before
+        index.add("b", now);
+        Map<String, Long> keys = open().init();
+        assertTrue(keys.containsKey("b"));
+
+        assertEquals(1, index.tick());
+        assertEquals("b", promoted.get(1));
+    }
+
+    @Test
+    public void testTickPromotesDueKeysOnly() throws Exception {
+        long now = System.currentTimeMillis();
+        DelayIndex index = open();
+        index.init();
+        index.add("due", now - 1000);
+        index.add("later", now + 60 * 60 * 1000);
+
+        assertEquals(1, index.tick());
+        assertEquals("due", promoted.get(0));
+        assertEquals(1, index.promoteAll());
+        assertEquals("later", promoted.get(1));
+        assertTrue(open().init().isEmpty());
+    }
+}
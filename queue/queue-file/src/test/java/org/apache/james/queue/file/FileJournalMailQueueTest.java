@@ -0,0 +1,176 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.api.ManageableMailQueue.Type;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class FileJournalMailQueueTest {
+
+    private final static Logger LOG = LoggerFactory.getLogger(FileJournalMailQueueTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileJournalMailQueue queue;
+
+    @Before
+    public void setUp() throws IOException {
+        queue = open();
+    }
+
+    @After
+    public void tearDown() {
+        queue.dispose();
+    }
+
+    private FileJournalMailQueue open() throws IOException {
+        return new FileJournalMailQueue(folder.getRoot(), "test", true, 1024 * 1024, LOG);
+    }
+
+    private void restart() throws IOException {
+        queue.dispose();
+        queue = open();
+    }
+
+    private Mail createMail(String name, String sender, String... recipients) throws MessagingException {
+        MailImpl mail = new MailImpl();
+        mail.setName(name);
+        mail.setSender(new MailAddress(sender));
+        MailAddress[] rcpts = new MailAddress[recipients.length];
+        for (int i = 0; i < recipients.length; i++) {
+            rcpts[i] = new MailAddress(recipients[i]);
+        }
+        mail.setRecipients(Arrays.asList(rcpts));
+
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText("test " + name);
+        message.saveChanges();
+        mail.setMessage(message);
+        return mail;
+    }
+
+    @Test
+    public void testEnQueueDeQueue() throws Exception {
+        queue.enQueue(createMail("mail1", "sender@domain", "rcpt@domain"));
+        assertEquals(1, queue.getSize());
+
+        MailQueueItem item = queue.deQueue();
+        assertEquals("mail1", item.getMail().getName());
+        assertEquals("sender@domain", item.getMail().getSender().toString());
+        assertTrue(((String) item.getMail().getMessage().getContent()).contains("test mail1"));
+        item.done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testUnfinishedMailIsDeliveredAfterRestart() throws Exception {
+        queue.enQueue(createMail("mail1", "sender@domain", "rcpt@domain"));
+        queue.deQueue();
+
+        restart();
+        List<MailQueueItem> items = queue.deQueue(10, 1000);
+        assertEquals(1, items.size());
+        assertEquals("mail1", items.get(0).getMail().getName());
+        items.get(0).done(true);
+    }
+
+    @Test
+    public void testDoneIsDurable() throws Exception {
+        queue.enQueue(createMail("mail1", "sender@domain", "rcpt@domain"));
+        queue.enQueue(createMail("mail2", "sender@domain", "rcpt@domain"));
+        queue.deQueue().done(true);
+
+        restart();
+        assertEquals(1, queue.getSize());
+        List<MailQueueItem> items = queue.deQueue(10, 1000);
+        assertEquals(1, items.size());
+        assertEquals("mail2", items.get(0).getMail().getName());
+        items.get(0).done(true);
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        queue.enQueue(createMail("mail1", "sender@Domain.ORG", "rcpt@one.org"));
+        queue.enQueue(createMail("mail2", "other@domain.org", "rcpt@two.org", "rcpt@one.org"));
+        queue.enQueue(createMail("mail3", "other@domain.org", "rcpt@two.org"));
+        queue.enQueue(createMail("mail4", "other@domain.org", "rcpt@three.org"));
+
+        assertEquals(1, queue.remove(Type.Sender, "sender@domain.org"));
+        assertEquals(1, queue.remove(Type.Recipient, "rcpt@one.org"));
+        assertEquals(1, queue.remove(Type.Recipient, "TWO.org"));
+        assertEquals(0, queue.remove(Type.Recipient, "one.org"));
+
+        restart();
+        assertEquals(1, queue.getSize());
+        List<MailQueueItem> items = queue.deQueue(10, 1000);
+        assertEquals(1, items.size());
+        assertEquals("mail4", items.get(0).getMail().getName());
+        items.get(0).done(true);
+    }
+
+    @Test
+    public void testDelayAndFlush() throws Exception {
+        queue.enQueue(createMail("mail1", "sender@domain", "rcpt@domain"), 1, TimeUnit.HOURS);
+        assertEquals(0, queue.deQueue(10, 100).size());
+
+        // the delay is kept across a restart
+        restart();
+        assertEquals(0, queue.deQueue(10, 100).size());
+
+        assertEquals(1, queue.flush());
+        assertEquals(0, queue.flush());
+        List<MailQueueItem> items = queue.deQueue(10, 1000);
+        assertEquals(1, items.size());
+        items.get(0).done(true);
+    }
+
+    @Test
+    public void testDelayedMailIsPromoted() throws Exception {
+        queue.enQueue(createMail("mail1", "sender@domain", "rcpt@domain"), 500, TimeUnit.MILLISECONDS);
+        assertEquals(0, queue.deQueue(10, 100).size());
+
+        List<MailQueueItem> items = queue.deQueue(10, 5000);
+        assertEquals(1, items.size());
+        items.get(0).done(true);
+    }
+}
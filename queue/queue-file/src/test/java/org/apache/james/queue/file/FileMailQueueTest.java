@@ -0,0 +1,220 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueItemView;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueIterator;
+import org.apache.james.queue.api.ManageableMailQueue.Type;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class FileMailQueueTest {
+
+    private final static Logger LOG = LoggerFactory.getLogger(FileMailQueueTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileMailQueue queue;
+
+    @Before
+    public void setUp() throws IOException {
+        queue = open();
+    }
+
+    @After
+    public void tearDown() {
+        queue.dispose();
+    }
+
+    private FileMailQueue open() throws IOException {
+        return new FileMailQueue(folder.getRoot(), "test", false, LOG);
+    }
+
+    private void restart() throws IOException {
+        queue.dispose();
+        queue = open();
+    }
+
+    private Mail createMail(String name, String sender, String... recipients) throws MessagingException {
+        MailImpl mail = new MailImpl();
+        mail.setName(name);
+        mail.setSender(new MailAddress(sender));
+        MailAddress[] rcpts = new MailAddress[recipients.length];
+        for (int i = 0; i < recipients.length; i++) {
+            rcpts[i] = new MailAddress(recipients[i]);
+        }
+        mail.setRecipients(Arrays.asList(rcpts));
+
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText("test " + name);
+        message.saveChanges();
+        mail.setMessage(message);
+        return mail;
+    }
+
+    @Test
+    public void testEnQueueDeQueue() throws Exception {
+        queue.enQueue(createMail("mail1", "sender@domain", "rcpt@domain"));
+        assertEquals(1, queue.getSize());
+
+        MailQueueItem item = queue.deQueue();
+        assertEquals("mail1", item.getMail().getName());
+        assertTrue(((String) item.getMail().getMessage().getContent()).contains("test mail1"));
+        item.done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testDelayedMailSurvivesRestart() throws Exception {
+        long before = System.currentTimeMillis();
+        queue.enQueue(createMail("mail1", "sender@domain", "rcpt@domain"), 1, TimeUnit.HOURS);
+        queue.enQueue(createMail("mail2", "sender@domain", "rcpt@domain"));
+
+        restart();
+        assertEquals(2, queue.getSize());
+        List<MailQueueItem> items = queue.deQueue(10, 1000);
+        assertEquals(1, items.size());
+        assertEquals("mail2", items.get(0).getMail().getName());
+        items.get(0).done(true);
+
+        MailQueueIterator it = queue.browse();
+        assertTrue(it.hasNext());
+        MailQueueItemView view = it.next();
+        assertTrue(view.getNextDelivery() >= before + TimeUnit.HOURS.toMillis(1));
+        assertEquals("mail1", view.getMail().getName());
+        assertFalse(it.hasNext());
+        it.close();
+
+        assertEquals(1, queue.flush());
+        items = queue.deQueue(10, 1000);
+        assertEquals(1, items.size());
+        assertEquals("mail1", items.get(0).getMail().getName());
+        items.get(0).done(true);
+    }
+
+    @Test
+    public void testMailIsKeptIfDeQueueFails() throws Exception {
+        queue.enQueue(createMail("mail1", "sender@domain", "rcpt@domain"));
+
+        File objectFile = findObjectFile(new File(folder.getRoot(), "test"));
+        File moved = new File(folder.getRoot(), "moved");
+        assertTrue(objectFile.renameTo(moved));
+        try {
+            queue.deQueue(10, 1000);
+            fail("The mail can not get loaded");
+        } catch (MailQueueException e) {
+            // expected
+        }
+
+        assertTrue(moved.renameTo(objectFile));
+        List<MailQueueItem> items = queue.deQueue(10, 1000);
+        assertEquals(1, items.size());
+        assertEquals("mail1", items.get(0).getMail().getName());
+        items.get(0).done(true);
+    }
+
+    private File findObjectFile(File dir) {
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                File found = findObjectFile(file);
+                if (found != null) {
+                    return found;
+                }
+            } else if (file.getName().endsWith(".obj")) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testIndexesAfterRestart() throws Exception {
+        queue.enQueue(createMail("mail1", "sender@Domain.ORG", "rcpt@one.org"));
+        queue.enQueue(createMail("mail2", "other@domain.org", "rcpt@two.org", "rcpt@ONE.org"));
+        queue.enQueue(createMail("mail3", "sender@domain.org", "rcpt@two.org"));
+
+        // the indexes get built on first use after the restart
+        restart();
+        assertEquals(2, count(queue.browse(Type.Sender, "sender@DOMAIN.org", 0, 10)));
+        assertEquals(2, count(queue.browse(Type.Recipient, "one.org", 0, 10)));
+        assertEquals(1, count(queue.browse(Type.Recipient, "rcpt@one.org", 1, 10)));
+        assertEquals(1, count(queue.browse(null, null, 1, 1)));
+
+        assertEquals(2, queue.remove(Type.Sender, "sender@domain.org"));
+        assertEquals(1, queue.remove(Type.Recipient, "rcpt@two.org"));
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testSenderIsNormalized() throws Exception {
+        queue.enQueue(createMail("mail1", "sender@Domain.ORG", "rcpt@one.org"));
+        assertEquals(1, count(queue.browse(Type.Sender, "sender@domain.org", 0, 10)));
+        assertEquals(0, count(queue.browse(Type.Sender, "Sender@domain.org", 0, 10)));
+        assertEquals(1, queue.remove(Type.Sender, "sender@DOMAIN.org"));
+    }
+
+    private int count(MailQueueIterator it) {
+        int count = 0;
+        while (it.hasNext()) {
+            assertTrue(it.next().getMail() != null);
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    @Test
+    public void testBrowseReadyMail() throws Exception {
+        queue.enQueue(createMail("mail1", "sender@domain", "rcpt@domain"));
+
+        MailQueueIterator it = queue.browse();
+        MailQueueItemView view = it.next();
+        assertEquals(-1, view.getNextDelivery());
+        assertEquals("mail1", view.getMail().getName());
+        assertFalse(it.hasNext());
+        it.close();
+    }
+}
@@ -0,0 +1,214 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.core.MimeMessageSource;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class SegmentedJournalTest {
+
+    private final static Logger LOG = LoggerFactory.getLogger(SegmentedJournalTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private SegmentedJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = new File(folder.getRoot(), "journal");
+        journal = open();
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+    }
+
+    private SegmentedJournal open() {
+        return new SegmentedJournal(dir, 1024 * 1024, true, LOG);
+    }
+
+    private Map<String, Long> reopen() throws IOException {
+        journal.close();
+        journal = open();
+        return journal.recover();
+    }
+
+    private MimeMessage createMessage(String text) throws MessagingException {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText(text);
+        message.saveChanges();
+        return message;
+    }
+
+    private long append(String key, long nextDelivery) throws IOException, MessagingException {
+        return journal.append(key, key.getBytes("UTF-8"), createMessage("body of " + key), nextDelivery);
+    }
+
+    private String readBody(MimeMessageSource source) throws IOException {
+        return IOUtils.toString(source.getInputStream(), "US-ASCII");
+    }
+
+    private File segmentFile(long id) {
+        return new File(dir, id + ".seg");
+    }
+
+    @Test
+    public void testRecover() throws Exception {
+        assertTrue(journal.recover().isEmpty());
+        journal.commit(append("a", 0));
+        journal.commit(append("b", 1234));
+        journal.commit(append("c", 0));
+        journal.commit(journal.delete("c"));
+
+        Map<String, Long> entries = reopen();
+        assertEquals(2, entries.size());
+        assertEquals(Long.valueOf(0), entries.get("a"));
+        assertEquals(Long.valueOf(1234), entries.get("b"));
+        assertArrayEquals("b".getBytes("UTF-8"), journal.readEnvelope("b"));
+        assertNull(journal.readEnvelope("c"));
+
+        MimeMessageSource source = journal.openMessage("a");
+        try {
+            assertTrue(readBody(source).contains("body of a"));
+        } finally {
+            LifecycleUtil.dispose(source);
+        }
+    }
+
+    @Test
+    public void testTornIndexTailIsCutOff() throws Exception {
+        journal.recover();
+        journal.commit(append("a", 0));
+        journal.close();
+
+        // a record which was only partially written before a crash
+        FileOutputStream out = new FileOutputStream(new File(dir, "journal.idx"), true);
+        try {
+            out.write(new byte[] {1, 0, 5, 'b'});
+        } finally {
+            out.close();
+        }
+
+        journal = open();
+        assertEquals(1, journal.recover().size());
+
+        // new records must not get appended after the garbage
+        journal.commit(append("c", 0));
+        Map<String, Long> entries = reopen();
+        assertEquals(2, entries.size());
+        assertTrue(entries.containsKey("a"));
+        assertTrue(entries.containsKey("c"));
+    }
+
+    @Test
+    public void testIncompleteEntryIsDropped() throws Exception {
+        journal.recover();
+        journal.commit(append("a", 0));
+        journal.commit(append("b", 0));
+        journal.close();
+
+        // the tail of the segment got lost
+        RandomAccessFile file = new RandomAccessFile(segmentFile(1), "rw");
+        try {
+            file.setLength(file.length() - 10);
+        } finally {
+            file.close();
+        }
+
+        journal = open();
+        Map<String, Long> entries = journal.recover();
+        assertEquals(1, entries.size());
+        assertTrue(entries.containsKey("a"));
+    }
+
+    @Test
+    public void testCompactionRelocatesLiveEntries() throws Exception {
+        journal.recover();
+        append("a", 0);
+        append("b", 0);
+        journal.commit(append("c", 42));
+
+        // seal the first segment
+        reopen();
+        journal.delete("a");
+        journal.commit(journal.delete("b"));
+
+        journal.compact();
+        assertFalse(segmentFile(1).exists());
+        assertArrayEquals("c".getBytes("UTF-8"), journal.readEnvelope("c"));
+
+        Map<String, Long> entries = reopen();
+        assertEquals(1, entries.size());
+        assertEquals(Long.valueOf(42), entries.get("c"));
+        MimeMessageSource source = journal.openMessage("c");
+        try {
+            assertTrue(readBody(source).contains("body of c"));
+        } finally {
+            LifecycleUtil.dispose(source);
+        }
+    }
+
+    @Test
+    public void testPinnedSegmentIsKept() throws Exception {
+        journal.recover();
+        journal.commit(append("a", 0));
+        reopen();
+
+        MimeMessageSource source = journal.openMessage("a");
+        assertNotNull(source);
+        journal.commit(journal.delete("a"));
+
+        journal.compact();
+        assertTrue(segmentFile(1).exists());
+        assertTrue(readBody(source).contains("body of a"));
+
+        LifecycleUtil.dispose(source);
+        journal.compact();
+        assertFalse(segmentFile(1).exists());
+    }
+}
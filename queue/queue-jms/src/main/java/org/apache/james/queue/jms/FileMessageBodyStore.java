@@ -0,0 +1,172 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import javax.mail.MessagingException;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.james.core.MimeMessageSource;
+import org.apache.james.lifecycle.api.Disposable;
+import org.apache.mailet.Mail;
+
+/**
+ * {@link MessageBodyStore} which stores every message body in its own file
+ * of a directory. The bodies are read via a {@link SharedFileInputStream}, so
+ * only a small buffer is kept on the heap whatever the size of the message is
+ */
+public class FileMessageBodyStore implements MessageBodyStore {
+
+    private final static String SUFFIX = ".msg";
+    private final static int BUFFER_SIZE = 8192;
+
+    private final File directory;
+    private final boolean sync;
+
+    public FileMessageBodyStore(File directory) throws IOException {
+        this(directory, true);
+    }
+
+    /**
+     * @param directory
+     *            directory in which the bodies are stored
+     * @param sync
+     *            if <code>true</code> the body is forced to disk before the
+     *            reference is returned
+     * @throws IOException
+     */
+    public FileMessageBodyStore(File directory, boolean sync) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        this.directory = directory;
+        this.sync = sync;
+    }
+
+    @Override
+    public String store(Mail mail) throws IOException, MessagingException {
+        String reference = UUID.randomUUID().toString();
+        File file = getFile(reference);
+        FileOutputStream fout = new FileOutputStream(file);
+        boolean stored = false;
+        try {
+            OutputStream out = new BufferedOutputStream(fout, BUFFER_SIZE);
+            mail.getMessage().writeTo(out);
+            out.flush();
+            if (sync) {
+                fout.getFD().sync();
+            }
+            stored = true;
+        } finally {
+            try {
+                fout.close();
+            } catch (IOException e) {
+                // ignore on close
+            }
+            if (!stored) {
+                file.delete();
+            }
+        }
+        return reference;
+    }
+
+    @Override
+    public MimeMessageSource open(String reference) throws IOException {
+        File file = getFile(reference);
+        if (!file.exists()) {
+            throw new FileNotFoundException("No message body stored for reference " + reference);
+        }
+        return new FileMessageBodySource(reference, file);
+    }
+
+    @Override
+    public void delete(String reference) throws IOException {
+        File file = getFile(reference);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete message body " + file);
+        }
+    }
+
+    private File getFile(String reference) {
+        // the reference is used as filename, so make sure it can not point
+        // outside of the directory
+        if (reference.indexOf('/') != -1 || reference.indexOf('\\') != -1 || reference.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid message body reference " + reference);
+        }
+        return new File(directory, reference + SUFFIX);
+    }
+
+    /**
+     * {@link MimeMessageSource} which reads a stored body on demand
+     */
+    private final static class FileMessageBodySource extends MimeMessageSource implements Disposable {
+
+        private final String reference;
+        private final File file;
+        private SharedFileInputStream in;
+
+        public FileMessageBodySource(String reference, File file) {
+            this.reference = reference;
+            this.file = file;
+        }
+
+        @Override
+        public String getSourceId() {
+            return reference;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (in == null) {
+                in = new SharedFileInputStream(file);
+            }
+            return in.newStream(0, -1);
+        }
+
+        @Override
+        public long getMessageSize() throws IOException {
+            return file.length();
+        }
+
+        @Override
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public synchronized void dispose() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore on dispose
+                }
+                in = null;
+            }
+        }
+    }
+}
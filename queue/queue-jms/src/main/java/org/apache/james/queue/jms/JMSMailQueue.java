@@ -21,15 +21,17 @@ package org.apache.james.queue.jms;
 import com.google.common.io.Closeables;
 import org.apache.james.core.MailImpl;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.lifecycle.api.Disposable;
 import org.apache.james.queue.api.MailPrioritySupport;
 import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueStatistics;
 import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.library.MailQueueCounters;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
 import org.slf4j.Logger;
 
 import javax.jms.BytesMessage;
-import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
 import javax.jms.Message;
@@ -46,6 +48,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -54,6 +57,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -64,20 +70,353 @@ import java.util.concurrent.TimeUnit;
  * </p>
  * <p>
  * It use {@link ObjectMessage} with a byte array as payload to store the
- * {@link Mail} objects.
+ * {@link Mail} objects. If a {@link MessageBodyStore} is configured the
+ * message body is streamed to it instead and only its reference is sent via
+ * JMS, which keeps the heap usage per mail bounded.
+ * </p>
+ * <p>
+ * By default delayed mails are kept in the queue and filtered out with a
+ * message selector on every dequeue. If the delay queues are enabled they are
+ * sent to separate queues instead and moved to the queue once they are due,
+ * so dequeues don't need a selector at all. Each of the
+ * {@link #getDelayBucketCount()} delay queues holds the mails which are due
+ * within one time bucket of {@link #getDelayBucketWidth()} ms, used as a ring.
+ * Mails which are due after the last bucket wait in one of two far queues,
+ * which are drained in turn every half turn of the ring. So no delay queue is
+ * ever read with a selector that has to skip mails which are due later,
+ * except the one of the current bucket, and the names of all delay queues are
+ * fixed so they are found again after a restart.
+ * </p>
+ * <p>
+ * The {@link MailQueueStatistics} are maintained in memory, so they miss the
+ * changes done by other instances on the same queue, while {@link #getSize()}
+ * always asks the broker. On creation they get initialized with the size the broker reports
+ * by {@link #getBrokerQueueSize(String)}, in which case the mails which were
+ * stored before are counted as ready. Only if the broker can not report it
+ * the queue is browsed once. The delay queues are always browsed, as the next
+ * delivery times of their mails are needed.
  * </p>
  */
-public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPrioritySupport {
+public class JMSMailQueue implements ManageableMailQueue, MailQueueStatistics, JMSSupport, MailPrioritySupport, Disposable {
 
     protected final String queueName;
     protected final ConnectionFactory connectionFactory;
+    protected final JMSSessionPool sessionPool;
     protected final Logger logger;
+    protected final MessageBodyStore bodyStore;
+    /** Names of the time bucketed delay queues, null if not enabled */
+    private final String[] delayBuckets;
+    /** Names of the two queues for the mails which are due after all buckets */
+    private final String[] farQueues;
+    protected final MailQueueCounters counters = new MailQueueCounters();
     public final static String FORCE_DELIVERY = "FORCE_DELIVERY";
 
+    /** Suffix of the queues which hold the delayed mails */
+    public final static String DELAY_QUEUE_SUFFIX = "-delayed";
+
+    /** Default width in ms of the time bucket of one delay queue */
+    public final static long DELAY_BUCKET_WIDTH = 30000;
+
+    /** Default count of time bucketed delay queues */
+    public final static int DELAY_BUCKETS = 20;
+
+    /**
+     * Suffix of the queue which receives the mails which failed too often
+     * within a {@link JMSMailQueueBatch}
+     */
+    public final static String DEAD_LETTER_QUEUE_SUFFIX = "-dead";
+
+    /**
+     * Count of failures within a {@link JMSMailQueueBatch} after which a mail
+     * is moved to the dead letter queue. This matches the default redelivery
+     * policy of ActiveMQ for rolled back messages.
+     */
+    public final static int MAX_BATCH_FAILURES = 6;
+
+    /** Interval in ms in which the due mails are moved out of the delay queue */
+    public final static long DELAY_CHECK_INTERVAL = 1000;
+
+    /** Time in ms to wait for the first due mail in the delay queue */
+    private final static long DELAY_RECEIVE_TIMEOUT = 200;
+
+    /** Count of moved mails after which the transaction is committed */
+    private final static int DELAY_MOVE_BATCH = 500;
+
+    private final ScheduledExecutorService delayScheduler;
+
+    /**
+     * Last ended bucket which was drained by the delay scheduler, -1 before
+     * the first run
+     */
+    private long drainedBucket = -1;
+
+    /** Last pass over the far queues, -1 before the first run */
+    private long farPass = -1;
+
+    /**
+     * Lock which is held while mails are moved between the delay queues, so
+     * flush and remove don't miss the mails which are in transit
+     */
+    private final Object delayLock = new Object();
+
+    /**
+     * Flag which is true if the {@link JMSSessionPool} was created by this
+     * queue and so needs to get closed on dispose
+     */
+    private final boolean ownPool;
+
     public JMSMailQueue(final ConnectionFactory connectionFactory, final String queueName, final Logger logger) {
-        this.connectionFactory = connectionFactory;
+        this(new JMSSessionPool(connectionFactory, logger), true, null, false, queueName, logger);
+    }
+
+    /**
+     * Construct a new {@link JMSMailQueue} which stores the message bodies in
+     * the given {@link MessageBodyStore}
+     *
+     * @param connectionFactory
+     * @param bodyStore
+     * @param queueName
+     * @param logger
+     */
+    public JMSMailQueue(final ConnectionFactory connectionFactory, final MessageBodyStore bodyStore, final String queueName, final Logger logger) {
+        this(connectionFactory, bodyStore, false, queueName, logger);
+    }
+
+    /**
+     * Construct a new {@link JMSMailQueue}
+     *
+     * @param connectionFactory
+     * @param bodyStore
+     *            store for the message bodies or <code>null</code>
+     * @param useDelayQueue
+     *            if <code>true</code> delayed mails are kept in separate,
+     *            time bucketed queues until they are due
+     * @param queueName
+     * @param logger
+     */
+    public JMSMailQueue(final ConnectionFactory connectionFactory, final MessageBodyStore bodyStore, boolean useDelayQueue, final String queueName, final Logger logger) {
+        this(new JMSSessionPool(connectionFactory, logger), true, bodyStore, useDelayQueue, queueName, logger);
+    }
+
+    /**
+     * Construct a new {@link JMSMailQueue} which borrows its sessions from the
+     * given, probably shared, {@link JMSSessionPool}
+     *
+     * @param sessionPool
+     * @param queueName
+     * @param logger
+     */
+    public JMSMailQueue(final JMSSessionPool sessionPool, final String queueName, final Logger logger) {
+        this(sessionPool, false, null, false, queueName, logger);
+    }
+
+    /**
+     * Construct a new {@link JMSMailQueue} which stores the message bodies in
+     * the given {@link MessageBodyStore}
+     *
+     * @param sessionPool
+     * @param bodyStore
+     * @param queueName
+     * @param logger
+     */
+    public JMSMailQueue(final JMSSessionPool sessionPool, final MessageBodyStore bodyStore, final String queueName, final Logger logger) {
+        this(sessionPool, bodyStore, false, queueName, logger);
+    }
+
+    /**
+     * Construct a new {@link JMSMailQueue} which borrows its sessions from the
+     * given {@link JMSSessionPool}
+     *
+     * @param sessionPool
+     * @param bodyStore
+     *            store for the message bodies or <code>null</code>
+     * @param useDelayQueue
+     *            if <code>true</code> delayed mails are kept in separate,
+     *            time bucketed queues until they are due
+     * @param queueName
+     * @param logger
+     */
+    public JMSMailQueue(final JMSSessionPool sessionPool, final MessageBodyStore bodyStore, boolean useDelayQueue, final String queueName, final Logger logger) {
+        this(sessionPool, false, bodyStore, useDelayQueue, queueName, logger);
+    }
+
+    private JMSMailQueue(final JMSSessionPool sessionPool, boolean ownPool, final MessageBodyStore bodyStore, boolean useDelayQueue, final String queueName, final Logger logger) {
+        this.sessionPool = sessionPool;
+        this.ownPool = ownPool;
+        this.bodyStore = bodyStore;
+        this.connectionFactory = sessionPool.getConnectionFactory();
         this.queueName = queueName;
         this.logger = logger;
+
+        if (useDelayQueue) {
+            this.delayBuckets = new String[getDelayBucketCount()];
+            for (int i = 0; i < delayBuckets.length; i++) {
+                delayBuckets[i] = queueName + DELAY_QUEUE_SUFFIX + "-" + i;
+            }
+            this.farQueues = new String[] { queueName + DELAY_QUEUE_SUFFIX + "-far0", queueName + DELAY_QUEUE_SUFFIX + "-far1" };
+            this.delayScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "JMSMailQueue-" + queueName + "-delay");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            this.delayScheduler.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        moveDueMails();
+                    } catch (MailQueueException e) {
+                        // a move may get interrupted on dispose
+                        if (!delayScheduler.isShutdown()) {
+                            logger.error("Unable to move due mails to queue " + queueName, e);
+                        }
+                    }
+                }
+            }, DELAY_CHECK_INTERVAL, DELAY_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        } else {
+            this.delayBuckets = null;
+            this.farQueues = null;
+            this.delayScheduler = null;
+        }
+        initCounters();
+    }
+
+    /**
+     * Initialize the {@link MailQueueCounters} with the mails which are
+     * already stored in the queue
+     */
+    private void initCounters() {
+        long size = -1;
+        try {
+            size = getBrokerQueueSize(queueName);
+        } catch (MailQueueException e) {
+            logger.info("Unable to get the size of queue " + queueName + " from the broker", e);
+        }
+        if (size >= 0) {
+            counters.seeded(size);
+        } else {
+            initCounters(queueName);
+        }
+        for (String name : getDelayQueueNames()) {
+            initCounters(name);
+        }
+    }
+
+    /**
+     * Return the width in ms of the time bucket of one delay queue. This is
+     * called from the constructor.
+     *
+     * @return width
+     */
+    protected long getDelayBucketWidth() {
+        return DELAY_BUCKET_WIDTH;
+    }
+
+    /**
+     * Return the count of time bucketed delay queues. Together they cover the
+     * mails which are due within the next
+     * <code>getDelayBucketWidth() * getDelayBucketCount()</code> ms. This is
+     * called from the constructor.
+     *
+     * @return count
+     */
+    protected int getDelayBucketCount() {
+        return DELAY_BUCKETS;
+    }
+
+    /**
+     * Return the names of all delay queues, which is an empty list if they are
+     * not enabled
+     *
+     * @return names
+     */
+    protected List<String> getDelayQueueNames() {
+        List<String> names = new ArrayList<String>();
+        if (delayBuckets != null) {
+            names.addAll(Arrays.asList(delayBuckets));
+            names.addAll(Arrays.asList(farQueues));
+        }
+        return names;
+    }
+
+    /**
+     * Return the name of the delay queue for a mail which is due at the given
+     * time
+     *
+     * @param nextDelivery
+     * @param now
+     * @param farQueue
+     *            the far queue to use if the mail is due after all buckets
+     * @return name
+     */
+    private String getDelayQueueName(long nextDelivery, long now, String farQueue) {
+        long width = getDelayBucketWidth();
+        long bucket = nextDelivery / width;
+        // the bucket before the current one may not be drained yet, so it is
+        // never reused for the next turn
+        if (bucket - now / width < delayBuckets.length - 1) {
+            return delayBuckets[(int) (bucket % delayBuckets.length)];
+        }
+        return farQueue;
+    }
+
+    /**
+     * Return the index of the pass over the far queues at the given time
+     *
+     * @param now
+     * @return pass
+     */
+    private long getFarPass(long now) {
+        return now / (getDelayBucketWidth() * delayBuckets.length / 2);
+    }
+
+    /**
+     * Return the count of messages in the JMS Queue with the given name if the
+     * broker can report it without browsing the queue, or -1 otherwise. This
+     * is called from the constructor.
+     *
+     * @param name
+     * @return size or -1
+     * @throws MailQueueException
+     */
+    protected long getBrokerQueueSize(String name) throws MailQueueException {
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void initCounters(String name) {
+        Session session = null;
+        QueueBrowser browser = null;
+        try {
+            session = sessionPool.borrowSession(false);
+            browser = session.createBrowser(session.createQueue(name));
+            Enumeration<Message> messages = browser.getEnumeration();
+            while (messages.hasMoreElements()) {
+                Message m = messages.nextElement();
+                counters.enqueued(getEnqueueTime(m), getNextDelivery(m));
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to initialize statistics of queue " + name, e);
+            if (session != null) {
+                sessionPool.invalidateSession(session);
+                session = null;
+            }
+        } finally {
+            try {
+                if (browser != null)
+                    browser.close();
+            } catch (JMSException e1) {
+                // ignore here
+            }
+
+            if (session != null) {
+                sessionPool.returnSession(session);
+            }
+        }
     }
 
     /**
@@ -94,48 +433,24 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
      */
     @Override
     public MailQueueItem deQueue() throws MailQueueException {
-        Connection connection = null;
-        Session session = null;
-        Message message;
-        MessageConsumer consumer = null;
-
         while (true) {
+            Session session = null;
             try {
-                connection = connectionFactory.createConnection();
-                connection.start();
-
-                session = connection.createSession(true, Session.SESSION_TRANSACTED);
-                Queue queue = session.createQueue(queueName);
-                consumer = session.createConsumer(queue, getMessageSelector());
+                session = sessionPool.borrowSession(true);
+                MessageConsumer consumer = sessionPool.getConsumer(session, queueName, getMessageSelector());
 
-                message = consumer.receive(10000);
+                Message message = consumer.receive(10000);
 
                 if (message != null) {
-                    return createMailQueueItem(connection, session, consumer, message);
+                    MailQueueItem item = createMailQueueItem(session, message);
+                    if (item instanceof JMSMailQueueItem) {
+                        counters.dequeued();
+                        ((JMSMailQueueItem) item).track(counters, getEnqueueTime(message));
+                    }
+                    return item;
                 } else {
                     session.commit();
-
-                    if (consumer != null) {
-
-                        try {
-                            consumer.close();
-                        } catch (JMSException e1) {
-                            // ignore on rollback
-                        }
-                    }
-                    try {
-                        if (session != null)
-                            session.close();
-                    } catch (JMSException e1) {
-                        // ignore here
-                    }
-
-                    try {
-                        if (connection != null)
-                            connection.close();
-                    } catch (JMSException e1) {
-                        // ignore here
-                    }
+                    sessionPool.returnSession(session);
                 }
 
             } catch (Exception e) {
@@ -145,38 +460,68 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
                     } catch (JMSException e1) {
                         // ignore on rollback
                     }
+                    sessionPool.invalidateSession(session);
                 }
+                throw new MailQueueException("Unable to dequeue next message", e);
+            }
+        }
 
-                if (consumer != null) {
+    }
 
-                    try {
-                        consumer.close();
-                    } catch (JMSException e1) {
-                        // ignore on rollback
-                    }
-                }
-                try {
-                    if (session != null)
-                        session.close();
-                } catch (JMSException e1) {
-                    // ignore here
+    /**
+     * Receives up to <code>max</code> messages within one transacted
+     * {@link Session}, so the whole batch shares one session and one commit.
+     * See {@link JMSMailQueueBatch} for details.
+     */
+    @Override
+    public List<MailQueueItem> deQueue(int max, long timeout) throws MailQueueException {
+        Session session = null;
+        List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+
+        try {
+            session = sessionPool.borrowSession(true);
+            MessageConsumer consumer = sessionPool.getConsumer(session, queueName, getMessageSelector());
+            JMSMailQueueBatch batch = new JMSMailQueueBatch(this, session);
+
+            Message message;
+            if (timeout > 0) {
+                message = consumer.receive(timeout);
+            } else {
+                message = consumer.receiveNoWait();
+            }
+            while (message != null) {
+                items.add(createMailQueueItem(batch, message));
+                if (items.size() >= max) {
+                    break;
                 }
+                message = consumer.receiveNoWait();
+            }
 
+            if (items.isEmpty()) {
+                session.commit();
+                sessionPool.returnSession(session);
+            }
+            // only count the mails once nothing can roll the batch back
+            // anymore before it is handed out
+            for (int i = 0; i < items.size(); i++) {
+                counters.dequeued();
+            }
+            return items;
+        } catch (Exception e) {
+            if (session != null) {
                 try {
-                    if (connection != null)
-                        connection.close();
+                    session.rollback();
                 } catch (JMSException e1) {
-                    // ignore here
+                    // ignore on rollback
                 }
-                throw new MailQueueException("Unable to dequeue next message", e);
+                sessionPool.invalidateSession(session);
             }
+            throw new MailQueueException("Unable to dequeue next messages", e);
         }
-
     }
 
     @Override
     public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
-        Connection connection = null;
         Session session = null;
 
         long mydelay = 0;
@@ -187,9 +532,7 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
 
         try {
 
-            connection = connectionFactory.createConnection();
-            connection.start();
-            session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            session = sessionPool.borrowSession(false);
 
             int msgPrio = NORMAL_PRIORITY;
             Object prio = mail.getAttribute(MAIL_PRIORITY);
@@ -200,31 +543,15 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
             Map<String, Object> props = getJMSProperties(mail, mydelay);
 
             produceMail(session, props, msgPrio, mail);
+            counters.enqueued((Long) props.get(JAMES_ENQUEUE_TIME), (Long) props.get(JAMES_NEXT_DELIVERY));
 
+            sessionPool.returnSession(session);
         } catch (Exception e) {
             if (session != null) {
-                try {
-                    session.rollback();
-                } catch (JMSException e1) {
-                    // ignore on rollback
-                }
+                sessionPool.invalidateSession(session);
             }
             throw new MailQueueException("Unable to enqueue mail " + mail, e);
 
-        } finally {
-            try {
-                if (session != null)
-                    session.close();
-            } catch (JMSException e) {
-                // ignore here
-            }
-
-            try {
-                if (connection != null)
-                    connection.close();
-            } catch (JMSException e) {
-                // ignore here
-            }
         }
     }
 
@@ -237,44 +564,104 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
      * Produce the mail to the JMS Queue
      */
     protected void produceMail(Session session, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
-        MessageProducer producer = null;
-
-        try {
-            Queue queue = session.createQueue(queueName);
+        MessageProducer producer = getProducer(session, props);
+        if (bodyStore != null) {
+            produceMailReference(producer, session, props, msgPrio, mail);
+            return;
+        }
 
-            producer = session.createProducer(queue);
-            ObjectMessage message = session.createObjectMessage();
+        ObjectMessage message = session.createObjectMessage();
 
-            for (Map.Entry<String, Object> entry : props.entrySet()) {
-                message.setObjectProperty(entry.getKey(), entry.getValue());
-            }
+        for (Map.Entry<String, Object> entry : props.entrySet()) {
+            message.setObjectProperty(entry.getKey(), entry.getValue());
+        }
 
-            long size = mail.getMessageSize();
-            ByteArrayOutputStream out;
-            if (size > -1) {
-                out = new ByteArrayOutputStream((int) size);
-            } else {
-                out = new ByteArrayOutputStream();
-            }
-            mail.getMessage().writeTo(out);
+        long size = mail.getMessageSize();
+        MessageOutputStream out;
+        if (size > -1) {
+            out = new MessageOutputStream((int) size);
+        } else {
+            out = new MessageOutputStream(32);
+        }
+        mail.getMessage().writeTo(out);
 
-            // store the byte array in a ObjectMessage so we can use a
-            // SharedByteArrayInputStream later
-            // without the need of copy the day
-            message.setObject(out.toByteArray());
+        // store the byte array in a ObjectMessage so we can use a
+        // SharedByteArrayInputStream later
+        // without the need of copy the day
+        message.setObject(out.getBytes());
 
-            producer.send(message, Message.DEFAULT_DELIVERY_MODE, msgPrio, Message.DEFAULT_TIME_TO_LIVE);
+        producer.send(message, Message.DEFAULT_DELIVERY_MODE, msgPrio, Message.DEFAULT_TIME_TO_LIVE);
+    }
 
-        } finally {
+    /**
+     * Return the {@link MessageProducer} for the queue to which the mail with
+     * the given properties needs to get sent. This is a delay queue if they
+     * are enabled and the mail is not due yet
+     *
+     * @param session
+     * @param props
+     * @return producer
+     * @throws JMSException
+     */
+    protected MessageProducer getProducer(Session session, Map<String, Object> props) throws JMSException {
+        if (delayBuckets != null) {
+            Object nextDelivery = props.get(JAMES_NEXT_DELIVERY);
+            long now = System.currentTimeMillis();
+            if (nextDelivery instanceof Long && (Long) nextDelivery > now) {
+                // the far queue which is drained by the next pass
+                String farQueue = farQueues[(int) ((getFarPass(now) + 1) % 2)];
+                return sessionPool.getProducer(session, getDelayQueueName((Long) nextDelivery, now, farQueue));
+            }
+        }
+        return sessionPool.getProducer(session, queueName);
+    }
 
-            try {
-                if (producer != null)
-                    producer.close();
-            } catch (JMSException e) {
-                // ignore here
+    /**
+     * Stream the message body to the {@link MessageBodyStore} and produce a
+     * JMS Message which only holds the reference to it
+     */
+    private void produceMailReference(MessageProducer producer, Session session, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
+        String reference = bodyStore.store(mail);
+        try {
+            Message message = session.createMessage();
+            for (Map.Entry<String, Object> entry : props.entrySet()) {
+                message.setObjectProperty(entry.getKey(), entry.getValue());
             }
+            message.setStringProperty(JAMES_MAIL_BODY_REFERENCE, reference);
+            producer.send(message, Message.DEFAULT_DELIVERY_MODE, msgPrio, Message.DEFAULT_TIME_TO_LIVE);
+        } catch (JMSException e) {
+            deleteMessageBody(reference);
+            throw e;
+        }
+    }
+
+    /**
+     * Delete the body with the given reference from the
+     * {@link MessageBodyStore}
+     *
+     * @param reference
+     */
+    protected void deleteMessageBody(String reference) {
+        try {
+            bodyStore.delete(reference);
+        } catch (IOException e) {
+            logger.info("Unable to delete message body " + reference, e);
         }
+    }
 
+    /**
+     * Return the reference of the message body if it was stored in the
+     * {@link MessageBodyStore}
+     *
+     * @param message
+     * @return reference or <code>null</code>
+     * @throws JMSException
+     */
+    protected String getMessageBodyReference(Message message) throws JMSException {
+        if (bodyStore == null) {
+            return null;
+        }
+        return message.getStringProperty(JAMES_MAIL_BODY_REFERENCE);
     }
 
     /**
@@ -288,12 +675,14 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
     @SuppressWarnings("unchecked")
     protected Map<String, Object> getJMSProperties(Mail mail, long delayInMillis) throws MessagingException {
         Map<String, Object> props = new HashMap<String, Object>();
+        long now = System.currentTimeMillis();
         long nextDelivery = -1;
         if (delayInMillis > 0) {
-            nextDelivery = System.currentTimeMillis() + delayInMillis;
+            nextDelivery = now + delayInMillis;
 
         }
         props.put(JAMES_NEXT_DELIVERY, nextDelivery);
+        props.put(JAMES_ENQUEUE_TIME, now);
         props.put(JAMES_MAIL_ERROR_MESSAGE, mail.getErrorMessage());
         props.put(JAMES_MAIL_LAST_UPDATED, mail.getLastUpdated().getTime());
         props.put(JAMES_MAIL_MESSAGE_SIZE, mail.getMessageSize());
@@ -367,7 +756,14 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
      * @throws MessagingException
      */
     protected void populateMailMimeMessage(Message message, Mail mail) throws MessagingException, JMSException {
-        if (message instanceof ObjectMessage) {
+        String reference = getMessageBodyReference(message);
+        if (reference != null) {
+            try {
+                mail.setMessage(new MimeMessageCopyOnWriteProxy(bodyStore.open(reference)));
+            } catch (IOException e) {
+                throw new MailQueueException("Unable to open message body " + reference, e);
+            }
+        } else if (message instanceof ObjectMessage) {
             mail.setMessage(new MimeMessageCopyOnWriteProxy(new MimeMessageObjectMessageSource((ObjectMessage) message)));
         } else {
             throw new MailQueueException("Not supported JMS Message received " + message);
@@ -464,35 +860,165 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
     /**
      * Create a {@link org.apache.james.queue.api.MailQueue.MailQueueItem} for the given parameters
      *
-     * @param connection
      * @param session
-     * @param consumer
+     *            the borrowed session which the item gives back to the
+     *            {@link JMSSessionPool} once it is done
+     * @param message
+     * @return item
+     * @throws JMSException
+     * @throws MessagingException
+     */
+    protected MailQueueItem createMailQueueItem(Session session, Message message) throws JMSException, MessagingException {
+        final Mail mail = createMail(message);
+        final String reference = getMessageBodyReference(message);
+        if (reference == null) {
+            return new JMSMailQueueItem(mail, sessionPool, session);
+        }
+        return new JMSMailQueueItem(mail, sessionPool, session) {
+
+            @Override
+            public void done(boolean success) throws MailQueueException {
+                super.done(success);
+                if (success) {
+                    deleteMessageBody(reference);
+                }
+            }
+        };
+    }
+
+    /**
+     * Create a {@link org.apache.james.queue.api.MailQueue.MailQueueItem} which
+     * is part of the given {@link JMSMailQueueBatch}
+     *
+     * @param batch
      * @param message
      * @return item
      * @throws JMSException
      * @throws MessagingException
      */
-    protected MailQueueItem createMailQueueItem(Connection connection, Session session, MessageConsumer consumer, Message message) throws JMSException, MessagingException {
+    protected MailQueueItem createMailQueueItem(JMSMailQueueBatch batch, Message message) throws JMSException, MessagingException {
         final Mail mail = createMail(message);
-        return new JMSMailQueueItem(mail, connection, session, consumer);
+        return batch.add(mail, message);
+    }
+
+    /**
+     * Callback which is called for every item of a {@link JMSMailQueueBatch}
+     * once its transaction was committed
+     *
+     * @param message
+     * @param mail
+     * @param success
+     */
+    protected void batchItemDone(Message message, Mail mail, boolean success) {
+        if (success) {
+            try {
+                String reference = getMessageBodyReference(message);
+                if (reference != null) {
+                    deleteMessageBody(reference);
+                }
+            } catch (JMSException e) {
+                logger.info("Unable to delete message body of mail " + mail.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Return the time the given {@link Message} was enqueued. For messages
+     * which were enqueued without this information the JMS timestamp is used.
+     *
+     * @param message
+     * @return enqueueTime
+     */
+    protected long getEnqueueTime(Message message) {
+        try {
+            if (message.propertyExists(JAMES_ENQUEUE_TIME)) {
+                return message.getLongProperty(JAMES_ENQUEUE_TIME);
+            }
+            return message.getJMSTimestamp();
+        } catch (JMSException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Return the time the given {@link Message} will be ready for dequeue or
+     * -1 if it is ready now
+     *
+     * @param message
+     * @return nextDelivery
+     */
+    protected long getNextDelivery(Message message) {
+        try {
+            if (message.propertyExists(FORCE_DELIVERY) && message.getBooleanProperty(FORCE_DELIVERY)) {
+                return -1;
+            }
+            if (message.propertyExists(JAMES_NEXT_DELIVERY)) {
+                return message.getLongProperty(JAMES_NEXT_DELIVERY);
+            }
+        } catch (JMSException e) {
+            // treat as ready
+        }
+        return -1;
+    }
+
+    @Override
+    public long getReadyCount() {
+        return counters.getReadyCount();
+    }
+
+    @Override
+    public long getDelayedCount() {
+        return counters.getDelayedCount();
+    }
+
+    @Override
+    public long getInFlightCount() {
+        return counters.getInFlightCount();
+    }
+
+    @Override
+    public long getOldestAge() {
+        return counters.getOldestAge();
     }
 
     protected String getMessageSelector() {
+        if (delayBuckets != null) {
+            // the queue only contains mails which are due
+            return null;
+        }
         return JAMES_NEXT_DELIVERY + " <= " + System.currentTimeMillis() + " OR " + FORCE_DELIVERY + " = true";
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Return the count of mails in the JMS Queue and in its delay queues, see
+     * {@link #getQueueSize(String)}
+     */
     @Override
     public long getSize() throws MailQueueException {
-        Connection connection = null;
+        long size = getQueueSize(queueName);
+        for (String name : getDelayQueueNames()) {
+            size += getQueueSize(name);
+        }
+        return size;
+    }
+
+    /**
+     * Return the count of messages in the JMS Queue with the given name. This
+     * asks the broker instead of the in-memory counters, so it includes the
+     * changes done by other {@link JMSMailQueue} instances on the same queue.
+     *
+     * @param name
+     * @return size
+     * @throws MailQueueException
+     */
+    @SuppressWarnings("unchecked")
+    protected long getQueueSize(String name) throws MailQueueException {
         Session session = null;
         QueueBrowser browser = null;
         int size = 0;
         try {
-            connection = connectionFactory.createConnection();
-            connection.start();
-            session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-            Queue queue = session.createQueue(queueName);
+            session = sessionPool.borrowSession(false);
+            Queue queue = session.createQueue(name);
 
             browser = session.createBrowser(queue);
 
@@ -504,8 +1030,11 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
             }
             return size;
         } catch (Exception e) {
-            logger.error("Unable to get size of queue " + queueName, e);
-            throw new MailQueueException("Unable to get size of queue " + queueName, e);
+            logger.error("Unable to get size of queue " + name, e);
+            if (session != null) {
+                sessionPool.invalidateSession(session);
+            }
+            throw new MailQueueException("Unable to get size of queue " + name, e);
         } finally {
             try {
                 if (browser != null)
@@ -514,25 +1043,27 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
                 // ignore here
             }
 
-            try {
-                if (session != null)
-                    session.close();
-            } catch (JMSException e1) {
-                // ignore here
-            }
-
-            try {
-                if (connection != null)
-                    connection.close();
-            } catch (JMSException e1) {
-                // ignore here
+            if (session != null) {
+                sessionPool.returnSession(session);
             }
         }
     }
 
     @Override
     public long flush() throws MailQueueException {
-        Connection connection = null;
+        if (delayBuckets != null) {
+            // the queue only contains mails which are due, so just move all
+            // delayed mails
+            long moved = 0;
+            synchronized (delayLock) {
+                for (String name : getDelayQueueNames()) {
+                    moved += moveDelayedMails(name, null, System.currentTimeMillis(), null);
+                }
+            }
+            counters.flushed();
+            return moved;
+        }
+
         Session session = null;
         Message message = null;
         MessageConsumer consumer = null;
@@ -540,13 +1071,10 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
         boolean first = true;
         long count = 0;
         try {
-            connection = connectionFactory.createConnection();
-            connection.start();
-
-            session = connection.createSession(true, Session.SESSION_TRANSACTED);
+            session = sessionPool.borrowSession(true);
             Queue queue = session.createQueue(queueName);
             consumer = session.createConsumer(queue);
-            producer = session.createProducer(queue);
+            producer = sessionPool.getProducer(session, queueName);
 
             while (first || message != null) {
                 if (first) {
@@ -565,45 +1093,30 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
                 }
             }
             session.commit();
+            counters.flushed();
             return count;
         } catch (Exception e) {
             logger.error("Unable to flush mail", e);
-            try {
-                session.rollback();
-            } catch (JMSException e1) {
-                // ignore on rollback
-            }
-            throw new MailQueueException("Unable to get size of queue " + queueName, e);
-        } finally {
-            if (consumer != null) {
-
+            if (session != null) {
                 try {
-                    consumer.close();
+                    session.rollback();
                 } catch (JMSException e1) {
                     // ignore on rollback
                 }
+                sessionPool.invalidateSession(session);
             }
-            if (producer != null) {
+            throw new MailQueueException("Unable to get size of queue " + queueName, e);
+        } finally {
+            if (consumer != null) {
 
                 try {
-                    producer.close();
+                    consumer.close();
                 } catch (JMSException e1) {
                     // ignore on rollback
                 }
             }
-
-            try {
-                if (session != null)
-                    session.close();
-            } catch (JMSException e1) {
-                // ignore here
-            }
-
-            try {
-                if (connection != null)
-                    connection.close();
-            } catch (JMSException e1) {
-                // ignore here
+            if (session != null) {
+                sessionPool.returnSession(session);
             }
         }
     }
@@ -628,7 +1141,16 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
      * @return messages
      */
     public List<Message> removeWithSelector(String selector) throws MailQueueException {
-        Connection connection = null;
+        List<Message> messages = removeWithSelector(queueName, selector, 2000);
+        synchronized (delayLock) {
+            for (String name : getDelayQueueNames()) {
+                messages.addAll(removeWithSelector(name, selector, DELAY_RECEIVE_TIMEOUT));
+            }
+        }
+        return messages;
+    }
+
+    private List<Message> removeWithSelector(String name, String selector, long timeout) throws MailQueueException {
         Session session = null;
         Message message = null;
         MessageConsumer consumer = null;
@@ -636,16 +1158,16 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
         List<Message> messages = new ArrayList<Message>();
 
         try {
-            connection = connectionFactory.createConnection();
-            connection.start();
-
-            session = connection.createSession(true, Session.SESSION_TRANSACTED);
-            Queue queue = session.createQueue(queueName);
+            session = sessionPool.borrowSession(true);
+            if (isEmpty(session, name)) {
+                return messages;
+            }
+            Queue queue = session.createQueue(name);
             consumer = session.createConsumer(queue, selector);
             while (first || message != null) {
                 if (first) {
-                    // give the consumer 2000 ms to receive messages
-                    message = consumer.receive(2000);
+                    // give the consumer some time to receive messages
+                    message = consumer.receive(timeout);
                 } else {
                     message = consumer.receiveNoWait();
                 }
@@ -655,12 +1177,23 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
                 }
             }
             session.commit();
+
+            for (Message m : messages) {
+                counters.removed(getEnqueueTime(m), getNextDelivery(m));
+                String reference = getMessageBodyReference(m);
+                if (reference != null) {
+                    deleteMessageBody(reference);
+                }
+            }
             return messages;
         } catch (Exception e) {
-            try {
-                session.rollback();
-            } catch (JMSException e1) {
-                // ignore on rollback
+            if (session != null) {
+                try {
+                    session.rollback();
+                } catch (JMSException e1) {
+                    // ignore on rollback
+                }
+                sessionPool.invalidateSession(session);
             }
             throw new MailQueueException("Unable to remove mails", e);
 
@@ -674,18 +1207,8 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
                 }
             }
 
-            try {
-                if (session != null)
-                    session.close();
-            } catch (JMSException e1) {
-                // ignore here
-            }
-
-            try {
-                if (connection != null)
-                    connection.close();
-            } catch (JMSException e1) {
-                // ignore here
+            if (session != null) {
+                sessionPool.returnSession(session);
             }
         }
     }
@@ -701,13 +1224,18 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
      */
     @SuppressWarnings("unchecked")
     protected Message copy(Session session, Message m) throws JMSException {
-        ObjectMessage message = (ObjectMessage) m;
-        ObjectMessage copy = session.createObjectMessage(message.getObject());
+        Message copy;
+        if (m instanceof ObjectMessage) {
+            copy = session.createObjectMessage(((ObjectMessage) m).getObject());
+        } else {
+            // the body is stored in the MessageBodyStore
+            copy = session.createMessage();
+        }
 
-        Enumeration<String> properties = message.getPropertyNames();
+        Enumeration<String> properties = m.getPropertyNames();
         while (properties.hasMoreElements()) {
             String name = properties.nextElement();
-            copy.setObjectProperty(name, message.getObjectProperty(name));
+            copy.setObjectProperty(name, m.getObjectProperty(name));
         }
 
         return copy;
@@ -731,22 +1259,22 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
     @Override
     @SuppressWarnings("unchecked")
     public MailQueueIterator browse() throws MailQueueException {
-        Connection connection = null;
         Session session = null;
-        QueueBrowser browser = null;
+        final List<QueueBrowser> browsers = new ArrayList<QueueBrowser>();
         try {
-            connection = connectionFactory.createConnection();
-            connection.start();
-            session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-            Queue queue = session.createQueue(queueName);
-
-            browser = session.createBrowser(queue);
-
-            final Enumeration<Message> messages = browser.getEnumeration();
+            session = sessionPool.borrowSession(false);
+            List<Enumeration<Message>> enumerations = new ArrayList<Enumeration<Message>>();
+            List<String> names = new ArrayList<String>();
+            names.add(queueName);
+            names.addAll(getDelayQueueNames());
+            for (String name : names) {
+                QueueBrowser browser = session.createBrowser(session.createQueue(name));
+                browsers.add(browser);
+                enumerations.add(browser.getEnumeration());
+            }
 
-            final Connection myConnection = connection;
+            final Enumeration<Message> messages = new ChainedEnumeration(enumerations);
             final Session mySession = session;
-            final QueueBrowser myBrowser = browser;
 
             return new MailQueueIterator() {
 
@@ -792,54 +1320,252 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
                 @Override
                 public void close() {
 
-                    try {
-                        if (myBrowser != null)
-                            myBrowser.close();
-                    } catch (JMSException e1) {
-                        // ignore here
-                    }
+                    closeBrowsers(browsers);
+                    sessionPool.returnSession(mySession);
+                }
+            };
 
-                    try {
-                        if (mySession != null)
-                            mySession.close();
-                    } catch (JMSException e1) {
-                        // ignore here
-                    }
+        } catch (Exception e) {
 
-                    try {
-                        if (myConnection != null)
-                            myConnection.close();
-                    } catch (JMSException e1) {
-                        // ignore here
+            closeBrowsers(browsers);
+
+            if (session != null) {
+                sessionPool.invalidateSession(session);
+            }
+            logger.error("Unable to browse queue " + queueName, e);
+            throw new MailQueueException("Unable to browse queue " + queueName, e);
+        }
+    }
+
+    /**
+     * Move the mails which are due from the delay queues to the queue. The
+     * buckets which ended since the last run are drained completely, of the
+     * current bucket only the due mails are taken. Every half turn of the ring
+     * one far queue is drained into the buckets and the other far queue. The
+     * first run drains all ended buckets and both far queues, as the queue may
+     * have been stopped for a while.
+     *
+     * @return count of moved mails
+     * @throws MailQueueException
+     */
+    protected long moveDueMails() throws MailQueueException {
+        synchronized (delayLock) {
+            return moveDueMails(System.currentTimeMillis());
+        }
+    }
+
+    private long moveDueMails(long now) throws MailQueueException {
+        long current = now / getDelayBucketWidth();
+        long pass = getFarPass(now);
+        String farQueue = farQueues[(int) ((pass + 1) % 2)];
+        long count = 0;
+
+        // the slot of the oldest bucket is already used by the next bucket,
+        // its mails are moved once that bucket is the current one
+        long first = current - delayBuckets.length + 2;
+        if (drainedBucket >= first) {
+            first = drainedBucket + 1;
+        }
+        for (long bucket = first; bucket < current && !delayScheduler.isShutdown(); bucket++) {
+            // all mails of an ended bucket are due
+            count += moveDelayedMails(delayBuckets[(int) (bucket % delayBuckets.length)], null, now, farQueue);
+            drainedBucket = bucket;
+        }
+        // only the mails of the current bucket are read with a selector
+        count += moveDelayedMails(delayBuckets[(int) (current % delayBuckets.length)], JAMES_NEXT_DELIVERY + " <= " + now, now, farQueue);
+
+        if (pass != farPass) {
+            if (farPass < 0) {
+                // the far queue of the next pass may hold mails from before
+                // the start
+                count += moveDelayedMails(farQueue, null, now, farQueues[(int) (pass % 2)]);
+            }
+            count += moveDelayedMails(farQueues[(int) (pass % 2)], null, now, farQueue);
+            farPass = pass;
+        }
+        return count;
+    }
+
+    /**
+     * Move the mails which match the given selector from the given delay queue
+     * to the queue. If a far queue is given the mails which are not due yet
+     * are sent to their delay queue instead, or to the far queue if that is
+     * the drained queue itself.
+     *
+     * @param name
+     *            name of the delay queue
+     * @param selector
+     *            selector or <code>null</code> to take all mails
+     * @param now
+     * @param farQueue
+     *            far queue for the mails which are not due, or
+     *            <code>null</code> to move all mails to the queue
+     * @return count of mails moved to the queue
+     * @throws MailQueueException
+     */
+    private long moveDelayedMails(String name, String selector, long now, String farQueue) throws MailQueueException {
+        Session session = null;
+        MessageConsumer consumer = null;
+        long count = 0;
+        long received = 0;
+        try {
+            session = sessionPool.borrowSession(true);
+            if (isEmpty(session, name)) {
+                return 0;
+            }
+            consumer = session.createConsumer(session.createQueue(name), selector);
+            MessageProducer producer = sessionPool.getProducer(session, queueName);
+
+            Message message = consumer.receive(DELAY_RECEIVE_TIMEOUT);
+            while (message != null) {
+                long nextDelivery = getNextDelivery(message);
+                if (farQueue == null || nextDelivery <= now) {
+                    producer.send(copy(session, message), message.getJMSDeliveryMode(), message.getJMSPriority(), Message.DEFAULT_TIME_TO_LIVE);
+                    count++;
+                } else {
+                    String target = getDelayQueueName(nextDelivery, now, farQueue);
+                    if (target.equals(name)) {
+                        // never send a mail back to the drained queue
+                        target = farQueue;
                     }
+                    sessionPool.getProducer(session, target).send(copy(session, message), message.getJMSDeliveryMode(), message.getJMSPriority(), Message.DEFAULT_TIME_TO_LIVE);
                 }
-            };
+                received++;
+                if (received % DELAY_MOVE_BATCH == 0) {
+                    session.commit();
+                }
+                message = consumer.receiveNoWait();
+            }
+            session.commit();
+            return count;
+        } catch (JMSException e) {
+            if (session != null) {
+                try {
+                    session.rollback();
+                } catch (JMSException e1) {
+                    // ignore on rollback
+                }
+                sessionPool.invalidateSession(session);
+                session = null;
+            }
+            throw new MailQueueException("Unable to move mails from queue " + name, e);
+        } finally {
+            if (consumer != null) {
+                try {
+                    consumer.close();
+                } catch (JMSException e1) {
+                    // ignore on close
+                }
+            }
+            if (session != null) {
+                sessionPool.returnSession(session);
+            }
+        }
+    }
 
-        } catch (Exception e) {
+    /**
+     * Return true if the JMS Queue with the given name is empty. This browses
+     * the queue, so unlike a receive with timeout it does not depend on the
+     * prefetch of the consumer.
+     *
+     * @param session
+     * @param name
+     * @return empty
+     * @throws JMSException
+     */
+    private boolean isEmpty(Session session, String name) throws JMSException {
+        QueueBrowser browser = session.createBrowser(session.createQueue(name));
+        try {
+            return !browser.getEnumeration().hasMoreElements();
+        } finally {
+            browser.close();
+        }
+    }
 
+    /**
+     * Close the given browsers
+     *
+     * @param browsers
+     */
+    private void closeBrowsers(List<QueueBrowser> browsers) {
+        for (QueueBrowser browser : browsers) {
             try {
-                if (browser != null)
-                    browser.close();
-            } catch (JMSException e1) {
+                browser.close();
+            } catch (JMSException e) {
                 // ignore here
             }
+        }
+    }
 
+    /**
+     * Close the {@link JMSSessionPool} if it was created by this queue
+     */
+    @Override
+    public void dispose() {
+        if (delayScheduler != null) {
+            delayScheduler.shutdown();
             try {
-                if (session != null)
-                    session.close();
-            } catch (JMSException e1) {
-                // ignore here
+                // let a running move finish before its session gets closed
+                if (!delayScheduler.awaitTermination(DELAY_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    delayScheduler.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                delayScheduler.shutdownNow();
+                Thread.currentThread().interrupt();
             }
+        }
+        if (ownPool) {
+            sessionPool.close();
+        }
+    }
 
-            try {
-                if (connection != null)
-                    connection.close();
-            } catch (JMSException e1) {
-                // ignore here
+
+    /**
+     * {@link ByteArrayOutputStream} which hands out its buffer without a copy
+     * if it was sized exactly
+     */
+    private final static class MessageOutputStream extends ByteArrayOutputStream {
+
+        public MessageOutputStream(int size) {
+            super(size);
+        }
+
+        public byte[] getBytes() {
+            if (count == buf.length) {
+                return buf;
             }
-            logger.error("Unable to browse queue " + queueName, e);
-            throw new MailQueueException("Unable to browse queue " + queueName, e);
+            return toByteArray();
         }
     }
 
+    /**
+     * {@link Enumeration} over the messages of the queue and of the delay
+     * queues
+     */
+    private final static class ChainedEnumeration implements Enumeration<Message> {
+
+        private final Iterator<Enumeration<Message>> enumerations;
+        private Enumeration<Message> current;
+
+        public ChainedEnumeration(List<Enumeration<Message>> enumerations) {
+            this.enumerations = enumerations.iterator();
+            this.current = this.enumerations.next();
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            while (!current.hasMoreElements() && enumerations.hasNext()) {
+                current = enumerations.next();
+            }
+            return current.hasMoreElements();
+        }
+
+        @Override
+        public Message nextElement() {
+            if (!hasMoreElements()) {
+                throw new NoSuchElementException();
+            }
+            return current.nextElement();
+        }
+    }
 }
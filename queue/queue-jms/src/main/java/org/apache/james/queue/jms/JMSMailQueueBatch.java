@@ -0,0 +1,155 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.mailet.Mail;
+
+/**
+ * The {@link MailQueueItem}'s which were received by
+ * {@link JMSMailQueue#deQueue(int, long)} within one JMS transaction.
+ * <p/>
+ * The transaction is committed once the last item is done. As a rollback
+ * would affect the whole batch, the messages of failed items are sent to the
+ * queue again within the same transaction. Because the broker sees these as
+ * new messages, the count of failures is carried forward in the
+ * {@link JMSSupport#JAMES_BATCH_FAILURES} property. Once it exceeds
+ * {@link JMSMailQueue#MAX_BATCH_FAILURES} the message is sent to the dead
+ * letter queue instead, so a mail which always fails does not loop forever.
+ */
+public class JMSMailQueueBatch {
+
+    private final JMSMailQueue queue;
+    private final Session session;
+    private final List<Item> items = new ArrayList<Item>();
+    private int pending;
+
+    public JMSMailQueueBatch(JMSMailQueue queue, Session session) {
+        this.queue = queue;
+        this.session = session;
+    }
+
+    /**
+     * Add the received {@link Message} to the batch
+     *
+     * @param mail
+     * @param message
+     * @return item
+     */
+    public synchronized MailQueueItem add(Mail mail, Message message) {
+        Item item = new Item(mail, message);
+        items.add(item);
+        pending++;
+        return item;
+    }
+
+    private synchronized void done(Item item, boolean success) throws MailQueueException {
+        if (item.done) {
+            return;
+        }
+        item.done = true;
+        item.success = success;
+        pending--;
+        if (pending == 0) {
+            complete();
+        }
+    }
+
+    private void complete() throws MailQueueException {
+        try {
+            for (Item item : items) {
+                if (!item.success) {
+                    Message m = item.message;
+                    Message copy = queue.copy(session, m);
+                    int failures = getFailures(m) + 1;
+                    copy.setIntProperty(JMSSupport.JAMES_BATCH_FAILURES, failures);
+
+                    String destination = queue.queueName;
+                    if (failures > JMSMailQueue.MAX_BATCH_FAILURES) {
+                        destination = queue.queueName + JMSMailQueue.DEAD_LETTER_QUEUE_SUFFIX;
+                        item.dead = true;
+                    }
+                    MessageProducer producer = queue.sessionPool.getProducer(session, destination);
+                    producer.send(copy, m.getJMSDeliveryMode(), m.getJMSPriority(), Message.DEFAULT_TIME_TO_LIVE);
+                }
+            }
+            session.commit();
+        } catch (JMSException e) {
+            try {
+                session.rollback();
+            } catch (JMSException e1) {
+                // ignore on rollback
+            }
+            queue.sessionPool.invalidateSession(session);
+            for (Item item : items) {
+                queue.counters.done(queue.getEnqueueTime(item.message), false);
+            }
+            throw new MailQueueException("Unable to commit dequeue operation for " + items.size() + " mails", e);
+        }
+        queue.sessionPool.returnSession(session);
+
+        for (Item item : items) {
+            if (item.dead) {
+                queue.logger.error("Mail " + item.mail.getName() + " failed more than " + JMSMailQueue.MAX_BATCH_FAILURES + " times, moved it to the dead letter queue");
+            }
+            // a mail which was moved to the dead letter queue left the queue
+            queue.counters.done(queue.getEnqueueTime(item.message), item.success || item.dead);
+            queue.batchItemDone(item.message, item.mail, item.success);
+        }
+    }
+
+    private static int getFailures(Message message) throws JMSException {
+        if (message.propertyExists(JMSSupport.JAMES_BATCH_FAILURES)) {
+            return message.getIntProperty(JMSSupport.JAMES_BATCH_FAILURES);
+        }
+        return 0;
+    }
+
+    private final class Item implements MailQueueItem {
+        private final Mail mail;
+        private final Message message;
+        private boolean done;
+        private boolean success;
+        private boolean dead;
+
+        public Item(Mail mail, Message message) {
+            this.mail = mail;
+            this.message = message;
+        }
+
+        @Override
+        public Mail getMail() {
+            return mail;
+        }
+
+        @Override
+        public void done(boolean success) throws MailQueueException {
+            JMSMailQueueBatch.this.done(this, success);
+        }
+    }
+}
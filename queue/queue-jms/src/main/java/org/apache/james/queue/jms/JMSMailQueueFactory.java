@@ -28,11 +28,18 @@ import org.apache.james.queue.api.MailQueueFactory;
 import org.apache.james.queue.library.AbstractMailQueueFactory;
 
 /**
- * {@link MailQueueFactory} implementation which use JMS
+ * {@link MailQueueFactory} implementation which use JMS. All created
+ * {@link MailQueue}'s share one {@link JMSSessionPool}
  */
 public class JMSMailQueueFactory extends AbstractMailQueueFactory {
 
     protected ConnectionFactory connectionFactory;
+    private JMSSessionPool sessionPool;
+    private int connections = JMSSessionPool.DEFAULT_CONNECTIONS;
+    private int maxIdleSessions = JMSSessionPool.DEFAULT_MAX_IDLE_SESSIONS;
+    private boolean cacheConsumers = false;
+    private MessageBodyStore bodyStore;
+    protected boolean useDelayQueue = false;
 
     @Inject
     @Resource(name = "jmsConnectionFactory")
@@ -40,9 +47,83 @@ public class JMSMailQueueFactory extends AbstractMailQueueFactory {
         this.connectionFactory = connectionFactory;
     }
 
+    /**
+     * Set the count of connections the sessions are spread on
+     * 
+     * @param connections
+     */
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    /**
+     * Set the max count of idle sessions which are kept open
+     * 
+     * @param maxIdleSessions
+     */
+    public void setMaxIdleSessions(int maxIdleSessions) {
+        this.maxIdleSessions = maxIdleSessions;
+    }
+
+    /**
+     * Set if the consumers used for dequeue are kept open. This should only be
+     * enabled if the consumers have a prefetch of 0. Default is false
+     * 
+     * @param cacheConsumers
+     */
+    public void setCacheConsumers(boolean cacheConsumers) {
+        this.cacheConsumers = cacheConsumers;
+    }
+
+    /**
+     * Set the {@link MessageBodyStore} to which the message bodies are
+     * streamed. If none is set the bodies are sent as part of the JMS Message
+     * 
+     * @param bodyStore
+     */
+    public void setMessageBodyStore(MessageBodyStore bodyStore) {
+        this.bodyStore = bodyStore;
+    }
+
+    /**
+     * Set if delayed mails are kept in separate, time bucketed queues until
+     * they are due. This way dequeues don't need a message selector, which
+     * otherwise gets evaluated against all delayed mails on every dequeue.
+     * Default is false
+     * 
+     * @param useDelayQueue
+     */
+    public void setUseDelayQueue(boolean useDelayQueue) {
+        this.useDelayQueue = useDelayQueue;
+    }
+
+    /**
+     * Return the {@link JMSSessionPool} which is shared by all queues of this
+     * factory
+     * 
+     * @return sessionPool
+     */
+    protected synchronized JMSSessionPool getSessionPool() {
+        if (sessionPool == null) {
+            sessionPool = new JMSSessionPool(connectionFactory, connections, maxIdleSessions, cacheConsumers, log);
+            registerComponentMBean("org.apache.james:type=component,name=queue,sub-type=sessionpool", sessionPool);
+        }
+        return sessionPool;
+    }
+
+    @Override
+    public void destroy() {
+        super.destroy();
+        synchronized (this) {
+            if (sessionPool != null) {
+                sessionPool.close();
+            }
+        }
+    }
+
     @Override
     protected MailQueue createMailQueue(String name) {
-        return new JMSMailQueue(connectionFactory, name, log);
+        return new JMSMailQueue(getSessionPool(), bodyStore, useDelayQueue, name, log);
     }
     
 }
@@ -19,13 +19,12 @@
 
 package org.apache.james.queue.jms;
 
-import javax.jms.Connection;
 import javax.jms.JMSException;
-import javax.jms.MessageConsumer;
 import javax.jms.Session;
 
 import org.apache.james.queue.api.MailQueue.MailQueueException;
 import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.library.MailQueueCounters;
 import org.apache.mailet.Mail;
 
 /**
@@ -34,52 +33,51 @@ import org.apache.mailet.Mail;
 public class JMSMailQueueItem implements MailQueueItem {
 
     protected final Mail mail;
-    protected final Connection connection;
+    protected final JMSSessionPool sessionPool;
     protected final Session session;
-    protected final MessageConsumer consumer;
+    private MailQueueCounters counters;
+    private long enqueueTime;
 
-    public JMSMailQueueItem(Mail mail, Connection connection, Session session, MessageConsumer consumer) {
+    public JMSMailQueueItem(Mail mail, JMSSessionPool sessionPool, Session session) {
         this.mail = mail;
-        this.connection = connection;
+        this.sessionPool = sessionPool;
         this.session = session;
-        this.consumer = consumer;
+    }
+
+    /**
+     * Update the given {@link MailQueueCounters} once this item is done
+     *
+     * @param counters
+     * @param enqueueTime
+     */
+    public void track(MailQueueCounters counters, long enqueueTime) {
+        this.counters = counters;
+        this.enqueueTime = enqueueTime;
     }
 
     @Override
     public void done(boolean success) throws MailQueueException {
+        boolean valid = false;
         try {
             if (success) {
                 session.commit();
             } else {
-                try {
-                    session.rollback();
-                } catch (JMSException e1) {
-                    // ignore on rollback
-                }
+                session.rollback();
             }
+            valid = true;
         } catch (JMSException ex) {
-            throw new MailQueueException("Unable to commit dequeue operation for mail " + mail.getName(), ex);
-        } finally {
-            if (consumer != null) {
-
-                try {
-                    consumer.close();
-                } catch (JMSException e1) {
-                    // ignore on rollback
-                }
+            if (success) {
+                throw new MailQueueException("Unable to commit dequeue operation for mail " + mail.getName(), ex);
             }
-            try {
-                if (session != null)
-                    session.close();
-            } catch (JMSException e) {
-                // ignore here
+            // ignore on rollback
+        } finally {
+            if (valid) {
+                sessionPool.returnSession(session);
+            } else {
+                sessionPool.invalidateSession(session);
             }
-
-            try {
-                if (connection != null)
-                    connection.close();
-            } catch (JMSException e) {
-                // ignore here
+            if (counters != null) {
+                counters.done(enqueueTime, success && valid);
             }
         }
     }
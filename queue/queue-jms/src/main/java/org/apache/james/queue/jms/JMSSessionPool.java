@@ -0,0 +1,465 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+
+/**
+ * Pool of long-lived JMS {@link Session}'s which is shared by
+ * {@link JMSMailQueue}'s.
+ * <p/>
+ * The sessions are created round-robin on a fixed count of {@link Connection}
+ * 's which stay open until the pool gets closed. Every session caches its
+ * {@link MessageProducer}'s per queue and the {@link MessageConsumer} which was
+ * used for the last dequeue.
+ * <p/>
+ * A connection which reported an error to its {@link ExceptionListener} gets
+ * replaced and its sessions get discarded. Idle sessions are checked before
+ * they are handed out again.
+ * <p/>
+ * Be aware that cached consumers may hold prefetched messages while their
+ * session is idle, so consumer caching is disabled by default and should only
+ * be enabled with a prefetch of 0.
+ */
+public class JMSSessionPool implements JMSSessionPoolMBean {
+
+    public final static int DEFAULT_CONNECTIONS = 1;
+    public final static int DEFAULT_MAX_IDLE_SESSIONS = 20;
+
+    /**
+     * Max age of a cached consumer in milliseconds. The message selector used
+     * for dequeue contains the time of its creation, so it needs to get
+     * refreshed
+     */
+    public final static long CONSUMER_MAX_AGE = 1000;
+
+    private final ConnectionFactory connectionFactory;
+    private final Logger logger;
+    private final int maxIdleSessions;
+    private final boolean cacheConsumers;
+
+    private final PooledConnection[] connections;
+    private int nextConnection;
+    private final LinkedList<PooledSession> idleTransacted = new LinkedList<PooledSession>();
+    private final LinkedList<PooledSession> idleNonTransacted = new LinkedList<PooledSession>();
+    private final Map<Session, PooledSession> active = new IdentityHashMap<Session, PooledSession>();
+    private boolean closed;
+
+    private final AtomicLong createdSessions = new AtomicLong();
+    private final AtomicLong invalidatedSessions = new AtomicLong();
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong connectionFailures = new AtomicLong();
+
+    public JMSSessionPool(ConnectionFactory connectionFactory, Logger logger) {
+        this(connectionFactory, DEFAULT_CONNECTIONS, DEFAULT_MAX_IDLE_SESSIONS, false, logger);
+    }
+
+    /**
+     * Construct a new pool
+     *
+     * @param connectionFactory
+     * @param connections
+     *            count of connections to spread the sessions on
+     * @param maxIdleSessions
+     *            max count of idle sessions which are kept open
+     * @param cacheConsumers
+     *            <code>true</code> if the dequeue consumers should be kept open
+     *            while the session is idle
+     * @param logger
+     */
+    public JMSSessionPool(ConnectionFactory connectionFactory, int connections, int maxIdleSessions, boolean cacheConsumers, Logger logger) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("At least one connection is needed");
+        }
+        this.connectionFactory = connectionFactory;
+        this.connections = new PooledConnection[connections];
+        this.maxIdleSessions = maxIdleSessions;
+        this.cacheConsumers = cacheConsumers;
+        this.logger = logger;
+    }
+
+    public ConnectionFactory getConnectionFactory() {
+        return connectionFactory;
+    }
+
+    /**
+     * Borrow a {@link Session} from the pool. It must be given back via
+     * {@link #returnSession(Session)} or {@link #invalidateSession(Session)}
+     * once it is not used anymore.
+     *
+     * @param transacted
+     * @return session
+     * @throws JMSException
+     */
+    public Session borrowSession(boolean transacted) throws JMSException {
+        borrowed.incrementAndGet();
+        LinkedList<PooledSession> idle = transacted ? idleTransacted : idleNonTransacted;
+        while (true) {
+            PooledSession pooled;
+            synchronized (this) {
+                if (closed) {
+                    throw new JMSException("Session pool is closed");
+                }
+                pooled = idle.pollFirst();
+            }
+            if (pooled == null) {
+                break;
+            }
+            if (pooled.isValid()) {
+                synchronized (this) {
+                    active.put(pooled.session, pooled);
+                }
+                return pooled.session;
+            }
+            invalidatedSessions.incrementAndGet();
+            pooled.close();
+        }
+
+        PooledConnection connection = nextConnection();
+        Session session;
+        if (transacted) {
+            session = connection.connection.createSession(true, Session.SESSION_TRANSACTED);
+        } else {
+            session = connection.connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        }
+        createdSessions.incrementAndGet();
+        PooledSession pooled = new PooledSession(connection, session, transacted);
+        synchronized (this) {
+            active.put(session, pooled);
+        }
+        return session;
+    }
+
+    /**
+     * Give the {@link Session} back to the pool. The caller must have
+     * committed or rolled back a transacted session before.
+     *
+     * @param session
+     */
+    public void returnSession(Session session) {
+        PooledSession pooled;
+        synchronized (this) {
+            pooled = active.remove(session);
+        }
+        if (pooled == null) {
+            return;
+        }
+        if (!cacheConsumers) {
+            pooled.closeConsumer();
+        }
+        synchronized (this) {
+            LinkedList<PooledSession> idle = pooled.transacted ? idleTransacted : idleNonTransacted;
+            if (!closed && !pooled.connection.broken && idle.size() < maxIdleSessions) {
+                idle.addFirst(pooled);
+                return;
+            }
+        }
+        pooled.close();
+    }
+
+    /**
+     * Discard the {@link Session} because it may not be usable anymore
+     *
+     * @param session
+     */
+    public void invalidateSession(Session session) {
+        PooledSession pooled;
+        synchronized (this) {
+            pooled = active.remove(session);
+        }
+        if (pooled != null) {
+            invalidatedSessions.incrementAndGet();
+            pooled.close();
+        }
+    }
+
+    /**
+     * Return the cached {@link MessageProducer} for the given queue. The
+     * producer must not get closed by the caller.
+     *
+     * @param session
+     *            a borrowed session
+     * @param queueName
+     *            name of the queue or <code>null</code> for a producer
+     *            without default destination
+     * @return producer
+     * @throws JMSException
+     */
+    public MessageProducer getProducer(Session session, String queueName) throws JMSException {
+        PooledSession pooled = getActive(session);
+        MessageProducer producer = pooled.producers.get(queueName);
+        if (producer == null) {
+            if (queueName == null) {
+                producer = session.createProducer(null);
+            } else {
+                producer = session.createProducer(session.createQueue(queueName));
+            }
+            pooled.producers.put(queueName, producer);
+        }
+        return producer;
+    }
+
+    /**
+     * Return the cached {@link MessageConsumer} for the given queue. A new
+     * consumer with the given selector is created if there is none or the
+     * cached one is older than {@link #CONSUMER_MAX_AGE}. As selectors
+     * usually depend on the current time this age limit does not apply to
+     * consumers without a selector. The consumer must not get closed by the
+     * caller.
+     *
+     * @param session
+     *            a borrowed session
+     * @param queueName
+     * @param selector
+     * @return consumer
+     * @throws JMSException
+     */
+    public MessageConsumer getConsumer(Session session, String queueName, String selector) throws JMSException {
+        PooledSession pooled = getActive(session);
+        long now = System.currentTimeMillis();
+        if (pooled.consumer != null) {
+            if (queueName.equals(pooled.consumerQueue)) {
+                if (selector == null && pooled.consumerSelector == null) {
+                    return pooled.consumer;
+                }
+                if (selector != null && pooled.consumerSelector != null && now - pooled.consumerCreated <= CONSUMER_MAX_AGE) {
+                    return pooled.consumer;
+                }
+            }
+            pooled.closeConsumer();
+        }
+        pooled.consumer = session.createConsumer(session.createQueue(queueName), selector);
+        pooled.consumerQueue = queueName;
+        pooled.consumerSelector = selector;
+        pooled.consumerCreated = now;
+        return pooled.consumer;
+    }
+
+    private synchronized PooledSession getActive(Session session) throws JMSException {
+        PooledSession pooled = active.get(session);
+        if (pooled == null) {
+            throw new JMSException("Session was not borrowed from the pool");
+        }
+        return pooled;
+    }
+
+    private synchronized PooledConnection nextConnection() throws JMSException {
+        if (closed) {
+            throw new JMSException("Session pool is closed");
+        }
+        nextConnection = (nextConnection + 1) % connections.length;
+        PooledConnection connection = connections[nextConnection];
+        if (connection == null || connection.broken) {
+            if (connection != null) {
+                connection.close();
+            }
+            connection = new PooledConnection(connectionFactory.createConnection());
+            connections[nextConnection] = connection;
+        }
+        return connection;
+    }
+
+    /**
+     * Close all idle sessions and connections. Active sessions are closed once
+     * they are returned.
+     */
+    public void close() {
+        LinkedList<PooledSession> sessions = new LinkedList<PooledSession>();
+        synchronized (this) {
+            closed = true;
+            sessions.addAll(idleTransacted);
+            sessions.addAll(idleNonTransacted);
+            idleTransacted.clear();
+            idleNonTransacted.clear();
+        }
+        for (PooledSession pooled : sessions) {
+            pooled.close();
+        }
+        synchronized (this) {
+            for (int i = 0; i < connections.length; i++) {
+                if (connections[i] != null) {
+                    connections[i].close();
+                    connections[i] = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized int getConnectionCount() {
+        int count = 0;
+        for (PooledConnection connection : connections) {
+            if (connection != null && !connection.broken) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized int getActiveSessionCount() {
+        return active.size();
+    }
+
+    @Override
+    public synchronized int getIdleSessionCount() {
+        return idleTransacted.size() + idleNonTransacted.size();
+    }
+
+    @Override
+    public int getMaxIdleSessions() {
+        return maxIdleSessions;
+    }
+
+    @Override
+    public long getCreatedSessionCount() {
+        return createdSessions.get();
+    }
+
+    @Override
+    public long getInvalidatedSessionCount() {
+        return invalidatedSessions.get();
+    }
+
+    @Override
+    public long getBorrowCount() {
+        return borrowed.get();
+    }
+
+    @Override
+    public long getConnectionFailureCount() {
+        return connectionFailures.get();
+    }
+
+    private final class PooledConnection implements ExceptionListener {
+        private final Connection connection;
+        private volatile boolean broken;
+
+        public PooledConnection(Connection connection) throws JMSException {
+            this.connection = connection;
+            try {
+                connection.setExceptionListener(this);
+            } catch (JMSException e) {
+                // some wrappers like springs SingleConnectionFactory do not
+                // allow to set a listener, so we only rely on the session
+                // checks in this case
+                logger.debug("Unable to register ExceptionListener on connection", e);
+            }
+            try {
+                connection.start();
+            } catch (JMSException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void onException(JMSException e) {
+            broken = true;
+            connectionFailures.incrementAndGet();
+            logger.warn("JMS connection failed, it will get replaced", e);
+        }
+
+        public void close() {
+            try {
+                connection.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+        }
+    }
+
+    private final static class PooledSession {
+        private final PooledConnection connection;
+        private final Session session;
+        private final boolean transacted;
+        private final Map<String, MessageProducer> producers = new HashMap<String, MessageProducer>();
+        private MessageConsumer consumer;
+        private String consumerQueue;
+        private String consumerSelector;
+        private long consumerCreated;
+
+        public PooledSession(PooledConnection connection, Session session, boolean transacted) {
+            this.connection = connection;
+            this.session = session;
+            this.transacted = transacted;
+        }
+
+        /**
+         * Check if the connection is healthy and the session was not closed by
+         * the provider
+         */
+        public boolean isValid() {
+            if (connection.broken) {
+                return false;
+            }
+            try {
+                session.getTransacted();
+                return true;
+            } catch (JMSException e) {
+                return false;
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+
+        public void closeConsumer() {
+            if (consumer != null) {
+                try {
+                    consumer.close();
+                } catch (JMSException e) {
+                    // ignore here
+                }
+                consumer = null;
+                consumerQueue = null;
+            }
+        }
+
+        public void close() {
+            closeConsumer();
+            for (MessageProducer producer : producers.values()) {
+                try {
+                    producer.close();
+                } catch (JMSException e) {
+                    // ignore here
+                }
+            }
+            producers.clear();
+            try {
+                session.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+        }
+    }
+}
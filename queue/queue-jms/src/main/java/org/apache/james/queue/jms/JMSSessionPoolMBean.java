@@ -0,0 +1,84 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+/**
+ * JMX gauges of a {@link JMSSessionPool}
+ */
+public interface JMSSessionPoolMBean {
+
+    /**
+     * Return the count of open and healthy connections
+     *
+     * @return count
+     */
+    int getConnectionCount();
+
+    /**
+     * Return the count of sessions which are currently in use
+     *
+     * @return count
+     */
+    int getActiveSessionCount();
+
+    /**
+     * Return the count of sessions which are ready to get reused
+     *
+     * @return count
+     */
+    int getIdleSessionCount();
+
+    /**
+     * Return the max count of idle sessions which are kept open
+     *
+     * @return max
+     */
+    int getMaxIdleSessions();
+
+    /**
+     * Return the count of sessions which were created since the pool was
+     * started
+     *
+     * @return count
+     */
+    long getCreatedSessionCount();
+
+    /**
+     * Return the count of sessions which were discarded because of an error or
+     * a failed health check
+     *
+     * @return count
+     */
+    long getInvalidatedSessionCount();
+
+    /**
+     * Return the count of borrowed sessions since the pool was started
+     *
+     * @return count
+     */
+    long getBorrowCount();
+
+    /**
+     * Return the count of connection failures which were reported by the JMS
+     * provider
+     *
+     * @return count
+     */
+    long getConnectionFailureCount();
+}
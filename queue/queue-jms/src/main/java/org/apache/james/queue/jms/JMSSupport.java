@@ -62,4 +62,19 @@ public interface JMSSupport {
     /** JMS Property which holds next delivery time as long (ms) */
     final static String JAMES_NEXT_DELIVERY = "JAMES_NEXT_DELIVERY";
 
+    /** JMS Property which holds the time the mail was enqueued as long (ms) */
+    final static String JAMES_ENQUEUE_TIME = "JAMES_ENQUEUE_TIME";
+
+    /**
+     * JMS Property which holds the reference of the body in the
+     * {@link MessageBodyStore} as String
+     */
+    final static String JAMES_MAIL_BODY_REFERENCE = "JAMES_MAIL_BODY_REFERENCE";
+
+    /**
+     * JMS Property which holds how often the mail failed within a
+     * {@link JMSMailQueueBatch} as int
+     */
+    final static String JAMES_BATCH_FAILURES = "JAMES_BATCH_FAILURES";
+
 }
@@ -0,0 +1,64 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import java.io.IOException;
+
+import javax.mail.MessagingException;
+
+import org.apache.james.core.MimeMessageSource;
+import org.apache.mailet.Mail;
+
+/**
+ * Store for the message bodies of a {@link JMSMailQueue}. If one is
+ * configured only a reference to the stored body is sent via JMS, so the
+ * message is streamed to the store on enqueue and read lazily on dequeue
+ * instead of being held on the heap as a whole.
+ */
+public interface MessageBodyStore {
+
+    /**
+     * Store the message of the given {@link Mail}
+     * 
+     * @param mail
+     * @return reference which can be used to open the body later
+     * @throws IOException
+     * @throws MessagingException
+     */
+    String store(Mail mail) throws IOException, MessagingException;
+
+    /**
+     * Open the body which was stored under the given reference. The returned
+     * {@link MimeMessageSource} must not load the whole body into memory
+     * 
+     * @param reference
+     * @return source
+     * @throws IOException
+     *             if no body is stored for the reference
+     */
+    MimeMessageSource open(String reference) throws IOException;
+
+    /**
+     * Delete the body which was stored under the given reference
+     * 
+     * @param reference
+     * @throws IOException
+     */
+    void delete(String reference) throws IOException;
+}
@@ -60,7 +60,8 @@ public abstract class AbstractMailQueueFactory implements MailQueueFactory, LogE
 
     @PreDestroy
     public void destroy() {
-        for (String mbean : mbeans) {
+        // copy the names as unregisterMBean modifies the list
+        for (String mbean : new ArrayList<String>(mbeans)) {
             unregisterMBean(mbean);
         }
 
@@ -115,6 +116,25 @@ public abstract class AbstractMailQueueFactory implements MailQueueFactory, LogE
 
     }
 
+    /**
+     * Register the given MBean with the given name if JMX is used. It gets
+     * unregistered on {@link #destroy()}
+     * 
+     * @param mbeanName
+     * @param mbean
+     */
+    protected synchronized void registerComponentMBean(String mbeanName, Object mbean) {
+        if (!useJMX) {
+            return;
+        }
+        try {
+            mbeanServer.registerMBean(mbean, new ObjectName(mbeanName));
+            mbeans.add(mbeanName);
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to register mbean", e);
+        }
+    }
+
     protected synchronized void unregisterMBean(String mbeanName) {
         try {
             mbeanServer.unregisterMBean(new ObjectName(mbeanName));
@@ -0,0 +1,194 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.library;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.james.queue.api.MailQueueStatistics;
+
+/**
+ * {@link MailQueueStatistics} implementation which gets notified about every
+ * state change of a mail in the queue.
+ * <p/>
+ * Mails which are delayed are tracked by their next delivery time and become
+ * ready once it passed, so no notification is needed for that. The enqueue
+ * times of all mails are tracked to calculate the age of the oldest mail.
+ * Each update costs O(log n) at most.
+ * <p/>
+ * The counters only reflect the changes which were done through this instance.
+ */
+public class MailQueueCounters implements MailQueueStatistics {
+
+    private long ready;
+    private long delayed;
+    private long inFlight;
+
+    // next delivery time -> count of delayed mails
+    private final TreeMap<Long, Long> delayedTimes = new TreeMap<Long, Long>();
+
+    // enqueue time -> count of mails
+    private final TreeMap<Long, Long> enqueueTimes = new TreeMap<Long, Long>();
+
+    /**
+     * A mail was added to the queue
+     * 
+     * @param enqueueTime
+     * @param nextDelivery
+     *            the time when the mail will be ready or -1 if it is ready
+     *            now
+     */
+    public synchronized void enqueued(long enqueueTime, long nextDelivery) {
+        long now = System.currentTimeMillis();
+        promoteDue(now);
+        increment(enqueueTimes, enqueueTime);
+        if (nextDelivery > now) {
+            increment(delayedTimes, nextDelivery);
+            delayed++;
+        } else {
+            ready++;
+        }
+    }
+
+    /**
+     * Mails were found in the queue without knowing their enqueue and next
+     * delivery times. They are counted as ready and do not contribute to
+     * {@link #getOldestAge()}.
+     * 
+     * @param count
+     */
+    public synchronized void seeded(long count) {
+        ready += count;
+    }
+
+    /**
+     * A ready mail was dequeued. If no mail is counted as ready, a flush made
+     * a delayed mail ready before {@link #flushed()} was called, so the
+     * earliest delayed mail is taken instead.
+     */
+    public synchronized void dequeued() {
+        promoteDue(System.currentTimeMillis());
+        if (ready > 0) {
+            ready--;
+        } else if (delayed > 0) {
+            decrement(delayedTimes, delayedTimes.firstKey());
+            delayed--;
+        }
+        inFlight++;
+    }
+
+    /**
+     * A dequeued mail was marked as done
+     * 
+     * @param enqueueTime
+     * @param success
+     *            <code>true</code> if the mail was removed from the queue,
+     *            <code>false</code> if it is ready again
+     */
+    public synchronized void done(long enqueueTime, boolean success) {
+        if (inFlight > 0) {
+            inFlight--;
+        }
+        if (success) {
+            decrement(enqueueTimes, enqueueTime);
+        } else {
+            ready++;
+        }
+    }
+
+    /**
+     * A mail which was not dequeued got removed from the queue
+     * 
+     * @param enqueueTime
+     * @param nextDelivery
+     */
+    public synchronized void removed(long enqueueTime, long nextDelivery) {
+        long now = System.currentTimeMillis();
+        promoteDue(now);
+        decrement(enqueueTimes, enqueueTime);
+        if (nextDelivery > now && decrement(delayedTimes, nextDelivery)) {
+            delayed--;
+        } else if (ready > 0) {
+            ready--;
+        }
+    }
+
+    /**
+     * All delayed mails were made ready
+     */
+    public synchronized void flushed() {
+        ready += delayed;
+        delayed = 0;
+        delayedTimes.clear();
+    }
+
+    @Override
+    public synchronized long getReadyCount() {
+        promoteDue(System.currentTimeMillis());
+        return ready;
+    }
+
+    @Override
+    public synchronized long getDelayedCount() {
+        promoteDue(System.currentTimeMillis());
+        return delayed;
+    }
+
+    @Override
+    public synchronized long getInFlightCount() {
+        return inFlight;
+    }
+
+    @Override
+    public synchronized long getOldestAge() {
+        if (enqueueTimes.isEmpty()) {
+            return 0;
+        }
+        return Math.max(0, System.currentTimeMillis() - enqueueTimes.firstKey());
+    }
+
+    /**
+     * Move the delayed mails which are due to the ready ones
+     */
+    private void promoteDue(long now) {
+        while (!delayedTimes.isEmpty() && delayedTimes.firstKey() <= now) {
+            Map.Entry<Long, Long> entry = delayedTimes.pollFirstEntry();
+            delayed -= entry.getValue();
+            ready += entry.getValue();
+        }
+    }
+
+    private static void increment(TreeMap<Long, Long> times, long time) {
+        Long count = times.get(time);
+        times.put(time, count == null ? 1 : count + 1);
+    }
+
+    private static boolean decrement(TreeMap<Long, Long> times, long time) {
+        Long count = times.get(time);
+        if (count == null) {
+            return false;
+        }
+        if (count == 1) {
+            times.remove(time);
+        } else {
+            times.put(time, count - 1);
+        }
+        return true;
+    }
+}
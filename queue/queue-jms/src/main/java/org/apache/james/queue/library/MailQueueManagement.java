@@ -20,10 +20,12 @@ package org.apache.james.queue.library;
 
 import org.apache.james.queue.api.MailQueue.MailQueueException;
 import org.apache.james.queue.api.MailQueueManagementMBean;
+import org.apache.james.queue.api.MailQueueStatistics;
 import org.apache.james.queue.api.ManageableMailQueue;
 import org.apache.james.queue.api.ManageableMailQueue.MailQueueItemView;
 import org.apache.james.queue.api.ManageableMailQueue.MailQueueIterator;
 import org.apache.james.queue.api.ManageableMailQueue.Type;
+import org.apache.james.queue.api.PagedBrowseSupport;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
 
@@ -40,11 +42,14 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 /**
  * JMX MBean implementation which expose management functions by wrapping a
- * {@link ManageableMailQueue}
+ * {@link ManageableMailQueue}. If the queue implements
+ * {@link MailQueueStatistics} its counters are exposed too, and if it
+ * implements {@link PagedBrowseSupport} pages are browsed by the queue itself.
  */
 public class MailQueueManagement extends StandardMBean implements MailQueueManagementMBean {
     private final ManageableMailQueue queue;
@@ -82,6 +87,38 @@ public class MailQueueManagement extends StandardMBean implements MailQueueManag
         }
     }
 
+    @Override
+    public long getReadyCount() throws Exception {
+        if (queue instanceof MailQueueStatistics) {
+            return ((MailQueueStatistics) queue).getReadyCount();
+        }
+        return -1;
+    }
+
+    @Override
+    public long getDelayedCount() throws Exception {
+        if (queue instanceof MailQueueStatistics) {
+            return ((MailQueueStatistics) queue).getDelayedCount();
+        }
+        return -1;
+    }
+
+    @Override
+    public long getInFlightCount() throws Exception {
+        if (queue instanceof MailQueueStatistics) {
+            return ((MailQueueStatistics) queue).getInFlightCount();
+        }
+        return -1;
+    }
+
+    @Override
+    public long getOldestAge() throws Exception {
+        if (queue instanceof MailQueueStatistics) {
+            return ((MailQueueStatistics) queue).getOldestAge();
+        }
+        return -1;
+    }
+
     @Override
     public long removeWithName(String name) throws Exception {
         try {
@@ -110,64 +147,166 @@ public class MailQueueManagement extends StandardMBean implements MailQueueManag
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public List<CompositeData> browse() throws Exception {
         MailQueueIterator it = queue.browse();
         List<CompositeData> data = new ArrayList<CompositeData>();
-        String[] names = new String[]{"name", "sender", "state", "recipients", "size", "lastUpdated", "remoteAddress", "remoteHost", "errorMessage", "attributes", "nextDelivery"};
-        String[] descs = new String[]{"Unique name", "Sender", "Current state", "Recipients", "Size in bytes", "Timestamp of last update", "IPAddress of the sender", "Hostname of the sender", "Errormessage if any", "Attributes stored", "Timestamp of when the next delivery attempt will be make"};
-        OpenType[] types = new OpenType[]{SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.LONG};
+        try {
+            while (it.hasNext()) {
+                MailQueueItemView mView = it.next();
+                Mail m = mView.getMail();
+                // removed in the meantime
+                if (m != null) {
+                    data.add(toCompositeData(m, mView.getNextDelivery()));
+                }
+            }
+        } finally {
+            it.close();
+        }
+        return data;
+    }
 
-        while (it.hasNext()) {
-
-            MailQueueItemView mView = it.next();
-            Mail m = mView.getMail();
-            long nextDelivery = mView.getNextDelivery();
-            Map<String, Object> map = new HashMap<String, Object>();
-            map.put(names[0], m.getName());
-            String sender = null;
-            MailAddress senderAddress = m.getSender();
-            if (senderAddress != null) {
-                sender = senderAddress.toString();
+    @Override
+    public List<CompositeData> browsePage(String type, String value, int offset, int limit) throws Exception {
+        if (offset < 0 || limit < 0) {
+            throw new Exception("Offset and limit must not be negative");
+        }
+        Type t = null;
+        if (type != null && type.trim().length() > 0) {
+            t = getType(type.trim());
+        }
+
+        List<CompositeData> data = new ArrayList<CompositeData>();
+        if (queue instanceof PagedBrowseSupport) {
+            MailQueueIterator it;
+            try {
+                it = ((PagedBrowseSupport) queue).browse(t, value, offset, limit);
+            } catch (MailQueueException e) {
+                throw new Exception(e.getMessage());
             }
-            map.put(names[1], sender);
-            map.put(names[2], m.getState());
-
-            StringBuilder rcptsBuilder = new StringBuilder();
-            Collection<MailAddress> rcpts = m.getRecipients();
-            if (rcpts != null) {
-                Iterator<MailAddress> rcptsIt = rcpts.iterator();
-                while (rcptsIt.hasNext()) {
-                    rcptsBuilder.append(rcptsIt.next().toString());
-                    if (rcptsIt.hasNext()) {
-                        rcptsBuilder.append(",");
+            try {
+                while (it.hasNext() && data.size() < limit) {
+                    MailQueueItemView mView = it.next();
+                    Mail m = mView.getMail();
+                    if (m != null) {
+                        data.add(toCompositeData(m, mView.getNextDelivery()));
                     }
                 }
+            } finally {
+                it.close();
             }
-            map.put(names[3], rcptsBuilder.toString());
-            map.put(names[4], m.getMessageSize());
-            map.put(names[5], m.getLastUpdated().getTime());
-            map.put(names[6], m.getRemoteAddr());
-            map.put(names[7], m.getRemoteHost());
-            map.put(names[8], m.getErrorMessage());
-            Map<String, String> attrs = new HashMap<String, String>();
-            Iterator<String> attrNames = m.getAttributeNames();
-            while (attrNames.hasNext()) {
-                String attrName = attrNames.next();
-                String attrValueString = null;
-                Serializable attrValue = m.getAttribute(attrName);
-                if (attrValue != null) {
-                    attrValueString = attrValue.toString();
+            return data;
+        }
+
+        MailQueueIterator it = queue.browse();
+        int skipped = 0;
+        try {
+            while (it.hasNext() && data.size() < limit) {
+                MailQueueItemView mView = it.next();
+                Mail m = mView.getMail();
+                if (m == null || (t != null && !matches(m, t, value))) {
+                    continue;
+                }
+                if (skipped < offset) {
+                    skipped++;
+                } else {
+                    data.add(toCompositeData(m, mView.getNextDelivery()));
                 }
-                attrs.put(attrName, attrValueString);
             }
-            map.put(names[9], attrs.toString());
-            map.put(names[10], nextDelivery);
-            CompositeDataSupport c = new CompositeDataSupport(new CompositeType(Mail.class.getName(), "Queue Mail", names, descs, types), map);
-            data.add(c);
+        } finally {
+            it.close();
         }
-        it.close();
         return data;
     }
 
+    private static Type getType(String type) throws Exception {
+        for (Type t : Type.values()) {
+            if (t.name().equalsIgnoreCase(type)) {
+                return t;
+            }
+        }
+        throw new Exception("Unknown type " + type);
+    }
+
+    /**
+     * Return <code>true</code> if the given {@link Mail} matches the
+     * {@link Type} and value. Addresses are compared with a lower-cased domain
+     * part.
+     */
+    private static boolean matches(Mail m, Type type, String value) {
+        switch (type) {
+            case Name:
+                return m.getName().equals(value);
+            case Sender:
+                return m.getSender() != null && normalize(m.getSender().toString()).equals(normalize(value));
+            case Recipient:
+                boolean wholeDomain = value.indexOf('@') == -1;
+                String recipient = normalize(value);
+                Collection<MailAddress> rcpts = m.getRecipients();
+                if (rcpts != null) {
+                    for (MailAddress rcpt : rcpts) {
+                        if (wholeDomain ? rcpt.getDomain().toLowerCase(Locale.US).equals(recipient) : normalize(rcpt.toString()).equals(recipient)) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    private static String normalize(String address) {
+        int index = address.lastIndexOf('@');
+        return address.substring(0, index + 1) + address.substring(index + 1).toLowerCase(Locale.US);
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompositeData toCompositeData(Mail m, long nextDelivery) throws Exception {
+        String[] names = new String[]{"name", "sender", "state", "recipients", "size", "lastUpdated", "remoteAddress", "remoteHost", "errorMessage", "attributes", "nextDelivery"};
+        String[] descs = new String[]{"Unique name", "Sender", "Current state", "Recipients", "Size in bytes", "Timestamp of last update", "IPAddress of the sender", "Hostname of the sender", "Errormessage if any", "Attributes stored", "Timestamp of when the next delivery attempt will be make"};
+        OpenType[] types = new OpenType[]{SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.LONG};
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put(names[0], m.getName());
+        String sender = null;
+        MailAddress senderAddress = m.getSender();
+        if (senderAddress != null) {
+            sender = senderAddress.toString();
+        }
+        map.put(names[1], sender);
+        map.put(names[2], m.getState());
+
+        StringBuilder rcptsBuilder = new StringBuilder();
+        Collection<MailAddress> rcpts = m.getRecipients();
+        if (rcpts != null) {
+            Iterator<MailAddress> rcptsIt = rcpts.iterator();
+            while (rcptsIt.hasNext()) {
+                rcptsBuilder.append(rcptsIt.next().toString());
+                if (rcptsIt.hasNext()) {
+                    rcptsBuilder.append(",");
+                }
+            }
+        }
+        map.put(names[3], rcptsBuilder.toString());
+        map.put(names[4], m.getMessageSize());
+        map.put(names[5], m.getLastUpdated().getTime());
+        map.put(names[6], m.getRemoteAddr());
+        map.put(names[7], m.getRemoteHost());
+        map.put(names[8], m.getErrorMessage());
+        Map<String, String> attrs = new HashMap<String, String>();
+        Iterator<String> attrNames = m.getAttributeNames();
+        while (attrNames.hasNext()) {
+            String attrName = attrNames.next();
+            String attrValueString = null;
+            Serializable attrValue = m.getAttribute(attrName);
+            if (attrValue != null) {
+                attrValueString = attrValue.toString();
+            }
+            attrs.put(attrName, attrValueString);
+        }
+        map.put(names[9], attrs.toString());
+        map.put(names[10], nextDelivery);
+        return new CompositeDataSupport(new CompositeType(Mail.class.getName(), "Queue Mail", names, descs, types), map);
+    }
+
 }
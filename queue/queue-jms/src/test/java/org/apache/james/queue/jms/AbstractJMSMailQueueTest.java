@@ -20,6 +20,7 @@ package org.apache.james.queue.jms;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.james.core.MailImpl;
+import org.apache.james.lifecycle.api.LifecycleUtil;
 import org.apache.james.protocols.smtp.MailAddressException;
 import org.apache.james.queue.api.MailQueue.MailQueueItem;
 import org.apache.james.queue.api.ManageableMailQueue;
@@ -30,6 +31,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -44,6 +46,7 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
@@ -61,7 +64,9 @@ public abstract class AbstractJMSMailQueueTest {
     public abstract void setQueue(JMSMailQueue queue);
 
     protected ActiveMQConnectionFactory createConnectionFactory() {
-        return new ActiveMQConnectionFactory("vm://localhost?create=false");
+        // disable prefetching like the shipped configuration does, otherwise
+        // messages may be held back by the consumer of a pending transaction
+        return new ActiveMQConnectionFactory("vm://localhost?create=false&jms.prefetchPolicy.all=0");
     }
 
     protected JMSMailQueue createQueue(ConnectionFactory factory, String queueName) {
@@ -75,6 +80,12 @@ public abstract class AbstractJMSMailQueueTest {
         setQueue(createQueue(connectionFactory, QUEUE_NAME));
     }
 
+    @After
+    public void disposeQueue() throws Exception {
+        // close the pooled sessions of the queue
+        LifecycleUtil.dispose(getQueue());
+    }
+
     @Test
     public void testFIFO() throws MessagingException, InterruptedException, IOException, MailAddressException {
         final JMSMailQueue queue = getQueue();
@@ -116,6 +127,118 @@ public abstract class AbstractJMSMailQueueTest {
         assertEquals(0, queue.getSize());
     }
 
+    @Test
+    public void testBatchDeQueue() throws MessagingException, InterruptedException, IOException, MailAddressException {
+        final JMSMailQueue queue = getQueue();
+        // should be empty
+        assertEquals(0, queue.getSize());
+
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+        Mail mail3 = createMail();
+
+        queue.enQueue(mail);
+        queue.enQueue(mail2);
+        queue.enQueue(mail3);
+
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        assertEquals(3, queue.getSize());
+
+        List<MailQueueItem> items = queue.deQueue(2, 2000);
+        assertEquals(2, items.size());
+        checkMail(mail, items.get(0).getMail());
+        checkMail(mail2, items.get(1).getMail());
+        items.get(0).done(false);
+        items.get(1).done(true);
+
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        // the failed mail should be back in the queue
+        assertEquals(2, queue.getSize());
+
+        items = queue.deQueue(10, 2000);
+        assertEquals(2, items.size());
+        for (MailQueueItem item : items) {
+            item.done(true);
+        }
+
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        // should be empty
+        assertEquals(0, queue.getSize());
+        assertTrue(queue.deQueue(10, 500).isEmpty());
+    }
+
+    @Test
+    public void testCountersAreSeededOnCreation() throws MessagingException, InterruptedException, IOException, MailAddressException {
+        final JMSMailQueue queue = getQueue();
+        // start with an empty queue, other tests may leave mails behind
+        queue.clear();
+        queue.enQueue(createMail());
+        queue.enQueue(createMail());
+        queue.enQueue(createMail(), 1, TimeUnit.HOURS);
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        JMSMailQueue other = createQueue(createConnectionFactory(), QUEUE_NAME);
+        try {
+            assertEquals(3, other.getSize());
+            assertEquals(0, other.getInFlightCount());
+            assertEquals(3, other.getReadyCount() + other.getDelayedCount());
+        } finally {
+            LifecycleUtil.dispose(other);
+        }
+        assertEquals(3, queue.clear());
+    }
+
+    @Test
+    public void testSizeIncludesOtherInstances() throws MessagingException, InterruptedException, IOException, MailAddressException {
+        final JMSMailQueue queue = getQueue();
+        queue.clear();
+
+        JMSMailQueue other = createQueue(createConnectionFactory(), QUEUE_NAME);
+        try {
+            other.enQueue(createMail());
+            other.enQueue(createMail(), 1, TimeUnit.HOURS);
+            TimeUnit.MILLISECONDS.sleep(200);
+
+            // the size is reported by the broker, the statistics only count
+            // the mails of this instance
+            assertEquals(2, queue.getSize());
+            assertEquals(0, queue.getReadyCount() + queue.getDelayedCount());
+        } finally {
+            LifecycleUtil.dispose(other);
+        }
+        assertEquals(2, queue.clear());
+    }
+
+    @Test
+    public void testBatchFailuresMoveToDeadLetterQueue() throws MessagingException, InterruptedException, IOException, MailAddressException {
+        final JMSMailQueue queue = getQueue();
+        Mail mail = createMail();
+        queue.enQueue(mail);
+
+        for (int i = 0; i <= JMSMailQueue.MAX_BATCH_FAILURES; i++) {
+            List<MailQueueItem> items = queue.deQueue(10, 2000);
+            assertEquals(1, items.size());
+            checkMail(mail, items.get(0).getMail());
+            items.get(0).done(false);
+        }
+
+        // the mail must not loop forever
+        assertTrue(queue.deQueue(10, 500).isEmpty());
+        assertEquals(0, queue.getReadyCount());
+        assertEquals(0, queue.getInFlightCount());
+
+        JMSMailQueue dead = createQueue(createConnectionFactory(), QUEUE_NAME + JMSMailQueue.DEAD_LETTER_QUEUE_SUFFIX);
+        try {
+            assertEquals(1, dead.getSize());
+            assertEquals(1, dead.clear());
+        } finally {
+            LifecycleUtil.dispose(dead);
+        }
+    }
+
     @Test
     public void testDelayedDeQueue() throws MessagingException, InterruptedException, IOException, MailAddressException {
         final JMSMailQueue queue = getQueue();
@@ -398,4 +521,50 @@ public abstract class AbstractJMSMailQueueTest {
         assertFalse(it.hasNext());
         it.close();
     }
+
+    @Test
+    public void testStatistics() throws MessagingException, InterruptedException, IOException, MailAddressException {
+        final JMSMailQueue queue = getQueue();
+        // should be empty
+        assertEquals(0, queue.getSize());
+        assertEquals(0, queue.getReadyCount());
+        assertEquals(0, queue.getOldestAge());
+
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+        Mail mail3 = createMail();
+
+        queue.enQueue(mail);
+        queue.enQueue(mail2);
+        queue.enQueue(mail3, 1, TimeUnit.HOURS);
+
+        assertEquals(2, queue.getReadyCount());
+        assertEquals(1, queue.getDelayedCount());
+        assertEquals(0, queue.getInFlightCount());
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertTrue(queue.getOldestAge() >= 200);
+
+        MailQueueItem item = queue.deQueue();
+        assertEquals(1, queue.getReadyCount());
+        assertEquals(1, queue.getInFlightCount());
+
+        // rollback makes the mail ready again
+        item.done(false);
+        assertEquals(2, queue.getReadyCount());
+        assertEquals(0, queue.getInFlightCount());
+
+        item = queue.deQueue();
+        item.done(true);
+        assertEquals(1, queue.getReadyCount());
+        assertEquals(0, queue.getInFlightCount());
+
+        queue.flush();
+        assertEquals(2, queue.getReadyCount());
+        assertEquals(0, queue.getDelayedCount());
+
+        assertEquals(2, queue.clear());
+        assertEquals(0, queue.getReadyCount());
+        assertEquals(0, queue.getDelayedCount());
+        assertEquals(0, queue.getOldestAge());
+    }
 }
@@ -0,0 +1,104 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.jms.ConnectionFactory;
+import javax.mail.MessagingException;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.protocols.smtp.MailAddressException;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Run the {@link JMSMailQueue} tests with the message bodies stored in a
+ * {@link FileMessageBodyStore}
+ */
+public class JMSMailQueueBodyStoreTest extends JMSMailQueueTest {
+
+    private final static File BODY_DIR = new File("target/james-test-bodies");
+
+    @Override
+    protected JMSMailQueue createQueue(ConnectionFactory factory, String queueName) {
+        Logger log = LoggerFactory.getLogger(JMSMailQueueBodyStoreTest.class);
+        try {
+            return new JMSMailQueue(factory, new FileMessageBodyStore(BODY_DIR, false), queueName, log);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @After
+    public void deleteBodies() {
+        File[] files = BODY_DIR.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testBodyIsStreamedAndDeleted() throws MessagingException, IOException, MailAddressException {
+        JMSMailQueue queue = getQueue();
+        MailImpl mail = createMail();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        mail.getMessage().writeTo(expected);
+
+        queue.enQueue(mail);
+        assertEquals(1, BODY_DIR.list().length);
+
+        MailQueueItem item = queue.deQueue();
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        item.getMail().getMessage().writeTo(actual);
+        assertEquals(expected.toString(), actual.toString());
+
+        item.done(true);
+        assertEquals(0, BODY_DIR.list().length);
+    }
+
+    @Test
+    public void testBodyIsKeptOnFailedBatchItem() throws MessagingException, IOException, MailAddressException {
+        JMSMailQueue queue = getQueue();
+        queue.enQueue(createMail());
+        queue.enQueue(createMail());
+
+        List<MailQueueItem> items = queue.deQueue(2, 5000);
+        assertEquals(2, items.size());
+        items.get(0).done(true);
+        items.get(1).done(false);
+        assertEquals(1, BODY_DIR.list().length);
+
+        MailQueueItem item = queue.deQueue();
+        assertNotNull(item.getMail().getMessage());
+        item.done(true);
+        assertEquals(0, BODY_DIR.list().length);
+    }
+}
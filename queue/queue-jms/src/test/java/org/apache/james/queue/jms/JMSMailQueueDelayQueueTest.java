@@ -0,0 +1,128 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.ConnectionFactory;
+import javax.mail.MessagingException;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.protocols.smtp.MailAddressException;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Run the {@link JMSMailQueue} tests with delayed mails kept in separate, time
+ * bucketed queues
+ */
+public class JMSMailQueueDelayQueueTest extends JMSMailQueueTest {
+
+    @Override
+    protected JMSMailQueue createQueue(ConnectionFactory factory, String queueName) {
+        Logger log = LoggerFactory.getLogger(JMSMailQueueDelayQueueTest.class);
+        return new JMSMailQueue(factory, null, true, queueName, log);
+    }
+
+    @Test
+    public void testDequeueWithoutSelector() throws MessagingException, InterruptedException, IOException, MailAddressException {
+        JMSMailQueue queue = getQueue();
+        assertNull(queue.getMessageSelector());
+
+        queue.enQueue(createMail(), 2, TimeUnit.SECONDS);
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        // the delayed mail is counted but must not be dequeued yet
+        assertEquals(1, queue.getSize());
+        assertEquals(0, queue.deQueue(1, 500).size());
+
+        MailQueueItem item = queue.deQueue();
+        item.done(true);
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testDueMailNotBlockedByDelayedMails() throws MessagingException, InterruptedException, IOException, MailAddressException {
+        JMSMailQueue queue = getQueue();
+
+        // more not yet due mails than the broker pages in for a consumer,
+        // both within the bucket range and beyond it
+        for (int i = 0; i < 250; i++) {
+            queue.enQueue(createMail(), 5, TimeUnit.MINUTES);
+            queue.enQueue(createMail(), 1, TimeUnit.HOURS);
+        }
+        MailImpl mail = createMail();
+        queue.enQueue(mail, 1, TimeUnit.SECONDS);
+
+        List<MailQueueItem> items = queue.deQueue(1, 10000);
+        assertEquals(1, items.size());
+        assertEquals(mail.getName(), items.get(0).getMail().getName());
+        items.get(0).done(true);
+
+        assertEquals(500, queue.clear());
+    }
+
+    @Test
+    public void testDelayBeyondBuckets() throws MessagingException, InterruptedException, IOException, MailAddressException {
+        Logger log = LoggerFactory.getLogger(JMSMailQueueDelayQueueTest.class);
+        // 8 buckets of 500ms, so mails delayed for more than 3.5 seconds
+        // start in the far queues
+        JMSMailQueue queue = new JMSMailQueue(createConnectionFactory(), null, true, "far", log) {
+            @Override
+            protected long getDelayBucketWidth() {
+                return 500;
+            }
+
+            @Override
+            protected int getDelayBucketCount() {
+                return 8;
+            }
+        };
+        try {
+            MailImpl mail = createMail();
+            MailImpl mail2 = createMail();
+            queue.enQueue(mail, 6, TimeUnit.SECONDS);
+            queue.enQueue(mail2, 1, TimeUnit.SECONDS);
+            long start = System.currentTimeMillis();
+
+            MailQueueItem item = queue.deQueue();
+            assertEquals(mail2.getName(), item.getMail().getName());
+            item.done(true);
+
+            item = queue.deQueue();
+            long elapsed = System.currentTimeMillis() - start;
+            assertEquals(mail.getName(), item.getMail().getName());
+            item.done(true);
+            assertTrue(elapsed >= 5800);
+            assertTrue("Delivered after " + elapsed + "ms", elapsed < 10000);
+        } finally {
+            LifecycleUtil.dispose(queue);
+        }
+    }
+}
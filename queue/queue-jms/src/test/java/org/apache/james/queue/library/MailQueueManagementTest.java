@@ -0,0 +1,214 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.openmbean.CompositeData;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.api.PagedBrowseSupport;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.junit.Test;
+
+public class MailQueueManagementTest {
+
+    @Test
+    public void testBrowsePageFiltersWithoutPagedBrowseSupport() throws Exception {
+        ListMailQueue queue = new ListMailQueue();
+        queue.mails.add(createMail("mail1", "sender@domain.org", "rcpt@one.org"));
+        queue.mails.add(createMail("mail2", "other@domain.org", "rcpt@ONE.org"));
+        queue.mails.add(createMail("mail3", "sender@Domain.org", "rcpt@two.org"));
+        queue.mails.add(createMail("mail4", "sender@domain.org", "rcpt@one.org", "rcpt@two.org"));
+        MailQueueManagement management = new MailQueueManagement(queue);
+
+        assertEquals(Arrays.asList("mail1", "mail3", "mail4"), names(management.browsePage("sender", "sender@DOMAIN.org", 0, 10)));
+        assertEquals(Arrays.asList("mail3"), names(management.browsePage("Sender", "sender@domain.org", 1, 1)));
+        assertEquals(Arrays.asList("mail1", "mail2", "mail4"), names(management.browsePage("recipient", "one.org", 0, 10)));
+        assertEquals(Arrays.asList("mail3", "mail4"), names(management.browsePage("recipient", "rcpt@two.org", 0, 10)));
+        assertEquals(Arrays.asList("mail2"), names(management.browsePage("name", "mail2", 0, 10)));
+        assertEquals(Arrays.asList("mail2", "mail3"), names(management.browsePage("", null, 1, 2)));
+    }
+
+    @Test
+    public void testBrowsePageUsesPagedBrowseSupport() throws Exception {
+        PagedListMailQueue queue = new PagedListMailQueue();
+        queue.mails.add(createMail("mail1", "sender@domain.org", "rcpt@one.org"));
+        MailQueueManagement management = new MailQueueManagement(queue);
+
+        assertEquals(Arrays.asList("mail1"), names(management.browsePage("recipient", "one.org", 5, 7)));
+        assertEquals(ManageableMailQueue.Type.Recipient, queue.type);
+        assertEquals("one.org", queue.value);
+        assertEquals(5, queue.offset);
+        assertEquals(7, queue.limit);
+    }
+
+    @Test
+    public void testBrowsePageRejectsUnknownType() throws Exception {
+        MailQueueManagement management = new MailQueueManagement(new ListMailQueue());
+        try {
+            management.browsePage("subject", "test", 0, 10);
+            fail();
+        } catch (Exception e) {
+            // expected
+        }
+    }
+
+    private static List<String> names(List<CompositeData> data) {
+        List<String> names = new ArrayList<String>();
+        for (CompositeData c : data) {
+            names.add((String) c.get("name"));
+        }
+        return names;
+    }
+
+    private static Mail createMail(String name, String sender, String... recipients) throws MessagingException {
+        MailImpl mail = new MailImpl();
+        mail.setName(name);
+        mail.setSender(new MailAddress(sender));
+        List<MailAddress> rcpts = new ArrayList<MailAddress>();
+        for (String rcpt : recipients) {
+            rcpts.add(new MailAddress(rcpt));
+        }
+        mail.setRecipients(rcpts);
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText("test");
+        message.saveChanges();
+        mail.setMessage(message);
+        return mail;
+    }
+
+    /**
+     * {@link ManageableMailQueue} which only supports browsing a list of mails
+     */
+    private static class ListMailQueue implements ManageableMailQueue {
+        protected final List<Mail> mails = new ArrayList<Mail>();
+
+        @Override
+        public MailQueueIterator browse() throws MailQueueException {
+            return iterator(mails);
+        }
+
+        protected MailQueueIterator iterator(List<Mail> mails) {
+            final Iterator<Mail> it = mails.iterator();
+            return new MailQueueIterator() {
+
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public MailQueueItemView next() {
+                    final Mail mail = it.next();
+                    return new MailQueueItemView() {
+
+                        @Override
+                        public long getNextDelivery() {
+                            return -1;
+                        }
+
+                        @Override
+                        public Mail getMail() {
+                            return mail;
+                        }
+                    };
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        @Override
+        public long getSize() throws MailQueueException {
+            return mails.size();
+        }
+
+        @Override
+        public long flush() throws MailQueueException {
+            return 0;
+        }
+
+        @Override
+        public long clear() throws MailQueueException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long remove(Type type, String value) throws MailQueueException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void enQueue(Mail mail) throws MailQueueException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MailQueueItem deQueue() throws MailQueueException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<MailQueueItem> deQueue(int max, long timeout) throws MailQueueException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class PagedListMailQueue extends ListMailQueue implements PagedBrowseSupport {
+        private Type type;
+        private String value;
+        private int offset;
+        private int limit;
+
+        @Override
+        public MailQueueIterator browse(Type type, String value, int offset, int limit) throws MailQueueException {
+            this.type = type;
+            this.value = value;
+            this.offset = offset;
+            this.limit = limit;
+            return iterator(mails);
+        }
+    }
+}